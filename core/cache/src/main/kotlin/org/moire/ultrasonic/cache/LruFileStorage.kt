@@ -0,0 +1,142 @@
+package org.moire.ultrasonic.cache
+
+import com.twitter.serial.serializer.SerializationContext
+import com.twitter.serial.stream.Serial
+import com.twitter.serial.stream.bytebuffer.ByteBufferSerial
+import java.io.File
+import java.net.URLEncoder
+
+internal const val LRU_STORAGE_DIR_NAME = "lru_storage"
+
+/**
+ * Provides access to file based storage which is bounded in size.
+ *
+ * When the stored files grow larger than [maxBytes], the least recently used ones are deleted.
+ * A file which can't be read anymore, e.g. because its serializer has changed, is deleted as well.
+ * The files are kept in the internal cache directory, so the system may also delete them when it
+ * runs out of space.
+ *
+ * [serverId] is currently active server. Should be unique per server so stored data will not
+ * interfere with other server data.
+ *
+ * Look at [org.moire.ultrasonic.cache.serializers] package for available [DomainEntitySerializer]s.
+ */
+class LruFileStorage(
+    private val directories: Directories,
+    private val serverId: String,
+    private val maxBytes: Long,
+    private val debug: Boolean = false
+) {
+    private val serializationContext = object : SerializationContext {
+        override fun isDebug(): Boolean = debug
+        override fun isRelease(): Boolean = !debug
+    }
+
+    private val serializer: Serial = ByteBufferSerial(serializationContext)
+
+    // The lengths of the files by their names in the order of their last use, or null until
+    // they have been listed. The modification times of the files are too coarse to order the
+    // files used within a second, so they only seed the order after a restart
+    private var files: LinkedHashMap<String, Long>? = null
+    private var totalBytes = 0L
+
+    /**
+     * Stores given [objectToStore] using [name] as a key and [objectSerializer] as serializer,
+     * and deletes the least recently used files if the storage has grown too large.
+     */
+    @Synchronized
+    fun <T> store(
+        name: String,
+        objectToStore: T,
+        objectSerializer: DomainEntitySerializer<T>
+    ) {
+        val bytes = serializer.toByteArray(objectToStore, objectSerializer)
+        val storeFile = getFile(name)
+        val previousBytes = getFiles().put(storeFile.name, bytes.size.toLong()) ?: 0L
+
+        totalBytes += bytes.size - previousBytes
+        storeFile.writeBytes(bytes)
+
+        if (totalBytes > maxBytes) trim()
+    }
+
+    /**
+     * Loads object with [name] key using [objectDeserializer] deserializer,
+     * and marks it as recently used.
+     */
+    @Synchronized
+    fun <T> load(
+        name: String,
+        objectDeserializer: DomainEntitySerializer<T>
+    ): T? {
+        val storeFile = getFile(name)
+        if (!storeFile.exists()) return null
+
+        // Looking the file up moves it to the end of the order, unless another storage stored it
+        val files = getFiles()
+        if (files[storeFile.name] == null) {
+            files[storeFile.name] = storeFile.length()
+            totalBytes += storeFile.length()
+        }
+        storeFile.setLastModified(System.currentTimeMillis())
+        val loaded = try {
+            serializer.fromByteArray(storeFile.readBytes(), objectDeserializer)
+        } catch (exception: Exception) {
+            null
+        }
+
+        if (loaded == null) delete(storeFile)
+        return loaded
+    }
+
+    /**
+     * Clear all files in storage.
+     */
+    @Synchronized
+    fun clearAll() {
+        getStorageDir().listFiles()?.forEach { it.deleteRecursively() }
+        files = newFiles()
+        totalBytes = 0L
+    }
+
+    /**
+     * Deletes the least recently used files until the storage fits into [maxBytes] again.
+     */
+    private fun trim() {
+        val storageDir = getStorageDir()
+        val iterator = getFiles().entries.iterator()
+        while (iterator.hasNext() && totalBytes > maxBytes) {
+            val (name, length) = iterator.next()
+            // The system may have deleted the file meanwhile, then it is only forgotten
+            File(storageDir, name).delete()
+            totalBytes -= length
+            iterator.remove()
+        }
+    }
+
+    private fun delete(file: File) {
+        file.delete()
+        getFiles().remove(file.name)?.let { totalBytes -= it }
+    }
+
+    private fun getFiles(): LinkedHashMap<String, Long> {
+        return files ?: newFiles().also { listed ->
+            getStorageDir().listFiles()?.sortedBy { it.lastModified() }?.forEach {
+                listed[it.name] = it.length()
+            }
+            totalBytes = listed.values.sum()
+            files = listed
+        }
+    }
+
+    private fun newFiles() = LinkedHashMap<String, Long>(16, 0.75f, true)
+
+    private fun getFile(name: String) = File(getStorageDir(), "${URLEncoder.encode(name, "UTF-8")}.ser")
+
+    private fun getStorageDir(): File {
+        val mainDir = File(directories.getInternalCacheDir(), LRU_STORAGE_DIR_NAME)
+        val serverDir = File(mainDir, serverId)
+        if (!serverDir.exists()) serverDir.mkdirs()
+        return serverDir
+    }
+}
@@ -0,0 +1,167 @@
+@file:JvmMultifileClass
+@file:JvmName("DomainSerializers")
+package org.moire.ultrasonic.cache.serializers
+
+import com.twitter.serial.serializer.CollectionSerializers
+import com.twitter.serial.serializer.ObjectSerializer
+import com.twitter.serial.serializer.SerializationContext
+import com.twitter.serial.stream.SerializerDefs
+import com.twitter.serial.stream.SerializerInput
+import com.twitter.serial.stream.SerializerOutput
+import java.util.Date
+import org.moire.ultrasonic.cache.DomainEntitySerializer
+import org.moire.ultrasonic.domain.MusicDirectory
+
+private const val ENTRY_SERIALIZER_VERSION = 1
+private const val DIRECTORY_SERIALIZER_VERSION = 1
+
+private val musicDirectoryEntrySerializer get() =
+    object : ObjectSerializer<MusicDirectory.Entry>(ENTRY_SERIALIZER_VERSION) {
+        override fun serializeObject(
+            context: SerializationContext,
+            output: SerializerOutput<out SerializerOutput<*>>,
+            item: MusicDirectory.Entry
+        ) {
+            output.writeString(item.id)
+                .writeString(item.parent)
+                .writeBoolean(item.isDirectory)
+                .writeString(item.title)
+                .writeString(item.album)
+                .writeString(item.albumId)
+                .writeString(item.artist)
+                .writeString(item.artistId)
+                .writeNullableInt(item.track)
+                .writeNullableInt(item.year)
+                .writeString(item.genre)
+                .writeString(item.contentType)
+                .writeString(item.suffix)
+                .writeString(item.transcodedContentType)
+                .writeString(item.transcodedSuffix)
+                .writeString(item.coverArt)
+                .writeNullableLong(item.size)
+                .writeNullableLong(item.songCount)
+                .writeNullableInt(item.duration)
+                .writeNullableInt(item.bitRate)
+                .writeString(item.path)
+                .writeBoolean(item.isVideo)
+                .writeBoolean(item.starred)
+                .writeNullableInt(item.discNumber)
+                .writeString(item.type)
+                .writeNullableLong(item.created?.time)
+                .writeInt(item.closeness)
+                .writeInt(item.bookmarkPosition)
+                .writeNullableInt(item.userRating)
+                .apply {
+                    val averageRating = item.averageRating
+                    if (averageRating != null) writeFloat(averageRating) else writeNull()
+                }
+        }
+
+        override fun deserializeObject(
+            context: SerializationContext,
+            input: SerializerInput,
+            versionNumber: Int
+        ): MusicDirectory.Entry? {
+            if (versionNumber != ENTRY_SERIALIZER_VERSION) return null
+
+            return MusicDirectory.Entry(
+                id = input.readString(),
+                parent = input.readString(),
+                isDirectory = input.readBoolean(),
+                title = input.readString(),
+                album = input.readString(),
+                albumId = input.readString(),
+                artist = input.readString(),
+                artistId = input.readString(),
+                track = input.readNullableInt(),
+                year = input.readNullableInt(),
+                genre = input.readString(),
+                contentType = input.readString(),
+                suffix = input.readString(),
+                transcodedContentType = input.readString(),
+                transcodedSuffix = input.readString(),
+                coverArt = input.readString(),
+                size = input.readNullableLong(),
+                songCount = input.readNullableLong(),
+                duration = input.readNullableInt(),
+                bitRate = input.readNullableInt(),
+                path = input.readString(),
+                isVideo = input.readBoolean(),
+                starred = input.readBoolean(),
+                discNumber = input.readNullableInt(),
+                type = input.readString(),
+                created = input.readNullableLong()?.let { Date(it) },
+                closeness = input.readInt(),
+                bookmarkPosition = input.readInt(),
+                userRating = input.readNullableInt(),
+                averageRating = if (input.isNextNull()) null else input.readFloat()
+            )
+        }
+    }
+
+/**
+ * Serializer/deserializer for [MusicDirectory.Entry] domain entity.
+ */
+fun getMusicDirectoryEntrySerializer(): DomainEntitySerializer<MusicDirectory.Entry> =
+    musicDirectoryEntrySerializer
+
+private val musicDirectoryEntryListSerializer =
+    CollectionSerializers.getListSerializer(musicDirectoryEntrySerializer)
+
+/**
+ * Serializer/deserializer for list of [MusicDirectory.Entry] domain entities.
+ */
+fun getMusicDirectoryEntryListSerializer(): DomainEntitySerializer<List<MusicDirectory.Entry>> =
+    musicDirectoryEntryListSerializer
+
+private val musicDirectorySerializer get() =
+    object : ObjectSerializer<MusicDirectory>(DIRECTORY_SERIALIZER_VERSION) {
+        override fun serializeObject(
+            context: SerializationContext,
+            output: SerializerOutput<out SerializerOutput<*>>,
+            item: MusicDirectory
+        ) {
+            output.writeString(item.name)
+                .writeObject<List<MusicDirectory.Entry>>(
+                    context, item.getAllChild(), getMusicDirectoryEntryListSerializer()
+                )
+        }
+
+        override fun deserializeObject(
+            context: SerializationContext,
+            input: SerializerInput,
+            versionNumber: Int
+        ): MusicDirectory? {
+            if (versionNumber != DIRECTORY_SERIALIZER_VERSION) return null
+
+            val name = input.readString()
+            val children = input.readObject(context, getMusicDirectoryEntryListSerializer())
+                ?: return null
+            return MusicDirectory().apply {
+                this.name = name
+                addAll(children)
+            }
+        }
+    }
+
+/**
+ * Serializer/deserializer for [MusicDirectory] domain entity.
+ */
+fun getMusicDirectorySerializer(): DomainEntitySerializer<MusicDirectory> =
+    musicDirectorySerializer
+
+private fun SerializerOutput<*>.writeNullableInt(value: Int?) =
+    if (value != null) writeInt(value) else writeNull()
+
+private fun SerializerOutput<*>.writeNullableLong(value: Long?) =
+    if (value != null) writeLong(value) else writeNull()
+
+private fun SerializerInput.isNextNull(): Boolean {
+    if (peekType() != SerializerDefs.TYPE_NULL) return false
+    readNull()
+    return true
+}
+
+private fun SerializerInput.readNullableInt(): Int? = if (isNextNull()) null else readInt()
+
+private fun SerializerInput.readNullableLong(): Long? = if (isNextNull()) null else readLong()
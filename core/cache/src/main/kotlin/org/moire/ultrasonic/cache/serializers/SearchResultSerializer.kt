@@ -0,0 +1,46 @@
+@file:JvmMultifileClass
+@file:JvmName("DomainSerializers")
+package org.moire.ultrasonic.cache.serializers
+
+import com.twitter.serial.serializer.ObjectSerializer
+import com.twitter.serial.serializer.SerializationContext
+import com.twitter.serial.stream.SerializerInput
+import com.twitter.serial.stream.SerializerOutput
+import org.moire.ultrasonic.cache.DomainEntitySerializer
+import org.moire.ultrasonic.domain.Artist
+import org.moire.ultrasonic.domain.MusicDirectory
+import org.moire.ultrasonic.domain.SearchResult
+
+private const val SERIALIZATION_VERSION = 1
+
+private val searchResultSerializer get() = object : ObjectSerializer<SearchResult>(SERIALIZATION_VERSION) {
+    override fun serializeObject(
+        context: SerializationContext,
+        output: SerializerOutput<out SerializerOutput<*>>,
+        item: SearchResult
+    ) {
+        val entryListSerializer = getMusicDirectoryEntryListSerializer()
+        output.writeObject<List<Artist>>(context, item.artists, getArtistListSerializer())
+            .writeObject<List<MusicDirectory.Entry>>(context, item.albums, entryListSerializer)
+            .writeObject<List<MusicDirectory.Entry>>(context, item.songs, entryListSerializer)
+    }
+
+    override fun deserializeObject(
+        context: SerializationContext,
+        input: SerializerInput,
+        versionNumber: Int
+    ): SearchResult? {
+        if (versionNumber != SERIALIZATION_VERSION) return null
+
+        val entryListDeserializer = getMusicDirectoryEntryListSerializer()
+        val artists = input.readObject(context, getArtistListSerializer()) ?: return null
+        val albums = input.readObject(context, entryListDeserializer) ?: return null
+        val songs = input.readObject(context, entryListDeserializer) ?: return null
+        return SearchResult(artists, albums, songs)
+    }
+}
+
+/**
+ * Get serializer/deserializer for [SearchResult] entity.
+ */
+fun getSearchResultSerializer(): DomainEntitySerializer<SearchResult> = searchResultSerializer
@@ -0,0 +1,112 @@
+package org.moire.ultrasonic.cache
+
+import java.io.File
+import org.amshove.kluent.`should be equal to`
+import org.amshove.kluent.`should equal`
+import org.junit.Before
+import org.junit.Test
+import org.moire.ultrasonic.cache.serializers.getMusicFolderSerializer
+import org.moire.ultrasonic.domain.MusicFolder
+
+/**
+ * Integration test for [LruFileStorage].
+ */
+class LruFileStorageTest : BaseStorageTest() {
+    override val serverId: String
+        get() = "some-server-id"
+
+    private lateinit var lruStorage: LruFileStorage
+    private var itemBytes = 0L
+
+    @Before
+    fun setUpLruStorage() {
+        // Measure how large a single stored item is, to bound the storage by items
+        val measure = LruFileStorage(mockDirectories, "measure", Long.MAX_VALUE, true)
+        measure.store("1", MusicFolder("1", "1"), getMusicFolderSerializer())
+        itemBytes = File(getLruStorageDir(), "measure/1.ser").length()
+
+        lruStorage = LruFileStorage(mockDirectories, serverId, itemBytes * 2, true)
+    }
+
+    @Test
+    fun `Should deserialize stored object`() {
+        val item = MusicFolder("some", "nice")
+        lruStorage.store("some-name", item, getMusicFolderSerializer())
+
+        lruStorage.load("some-name", getMusicFolderSerializer()) `should equal` item
+    }
+
+    @Test
+    fun `Should store names which are not valid file names`() {
+        val item = MusicFolder("some", "nice")
+        lruStorage.store("album-a/b:c", item, getMusicFolderSerializer())
+
+        lruStorage.load("album-a/b:c", getMusicFolderSerializer()) `should equal` item
+    }
+
+    @Test
+    fun `Should return null if serialized file not available`() {
+        lruStorage.load("some-name", getMusicFolderSerializer()) `should equal` null
+    }
+
+    @Test
+    fun `Should delete the least recently used file when the storage is full`() {
+        lruStorage.store("1", MusicFolder("1", "1"), getMusicFolderSerializer())
+        lruStorage.store("2", MusicFolder("2", "2"), getMusicFolderSerializer())
+        lruStorage.load("1", getMusicFolderSerializer())
+
+        lruStorage.store("3", MusicFolder("3", "3"), getMusicFolderSerializer())
+
+        lruStorage.load("1", getMusicFolderSerializer()) `should equal` MusicFolder("1", "1")
+        lruStorage.load("2", getMusicFolderSerializer()) `should equal` null
+        lruStorage.load("3", getMusicFolderSerializer()) `should equal` MusicFolder("3", "3")
+    }
+
+    @Test
+    fun `Should order the files stored before it was created by their last use`() {
+        lruStorage.store("1", MusicFolder("1", "1"), getMusicFolderSerializer())
+        lruStorage.store("2", MusicFolder("2", "2"), getMusicFolderSerializer())
+        File(getServerStorageDir(), "1.ser").setLastModified(2000)
+        File(getServerStorageDir(), "2.ser").setLastModified(1000)
+
+        val reopened = LruFileStorage(mockDirectories, serverId, itemBytes * 2, true)
+        reopened.store("3", MusicFolder("3", "3"), getMusicFolderSerializer())
+
+        reopened.load("1", getMusicFolderSerializer()) `should equal` MusicFolder("1", "1")
+        reopened.load("2", getMusicFolderSerializer()) `should equal` null
+    }
+
+    @Test
+    fun `Should count the files stored before it was created`() {
+        lruStorage.store("1", MusicFolder("1", "1"), getMusicFolderSerializer())
+        lruStorage.store("2", MusicFolder("2", "2"), getMusicFolderSerializer())
+
+        val reopened = LruFileStorage(mockDirectories, serverId, itemBytes * 2, true)
+        reopened.store("3", MusicFolder("3", "3"), getMusicFolderSerializer())
+
+        getServerStorageDir().listFiles().size `should be equal to` 2
+    }
+
+    @Test
+    fun `Should delete a file which can't be deserialized`() {
+        lruStorage.store("some-name", MusicFolder("1", "1"), getMusicFolderSerializer())
+        File(getServerStorageDir(), "some-name.ser").writeBytes(byteArrayOf(1, 2, 3))
+
+        lruStorage.load("some-name", getMusicFolderSerializer()) `should equal` null
+        getServerStorageDir().listFiles().size `should be equal to` 0
+    }
+
+    @Test
+    fun `Should clear all files when clearAll is called`() {
+        lruStorage.store("name1", MusicFolder("1", "1"), getMusicFolderSerializer())
+        lruStorage.store("name2", MusicFolder("2", "2"), getMusicFolderSerializer())
+
+        lruStorage.clearAll()
+
+        getServerStorageDir().listFiles().size `should be equal to` 0
+    }
+
+    private fun getLruStorageDir() = File(mockDirectories.getInternalCacheDir(), LRU_STORAGE_DIR_NAME)
+
+    private fun getServerStorageDir() = File(getLruStorageDir(), serverId)
+}
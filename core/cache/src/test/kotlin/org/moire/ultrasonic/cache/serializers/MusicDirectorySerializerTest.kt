@@ -0,0 +1,65 @@
+package org.moire.ultrasonic.cache.serializers
+
+import java.util.Date
+import org.amshove.kluent.`should equal`
+import org.junit.Test
+import org.moire.ultrasonic.cache.BaseStorageTest
+import org.moire.ultrasonic.domain.MusicDirectory
+
+/**
+ * [MusicDirectory] and [MusicDirectory.Entry] serializers test.
+ */
+class MusicDirectorySerializerTest : BaseStorageTest() {
+    @Test
+    fun `Should correctly serialize MusicDirectory object`() {
+        storage.store("some-name", createDirectory(), getMusicDirectorySerializer())
+
+        validateSerializedData()
+    }
+
+    @Test
+    fun `Should correctly deserialize MusicDirectory object`() {
+        val name = "some-name"
+        val item = createDirectory()
+        storage.store(name, item, getMusicDirectorySerializer())
+
+        val loadedItem = storage.load(name, getMusicDirectorySerializer())
+
+        loadedItem!!.name `should equal` item.name
+        loadedItem.getAllChild() `should equal` item.getAllChild()
+    }
+
+    @Test
+    fun `Should correctly deserialize Entry with all fields set`() {
+        val name = "some-name"
+        val item = createEntry()
+        storage.store(name, item, getMusicDirectoryEntrySerializer())
+
+        val loadedItem = storage.load(name, getMusicDirectoryEntrySerializer())
+
+        loadedItem `should equal` item
+    }
+
+    @Test
+    fun `Should correctly deserialize Entry without optional fields`() {
+        val name = "some-name"
+        val item = MusicDirectory.Entry(id = "1", track = null, year = null)
+        storage.store(name, item, getMusicDirectoryEntrySerializer())
+
+        val loadedItem = storage.load(name, getMusicDirectoryEntrySerializer())
+
+        loadedItem `should equal` item
+    }
+
+    private fun createDirectory() = MusicDirectory().apply {
+        name = "some-directory"
+        addChild(createEntry())
+        addChild(MusicDirectory.Entry(id = "2", isDirectory = true, title = "Some album"))
+    }
+
+    private fun createEntry() = MusicDirectory.Entry(
+        "1", "2", false, "Some song", "Some album", "3", "Some artist", "4", 5, 2001,
+        "Rock", "audio/mpeg", "mp3", "audio/ogg", "ogg", "6", 4096L, 12L, 240, 320,
+        "some/path.mp3", false, true, 1, "music", Date(1550000000000L), 3, 1000, 4, 3.5f
+    )
+}
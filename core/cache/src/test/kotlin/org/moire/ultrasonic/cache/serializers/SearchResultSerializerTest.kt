@@ -0,0 +1,39 @@
+package org.moire.ultrasonic.cache.serializers
+
+import org.amshove.kluent.`should equal`
+import org.junit.Test
+import org.moire.ultrasonic.cache.BaseStorageTest
+import org.moire.ultrasonic.domain.Artist
+import org.moire.ultrasonic.domain.MusicDirectory
+import org.moire.ultrasonic.domain.SearchResult
+
+/**
+ * Test [SearchResult] domain entity serializer.
+ */
+class SearchResultSerializerTest : BaseStorageTest() {
+    @Test
+    fun `Should correctly serialize SearchResult object`() {
+        val item = SearchResult(
+            listOf(Artist("1", "some")), listOf(MusicDirectory.Entry(id = "2")),
+            listOf(MusicDirectory.Entry(id = "3", title = "song"))
+        )
+
+        storage.store("some-name", item, getSearchResultSerializer())
+
+        validateSerializedData()
+    }
+
+    @Test
+    fun `Should correctly deserialize SearchResult object`() {
+        val name = "some-name"
+        val item = SearchResult(
+            listOf(Artist("1", "some")), listOf(MusicDirectory.Entry(id = "2")),
+            listOf(MusicDirectory.Entry(id = "3", title = "song"))
+        )
+        storage.store(name, item, getSearchResultSerializer())
+
+        val loadedItem = storage.load(name, getSearchResultSerializer())
+
+        loadedItem `should equal` item
+    }
+}
@@ -0,0 +1,18 @@
+package org.moire.ultrasonic.domain
+
+import java.io.InputStream
+
+/**
+ * Response of a song download request.
+ *
+ * [isPartial] is true if the server has honored the requested range. [totalLength] is the
+ * length of the whole file, or -1 if the server didn't tell it, e.g. because it is transcoding.
+ * [eTag] and [lastModified] identify the version of the file, if the server sent them.
+ */
+class DownloadResponse(
+    val stream: InputStream,
+    val isPartial: Boolean,
+    val totalLength: Long = -1,
+    val eTag: String? = null,
+    val lastModified: String? = null
+)
@@ -1,11 +1,15 @@
 package org.moire.ultrasonic.api.subsonic
 
+import java.io.IOException
+import java.util.concurrent.TimeUnit
 import okhttp3.mockwebserver.MockResponse
 import org.amshove.kluent.`should be equal to`
 import org.amshove.kluent.`should be`
 import org.amshove.kluent.`should equal`
 import org.amshove.kluent.`should not be`
+import org.amshove.kluent.`should throw`
 import org.junit.Test
+import retrofit2.Call
 
 /**
  * Integration test for [SubsonicAPIClient] for [SubsonicAPIDefinition.stream] call.
@@ -136,4 +140,72 @@ class SubsonicApiStreamTest : SubsonicAPIClientTest() {
             client.api.stream("some-id", converted = converted).execute()
         }
     }
+
+    @Test
+    fun `Should request a range of bytes`() {
+        mockWebServerRule.mockWebServer.enqueue(MockResponse().setResponseCode(206))
+
+        client.stream("some-id", offset = 100L, length = 50L)
+
+        val request = mockWebServerRule.mockWebServer.takeRequest()
+        request.getHeader("Range") `should be equal to` "bytes=100-149"
+    }
+
+    @Test
+    fun `Should request everything from offset`() {
+        mockWebServerRule.mockWebServer.enqueue(MockResponse().setResponseCode(206))
+
+        client.stream("some-id", offset = 100L)
+
+        val request = mockWebServerRule.mockWebServer.takeRequest()
+        request.getHeader("Range") `should be equal to` "bytes=100-"
+    }
+
+    @Test
+    fun `Should pass if range as header`() {
+        mockWebServerRule.mockWebServer.enqueue(MockResponse().setResponseCode(206))
+
+        client.stream("some-id", offset = 100L, ifRange = "\"some-etag\"")
+
+        val request = mockWebServerRule.mockWebServer.takeRequest()
+        request.getHeader("If-Range") `should be equal to` "\"some-etag\""
+    }
+
+    @Test
+    fun `Should return stream response headers`() {
+        mockWebServerRule.mockWebServer.enqueue(
+            MockResponse()
+                .setResponseCode(206)
+                .setHeader("Content-Range", "bytes 100-199/5000")
+                .setHeader("ETag", "\"some-etag\"")
+                .setHeader("Last-Modified", "Wed, 21 Oct 2015 07:28:00 GMT")
+                .setBody("a".repeat(100))
+        )
+
+        val response = client.stream("some-id", offset = 100L, length = 100L)
+
+        with(response) {
+            responseHttpCode `should be equal to` 206
+            contentLength `should be equal to` 100L
+            totalLength `should be equal to` 5000L
+            eTag `should equal` "\"some-etag\""
+            lastModified `should equal` "Wed, 21 Oct 2015 07:28:00 GMT"
+        }
+    }
+
+    @Test
+    fun `Should abort reading the stream when the call is cancelled`() {
+        mockWebServerRule.mockWebServer.enqueue(
+            MockResponse()
+                .setBody("a".repeat(1024 * 1024))
+                .throttleBody(1024, 1, TimeUnit.SECONDS)
+        )
+        var call: Call<*>? = null
+
+        val response = client.stream("some-id") { call = it }
+        call!!.cancel()
+
+        val read = { response.stream!!.readBytes() }
+        read `should throw` IOException::class
+    }
 }
@@ -30,6 +30,21 @@ class RangeHeaderInterceptorTest : BaseInterceptorTest() {
         executedRequest.headers["Range"]!! `should be equal to` "bytes=$offset-"
     }
 
+    @Test
+    fun `Should update range header with start and end`() {
+        mockWebServerRule.mockWebServer.enqueue(MockResponse())
+        val range = "1000-1999"
+        val request = createRequest {
+            it.addHeader("Range", range)
+        }
+
+        client.newCall(request).execute()
+
+        val executedRequest = mockWebServerRule.mockWebServer.takeRequest()
+        executedRequest.headers.names() `should contain` "Range"
+        executedRequest.headers["Range"]!! `should be equal to` "bytes=$range"
+    }
+
     @Test
     fun `Should not add range header if request doesnt contain it`() {
         mockWebServerRule.mockWebServer.enqueue(MockResponse())
@@ -211,7 +211,8 @@ internal class ApiVersionCheckWrapper(
         videoSize: String?,
         estimateContentLength: Boolean?,
         converted: Boolean?,
-        offset: Long?
+        range: String?,
+        ifRange: String?
     ): Call<ResponseBody> {
         checkParamVersion(maxBitRate, V1_2_0)
         checkParamVersion(format, V1_6_0)
@@ -219,7 +220,8 @@ internal class ApiVersionCheckWrapper(
         checkParamVersion(estimateContentLength, V1_8_0)
         checkParamVersion(converted, V1_14_0)
         return api.stream(
-            id, maxBitRate, format, timeOffset, videoSize, estimateContentLength, converted
+            id, maxBitRate, format, timeOffset, videoSize, estimateContentLength, converted,
+            range, ifRange
         )
     }
 
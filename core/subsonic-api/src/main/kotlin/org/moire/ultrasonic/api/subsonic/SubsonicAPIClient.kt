@@ -19,6 +19,7 @@ import org.moire.ultrasonic.api.subsonic.interceptors.RangeHeaderInterceptor
 import org.moire.ultrasonic.api.subsonic.interceptors.VersionInterceptor
 import org.moire.ultrasonic.api.subsonic.response.StreamResponse
 import org.moire.ultrasonic.api.subsonic.response.SubsonicResponse
+import retrofit2.Call
 import retrofit2.Response
 import retrofit2.Retrofit
 
@@ -116,16 +117,34 @@ class SubsonicAPIClient(
     /**
      * Convenient method to get media stream from api using item [id] and optional [maxBitrate].
      *
-     * Optionally also you can provide [offset] that stream should start from.
+     * Optionally also you can provide [offset] that stream should start from,
+     * and the [length] of the requested range. Without [length] the stream goes to the end.
+     * With [ifRange] the server only honors the range if the file still matches this
+     * ETag or Last-Modified value, otherwise it sends the whole file.
+     * [onCall] receives the call before it is executed, so it can be cancelled from another
+     * thread, which also aborts a read of the returned stream right away.
      *
      * It detects the response `Content-Type` and tries to parse subsonic error if there is one.
      *
      * Prefer this method over [SubsonicAPIDefinition.stream] as this handles error cases.
      */
-    fun stream(id: String, maxBitrate: Int? = null, offset: Long? = null): StreamResponse =
-        handleStreamResponse {
-            api.stream(id, maxBitrate, offset = offset).execute()
+    fun stream(
+        id: String,
+        maxBitrate: Int? = null,
+        offset: Long? = null,
+        length: Long? = null,
+        ifRange: String? = null,
+        onCall: (Call<ResponseBody>) -> Unit = {}
+    ): StreamResponse = handleStreamResponse {
+        val range = when {
+            offset == null -> null
+            length == null -> "$offset"
+            else -> "$offset-${offset + length - 1}"
         }
+        val call = api.stream(id, maxBitrate, range = range, ifRange = ifRange)
+        onCall(call)
+        call.execute()
+    }
 
     /**
      * Convenient method to get user avatar using [username].
@@ -153,7 +172,11 @@ class SubsonicAPIClient(
             } else {
                 StreamResponse(
                     stream = responseBody?.byteStream(),
-                    responseHttpCode = response.code()
+                    responseHttpCode = response.code(),
+                    contentLength = responseBody?.contentLength() ?: -1,
+                    contentRange = response.headers()["Content-Range"],
+                    eTag = response.headers()["ETag"],
+                    lastModified = response.headers()["Last-Modified"]
                 )
             }
         } else {
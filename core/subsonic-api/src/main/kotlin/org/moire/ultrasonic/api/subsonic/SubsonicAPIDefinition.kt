@@ -226,7 +226,8 @@ interface SubsonicAPIDefinition {
         @Query("size") videoSize: String? = null,
         @Query("estimateContentLength") estimateContentLength: Boolean? = null,
         @Query("converted") converted: Boolean? = null,
-        @Header("Range") offset: Long? = null
+        @Header("Range") range: String? = null,
+        @Header("If-Range") ifRange: String? = null
     ): Call<ResponseBody>
 
     @GET("jukeboxControl.view")
@@ -12,6 +12,9 @@ internal const val TIMEOUT_MILLIS_PER_OFFSET_BYTE = 0.02
 /**
  * Modifies request "Range" header to be according to HTTP standard.
  *
+ * The header value is either an offset `N`, requesting everything from `N`,
+ * or a range `N-M`, requesting the bytes `N` to `M` inclusive.
+ *
  * Also increases read timeout to allow server to transcode response and offset it.
  *
  * See [range rfc](https://tools.ietf.org/html/rfc7233).
@@ -21,12 +24,13 @@ internal class RangeHeaderInterceptor : Interceptor {
         val originalRequest = chain.request()
         val headers = originalRequest.headers()
         return if (headers.names().contains("Range")) {
-            val offsetValue = headers["Range"] ?: "0"
-            val offset = "bytes=$offsetValue-"
-            chain.withReadTimeout(getReadTimeout(offsetValue.toInt()), MILLISECONDS)
+            val rangeValue = headers["Range"] ?: "0"
+            val offsetValue = rangeValue.substringBefore('-')
+            val range = if (rangeValue.contains('-')) "bytes=$rangeValue" else "bytes=$rangeValue-"
+            chain.withReadTimeout(getReadTimeout(offsetValue.toLong()), MILLISECONDS)
                 .proceed(
                     originalRequest.newBuilder()
-                        .removeHeader("Range").addHeader("Range", offset)
+                        .removeHeader("Range").addHeader("Range", range)
                         .build()
                 )
         } else {
@@ -38,6 +42,6 @@ internal class RangeHeaderInterceptor : Interceptor {
     // to avoid the thrashing effect seen when offset is combined with transcoding/downsampling
     // on the server. In that case, the server uses a long time before sending any data,
     // causing the client to time out.
-    private fun getReadTimeout(offset: Int) =
+    private fun getReadTimeout(offset: Long) =
         (SOCKET_READ_TIMEOUT_DOWNLOAD + offset * TIMEOUT_MILLIS_PER_OFFSET_BYTE).toInt()
 }
@@ -7,15 +7,31 @@ import org.moire.ultrasonic.api.subsonic.SubsonicError
  * Special response that contains either [stream] of data from api, or [apiError],
  * or [responseHttpCode].
  *
- * [responseHttpCode] will be there always.
+ * [responseHttpCode] will be there always. [contentLength], [contentRange], [eTag] and
+ * [lastModified] contain the corresponding headers of the stream response, if they were sent.
  */
 class StreamResponse(
     val stream: InputStream? = null,
     val apiError: SubsonicError? = null,
-    val responseHttpCode: Int
+    val responseHttpCode: Int,
+    val contentLength: Long = -1,
+    val contentRange: String? = null,
+    val eTag: String? = null,
+    val lastModified: String? = null
 ) {
     /**
      * Check if this response has error.
      */
     fun hasError(): Boolean = apiError != null || responseHttpCode !in 200..300
+
+    /**
+     * Length of the whole file, taken from `Content-Range` of a partial response,
+     * or from `Content-Length` of a complete one. -1 if it is not known.
+     */
+    val totalLength: Long
+        get() = when {
+            responseHttpCode == 206 ->
+                contentRange?.substringAfterLast('/')?.toLongOrNull() ?: -1
+            else -> contentLength
+        }
 }
@@ -43,4 +43,11 @@ class ApiVersionCheckWrapperTest {
         verify(apiMock).getAlbumList(BY_GENRE)
         verify(apiMock, never()).getAlbumList(BY_GENRE, musicFolderId = "12")
     }
+
+    @Test
+    fun `Should pass range headers to real api for stream`() {
+        wrapper.stream("1", range = "bytes=100-", ifRange = "\"some-etag\"")
+
+        verify(apiMock).stream("1", range = "bytes=100-", ifRange = "\"some-etag\"")
+    }
 }
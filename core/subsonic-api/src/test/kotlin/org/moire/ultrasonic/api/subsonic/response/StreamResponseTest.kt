@@ -33,4 +33,22 @@ class StreamResponseTest {
     fun `Should not have error if http code is 300`() {
         StreamResponse(responseHttpCode = 300).hasError() `should be equal to` false
     }
+
+    @Test
+    fun `Should take total length from content range of partial response`() {
+        StreamResponse(responseHttpCode = 206, contentLength = 100, contentRange = "bytes 100-199/5000")
+            .totalLength `should be equal to` 5000L
+    }
+
+    @Test
+    fun `Should not know total length if content range doesnt contain it`() {
+        StreamResponse(responseHttpCode = 206, contentLength = 100, contentRange = "bytes 100-199/*")
+            .totalLength `should be equal to` -1L
+    }
+
+    @Test
+    fun `Should take total length from content length of complete response`() {
+        StreamResponse(responseHttpCode = 200, contentLength = 5000)
+            .totalLength `should be equal to` 5000L
+    }
 }
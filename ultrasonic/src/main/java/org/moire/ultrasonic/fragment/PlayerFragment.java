@@ -659,10 +659,10 @@ public class PlayerFragment extends Fragment implements GestureDetector.OnGestur
                 }
             }
 
-            final DownloadFile currentDownloading = mediaPlayerControllerLazy.getValue().getCurrentDownloading();
+            final List<DownloadFile> activelyDownloading = mediaPlayerControllerLazy.getValue().getActivelyDownloading();
             for (int i = 0; i < count; i++)
             {
-                if (currentDownloading == playlistView.getItemAtPosition(i))
+                if (activelyDownloading.contains(playlistView.getItemAtPosition(i)))
                 {
                     playlistView.smoothScrollToPositionFromTop(i, 40);
                     return;
@@ -1213,10 +1213,8 @@ public class PlayerFragment extends Fragment implements GestureDetector.OnGestur
             {
                 if (from != to)
                 {
-                    DownloadFile item = adapter.getItem(from);
-                    adapter.remove(item);
-                    adapter.notifyDataSetChanged();
-                    adapter.insert(item, to);
+                    // The adapter shows the playlist of the downloader, which reorders it
+                    mediaPlayerControllerLazy.getValue().move(from, to);
                     adapter.notifyDataSetChanged();
                 }
             }
@@ -1245,7 +1243,8 @@ public class PlayerFragment extends Fragment implements GestureDetector.OnGestur
                     mediaPlayerControllerLazy.getValue().next();
                 }
 
-                adapter.remove(item);
+                // Remove through the controller, so the Downloader is aware of the change
+                mediaPlayerController.remove(item);
                 adapter.notifyDataSetChanged();
 
                 String songRemoved = String.format(getResources().getString(R.string.download_song_removed), item.getSong().getTitle());
@@ -1375,7 +1374,7 @@ public class PlayerFragment extends Fragment implements GestureDetector.OnGestur
                 switch (playerState)
                 {
                     case DOWNLOADING:
-                        final long bytes = currentPlaying != null ? currentPlaying.getPartialFile().length() : 0;
+                        final long bytes = currentPlaying != null ? currentPlaying.getPartialBytes() : 0;
                         String downloadStatus = getResources().getString(R.string.download_playerstate_downloading, Util.formatLocalizedBytes(bytes, getContext()));
                         Timber.d("Player set title");
                         FragmentTitle.Companion.setTitle(PlayerFragment.this, downloadStatus);
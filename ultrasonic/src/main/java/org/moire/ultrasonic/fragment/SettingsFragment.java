@@ -32,6 +32,7 @@ import org.moire.ultrasonic.log.FileLoggerTree;
 import org.moire.ultrasonic.provider.SearchSuggestionProvider;
 import org.moire.ultrasonic.service.Consumer;
 import org.moire.ultrasonic.service.MediaPlayerController;
+import org.moire.ultrasonic.service.PlayStartTracer;
 import org.moire.ultrasonic.subsonic.ImageLoaderProvider;
 import org.moire.ultrasonic.util.*;
 
@@ -56,6 +57,8 @@ public class SettingsFragment extends PreferenceFragmentCompat
     private ListPreference cacheSize;
     private Preference cacheLocation;
     private ListPreference preloadCount;
+    private ListPreference preloadCountMin;
+    private ListPreference parallelDownloads;
     private ListPreference bufferLength;
     private ListPreference incrementTime;
     private ListPreference networkTimeout;
@@ -87,6 +90,7 @@ public class SettingsFragment extends PreferenceFragmentCompat
     private final Lazy<ImageLoaderProvider> imageLoader = inject(ImageLoaderProvider.class);
     private final Lazy<PermissionUtil> permissionUtil = inject(PermissionUtil.class);
     private final Lazy<ThemeChangedEventDistributor> themeChangedEventDistributor = inject(ThemeChangedEventDistributor.class);
+    private final Lazy<PlayStartTracer> playStartTracer = inject(PlayStartTracer.class);
 
     @Override
     public void onCreate(@Nullable Bundle savedInstanceState) {
@@ -113,6 +117,8 @@ public class SettingsFragment extends PreferenceFragmentCompat
         cacheSize = findPreference(Constants.PREFERENCES_KEY_CACHE_SIZE);
         cacheLocation = findPreference(Constants.PREFERENCES_KEY_CACHE_LOCATION);
         preloadCount = findPreference(Constants.PREFERENCES_KEY_PRELOAD_COUNT);
+        preloadCountMin = findPreference(Constants.PREFERENCES_KEY_PRELOAD_COUNT_MIN);
+        parallelDownloads = findPreference(Constants.PREFERENCES_KEY_PARALLEL_DOWNLOADS);
         bufferLength = findPreference(Constants.PREFERENCES_KEY_BUFFER_LENGTH);
         incrementTime = findPreference(Constants.PREFERENCES_KEY_INCREMENT_TIME);
         networkTimeout = findPreference(Constants.PREFERENCES_KEY_NETWORK_TIMEOUT);
@@ -141,6 +147,7 @@ public class SettingsFragment extends PreferenceFragmentCompat
         setupServersCategory();
         sharingDefaultGreeting.setText(Util.getShareGreeting(getActivity()));
         setupClearSearchPreference();
+        setupPlayStartLatencyPreference();
         setupGaplessControlSettingsV14();
         setupFeatureFlagsPreferences();
         setupCacheLocationPreference();
@@ -356,6 +363,29 @@ public class SettingsFragment extends PreferenceFragmentCompat
         }
     }
 
+    private void setupPlayStartLatencyPreference() {
+        Preference playStartLatencyPreference = findPreference(Constants.PREFERENCES_KEY_DEBUG_PLAY_START_LATENCY);
+
+        if (playStartLatencyPreference != null) {
+            playStartLatencyPreference.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+                @Override
+                public boolean onPreferenceClick(Preference preference) {
+                    String summary = playStartTracer.getValue().getSummary();
+                    new AlertDialog.Builder(getActivity())
+                        .setTitle(R.string.settings_debug_play_start_latency)
+                        .setMessage(summary == null ? getString(R.string.settings_debug_play_start_latency_empty) : summary)
+                        .setPositiveButton(R.string.common_ok, new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialogInterface, int i) {
+                                dialogInterface.dismiss();
+                            }
+                        }).create().show();
+                    return true;
+                }
+            });
+        }
+    }
+
     private void setupFeatureFlagsPreferences() {
         final FeatureStorage featureStorage = KoinJavaComponent.get(FeatureStorage.class);
 
@@ -388,6 +418,20 @@ public class SettingsFragment extends PreferenceFragmentCompat
             });
         }
 
+        CheckBoxPreference segmentedDownload = (CheckBoxPreference) findPreference(
+                Constants.PREFERENCES_KEY_FF_SEGMENTED_DOWNLOAD);
+
+        if (segmentedDownload != null) {
+            segmentedDownload.setChecked(featureStorage.isFeatureEnabled(Feature.SEGMENTED_DOWNLOAD));
+            segmentedDownload.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+                @Override
+                public boolean onPreferenceChange(Preference preference, Object o) {
+                    featureStorage.changeFeatureFlag(Feature.SEGMENTED_DOWNLOAD, (Boolean) o);
+                    return true;
+                }
+            });
+        }
+
     }
 
     private void setupGaplessControlSettingsV14() {
@@ -431,6 +475,8 @@ public class SettingsFragment extends PreferenceFragmentCompat
         maxBitrateMobile.setSummary(maxBitrateMobile.getEntry());
         cacheSize.setSummary(cacheSize.getEntry());
         preloadCount.setSummary(preloadCount.getEntry());
+        preloadCountMin.setSummary(preloadCountMin.getEntry());
+        parallelDownloads.setSummary(parallelDownloads.getEntry());
         bufferLength.setSummary(bufferLength.getEntry());
         incrementTime.setSummary(incrementTime.getEntry());
         networkTimeout.setSummary(networkTimeout.getEntry());
@@ -0,0 +1,194 @@
+package org.moire.ultrasonic.service;
+
+import timber.log.Timber;
+
+import org.moire.ultrasonic.domain.MusicDirectory;
+import org.moire.ultrasonic.util.Util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Persists a state as an append-only log of changes, so a change costs a small write
+ * instead of rewriting the whole state. The log is compacted into a snapshot of the state
+ * when it has grown much longer than the state itself.
+ * A record which was cut off by a crash is ignored, together with everything after it.
+ * This class is not thread safe, all calls must be serialized by the caller.
+ */
+abstract class AppendOnlyJournal
+{
+    private static final int MIN_COMPACT_RECORDS = 64;
+
+    protected final File file;
+    private DataOutputStream out;
+    // The records written since the last compaction
+    private int records;
+
+    AppendOnlyJournal(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Applies the next record of the file to the state
+     * @return false at the end of the file
+     */
+    abstract boolean readRecord(DataInputStream in) throws IOException, ClassNotFoundException;
+
+    /**
+     * Writes the records which rebuild the whole state
+     */
+    abstract void writeSnapshot(DataOutputStream out) throws IOException;
+
+    /**
+     * @return the size of the state, which the length of the log is compared with
+     */
+    abstract int size();
+
+    /**
+     * Reads all records of the file into the state, which must have been cleared
+     * @return false if there is no file
+     */
+    boolean replay()
+    {
+        records = 0;
+        if (!file.exists()) return false;
+
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            while (readRecord(in))
+            {
+                records++;
+            }
+        }
+        catch (EOFException x)
+        {
+            Timber.w("Ignoring the incomplete last record of %s", file);
+        }
+        catch (Exception x)
+        {
+            Timber.w(x, "Failed to read %s completely", file);
+        }
+        finally
+        {
+            Util.close(in);
+        }
+        return true;
+    }
+
+    DataOutputStream getOutputStream() throws IOException
+    {
+        if (out == null)
+        {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        }
+        return out;
+    }
+
+    /**
+     * Flushes the records which were written to the output stream, and compacts the log if it has grown too long
+     * @param count the number of records which were written
+     */
+    void flush(int count) throws IOException
+    {
+        out.flush();
+        records += count;
+
+        if (records > Math.max(MIN_COMPACT_RECORDS, size() * 2))
+        {
+            compact();
+        }
+    }
+
+    /**
+     * Gives up the output stream after a failed write, the next write opens it again
+     */
+    void writeFailed(IOException x)
+    {
+        Timber.w(x, "Failed to write to %s", file);
+        close();
+    }
+
+    /**
+     * Rewrites the file with a snapshot of the state, and renames it over the old one
+     */
+    void compact()
+    {
+        close();
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream compacted = null;
+
+        try
+        {
+            compacted = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            writeSnapshot(compacted);
+            compacted.close();
+            compacted = null;
+
+            Util.renameFile(tmp, file);
+            records = 0;
+        }
+        catch (IOException x)
+        {
+            Timber.w(x, "Failed to compact %s", file);
+        }
+        finally
+        {
+            Util.close(compacted);
+        }
+    }
+
+    void close()
+    {
+        Util.close(out);
+        out = null;
+    }
+
+    /**
+     * Writes the songs into one object stream, so the description of their class is only written once
+     */
+    static byte[] serialize(List<MusicDirectory.Entry> songs) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        for (MusicDirectory.Entry song : songs)
+        {
+            out.writeObject(song);
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    static List<MusicDirectory.Entry> deserialize(byte[] bytes, int count) throws IOException, ClassNotFoundException
+    {
+        List<MusicDirectory.Entry> songs = new ArrayList<>(count);
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try
+        {
+            for (int i = 0; i < count; i++)
+            {
+                songs.add((MusicDirectory.Entry) in.readObject());
+            }
+            return songs;
+        }
+        finally
+        {
+            Util.close(in);
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package org.moire.ultrasonic.service;
+
+import timber.log.Timber;
+
+import org.moire.ultrasonic.util.CancellableTask;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares the bandwidth between the running downloads by their priority class.
+ * Each class has a token bucket which limits its rate. While the current track is downloaded
+ * slower than its guaranteed rate, the rate of the least important active class is halved
+ * every interval, down to a minimum rate. After that the preload and background classes are
+ * paused, while the next track keeps the minimum rate, as it is needed soon. Then the next
+ * class is limited. When the current track is fast enough again, the most important limited
+ * class gets its bandwidth back first, a paused class resumes with the minimum rate.
+ * Downloads are never cancelled for bandwidth, they just wait until they may continue.
+ */
+public class BandwidthScheduler
+{
+    public static final long UNLIMITED = Long.MAX_VALUE;
+
+    static final long PAUSED = 0L;
+    static final long ADJUST_INTERVAL = 1000L;
+    static final long MIN_RATE = 16 * 1024L;
+    static final long MAX_LIMITED_RATE = 4 * 1024 * 1024L;
+    private static final long MIN_GUARANTEED_RATE = 32 * 1024L;
+
+    private static final DownloadPriority[] PRIORITIES = DownloadPriority.values();
+
+    private final long[] rates = new long[PRIORITIES.length];
+    private final double[] tokens = new double[PRIORITIES.length];
+    private final long[] lastRefill = new long[PRIORITIES.length];
+    private final long[] bytes = new long[PRIORITIES.length];
+    private final int[] active = new int[PRIORITIES.length];
+    private long guaranteedRate = MIN_GUARANTEED_RATE;
+    private long intervalStart = System.nanoTime();
+
+    public BandwidthScheduler()
+    {
+        for (int i = 0; i < rates.length; i++)
+        {
+            rates[i] = UNLIMITED;
+        }
+    }
+
+    /**
+     * @param bitRate the bit rate of the current track, in kbps
+     * @return the rate in bytes per second the current track is downloaded with at least,
+     * which is twice its bit rate
+     */
+    public static long getGuaranteedRate(int bitRate)
+    {
+        return Math.max(MIN_GUARANTEED_RATE, bitRate * 1000L / 8 * 2);
+    }
+
+    public synchronized void setGuaranteedRate(long bytesPerSecond)
+    {
+        guaranteedRate = bytesPerSecond;
+    }
+
+    /**
+     * Registers a running download. The returned ticket must be closed when it has finished.
+     */
+    public synchronized Ticket register(DownloadPriority priority)
+    {
+        active[priority.ordinal()]++;
+        return new Ticket(priority);
+    }
+
+    synchronized long getRate(DownloadPriority priority)
+    {
+        return rates[priority.ordinal()];
+    }
+
+    private void unregister(DownloadPriority priority)
+    {
+        active[priority.ordinal()]--;
+        if (active[DownloadPriority.CURRENT.ordinal()] == 0)
+        {
+            releaseAll();
+        }
+    }
+
+    private void maybeAdjustRates()
+    {
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - intervalStart);
+        if (elapsed >= ADJUST_INTERVAL)
+        {
+            adjustRates(elapsed);
+        }
+    }
+
+    /**
+     * Compares the rate of the current track in the past interval with its guaranteed rate,
+     * and limits or releases one lower class accordingly
+     */
+    synchronized void adjustRates(long elapsed)
+    {
+        if (active[DownloadPriority.CURRENT.ordinal()] == 0)
+        {
+            releaseAll();
+        }
+        else if (getMeasuredRate(DownloadPriority.CURRENT, elapsed) < guaranteedRate)
+        {
+            limitLowestClass(elapsed);
+        }
+        else
+        {
+            releaseHighestClass();
+        }
+
+        for (int i = 0; i < bytes.length; i++)
+        {
+            bytes[i] = 0;
+        }
+        intervalStart = System.nanoTime();
+    }
+
+    private long getMeasuredRate(DownloadPriority priority, long elapsed)
+    {
+        return bytes[priority.ordinal()] * 1000L / Math.max(1, elapsed);
+    }
+
+    private void limitLowestClass(long elapsed)
+    {
+        for (int i = PRIORITIES.length - 1; i > DownloadPriority.CURRENT.ordinal(); i--)
+        {
+            if (active[i] == 0 || rates[i] == PAUSED) continue;
+
+            if (rates[i] > MIN_RATE)
+            {
+                long rate = rates[i] == UNLIMITED ? getMeasuredRate(PRIORITIES[i], elapsed) / 2 : rates[i] / 2;
+                setRate(i, Math.max(MIN_RATE, rate));
+                return;
+            }
+
+            if (PRIORITIES[i] != DownloadPriority.NEXT_UP)
+            {
+                setRate(i, PAUSED);
+                return;
+            }
+        }
+    }
+
+    private void releaseHighestClass()
+    {
+        for (int i = DownloadPriority.CURRENT.ordinal() + 1; i < PRIORITIES.length; i++)
+        {
+            if (rates[i] == UNLIMITED) continue;
+
+            long rate = rates[i] == PAUSED ? MIN_RATE : rates[i] * 2;
+            setRate(i, rate > MAX_LIMITED_RATE ? UNLIMITED : rate);
+            return;
+        }
+    }
+
+    private void releaseAll()
+    {
+        for (int i = 0; i < rates.length; i++)
+        {
+            setRate(i, UNLIMITED);
+        }
+    }
+
+    private void setRate(int i, long rate)
+    {
+        if (rates[i] == rate) return;
+
+        Timber.d("Bandwidth of %s downloads: %s", PRIORITIES[i], rate == UNLIMITED ? "unlimited" : rate == PAUSED ? "paused" : rate + " B/s");
+        rates[i] = rate;
+        tokens[i] = 0;
+        lastRefill[i] = System.nanoTime();
+        notifyAll();
+    }
+
+    /**
+     * @return the number of milliseconds to wait until the bytes may be taken, or 0 if they were taken
+     */
+    private long take(DownloadPriority priority, int count)
+    {
+        int i = priority.ordinal();
+        if (rates[i] == UNLIMITED)
+        {
+            bytes[i] += count;
+            return 0;
+        }
+
+        // Wait for the class to resume, which is checked again after an interval
+        if (rates[i] == PAUSED) return ADJUST_INTERVAL;
+
+        long now = System.nanoTime();
+        tokens[i] = Math.min(rates[i], tokens[i] + (now - lastRefill[i]) / 1e9 * rates[i]);
+        lastRefill[i] = now;
+
+        // The bytes are already read, so the bucket may go into debt which is paid off by waiting
+        if (tokens[i] >= 0)
+        {
+            tokens[i] -= count;
+            bytes[i] += count;
+            return 0;
+        }
+
+        return Math.max(1, (long) Math.ceil(-tokens[i] * 1000 / rates[i]));
+    }
+
+    /**
+     * A running download, which asks for permission for each block it has read
+     */
+    public class Ticket
+    {
+        private DownloadPriority priority;
+        private boolean closed;
+
+        private Ticket(DownloadPriority priority)
+        {
+            this.priority = priority;
+        }
+
+        public void setPriority(DownloadPriority priority)
+        {
+            synchronized (BandwidthScheduler.this)
+            {
+                if (closed || this.priority == priority) return;
+
+                active[priority.ordinal()]++;
+                unregister(this.priority);
+                this.priority = priority;
+                BandwidthScheduler.this.notifyAll();
+            }
+        }
+
+        /**
+         * Blocks until the class of the download may use the given number of bytes,
+         * or until the task is cancelled
+         */
+        public void acquire(int count, CancellableTask task)
+        {
+            synchronized (BandwidthScheduler.this)
+            {
+                try
+                {
+                    while (!closed && !task.isCancelled())
+                    {
+                        maybeAdjustRates();
+
+                        long wait = take(priority, count);
+                        if (wait == 0) return;
+
+                        BandwidthScheduler.this.wait(wait);
+                    }
+                }
+                catch (InterruptedException x)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        /**
+         * Wakes up the download if it is waiting, e.g. because it was cancelled
+         */
+        public void wakeUp()
+        {
+            synchronized (BandwidthScheduler.this)
+            {
+                BandwidthScheduler.this.notifyAll();
+            }
+        }
+
+        public void close()
+        {
+            synchronized (BandwidthScheduler.this)
+            {
+                if (closed) return;
+
+                closed = true;
+                unregister(priority);
+                BandwidthScheduler.this.notifyAll();
+            }
+        }
+    }
+}
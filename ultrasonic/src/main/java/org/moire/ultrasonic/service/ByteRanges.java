@@ -0,0 +1,66 @@
+package org.moire.ultrasonic.service;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The ranges of a file which have been downloaded, when they aren't only a contiguous part
+ * from its start. Overlapping and adjacent ranges are merged.
+ */
+class ByteRanges
+{
+	// The start of each range, mapped to its end
+	private final TreeMap<Long, Long> ranges = new TreeMap<>();
+
+	/**
+	 * Forgets all ranges, except for the bytes from the start of the file to the given end
+	 */
+	synchronized void reset(long end)
+	{
+		ranges.clear();
+		if (end > 0) ranges.put(0L, end);
+	}
+
+	/**
+	 * Adds the bytes from the start to the end, exclusive
+	 */
+	synchronized void add(long start, long end)
+	{
+		if (end <= start) return;
+
+		Map.Entry<Long, Long> previous = ranges.floorEntry(start);
+		if (previous != null && previous.getValue() >= start)
+		{
+			start = previous.getKey();
+			end = Math.max(end, previous.getValue());
+		}
+
+		Map.Entry<Long, Long> next = ranges.ceilingEntry(start);
+		while (next != null && next.getKey() <= end)
+		{
+			end = Math.max(end, next.getValue());
+			ranges.remove(next.getKey());
+			next = ranges.ceilingEntry(start);
+		}
+
+		ranges.put(start, end);
+	}
+
+	/**
+	 * @return the end of the range which contains the position, or the position if it hasn't been downloaded
+	 */
+	synchronized long getEnd(long position)
+	{
+		Map.Entry<Long, Long> range = ranges.floorEntry(position);
+		return range != null && range.getValue() > position ? range.getValue() : position;
+	}
+
+	/**
+	 * @return the start of the first range after the position, or Long.MAX_VALUE if there is none
+	 */
+	synchronized long getNextStart(long position)
+	{
+		Long start = ranges.higherKey(position);
+		return start == null ? Long.MAX_VALUE : start;
+	}
+}
@@ -20,10 +20,16 @@ package org.moire.ultrasonic.service;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import timber.log.Timber;
 
+import com.twitter.serial.serializer.Serializer;
+
+import org.moire.ultrasonic.cache.LruFileStorage;
+import org.moire.ultrasonic.cache.serializers.DomainSerializers;
 import org.moire.ultrasonic.data.ActiveServerProvider;
 import org.moire.ultrasonic.domain.Bookmark;
 import org.moire.ultrasonic.domain.ChatMessage;
+import org.moire.ultrasonic.domain.DownloadResponse;
 import org.moire.ultrasonic.domain.Genre;
 import org.moire.ultrasonic.domain.Indexes;
 import org.moire.ultrasonic.domain.JukeboxStatus;
@@ -36,33 +42,57 @@ import org.moire.ultrasonic.domain.SearchCriteria;
 import org.moire.ultrasonic.domain.SearchResult;
 import org.moire.ultrasonic.domain.Share;
 import org.moire.ultrasonic.domain.UserInfo;
+import org.moire.ultrasonic.util.CacheRefreshedEventDistributor;
 import org.moire.ultrasonic.util.CancellableTask;
 import org.moire.ultrasonic.util.Constants;
 import org.moire.ultrasonic.util.LRUCache;
 import org.moire.ultrasonic.util.TimeLimitedCache;
 import org.moire.ultrasonic.util.Util;
 
-import java.io.InputStream;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import kotlin.Lazy;
-import kotlin.Pair;
 
 import static org.koin.java.KoinJavaComponent.inject;
 
 /**
+ * Caches the results of the music service in memory.
+ * When a directory, artist, album, index or the playlists have expired, the expired value is
+ * returned at once and refreshed in the background, so browsing doesn't wait for the server.
+ * If the refreshed value differs, it is sent to the subscribers of the CacheRefreshedEventDistributor.
+ * Directories, artists, albums, playlists, the starred items and the album lists are also kept
+ * in a size bounded storage on the disk. After a restart they are returned from there as expired
+ * values, so the last seen library is shown at once instead of waiting for the server.
+ *
  * @author Sindre Mehus
  */
 public class CachedMusicService implements MusicService
 {
-	private final Lazy<ActiveServerProvider> activeServerProvider = inject(ActiveServerProvider.class);
-
 	private static final int MUSIC_DIR_CACHE_SIZE = 100;
+	private static final int REFRESH_THREADS = 2;
+	private static final int REFRESHED_CACHE_SECONDS = 60;
+
+	private static final String DIRECTORY_STORAGE_PREFIX = "directory-";
+	private static final String ARTIST_STORAGE_PREFIX = "artist-";
+	private static final String ALBUM_STORAGE_PREFIX = "album-";
+	private static final String PLAYLIST_STORAGE_PREFIX = "playlist-";
+	private static final String ALBUM_LIST_STORAGE_PREFIX = "albumList2-";
+	private static final String STARRED_STORAGE_NAME = "starred2";
 
 	private final MusicService musicService;
+	private final LruFileStorage storage;
+	private final Supplier<String> activeRestUrl;
+	private final Lazy<CacheRefreshedEventDistributor> cacheRefreshedEventDistributor;
 	private final LRUCache<String, TimeLimitedCache<MusicDirectory>> cachedMusicDirectories;
 	private final LRUCache<String, TimeLimitedCache<MusicDirectory>> cachedArtist;
 	private final LRUCache<String, TimeLimitedCache<MusicDirectory>> cachedAlbum;
@@ -75,17 +105,66 @@ public class CachedMusicService implements MusicService
 	private final TimeLimitedCache<List<MusicFolder>> cachedMusicFolders = new TimeLimitedCache<>(10 * 3600, TimeUnit.SECONDS);
 	private final TimeLimitedCache<List<Genre>> cachedGenres = new TimeLimitedCache<>(10 * 3600, TimeUnit.SECONDS);
 
-	private String restUrl;
+	// The refreshed values of the lists which are otherwise always requested from the server,
+	// so the view which shows them again after the refreshed event doesn't request them once more
+	private final LRUCache<String, TimeLimitedCache<MusicDirectory>> refreshedLists = new LRUCache<>(MUSIC_DIR_CACHE_SIZE);
+	private final TimeLimitedCache<SearchResult> refreshedStarred = new TimeLimitedCache<>(REFRESHED_CACHE_SECONDS, TimeUnit.SECONDS);
+
+	private volatile String restUrl;
+
+	// The names of the stored values which were returned already, after that the server has newer ones
+	private final Set<String> restored = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	// The keys of the values which are being refreshed, so each is only requested once
+	private final Set<String> refreshing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final Executor refreshExecutor;
 
-	public CachedMusicService(MusicService musicService)
+	public CachedMusicService(MusicService musicService, LruFileStorage storage)
+	{
+		this(musicService, storage, createRefreshExecutor(), createActiveRestUrl(), inject(CacheRefreshedEventDistributor.class));
+	}
+
+	CachedMusicService(MusicService musicService, LruFileStorage storage, Executor refreshExecutor,
+			Supplier<String> activeRestUrl, Lazy<CacheRefreshedEventDistributor> cacheRefreshedEventDistributor)
 	{
 		this.musicService = musicService;
+		this.storage = storage;
+		this.refreshExecutor = refreshExecutor;
+		this.activeRestUrl = activeRestUrl;
+		this.cacheRefreshedEventDistributor = cacheRefreshedEventDistributor;
 		cachedMusicDirectories = new LRUCache<>(MUSIC_DIR_CACHE_SIZE);
 		cachedArtist = new LRUCache<>(MUSIC_DIR_CACHE_SIZE);
 		cachedAlbum = new LRUCache<>(MUSIC_DIR_CACHE_SIZE);
 		cachedUserInfo = new LRUCache<>(MUSIC_DIR_CACHE_SIZE);
 	}
 
+	private static Executor createRefreshExecutor()
+	{
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(REFRESH_THREADS, REFRESH_THREADS, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				return new Thread(runnable, "CachedMusicService");
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	private static Supplier<String> createActiveRestUrl()
+	{
+		final Lazy<ActiveServerProvider> activeServerProvider = inject(ActiveServerProvider.class);
+		return new Supplier<String>()
+		{
+			@Override
+			public String get()
+			{
+				return activeServerProvider.getValue().getRestUrl(null);
+			}
+		};
+	}
+
 	@Override
 	public void ping(Context context) throws Exception
 	{
@@ -135,6 +214,11 @@ public class CachedMusicService implements MusicService
 		}
 		Indexes result = cachedIndexes.get();
 		if (result == null)
+		{
+			result = cachedIndexes.getStale();
+			if (result != null) refreshIndexes(musicFolderId, result, context);
+		}
+		if (result == null)
 		{
 			result = musicService.getIndexes(musicFolderId, refresh, context);
 			cachedIndexes.set(result);
@@ -152,6 +236,11 @@ public class CachedMusicService implements MusicService
 		}
 		Indexes result = cachedArtists.get();
 		if (result == null)
+		{
+			result = cachedArtists.getStale();
+			if (result != null) refreshArtists(result, context);
+		}
+		if (result == null)
 		{
 			result = musicService.getArtists(refresh, context);
 			cachedArtists.set(result);
@@ -167,12 +256,25 @@ public class CachedMusicService implements MusicService
 
 		MusicDirectory dir = cache == null ? null : cache.get();
 
+		if (dir == null && cache != null)
+		{
+			dir = cache.getStale();
+			if (dir != null) refreshMusicDirectory(id, name, dir, context);
+		}
+
+		if (dir == null && !refresh)
+		{
+			dir = loadDirectory(DIRECTORY_STORAGE_PREFIX + id, cachedMusicDirectories, id);
+			if (dir != null) refreshMusicDirectory(id, name, dir, context);
+		}
+
 		if (dir == null)
 		{
 			dir = musicService.getMusicDirectory(id, name, refresh, context);
 			cache = new TimeLimitedCache<>(Util.getDirectoryCacheTime(context), TimeUnit.SECONDS);
 			cache.set(dir);
 			cachedMusicDirectories.put(id, cache);
+			store(DIRECTORY_STORAGE_PREFIX + id, dir, DomainSerializers.getMusicDirectorySerializer());
 		}
 		return dir;
 	}
@@ -183,12 +285,23 @@ public class CachedMusicService implements MusicService
 		checkSettingsChanged();
 		TimeLimitedCache<MusicDirectory> cache = refresh ? null : cachedArtist.get(id);
 		MusicDirectory dir = cache == null ? null : cache.get();
+		if (dir == null && cache != null)
+		{
+			dir = cache.getStale();
+			if (dir != null) refreshArtist(id, name, dir, context);
+		}
+		if (dir == null && !refresh)
+		{
+			dir = loadDirectory(ARTIST_STORAGE_PREFIX + id, cachedArtist, id);
+			if (dir != null) refreshArtist(id, name, dir, context);
+		}
 		if (dir == null)
 		{
 			dir = musicService.getArtist(id, name, refresh, context);
 			cache = new TimeLimitedCache<>(Util.getDirectoryCacheTime(context), TimeUnit.SECONDS);
 			cache.set(dir);
 			cachedArtist.put(id, cache);
+			store(ARTIST_STORAGE_PREFIX + id, dir, DomainSerializers.getMusicDirectorySerializer());
 		}
 		return dir;
 	}
@@ -199,12 +312,23 @@ public class CachedMusicService implements MusicService
 		checkSettingsChanged();
 		TimeLimitedCache<MusicDirectory> cache = refresh ? null : cachedAlbum.get(id);
 		MusicDirectory dir = cache == null ? null : cache.get();
+		if (dir == null && cache != null)
+		{
+			dir = cache.getStale();
+			if (dir != null) refreshAlbum(id, name, dir, context);
+		}
+		if (dir == null && !refresh)
+		{
+			dir = loadDirectory(ALBUM_STORAGE_PREFIX + id, cachedAlbum, id);
+			if (dir != null) refreshAlbum(id, name, dir, context);
+		}
 		if (dir == null)
 		{
 			dir = musicService.getAlbum(id, name, refresh, context);
 			cache = new TimeLimitedCache<>(Util.getDirectoryCacheTime(context), TimeUnit.SECONDS);
 			cache.set(dir);
 			cachedAlbum.put(id, cache);
+			store(ALBUM_STORAGE_PREFIX + id, dir, DomainSerializers.getMusicDirectorySerializer());
 		}
 		return dir;
 	}
@@ -218,7 +342,21 @@ public class CachedMusicService implements MusicService
 	@Override
 	public MusicDirectory getPlaylist(String id, String name, Context context) throws Exception
 	{
-		return musicService.getPlaylist(id, name, context);
+		checkSettingsChanged();
+		String storageName = PLAYLIST_STORAGE_PREFIX + id;
+		MusicDirectory result = getRefreshedList(storageName);
+		if (result != null) return result;
+
+		result = restore(storageName, DomainSerializers.getMusicDirectorySerializer());
+		if (result != null)
+		{
+			refreshPlaylist(id, name, result, context);
+			return result;
+		}
+
+		result = musicService.getPlaylist(id, name, context);
+		store(storageName, result, DomainSerializers.getMusicDirectorySerializer());
+		return result;
 	}
 
 	@Override
@@ -244,6 +382,11 @@ public class CachedMusicService implements MusicService
 	{
 		checkSettingsChanged();
 		List<Playlist> result = refresh ? null : cachedPlaylists.get();
+		if (result == null && !refresh)
+		{
+			result = cachedPlaylists.getStale();
+			if (result != null) refreshPlaylists(result, context);
+		}
 		if (result == null)
 		{
 			result = musicService.getPlaylists(refresh, context);
@@ -256,6 +399,7 @@ public class CachedMusicService implements MusicService
 	public void createPlaylist(String id, String name, List<MusicDirectory.Entry> entries, Context context) throws Exception
 	{
 		cachedPlaylists.clear();
+		if (id != null) refreshedLists.remove(PLAYLIST_STORAGE_PREFIX + id);
 		musicService.createPlaylist(id, name, entries, context);
 	}
 
@@ -292,7 +436,24 @@ public class CachedMusicService implements MusicService
 	@Override
 	public MusicDirectory getAlbumList2(String type, int size, int offset, Context context) throws Exception
 	{
-		return musicService.getAlbumList2(type, size, offset, context);
+		checkSettingsChanged();
+		// A random list is expected to change each time
+		if ("random".equals(type)) return musicService.getAlbumList2(type, size, offset, context);
+
+		String storageName = String.format(Locale.ROOT, "%s%s-%d-%d", ALBUM_LIST_STORAGE_PREFIX, type, size, offset);
+		MusicDirectory result = getRefreshedList(storageName);
+		if (result != null) return result;
+
+		result = restore(storageName, DomainSerializers.getMusicDirectorySerializer());
+		if (result != null)
+		{
+			refreshAlbumList(type, size, offset, storageName, result, context);
+			return result;
+		}
+
+		result = musicService.getAlbumList2(type, size, offset, context);
+		store(storageName, result, DomainSerializers.getMusicDirectorySerializer());
+		return result;
 	}
 
 	@Override
@@ -310,7 +471,20 @@ public class CachedMusicService implements MusicService
 	@Override
 	public SearchResult getStarred2(Context context) throws Exception
 	{
-		return musicService.getStarred2(context);
+		checkSettingsChanged();
+		SearchResult result = refreshedStarred.get();
+		if (result != null) return result;
+
+		result = restore(STARRED_STORAGE_NAME, DomainSerializers.getSearchResultSerializer());
+		if (result != null)
+		{
+			refreshStarred(result, context);
+			return result;
+		}
+
+		result = musicService.getStarred2(context);
+		store(STARRED_STORAGE_NAME, result, DomainSerializers.getSearchResultSerializer());
+		return result;
 	}
 
 	@Override
@@ -320,9 +494,9 @@ public class CachedMusicService implements MusicService
 	}
 
 	@Override
-	public Pair<InputStream, Boolean> getDownloadInputStream(Context context, MusicDirectory.Entry song, long offset, int maxBitrate, CancellableTask task) throws Exception
+	public DownloadResponse getDownloadInputStream(Context context, MusicDirectory.Entry song, long offset, long length, int maxBitrate, String ifRange, CancellableTask task) throws Exception
 	{
-		return musicService.getDownloadInputStream(context, song, offset, maxBitrate, task);
+		return musicService.getDownloadInputStream(context, song, offset, length, maxBitrate, ifRange, task);
 	}
 
 	@Override
@@ -367,9 +541,374 @@ public class CachedMusicService implements MusicService
 		return musicService.setJukeboxGain(gain, context);
 	}
 
+	private void refreshMusicDirectory(final String id, final String name, final MusicDirectory stale, final Context context)
+	{
+		refresh(new Refresh<MusicDirectory>("directory " + id, stale)
+		{
+			@Override
+			MusicDirectory load() throws Exception
+			{
+				return musicService.getMusicDirectory(id, name, false, context);
+			}
+
+			@Override
+			void store(MusicDirectory value)
+			{
+				cachedMusicDirectories.put(id, newDirectoryCache(value, context));
+				CachedMusicService.this.store(DIRECTORY_STORAGE_PREFIX + id, value, DomainSerializers.getMusicDirectorySerializer());
+			}
+
+			@Override
+			void publish(MusicDirectory value)
+			{
+				cacheRefreshedEventDistributor.getValue().raiseMusicDirectoryRefreshedEvent(id, value);
+			}
+		});
+	}
+
+	private void refreshArtist(final String id, final String name, final MusicDirectory stale, final Context context)
+	{
+		refresh(new Refresh<MusicDirectory>("artist " + id, stale)
+		{
+			@Override
+			MusicDirectory load() throws Exception
+			{
+				return musicService.getArtist(id, name, false, context);
+			}
+
+			@Override
+			void store(MusicDirectory value)
+			{
+				cachedArtist.put(id, newDirectoryCache(value, context));
+				CachedMusicService.this.store(ARTIST_STORAGE_PREFIX + id, value, DomainSerializers.getMusicDirectorySerializer());
+			}
+
+			@Override
+			void publish(MusicDirectory value)
+			{
+				cacheRefreshedEventDistributor.getValue().raiseArtistRefreshedEvent(id, value);
+			}
+		});
+	}
+
+	private void refreshAlbum(final String id, final String name, final MusicDirectory stale, final Context context)
+	{
+		refresh(new Refresh<MusicDirectory>("album " + id, stale)
+		{
+			@Override
+			MusicDirectory load() throws Exception
+			{
+				return musicService.getAlbum(id, name, false, context);
+			}
+
+			@Override
+			void store(MusicDirectory value)
+			{
+				cachedAlbum.put(id, newDirectoryCache(value, context));
+				CachedMusicService.this.store(ALBUM_STORAGE_PREFIX + id, value, DomainSerializers.getMusicDirectorySerializer());
+			}
+
+			@Override
+			void publish(MusicDirectory value)
+			{
+				cacheRefreshedEventDistributor.getValue().raiseAlbumRefreshedEvent(id, value);
+			}
+		});
+	}
+
+	private void refreshIndexes(final String musicFolderId, Indexes stale, final Context context)
+	{
+		refresh(new Refresh<Indexes>("indexes", stale)
+		{
+			@Override
+			Indexes load() throws Exception
+			{
+				return musicService.getIndexes(musicFolderId, false, context);
+			}
+
+			@Override
+			void store(Indexes value)
+			{
+				cachedIndexes.set(value);
+			}
+
+			@Override
+			void publish(Indexes value)
+			{
+				cacheRefreshedEventDistributor.getValue().raiseIndexesRefreshedEvent(musicFolderId, value);
+			}
+		});
+	}
+
+	private void refreshArtists(Indexes stale, final Context context)
+	{
+		refresh(new Refresh<Indexes>("artists", stale)
+		{
+			@Override
+			Indexes load() throws Exception
+			{
+				return musicService.getArtists(false, context);
+			}
+
+			@Override
+			void store(Indexes value)
+			{
+				cachedArtists.set(value);
+			}
+
+			@Override
+			void publish(Indexes value)
+			{
+				cacheRefreshedEventDistributor.getValue().raiseArtistsRefreshedEvent(value);
+			}
+		});
+	}
+
+	private void refreshPlaylists(List<Playlist> stale, final Context context)
+	{
+		refresh(new Refresh<List<Playlist>>("playlists", stale)
+		{
+			@Override
+			List<Playlist> load() throws Exception
+			{
+				return musicService.getPlaylists(false, context);
+			}
+
+			@Override
+			void store(List<Playlist> value)
+			{
+				cachedPlaylists.set(value);
+			}
+
+			@Override
+			void publish(List<Playlist> value)
+			{
+				cacheRefreshedEventDistributor.getValue().raisePlaylistsRefreshedEvent(value);
+			}
+		});
+	}
+
+	private void refreshPlaylist(final String id, final String name, MusicDirectory stale, final Context context)
+	{
+		refresh(new Refresh<MusicDirectory>("playlist " + id, stale)
+		{
+			@Override
+			MusicDirectory load() throws Exception
+			{
+				return musicService.getPlaylist(id, name, context);
+			}
+
+			@Override
+			void store(MusicDirectory value)
+			{
+				CachedMusicService.this.store(PLAYLIST_STORAGE_PREFIX + id, value, DomainSerializers.getMusicDirectorySerializer());
+				setRefreshedList(PLAYLIST_STORAGE_PREFIX + id, value);
+			}
+
+			@Override
+			void publish(MusicDirectory value)
+			{
+				cacheRefreshedEventDistributor.getValue().raisePlaylistRefreshedEvent(id, value);
+			}
+		});
+	}
+
+	private void refreshAlbumList(final String type, final int size, final int offset, final String storageName,
+			MusicDirectory stale, final Context context)
+	{
+		refresh(new Refresh<MusicDirectory>("album list " + storageName, stale)
+		{
+			@Override
+			MusicDirectory load() throws Exception
+			{
+				return musicService.getAlbumList2(type, size, offset, context);
+			}
+
+			@Override
+			void store(MusicDirectory value)
+			{
+				CachedMusicService.this.store(storageName, value, DomainSerializers.getMusicDirectorySerializer());
+				setRefreshedList(storageName, value);
+			}
+
+			@Override
+			void publish(MusicDirectory value)
+			{
+				cacheRefreshedEventDistributor.getValue().raiseAlbumListRefreshedEvent(type, size, offset, value);
+			}
+		});
+	}
+
+	private void refreshStarred(SearchResult stale, final Context context)
+	{
+		refresh(new Refresh<SearchResult>("starred", stale)
+		{
+			@Override
+			SearchResult load() throws Exception
+			{
+				return musicService.getStarred2(context);
+			}
+
+			@Override
+			void store(SearchResult value)
+			{
+				CachedMusicService.this.store(STARRED_STORAGE_NAME, value, DomainSerializers.getSearchResultSerializer());
+				refreshedStarred.set(value);
+			}
+
+			@Override
+			void publish(SearchResult value)
+			{
+				cacheRefreshedEventDistributor.getValue().raiseStarredRefreshedEvent(value);
+			}
+		});
+	}
+
+	private MusicDirectory getRefreshedList(String storageName)
+	{
+		TimeLimitedCache<MusicDirectory> cache = refreshedLists.get(storageName);
+		return cache == null ? null : cache.get();
+	}
+
+	private void setRefreshedList(String storageName, MusicDirectory list)
+	{
+		TimeLimitedCache<MusicDirectory> cache = new TimeLimitedCache<>(REFRESHED_CACHE_SECONDS, TimeUnit.SECONDS);
+		cache.set(list);
+		refreshedLists.put(storageName, cache);
+	}
+
+	/**
+	 * Loads a directory from the storage into the memory cache as an expired value, which has to be refreshed
+	 */
+	private MusicDirectory loadDirectory(String storageName, LRUCache<String, TimeLimitedCache<MusicDirectory>> cachedDirectories, String id)
+	{
+		MusicDirectory directory = load(storageName, DomainSerializers.getMusicDirectorySerializer());
+		if (directory != null)
+		{
+			TimeLimitedCache<MusicDirectory> cache = new TimeLimitedCache<>(0, TimeUnit.SECONDS);
+			cache.set(directory);
+			cachedDirectories.put(id, cache);
+		}
+		return directory;
+	}
+
+	/**
+	 * Loads a value which was stored by an earlier run only once, as it isn't cached in memory:
+	 * the value returned afterwards by the server is newer
+	 */
+	private <T> T restore(String storageName, Serializer<T> serializer)
+	{
+		if (!restored.add(storageName)) return null;
+		return load(storageName, serializer);
+	}
+
+	private <T> T load(String storageName, Serializer<T> serializer)
+	{
+		try
+		{
+			return storage.load(storageName, serializer);
+		}
+		catch (Exception x)
+		{
+			Timber.w(x, "Failed to load %s from the storage", storageName);
+			return null;
+		}
+	}
+
+	private <T> void store(String storageName, T value, Serializer<T> serializer)
+	{
+		// Nothing newer should be restored from the storage after this
+		restored.add(storageName);
+		try
+		{
+			storage.store(storageName, value, serializer);
+		}
+		catch (Exception x)
+		{
+			Timber.w(x, "Failed to store %s", storageName);
+		}
+	}
+
+	private static TimeLimitedCache<MusicDirectory> newDirectoryCache(MusicDirectory directory, Context context)
+	{
+		TimeLimitedCache<MusicDirectory> cache = new TimeLimitedCache<>(Util.getDirectoryCacheTime(context), TimeUnit.SECONDS);
+		cache.set(directory);
+		return cache;
+	}
+
+	private void refresh(Refresh<?> refresh)
+	{
+		if (refreshing.add(refresh.key))
+		{
+			refreshExecutor.execute(refresh);
+		}
+	}
+
+	/**
+	 * Loads a value again in the background after its stale version was returned
+	 */
+	private abstract class Refresh<T> implements Runnable
+	{
+		private final String key;
+		private final T stale;
+		private final String url = restUrl;
+
+		Refresh(String key, T stale)
+		{
+			this.key = key;
+			this.stale = stale;
+		}
+
+		abstract T load() throws Exception;
+
+		abstract void store(T value);
+
+		abstract void publish(T value);
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				T value = load();
+
+				// The caches belong to another server now
+				if (!Util.equals(url, restUrl)) return;
+
+				store(value);
+				if (!isSame(stale, value))
+				{
+					Timber.d("Refreshed %s has changed", key);
+					publish(value);
+				}
+			}
+			catch (Exception x)
+			{
+				Timber.w(x, "Failed to refresh %s", key);
+			}
+			finally
+			{
+				refreshing.remove(key);
+			}
+		}
+	}
+
+	private static boolean isSame(Object stale, Object fresh)
+	{
+		// MusicDirectory has no equals(), but its entries do
+		if (stale instanceof MusicDirectory && fresh instanceof MusicDirectory)
+		{
+			MusicDirectory staleDirectory = (MusicDirectory) stale;
+			MusicDirectory freshDirectory = (MusicDirectory) fresh;
+			return Util.equals(staleDirectory.getName(), freshDirectory.getName()) &&
+					staleDirectory.getAllChild().equals(freshDirectory.getAllChild());
+		}
+		return Util.equals(stale, fresh);
+	}
+
 	private void checkSettingsChanged()
 	{
-		String newUrl = activeServerProvider.getValue().getRestUrl(null);
+		String newUrl = activeRestUrl.get();
 		if (!Util.equals(newUrl, restUrl))
 		{
 			cachedMusicFolders.clear();
@@ -381,6 +920,8 @@ public class CachedMusicService implements MusicService
 			cachedAlbum.clear();
 			cachedArtist.clear();
 			cachedUserInfo.clear();
+			refreshedLists.clear();
+			refreshedStarred.clear();
 			restUrl = newUrl;
 		}
 	}
@@ -389,12 +930,14 @@ public class CachedMusicService implements MusicService
 	public void star(String id, String albumId, String artistId, Context context) throws Exception
 	{
 		musicService.star(id, albumId, artistId, context);
+		refreshedStarred.clear();
 	}
 
 	@Override
 	public void unstar(String id, String albumId, String artistId, Context context) throws Exception
 	{
 		musicService.unstar(id, albumId, artistId, context);
+		refreshedStarred.clear();
 	}
 
 	@Override
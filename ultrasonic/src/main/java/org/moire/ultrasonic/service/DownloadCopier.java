@@ -0,0 +1,115 @@
+package org.moire.ultrasonic.service;
+
+import org.moire.ultrasonic.util.CancellableTask;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies a download stream into a file through a buffer, which is reused by the next download.
+ * The buffer is on the heap, as the stream can only read into an array: reading it through a channel
+ * into a direct buffer would copy each block once more.
+ * The copy doesn't watch for cancellation itself: cancelling the task cancels the HTTP call,
+ * which makes the blocked read fail right away.
+ */
+class DownloadCopier
+{
+	static final int BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_POOLED_BUFFERS = 8;
+
+	private static final Queue<byte[]> bufferPool = new ConcurrentLinkedQueue<>();
+	private static final AtomicInteger pooledBuffers = new AtomicInteger();
+
+	static byte[] obtainBuffer()
+	{
+		byte[] buffer = bufferPool.poll();
+		if (buffer == null)
+		{
+			return new byte[BUFFER_SIZE];
+		}
+
+		pooledBuffers.decrementAndGet();
+		return buffer;
+	}
+
+	static void recycleBuffer(byte[] buffer)
+	{
+		if (pooledBuffers.incrementAndGet() > MAX_POOLED_BUFFERS)
+		{
+			pooledBuffers.decrementAndGet();
+			return;
+		}
+
+		bufferPool.offer(buffer);
+	}
+
+	/**
+	 * Copies the input to the current position of the file until the input ends or the task is cancelled.
+	 * @param blockListener receives the number of bytes of each block after it was written
+	 * @return the number of bytes copied
+	 */
+	static long copy(InputStream in, FileChannel out, CancellableTask task, Consumer<Integer> blockListener) throws IOException
+	{
+		return copy(in, out, -1, Long.MAX_VALUE, task, null, blockListener);
+	}
+
+	/**
+	 * Copies the input to the current position of the file, and to the end of the stream buffer.
+	 * Each block reaches the stream buffer before it is written to the file, so a reader of the buffer
+	 * doesn't wait for the disk.
+	 */
+	static long copy(InputStream in, FileChannel out, CancellableTask task, StreamBuffer tee,
+					 Consumer<Integer> blockListener) throws IOException
+	{
+		return copy(in, out, -1, Long.MAX_VALUE, task, tee, blockListener);
+	}
+
+	/**
+	 * Copies at most length bytes of the input to the given position of the file,
+	 * or to the current position if it is negative.
+	 */
+	static long copy(InputStream in, FileChannel out, long position, long length, CancellableTask task,
+					 Consumer<Integer> blockListener) throws IOException
+	{
+		return copy(in, out, position, length, task, null, blockListener);
+	}
+
+	private static long copy(InputStream in, FileChannel out, long position, long length, CancellableTask task,
+							 StreamBuffer tee, Consumer<Integer> blockListener) throws IOException
+	{
+		byte[] bytes = obtainBuffer();
+		long count = 0;
+
+		try
+		{
+			while (count < length && !task.isCancelled())
+			{
+				int n = in.read(bytes, 0, (int) Math.min(bytes.length, length - count));
+				if (n == -1) break;
+
+				ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, n);
+				if (tee != null) tee.write(buffer);
+
+				while (buffer.hasRemaining())
+				{
+					if (position < 0) out.write(buffer);
+					else out.write(buffer, position + count + buffer.position());
+				}
+
+				count += n;
+				blockListener.accept(n);
+			}
+		}
+		finally
+		{
+			recycleBuffer(bytes);
+		}
+
+		return count;
+	}
+}
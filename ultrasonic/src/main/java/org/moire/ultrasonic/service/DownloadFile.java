@@ -21,10 +21,12 @@ package org.moire.ultrasonic.service;
 import android.content.Context;
 import android.net.wifi.WifiManager;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import timber.log.Timber;
 
 import org.jetbrains.annotations.NotNull;
+import org.moire.ultrasonic.domain.DownloadResponse;
 import org.moire.ultrasonic.domain.MusicDirectory;
 import org.moire.ultrasonic.util.CacheCleaner;
 import org.moire.ultrasonic.util.CancellableTask;
@@ -32,14 +34,16 @@ import org.moire.ultrasonic.util.FileUtil;
 import org.moire.ultrasonic.util.Util;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 import kotlin.Lazy;
-import kotlin.Pair;
 
 import static android.content.Context.POWER_SERVICE;
 import static android.os.PowerManager.ON_AFTER_RELEASE;
@@ -47,27 +51,55 @@ import static android.os.PowerManager.SCREEN_DIM_WAKE_LOCK;
 import static org.koin.java.KoinJavaComponent.inject;
 
 /**
+ * Represents a song and its files in the cache.
+ * The state of the files is read from the disk once, when the object is created or rescanned,
+ * after that it is only changed by the transitions of this object.
+ *
  * @author Sindre Mehus
  * @version $Id$
  */
 public class DownloadFile
 {
+	// A seek closer than this to the downloaded bytes waits for the download instead of fetching ahead
+	private static final long SEEK_AHEAD_DISTANCE = 512 * 1024;
+
 	private final Context context;
 	private final MusicDirectory.Entry song;
-	private final File partialFile;
-	private final File completeFile;
-	private final File saveFile;
-
-	private final MediaStoreService mediaStoreService;
-	private CancellableTask downloadTask;
+	private File partialFile;
+	private File completeFile;
+	private File saveFile;
+	private volatile boolean materialized;
+
+	private volatile CancellableTask downloadTask;
+	private volatile DownloadPriority priority = DownloadPriority.BACKGROUND;
+	private BandwidthScheduler.Ticket ticket;
 	private final boolean save;
-	private boolean failed;
+	private volatile DownloadState state = DownloadState.NEW;
+	private volatile long partialBytes;
+	private volatile long totalLength = -1;
+	private final ByteRanges downloadedRanges = new ByteRanges();
+	// The journal of the running download, while it can fetch ahead
+	private volatile DownloadJournal seekJournal;
+	private volatile SeekFetch seekFetch;
+	private volatile boolean seekAhead;
+	// The download from the start stops here, because the bytes after it are fetched ahead
+	private volatile long sequentialLimit = Long.MAX_VALUE;
+	private volatile StreamBuffer streamBuffer;
+	private final Object progressLock = new Object();
+	private long stateChanges;
+	private volatile long failedTime;
+	private final List<Consumer<DownloadFile>> stateListeners = new CopyOnWriteArrayList<>();
 	private int bitRate;
 	private volatile boolean isPlaying;
 	private volatile boolean saveWhenDone;
 	private volatile boolean completeWhenDone;
 
 	private final Lazy<Downloader> downloader = inject(Downloader.class);
+	private final Lazy<BandwidthScheduler> bandwidthScheduler = inject(BandwidthScheduler.class);
+	private final Lazy<DownloadMetricsRegistry> metricsRegistry = inject(DownloadMetricsRegistry.class);
+	private final Lazy<MediaStoreService> mediaStoreService = inject(MediaStoreService.class);
+	private final Lazy<MediaScanCoordinator> mediaScanCoordinator = inject(MediaScanCoordinator.class);
+	private final Lazy<PlayStartTracer> playStartTracer = inject(PlayStartTracer.class);
 
 	public DownloadFile(Context context, MusicDirectory.Entry song, boolean save)
 	{
@@ -75,12 +107,291 @@ public class DownloadFile
 		this.context = context;
 		this.song = song;
 		this.save = save;
+	}
+
+	/**
+	 * Creates the DownloadFile of a song whose file is known already, without looking it up in the settings
+	 */
+	DownloadFile(MusicDirectory.Entry song, boolean save, File saveFile, int bitRate)
+	{
+		this(null, song, save);
+		setFiles(saveFile, bitRate);
+	}
+
+	/**
+	 * Reads the state from the files on the disk.
+	 * This is only needed if the files may have been changed by someone else.
+	 */
+	public void rescan()
+	{
+		materialize();
+		long bytes = readPartialBytes();
+		DownloadState newState = readState(bytes);
+
+		partialBytes = bytes;
+		setState(newState);
+	}
+
+	/**
+	 * Finds the files of the song and reads their state when they are first needed,
+	 * so a long queue of songs can be restored without touching the disk for each of them
+	 */
+	private void materialize()
+	{
+		if (materialized) return;
+
+		synchronized (this)
+		{
+			if (materialized) return;
+			setFiles(FileUtil.getSongFile(context, song), Util.getMaxBitRate(context));
+		}
+	}
+
+	private synchronized void setFiles(File saveFile, int bitRate)
+	{
+		this.saveFile = saveFile;
+		this.bitRate = bitRate;
+		partialFile = getPartialFile(saveFile);
+		completeFile = getCompleteFile(saveFile);
+
+		// Nobody has seen a state before, so this is not a transition
+		partialBytes = readPartialBytes();
+		state = readState(partialBytes);
+		materialized = true;
+	}
+
+	private static File getPartialFile(File saveFile)
+	{
+		return new File(saveFile.getParent(), String.format("%s.partial.%s", FileUtil.getBaseName(saveFile.getName()), FileUtil.getExtension(saveFile.getName())));
+	}
+
+	private static File getCompleteFile(File saveFile)
+	{
+		return new File(saveFile.getParent(), String.format("%s.complete.%s", FileUtil.getBaseName(saveFile.getName()), FileUtil.getExtension(saveFile.getName())));
+	}
+
+	private long readPartialBytes()
+	{
+		long bytes = partialFile.length();
+
+		// A segmented download was interrupted, the bytes in the partial file are not contiguous
+		if (bytes > 0)
+		{
+			DownloadJournal journal = DownloadJournal.load(partialFile);
+			if (journal != null && journal.segmented) bytes = 0;
+		}
+
+		return bytes;
+	}
+
+	private DownloadState readState(long partialBytes)
+	{
+		if (saveFile.exists()) return DownloadState.PINNED;
+		if (completeFile.exists()) return DownloadState.COMPLETE;
+		if (partialBytes > 0) return DownloadState.PARTIAL;
+		return DownloadState.NEW;
+	}
+
+	public DownloadState getState()
+	{
+		materialize();
+		return state;
+	}
+
+	/**
+	 * @return the number of contiguous bytes from the start of the partial file
+	 */
+	public long getPartialBytes()
+	{
+		materialize();
+		return partialBytes;
+	}
+
+	/**
+	 * Registers a listener which is called after each transition of the state
+	 */
+	public void addStateListener(Consumer<DownloadFile> listener)
+	{
+		stateListeners.add(listener);
+	}
+
+	public void removeStateListener(Consumer<DownloadFile> listener)
+	{
+		stateListeners.remove(listener);
+	}
+
+	/**
+	 * Changes the state under the lock of this object. The download task and the callers which move
+	 * or delete the files of the song check the state and change it in the same block under this lock,
+	 * so their transitions can't interleave.
+	 */
+	private synchronized void setState(DownloadState newState)
+	{
+		if (state == newState)
+		{
+			return;
+		}
+
+		Timber.v("%s: %s -> %s", this, state, newState);
+		state = newState;
+		notifyReaders(true);
+
+		for (Consumer<DownloadFile> listener : stateListeners)
+		{
+			listener.accept(this);
+		}
+	}
+
+	synchronized void updatePartialBytes(long bytes)
+	{
+		if (bytes <= partialBytes) return;
+		partialBytes = bytes;
+		if (state == DownloadState.NEW) setState(DownloadState.PARTIAL);
+		notifyReaders(false);
+	}
+
+	/**
+	 * @return the end of the downloaded bytes which follow the position without a gap,
+	 * or the position if its byte hasn't been downloaded yet
+	 */
+	public long getDownloadedEnd(long position)
+	{
+		materialize();
+		long contiguous = partialBytes;
+		if (position < contiguous) return contiguous;
+		return downloadedRanges.getEnd(position);
+	}
+
+	/**
+	 * Blocks until the bytes from the position to the end have been downloaded, the state of the download
+	 * has changed, or the timeout has passed. Readers of the growing file wake up as soon as the bytes
+	 * have been written, instead of polling the file.
+	 * @return false if the timeout has passed
+	 */
+	public boolean awaitBytes(long position, long end, long timeoutMillis) throws InterruptedException
+	{
+		materialize();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+		synchronized (progressLock)
+		{
+			long changes = stateChanges;
+			while (getDownloadedEnd(position) < end && changes == stateChanges)
+			{
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) return false;
+				TimeUnit.NANOSECONDS.timedWait(progressLock, remaining);
+			}
+			return true;
+		}
+	}
+
+	private void notifyReaders(boolean stateChanged)
+	{
+		synchronized (progressLock)
+		{
+			if (stateChanged) stateChanges++;
+			progressLock.notifyAll();
+		}
+	}
 
-		saveFile = FileUtil.getSongFile(context, song);
-		bitRate = Util.getMaxBitRate(context);
-		partialFile = new File(saveFile.getParent(), String.format("%s.partial.%s", FileUtil.getBaseName(saveFile.getName()), FileUtil.getExtension(saveFile.getName())));
-		completeFile = new File(saveFile.getParent(), String.format("%s.complete.%s", FileUtil.getBaseName(saveFile.getName()), FileUtil.getExtension(saveFile.getName())));
-		mediaStoreService = new MediaStoreService(context);
+	private void setPartialState()
+	{
+		setState(partialBytes > 0 ? DownloadState.PARTIAL : DownloadState.NEW);
+	}
+
+	/**
+	 * Starts to download the file from the offset in parallel to the running download, if the offset
+	 * is too far ahead of it for the player to wait. The running download stops where the fetched bytes begin.
+	 * @return true if a fetch from the offset has been started
+	 */
+	public synchronized boolean fetchAhead(long offset)
+	{
+		materialize();
+		DownloadJournal journal = seekJournal;
+		if (journal == null || offset >= journal.totalLength) return false;
+		if (offset < partialBytes + SEEK_AHEAD_DISTANCE || getDownloadedEnd(offset) > offset) return false;
+
+		SeekFetch fetch = seekFetch;
+		if (fetch != null)
+		{
+			if (fetch.isFailed()) return false;
+
+			// The running fetch gets there soon enough
+			long fetched = downloadedRanges.getEnd(fetch.getStart());
+			if (fetch.isRunning() && offset >= fetch.getStart() && offset < fetched + SEEK_AHEAD_DISTANCE) return false;
+
+			fetch.cancel();
+		}
+
+		try
+		{
+			// The partial file won't be contiguous, it can't be resumed if the app dies now
+			if (!journal.segmented)
+			{
+				journal.segmented = true;
+				journal.save(partialFile);
+			}
+		}
+		catch (IOException x)
+		{
+			Timber.w(x, "Failed to save the download journal of %s", this);
+			return false;
+		}
+
+		// The streamed bytes end where the download from the start stops
+		StreamBuffer tee = streamBuffer;
+		if (tee != null) tee.close();
+
+		seekAhead = true;
+		sequentialLimit = Math.min(sequentialLimit, offset);
+		seekFetch = new SeekFetch(context, MusicServiceFactory.getMusicService(context), song, partialFile, bitRate,
+				journal, downloadedRanges, offset, ticket, new Consumer<Integer>()
+		{
+			@Override
+			public void accept(Integer n)
+			{
+				updatePartialBytes(downloadedRanges.getEnd(0));
+				notifyReaders(false);
+			}
+		});
+		seekFetch.start();
+		return true;
+	}
+
+	/**
+	 * @return the approximate offset of the position in the file
+	 */
+	public long estimateOffset(int positionMillis)
+	{
+		long length = getTotalLength();
+		Integer duration = song.getDuration();
+
+		if (length > 0 && duration != null && duration > 0)
+		{
+			return Math.min(length, length * positionMillis / (duration * 1000L));
+		}
+
+		return (long) positionMillis * getBitRate() / 8;
+	}
+
+	/**
+	 * @return the length of the file when it is downloaded completely, or -1 if it isn't known yet
+	 */
+	public long getTotalLength()
+	{
+		materialize();
+		if (isCompleteFileAvailable()) return getCompleteFile().length();
+		if (isWorkDone()) return partialFile.length();
+		return totalLength;
+	}
+
+	/**
+	 * @return the buffer which holds the latest downloaded bytes in memory, or null if the download isn't streamed
+	 */
+	public StreamBuffer getStreamBuffer()
+	{
+		return streamBuffer;
 	}
 
 	public MusicDirectory.Entry getSong()
@@ -93,7 +404,8 @@ public class DownloadFile
 	 */
 	public int getBitRate()
 	{
-		if (!partialFile.exists())
+		materialize();
+		if (partialBytes == 0)
 		{
 			bitRate = Util.getMaxBitRate(context);
 		}
@@ -108,14 +420,20 @@ public class DownloadFile
 
 	public synchronized void download()
 	{
+		materialize();
 		FileUtil.createDirectoryForParent(saveFile);
-		failed = false;
 
-		if (!partialFile.exists())
+		if (state == DownloadState.FAILED)
+		{
+			setPartialState();
+		}
+
+		if (partialBytes == 0)
 		{
 			bitRate = Util.getMaxBitRate(context);
 		}
 
+		playStartTracer.getValue().mark(song.getId(), PlayStartTrace.Stage.DOWNLOAD);
 		downloadTask = new DownloadTask();
 		downloadTask.start();
 	}
@@ -126,16 +444,58 @@ public class DownloadFile
 		{
 			downloadTask.cancel();
 		}
+
+		if (ticket != null)
+		{
+			ticket.wakeUp();
+		}
 	}
 
-	public File getCompleteFile()
+	/**
+	 * @return the metrics of the latest download attempt of the song, or null if there was none
+	 */
+	public DownloadMetrics getMetrics()
 	{
-		if (saveFile.exists())
+		return metricsRegistry.getValue().get(song.getId());
+	}
+
+	public DownloadPriority getPriority()
+	{
+		return priority;
+	}
+
+	/**
+	 * Sets the class which decides how much bandwidth the download gets, also while it is running
+	 */
+	public synchronized void setPriority(DownloadPriority priority)
+	{
+		this.priority = priority;
+
+		if (ticket != null)
 		{
-			return saveFile;
+			ticket.setPriority(priority);
 		}
+	}
 
-		if (completeFile.exists())
+	private synchronized BandwidthScheduler.Ticket openTicket()
+	{
+		ticket = bandwidthScheduler.getValue().register(priority);
+		return ticket;
+	}
+
+	private synchronized void closeTicket()
+	{
+		if (ticket != null)
+		{
+			ticket.close();
+			ticket = null;
+		}
+	}
+
+	public File getCompleteFile()
+	{
+		materialize();
+		if (state == DownloadState.COMPLETE)
 		{
 			return completeFile;
 		}
@@ -145,31 +505,49 @@ public class DownloadFile
 
 	public File getPartialFile()
 	{
+		materialize();
 		return partialFile;
 	}
 
+	/**
+	 * @return the paths of all files the song may have, without reading their state from the disk
+	 */
+	public List<File> getFilePaths()
+	{
+		File saveFile = materialized ? this.saveFile : FileUtil.getSongFile(context, song);
+		File partialFile = getPartialFile(saveFile);
+		return Arrays.asList(saveFile, getCompleteFile(saveFile), partialFile, DownloadJournal.getFile(partialFile));
+	}
+
 	public boolean isSaved()
 	{
-		return saveFile.exists();
+		materialize();
+		return state == DownloadState.PINNED;
 	}
 
-	public synchronized boolean isCompleteFileAvailable()
+	public boolean isCompleteFileAvailable()
 	{
-		return saveFile.exists() || completeFile.exists();
+		materialize();
+		DownloadState state = this.state;
+		return state == DownloadState.PINNED || state == DownloadState.COMPLETE;
 	}
 
-	public synchronized boolean isWorkDone()
+	public boolean isWorkDone()
 	{
-		return saveFile.exists() || (completeFile.exists() && !save) || saveWhenDone || completeWhenDone;
+		materialize();
+		DownloadState state = this.state;
+		return state == DownloadState.PINNED || (state == DownloadState.COMPLETE && !save) || saveWhenDone || completeWhenDone;
 	}
 
-	public synchronized boolean isDownloading()
+	public boolean isDownloading()
 	{
+		CancellableTask downloadTask = this.downloadTask;
 		return downloadTask != null && downloadTask.isRunning();
 	}
 
-	public synchronized boolean isDownloadCancelled()
+	public boolean isDownloadCancelled()
 	{
+		CancellableTask downloadTask = this.downloadTask;
 		return downloadTask != null && downloadTask.isCancelled();
 	}
 
@@ -180,38 +558,70 @@ public class DownloadFile
 
 	public boolean isFailed()
 	{
-		return failed;
+		materialize();
+		return state == DownloadState.FAILED;
+	}
+
+	/**
+	 * @return the SystemClock.elapsedRealtime() of the last failure
+	 */
+	public long getFailedTime()
+	{
+		return failedTime;
 	}
 
 	public void delete()
 	{
+		materialize();
 		cancelDownload();
-		Util.delete(partialFile);
-		Util.delete(completeFile);
-		Util.delete(saveFile);
-		mediaStoreService.deleteFromMediaStore(this);
+
+		synchronized (this)
+		{
+			Util.delete(partialFile);
+			DownloadJournal.delete(partialFile);
+			Util.delete(completeFile);
+			Util.delete(saveFile);
+			partialBytes = 0;
+			setState(DownloadState.NEW);
+		}
+
+		mediaStoreService.getValue().deleteFromMediaStore(this);
 	}
 
 	public void unpin()
 	{
-		if (saveFile.exists())
+		materialize();
+
+		synchronized (this)
 		{
-			if (!saveFile.renameTo(completeFile)){
-				Timber.w("Renaming file failed. Original file: %s; Rename to: %s", saveFile.getName(), completeFile.getName());
+			if (state == DownloadState.PINNED)
+			{
+				if (saveFile.renameTo(completeFile))
+				{
+					setState(DownloadState.COMPLETE);
+				}
+				else
+				{
+					Timber.w("Renaming file failed. Original file: %s; Rename to: %s", saveFile.getName(), completeFile.getName());
+				}
 			}
 		}
 	}
 
 	public boolean cleanup()
 	{
+		materialize();
 		boolean ok = true;
+		DownloadState state = this.state;
 
-		if (completeFile.exists() || saveFile.exists())
+		if (state == DownloadState.COMPLETE || state == DownloadState.PINNED)
 		{
 			ok = Util.delete(partialFile);
+			DownloadJournal.delete(partialFile);
+			if (ok) partialBytes = 0;
 		}
 
-		if (saveFile.exists())
+		if (state == DownloadState.PINNED)
 		{
 			ok &= Util.delete(completeFile);
 		}
@@ -222,6 +632,7 @@ public class DownloadFile
 	// In support of LRU caching.
 	public void updateModificationDate()
 	{
+		materialize();
 		updateModificationDate(saveFile);
 		updateModificationDate(partialFile);
 		updateModificationDate(completeFile);
@@ -255,36 +666,49 @@ public class DownloadFile
 		}
 	}
 
+	/**
+	 * The download task finishes the files of a song which is being played when it stops,
+	 * so the flags are checked and set under the same lock as the transitions of the task
+	 */
 	public void setPlaying(boolean isPlaying)
 	{
-		try
+		materialize();
+
+		synchronized (this)
 		{
-			if (saveWhenDone && !isPlaying)
-			{
-				Util.renameFile(completeFile, saveFile);
-				saveWhenDone = false;
-			}
-			else if (completeWhenDone && !isPlaying)
+			try
 			{
-				if (save)
+				if (saveWhenDone && !isPlaying)
 				{
-					Util.renameFile(partialFile, saveFile);
-					mediaStoreService.saveInMediaStore(DownloadFile.this);
+					Util.renameFile(completeFile, saveFile);
+					setState(DownloadState.PINNED);
+					saveWhenDone = false;
 				}
-				else
+				else if (completeWhenDone && !isPlaying)
 				{
-					Util.renameFile(partialFile, completeFile);
-				}
+					if (save)
+					{
+						Util.renameFile(partialFile, saveFile);
+						setState(DownloadState.PINNED);
+						mediaStoreService.getValue().saveInMediaStore(DownloadFile.this);
+					}
+					else
+					{
+						Util.renameFile(partialFile, completeFile);
+						setState(DownloadState.COMPLETE);
+					}
 
-				completeWhenDone = false;
+					partialBytes = 0;
+					completeWhenDone = false;
+				}
+			}
+			catch (IOException ex)
+			{
+				Timber.w("Failed to rename file %s to %s", completeFile, saveFile);
 			}
-		}
-		catch (IOException ex)
-		{
-			Timber.w("Failed to rename file %s to %s", completeFile, saveFile);
-		}
 
-		this.isPlaying = isPlaying;
+			this.isPlaying = isPlaying;
+		}
 	}
 
 	@NotNull
@@ -300,9 +724,13 @@ public class DownloadFile
 		public void execute()
 		{
 			InputStream in = null;
-			FileOutputStream out = null;
+			RandomAccessFile out = null;
 			PowerManager.WakeLock wakeLock = null;
 			WifiManager.WifiLock wifiLock = null;
+			BandwidthScheduler.Ticket ticket = openTicket();
+			DownloadMetrics metrics = null;
+			boolean successful = false;
+			playStartTracer.getValue().mark(song.getId(), PlayStartTrace.Stage.DOWNLOAD_RUNNING);
 
 			try
 			{
@@ -317,22 +745,29 @@ public class DownloadFile
 				wifiLock = Util.createWifiLock(context, toString());
 				wifiLock.acquire();
 
-				if (saveFile.exists())
+				// Another DownloadFile of the same song may have changed the files
+				rescan();
+
+				if (state == DownloadState.PINNED)
 				{
 					Timber.i("%s already exists. Skipping.", saveFile);
 					return;
 				}
-				if (completeFile.exists())
+				if (state == DownloadState.COMPLETE)
 				{
 					if (save)
 					{
-						if (isPlaying)
-						{
-							saveWhenDone = true;
-						}
-						else
+						synchronized (DownloadFile.this)
 						{
-							Util.renameFile(completeFile, saveFile);
+							if (isPlaying)
+							{
+								saveWhenDone = true;
+							}
+							else
+							{
+								Util.renameFile(completeFile, saveFile);
+								setState(DownloadState.PINNED);
+							}
 						}
 					}
 					else
@@ -344,76 +779,154 @@ public class DownloadFile
 
 				MusicService musicService = MusicServiceFactory.getMusicService(context);
 
-				// Some devices seem to throw error on partial file which doesn't exist
-				boolean compare;
-
-				Integer duration = song.getDuration();
-				long fileLength = 0;
+				String suffix = song.getTranscodedSuffix() != null ? song.getTranscodedSuffix() : song.getSuffix();
+				DownloadJournal journal = prepareResume(suffix);
+				totalLength = journal == null ? -1 : journal.totalLength;
+				metrics = metricsRegistry.getValue().start(song.getId(), partialBytes);
+				final DownloadMetrics segmentMetrics = metrics;
+				boolean complete = journal != null && journal.totalLength > 0 && partialBytes == journal.totalLength;
 
-				if (!partialFile.exists())
+				if (!complete && journal == null && SegmentedDownload.isSupported(song, bitRate, partialBytes))
 				{
-					fileLength = partialFile.length();
-				}
+					journal = new DownloadJournal(bitRate, suffix);
+					final DownloadJournal segmentJournal = journal;
+					SegmentedDownload segmentedDownload = new SegmentedDownload(context, musicService, song, partialFile, bitRate, DownloadTask.this, ticket, journal, metrics, new Consumer<Long>()
+					{
+						@Override
+						public void accept(Long bytes)
+						{
+							totalLength = segmentJournal.totalLength;
+							updatePartialBytes(bytes);
+							segmentMetrics.onProgress(bytes);
+						}
+					});
 
-				try
-				{
-					compare = (bitRate == 0) || (duration == null || duration == 0) || (fileLength == 0);
-					//(bitRate * song.getDuration() * 1000 / 8) > partialFile.length();
-				}
-				catch (Exception e)
-				{
-					compare = true;
+					complete = segmentedDownload.download();
+					if (complete)
+					{
+						Timber.i("Downloaded %d bytes to %s in segments", partialBytes, partialFile);
+					}
+					else
+					{
+						journal = null;
+					}
 				}
 
-				if (compare)
+				if (!complete)
 				{
-					// Attempt partial HTTP GET, appending to the file if it exists.
-					Pair<InputStream, Boolean> response = musicService
-							.getDownloadInputStream(context, song, partialFile.length(), bitRate,
-									DownloadTask.this);
+					out = new RandomAccessFile(partialFile, "rw");
+					long offset = partialBytes;
+					downloadedRanges.reset(offset);
 
-					if (response.getSecond())
+					// Each pass continues after the contiguous bytes, until the end of the file
+					// or until the bytes which have been fetched ahead for a seek
+					while (true)
 					{
-						Timber.i("Executed partial HTTP GET, skipping %d bytes", partialFile.length());
-					}
+						// Attempt partial HTTP GET, appending to the file if it exists.
+						RequestTask request = new RequestTask(DownloadTask.this);
+						metrics.onRequest();
+						DownloadResponse response = musicService.getDownloadInputStream(context, song, offset, -1, bitRate,
+								journal == null ? null : journal.getValidator(), request);
+						metrics.onResponse();
+						playStartTracer.getValue().mark(song.getId(), PlayStartTrace.Stage.RESPONSE);
+						in = response.getStream();
+
+						boolean append = offset > 0 && journal.matches(response);
+						if (append)
+						{
+							Timber.i("Executed partial HTTP GET, skipping %d bytes", offset);
+						}
+						else
+						{
+							if (response.isPartial())
+							{
+								// Some range of a file that can't be continued, start over on the next attempt
+								discardPartialFile();
+								throw new IOException(String.format("Partial response for '%s' doesn't match the partial file", song));
+							}
+
+							if (offset > 0)
+							{
+								Timber.i("Server sent the whole file, restarting the download of '%s'", song);
+							}
+
+							stopSeekAhead();
+							offset = 0;
+							partialBytes = 0;
+							out.setLength(0);
+							downloadedRanges.reset(0);
+							journal = new DownloadJournal(bitRate, suffix);
+							journal.update(response);
+							journal.save(partialFile);
+							totalLength = journal.totalLength;
+						}
 
-					out = new FileOutputStream(partialFile, response.getSecond());
-					long n = copy(response.getFirst(), out);
-					Timber.i("Downloaded %d bytes to %s", n, partialFile);
-					out.flush();
-					out.close();
+						startPass(journal, offset);
+						out.getChannel().position(offset);
+						long n = copy(in, out.getChannel(), offset, request, ticket, metrics);
+						Timber.i("Downloaded %d bytes to %s", n, partialFile);
+						request.finish();
+						Util.close(in);
 
-					if (isCancelled())
-					{
-						throw new Exception(String.format("Download of '%s' was cancelled", song));
+						// The bytes after the limit are fetched ahead, or have been already
+						boolean reachedLimit = request.isCancelled() && !isCancelled();
+						if (reachedLimit) awaitSeekFetch();
+
+						if (isCancelled())
+						{
+							throw new Exception(String.format("Download of '%s' was cancelled", song));
+						}
+
+						if (!reachedLimit) break;
+						offset = partialBytes;
+						if (offset >= journal.totalLength) break;
 					}
 
-					downloadAndSaveCoverArt(musicService);
+					out.close();
 				}
 
-				if (isPlaying)
+				// Only a file with the expected length is complete. Without a known length, trust the stream.
+				long length = seekAhead ? partialBytes : partialFile.length();
+				if (journal.totalLength >= 0 && length != journal.totalLength)
 				{
-					completeWhenDone = true;
+					if (length > journal.totalLength) discardPartialFile();
+					throw new IOException(String.format("Downloaded %d of %d bytes of '%s'", length, journal.totalLength, song));
 				}
-				else
+
+				DownloadJournal.delete(partialFile);
+				successful = true;
+				downloadAndSaveCoverArt(musicService);
+
+				synchronized (DownloadFile.this)
 				{
-					if (save)
+					if (isPlaying)
 					{
-						Util.renameFile(partialFile, saveFile);
-						mediaStoreService.saveInMediaStore(DownloadFile.this);
-
-						if (Util.getShouldScanMedia(context))
-						{
-							Util.scanMedia(context, saveFile);
-						}
+						completeWhenDone = true;
 					}
 					else
 					{
-						Util.renameFile(partialFile, completeFile);
-
-						if (Util.getShouldScanMedia(context))
+						if (save)
+						{
+							Util.renameFile(partialFile, saveFile);
+							partialBytes = 0;
+							setState(DownloadState.PINNED);
+							mediaStoreService.getValue().saveInMediaStore(DownloadFile.this);
+
+							if (Util.getShouldScanMedia(context))
+							{
+								mediaScanCoordinator.getValue().scan(saveFile);
+							}
+						}
+						else
 						{
-							Util.scanMedia(context, completeFile);
+							Util.renameFile(partialFile, completeFile);
+							partialBytes = 0;
+							setState(DownloadState.COMPLETE);
+
+							if (Util.getShouldScanMedia(context))
+							{
+								mediaScanCoordinator.getValue().scan(completeFile);
+							}
 						}
 					}
 				}
@@ -426,15 +939,26 @@ public class DownloadFile
 
 				if (!isCancelled())
 				{
-					failed = true;
+					failedTime = SystemClock.elapsedRealtime();
+					setState(DownloadState.FAILED);
 					Timber.w(x, "Failed to download '%s'.", song);
 				}
+				else
+				{
+					setPartialState();
+				}
 
 			}
 			finally
 			{
 				Util.close(in);
 				Util.close(out);
+				endSeekAhead(successful);
+				closeTicket();
+				if (metrics != null)
+				{
+					metricsRegistry.getValue().finish(metrics, successful);
+				}
 				if (wakeLock != null)
 				{
 					wakeLock.release();
@@ -445,6 +969,8 @@ public class DownloadFile
 					wifiLock.release();
 				}
 
+				// The download may have ended without a change of the state, when the song is still playing
+				notifyReaders(true);
 				new CacheCleaner(context).cleanSpace();
 
 				downloader.getValue().checkDownloads();
@@ -458,6 +984,144 @@ public class DownloadFile
 			return String.format("DownloadTask (%s)", song);
 		}
 
+		/**
+		 * @return the journal of the partial file, if the download can be resumed from it
+		 */
+		private DownloadJournal prepareResume(String suffix)
+		{
+			if (partialBytes == 0)
+			{
+				DownloadJournal.delete(partialFile);
+				return null;
+			}
+
+			DownloadJournal journal = DownloadJournal.load(partialFile);
+			if (journal == null || !journal.matches(suffix))
+			{
+				Timber.i("%s can't be resumed safely, downloading it again", partialFile);
+				discardPartialFile();
+				return null;
+			}
+
+			// Continue with the bit rate the file was started with
+			bitRate = journal.bitRate;
+			return journal;
+		}
+
+		/**
+		 * Lets the player fetch ahead from the next pass on, if the server sends the original file,
+		 * and limits the pass to the gap before the bytes which are there already
+		 */
+		private void startPass(DownloadJournal journal, long offset)
+		{
+			synchronized (DownloadFile.this)
+			{
+				boolean supported = journal.totalLength > 0 && SeekFetch.isSupported(song, bitRate);
+				seekJournal = supported ? journal : null;
+
+				long limit = downloadedRanges.getNextStart(offset);
+				SeekFetch fetch = seekFetch;
+				if (fetch != null && fetch.isRunning() && fetch.getStart() > offset)
+				{
+					limit = Math.min(limit, fetch.getStart());
+				}
+				sequentialLimit = limit;
+			}
+		}
+
+		/**
+		 * Waits until the fetch ahead has ended, it is cancelled if the download is cancelled meanwhile
+		 */
+		private void awaitSeekFetch() throws InterruptedException
+		{
+			final SeekFetch fetch = seekFetch;
+			if (fetch == null) return;
+
+			OnCancelListener listener = new OnCancelListener()
+			{
+				@Override
+				public void onCancel()
+				{
+					fetch.cancel();
+				}
+			};
+
+			addOnCancelListener(listener);
+			try
+			{
+				fetch.await();
+			}
+			finally
+			{
+				removeOnCancelListener(listener);
+			}
+		}
+
+		private void stopSeekAhead() throws InterruptedException
+		{
+			SeekFetch fetch;
+			synchronized (DownloadFile.this)
+			{
+				seekJournal = null;
+				fetch = seekFetch;
+				seekFetch = null;
+			}
+
+			if (fetch != null)
+			{
+				fetch.cancel();
+				fetch.await();
+			}
+		}
+
+		/**
+		 * Makes an unfinished partial file contiguous again, so it can be resumed
+		 */
+		private void endSeekAhead(boolean successful)
+		{
+			DownloadJournal journal = seekJournal;
+
+			try
+			{
+				stopSeekAhead();
+
+				if (seekAhead && !successful && journal != null && partialFile.exists())
+				{
+					RandomAccessFile file = new RandomAccessFile(partialFile, "rw");
+					try
+					{
+						file.setLength(partialBytes);
+					}
+					finally
+					{
+						Util.close(file);
+					}
+
+					journal.segmented = false;
+					journal.save(partialFile);
+				}
+			}
+			catch (Exception x)
+			{
+				Timber.w(x, "Failed to truncate %s", partialFile);
+				discardPartialFile();
+			}
+			finally
+			{
+				seekAhead = false;
+				sequentialLimit = Long.MAX_VALUE;
+				downloadedRanges.reset(0);
+			}
+		}
+
+		private void discardPartialFile()
+		{
+			Util.delete(partialFile);
+			DownloadJournal.delete(partialFile);
+			partialBytes = 0;
+			setState(DownloadState.NEW);
+		}
+
 		private void downloadAndSaveCoverArt(MusicService musicService)
 		{
 			try
@@ -473,51 +1137,102 @@ public class DownloadFile
 			}
 		}
 
-		private long copy(final InputStream in, OutputStream out) throws IOException
+		/**
+		 * Copies the input from the offset on, the request is cancelled when it reaches the sequential limit
+		 */
+		private long copy(InputStream in, FileChannel out, final long offset, final CancellableTask request,
+						  final BandwidthScheduler.Ticket ticket, final DownloadMetrics metrics) throws IOException
 		{
-			// Start a thread that will close the input stream if the task is
-			// cancelled, thus causing the copy() method to return.
-			new Thread()
+			final long start = partialBytes;
+			final long[] position = { offset };
+			final long[] lastLog = { System.currentTimeMillis() };
+
+			Consumer<Integer> blockListener = new Consumer<Integer>()
 			{
 				@Override
-				public void run()
+				public void accept(Integer n)
 				{
-					while (true)
+					if (position[0] == offset)
 					{
-						Util.sleepQuietly(3000L);
+						playStartTracer.getValue().mark(song.getId(), PlayStartTrace.Stage.FIRST_BYTE);
+					}
 
-						if (isCancelled())
-						{
-							Util.close(in);
-							return;
-						}
+					downloadedRanges.add(position[0], position[0] + n);
+					position[0] += n;
+					updatePartialBytes(downloadedRanges.getEnd(0));
+					metrics.onProgress(partialBytes);
 
-						if (!isRunning())
-						{
-							return;
-						}
+					// The bytes after the limit are fetched ahead, they don't need to be downloaded twice
+					if (position[0] >= sequentialLimit)
+					{
+						Timber.i("Reached the bytes fetched ahead of %s at %d", song, position[0]);
+						request.cancel();
+						return;
 					}
+
+					long now = System.currentTimeMillis();
+					if (now - lastLog[0] > 3000L)
+					{  // Only every so often.
+						Timber.i("Downloaded %s of %s", Util.formatBytes(partialBytes - start), song);
+						lastLog[0] = now;
+					}
+
+					// Waits here while more important downloads need the bandwidth
+					ticket.acquire(n, DownloadTask.this);
 				}
-			}.start();
+			};
 
-			byte[] buffer = new byte[1024 * 16];
-			long count = 0;
-			int n;
-			long lastLog = System.currentTimeMillis();
+			// The songs which may be played during their download are streamed from memory as well
+			StreamBuffer tee = null;
+			if (!seekAhead && Util.isTeeStreamingEnabled(context) && (priority == DownloadPriority.CURRENT || priority == DownloadPriority.NEXT_UP))
+			{
+				tee = new StreamBuffer(StreamBuffer.DEFAULT_CAPACITY);
+				tee.reset(start);
+				streamBuffer = tee;
+			}
 
-			while (!isCancelled() && (n = in.read(buffer)) != -1)
+			try
 			{
-				out.write(buffer, 0, n);
-				count += n;
-
-				long now = System.currentTimeMillis();
-				if (now - lastLog > 3000L)
-				{  // Only every so often.
-					Timber.i("Downloaded %s of %s", Util.formatBytes(count), song);
-					lastLog = now;
+				return DownloadCopier.copy(in, out, request, tee, blockListener);
+			}
+			finally
+			{
+				if (tee != null)
+				{
+					streamBuffer = null;
+					tee.close();
 				}
 			}
-			return count;
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * A request of the download, which is cancelled with the download but can also be cancelled alone
+	 */
+	private static class RequestTask extends CancellableTask implements CancellableTask.OnCancelListener
+	{
+		private final CancellableTask download;
+
+		RequestTask(CancellableTask download)
+		{
+			this.download = download;
+			download.addOnCancelListener(this);
+		}
+
+		@Override
+		public void onCancel()
+		{
+			cancel();
+		}
+
+		void finish()
+		{
+			download.removeOnCancelListener(this);
+		}
+
+		@Override
+		public void execute()
+		{
+		}
+	}
+}
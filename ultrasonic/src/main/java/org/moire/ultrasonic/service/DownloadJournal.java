@@ -0,0 +1,151 @@
+package org.moire.ultrasonic.service;
+
+import timber.log.Timber;
+
+import org.moire.ultrasonic.domain.DownloadResponse;
+import org.moire.ultrasonic.util.Util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Describes what is being downloaded into a partial file, so an interrupted download
+ * is only resumed if the rest of the file will match the bytes which are already there.
+ * It is stored next to the partial file, and deleted when the download is complete.
+ */
+class DownloadJournal
+{
+	private static final String TOTAL_LENGTH = "totalLength";
+	private static final String ETAG = "eTag";
+	private static final String LAST_MODIFIED = "lastModified";
+	private static final String BIT_RATE = "bitRate";
+	private static final String SUFFIX = "suffix";
+	private static final String SEGMENTED = "segmented";
+
+	long totalLength = -1;
+	String eTag;
+	String lastModified;
+	int bitRate;
+	String suffix;
+	boolean segmented;
+
+	DownloadJournal(int bitRate, String suffix)
+	{
+		this.bitRate = bitRate;
+		this.suffix = suffix;
+	}
+
+	static File getFile(File partialFile)
+	{
+		return new File(partialFile.getPath() + ".journal");
+	}
+
+	/**
+	 * @return the journal of the partial file, or null if there is none or it can't be read
+	 */
+	static DownloadJournal load(File partialFile)
+	{
+		File file = getFile(partialFile);
+		if (!file.exists()) return null;
+
+		InputStream in = null;
+		try
+		{
+			in = new FileInputStream(file);
+			Properties properties = new Properties();
+			properties.load(in);
+
+			DownloadJournal journal = new DownloadJournal(
+					Integer.parseInt(properties.getProperty(BIT_RATE, "0")),
+					properties.getProperty(SUFFIX));
+			journal.totalLength = Long.parseLong(properties.getProperty(TOTAL_LENGTH, "-1"));
+			journal.eTag = properties.getProperty(ETAG);
+			journal.lastModified = properties.getProperty(LAST_MODIFIED);
+			journal.segmented = Boolean.parseBoolean(properties.getProperty(SEGMENTED));
+			return journal;
+		}
+		catch (Exception x)
+		{
+			Timber.w(x, "Failed to read download journal %s", file);
+			return null;
+		}
+		finally
+		{
+			Util.close(in);
+		}
+	}
+
+	static void delete(File partialFile)
+	{
+		Util.delete(getFile(partialFile));
+	}
+
+	void save(File partialFile) throws IOException
+	{
+		Properties properties = new Properties();
+		properties.setProperty(TOTAL_LENGTH, Long.toString(totalLength));
+		properties.setProperty(BIT_RATE, Integer.toString(bitRate));
+		properties.setProperty(SEGMENTED, Boolean.toString(segmented));
+		if (eTag != null) properties.setProperty(ETAG, eTag);
+		if (lastModified != null) properties.setProperty(LAST_MODIFIED, lastModified);
+		if (suffix != null) properties.setProperty(SUFFIX, suffix);
+
+		// Write a new file and rename it, so a crash never leaves a half written journal
+		File file = getFile(partialFile);
+		File tmp = new File(file.getPath() + ".tmp");
+		OutputStream out = new FileOutputStream(tmp);
+		try
+		{
+			properties.store(out, null);
+		}
+		finally
+		{
+			Util.close(out);
+		}
+
+		Util.renameFile(tmp, file);
+	}
+
+	/**
+	 * Takes the length and version of the file from the response of a download starting at zero
+	 */
+	void update(DownloadResponse response)
+	{
+		totalLength = response.getTotalLength();
+		eTag = response.getETag();
+		lastModified = response.getLastModified();
+	}
+
+	/**
+	 * @return true if a download of the given format, with the journaled bit rate,
+	 * continues the bytes in the partial file
+	 */
+	boolean matches(String suffix)
+	{
+		return !segmented && (this.suffix == null ? suffix == null : this.suffix.equals(suffix));
+	}
+
+	/**
+	 * @return true if the response is a continuation of the journaled file
+	 */
+	boolean matches(DownloadResponse response)
+	{
+		if (!response.isPartial()) return false;
+		if (totalLength >= 0 && response.getTotalLength() >= 0 && totalLength != response.getTotalLength()) return false;
+		if (eTag != null && response.getETag() != null && !eTag.equals(response.getETag())) return false;
+		return lastModified == null || response.getLastModified() == null || lastModified.equals(response.getLastModified());
+	}
+
+	/**
+	 * @return the value for an If-Range header
+	 */
+	String getValidator()
+	{
+		return eTag != null ? eTag : lastModified;
+	}
+}
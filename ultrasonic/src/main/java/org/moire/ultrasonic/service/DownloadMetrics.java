@@ -0,0 +1,183 @@
+package org.moire.ultrasonic.service;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timing and throughput of one download attempt of a song.
+ * The phases show where a slow start comes from: the time until the request is sent is spent
+ * in the client, the time until the response arrives in the server (including transcoding),
+ * and the time until the first byte in the server's streaming.
+ * All fields can be read while the download is running.
+ */
+public class DownloadMetrics
+{
+	private final String songId;
+	private final long resumeOffset;
+	private final int retries;
+	private final long startTime = System.nanoTime();
+	private volatile long requestTime;
+	private volatile long responseTime;
+	private final AtomicLong firstByteTime = new AtomicLong();
+	private volatile long endTime;
+	private volatile long bytes;
+	private volatile boolean successful;
+
+	DownloadMetrics(String songId, long resumeOffset, int retries)
+	{
+		this.songId = songId;
+		this.resumeOffset = resumeOffset;
+		this.retries = retries;
+	}
+
+	void onRequest()
+	{
+		requestTime = System.nanoTime();
+	}
+
+	void onResponse()
+	{
+		responseTime = System.nanoTime();
+	}
+
+	/**
+	 * @param fileBytes the number of bytes in the file, including the ones it was resumed from
+	 */
+	void onProgress(long fileBytes)
+	{
+		long downloaded = fileBytes - resumeOffset;
+		if (downloaded <= bytes) return;
+
+		firstByteTime.compareAndSet(0, System.nanoTime());
+		bytes = downloaded;
+	}
+
+	void onFinished(boolean successful)
+	{
+		this.successful = successful;
+		endTime = System.nanoTime();
+	}
+
+	long getStartTime()
+	{
+		return startTime;
+	}
+
+	/**
+	 * @return the System.nanoTime() when the first byte arrived, or 0 before that
+	 */
+	long getFirstByteTime()
+	{
+		return firstByteTime.get();
+	}
+
+	/**
+	 * @return the System.nanoTime() when the download ended, or 0 while it is running
+	 */
+	long getEndTime()
+	{
+		return endTime;
+	}
+
+	public String getSongId()
+	{
+		return songId;
+	}
+
+	/**
+	 * @return the number of bytes which were already in the partial file when the download started
+	 */
+	public long getResumeOffset()
+	{
+		return resumeOffset;
+	}
+
+	/**
+	 * @return the number of unsuccessful attempts to download the song before this one
+	 */
+	public int getRetries()
+	{
+		return retries;
+	}
+
+	public long getBytes()
+	{
+		return bytes;
+	}
+
+	public boolean isFinished()
+	{
+		return endTime != 0;
+	}
+
+	public boolean isSuccessful()
+	{
+		return successful;
+	}
+
+	/**
+	 * @return the milliseconds from the start of the download until the request was sent, or -1
+	 */
+	public long getClientTime()
+	{
+		return millisBetween(startTime, requestTime);
+	}
+
+	/**
+	 * @return the milliseconds from sending the request until the response headers arrived, or -1
+	 */
+	public long getResponseTime()
+	{
+		return millisBetween(requestTime, responseTime);
+	}
+
+	/**
+	 * @return the milliseconds from sending the request until the first byte arrived, or -1
+	 */
+	public long getTimeToFirstByte()
+	{
+		return millisBetween(requestTime, firstByteTime.get());
+	}
+
+	/**
+	 * @return the milliseconds from the start until the end of the download, or until now while it is running
+	 */
+	public long getWallTime()
+	{
+		long end = endTime;
+		return millisBetween(startTime, end == 0 ? System.nanoTime() : end);
+	}
+
+	/**
+	 * @return the average rate since the first byte arrived, or 0 before that
+	 */
+	public long getBytesPerSecond()
+	{
+		long first = firstByteTime.get();
+		if (first == 0) return 0;
+
+		long end = endTime == 0 ? System.nanoTime() : endTime;
+		long micros = TimeUnit.NANOSECONDS.toMicros(end - first);
+		return micros <= 0 ? 0 : bytes * 1000000L / micros;
+	}
+
+	private static long millisBetween(long start, long end)
+	{
+		if (start == 0 || end == 0) return -1;
+		return TimeUnit.NANOSECONDS.toMillis(end - start);
+	}
+
+	@NotNull
+	@Override
+	public String toString()
+	{
+		return String.format(Locale.ROOT,
+				"DownloadMetrics (%s): %s, client %d ms, response %d ms, first byte %d ms, %d bytes at %d B/s, resumed at %d, %d retries, wall time %d ms",
+				songId, isFinished() ? (successful ? "successful" : "failed") : "running",
+				getClientTime(), getResponseTime(), getTimeToFirstByte(), bytes, getBytesPerSecond(),
+				resumeOffset, retries, getWallTime());
+	}
+}
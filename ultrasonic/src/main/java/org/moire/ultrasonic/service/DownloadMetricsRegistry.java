@@ -0,0 +1,95 @@
+package org.moire.ultrasonic.service;
+
+import timber.log.Timber;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the metrics of the latest download attempt of each song.
+ * It is read by the screens while the downloads update it, so it doesn't take any locks.
+ */
+public class DownloadMetricsRegistry
+{
+	static final int MAX_FINISHED = 200;
+
+	private final ConcurrentMap<String, DownloadMetrics> metrics = new ConcurrentHashMap<>();
+
+	/**
+	 * Starts the metrics of a new download attempt of the song
+	 */
+	DownloadMetrics start(String songId, long resumeOffset)
+	{
+		DownloadMetrics previous = metrics.get(songId);
+		int retries = previous == null || previous.isSuccessful() ? 0 : previous.getRetries() + 1;
+
+		DownloadMetrics started = new DownloadMetrics(songId, resumeOffset, retries);
+		metrics.put(songId, started);
+
+		if (metrics.size() > MAX_FINISHED)
+		{
+			trim();
+		}
+		return started;
+	}
+
+	/**
+	 * Ends the download attempt and writes its metrics to the log
+	 */
+	void finish(DownloadMetrics downloadMetrics, boolean successful)
+	{
+		downloadMetrics.onFinished(successful);
+		Timber.i("%s", downloadMetrics);
+	}
+
+	/**
+	 * @return the metrics of the latest download attempt of the song, or null if it wasn't downloaded yet
+	 */
+	public DownloadMetrics get(String songId)
+	{
+		return metrics.get(songId);
+	}
+
+	public List<DownloadMetrics> getAll()
+	{
+		return new ArrayList<>(metrics.values());
+	}
+
+	public int size()
+	{
+		return metrics.size();
+	}
+
+	/**
+	 * Forgets about finished downloads, beginning with the ones which were started first
+	 */
+	private void trim()
+	{
+		List<DownloadMetrics> finished = new ArrayList<>();
+		for (DownloadMetrics downloadMetrics : metrics.values())
+		{
+			if (downloadMetrics.isFinished()) finished.add(downloadMetrics);
+		}
+
+		Collections.sort(finished, new Comparator<DownloadMetrics>()
+		{
+			@Override
+			public int compare(DownloadMetrics first, DownloadMetrics second)
+			{
+				return Long.signum(first.getStartTime() - second.getStartTime());
+			}
+		});
+
+		int excess = metrics.size() - MAX_FINISHED;
+		for (int i = 0; i < finished.size() && excess > 0; i++)
+		{
+			// Only remove it if it wasn't replaced by a new attempt in the meantime
+			DownloadMetrics oldest = finished.get(i);
+			if (metrics.remove(oldest.getSongId(), oldest)) excess--;
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package org.moire.ultrasonic.service;
+
+/**
+ * The priority classes of the downloads, from the most to the least important.
+ * Bandwidth is taken away from the lower classes first, see BandwidthScheduler.
+ */
+public enum DownloadPriority
+{
+    /** The track which is playing right now */
+    CURRENT,
+    /** The track which will be played after the current one */
+    NEXT_UP,
+    /** The other preloaded tracks of the playlist */
+    PRELOAD,
+    /** The downloads of the background list */
+    BACKGROUND
+}
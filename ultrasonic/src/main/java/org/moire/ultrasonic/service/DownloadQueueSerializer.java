@@ -4,9 +4,14 @@ import android.content.Context;
 import android.os.AsyncTask;
 import timber.log.Timber;
 
+import org.moire.ultrasonic.domain.MusicDirectory;
 import org.moire.ultrasonic.util.Constants;
 import org.moire.ultrasonic.util.FileUtil;
+import org.moire.ultrasonic.util.Util;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -15,16 +20,19 @@ import java.util.concurrent.locks.ReentrantLock;
  * This class is responsible for the serialization / deserialization
  * of the DownloadQueue (playlist) to the filesystem.
  * It also serializes the player state e.g. current playing number and play position.
+ * Only the changes since the last serialization are written, see PlayQueueJournal.
  */
 public class DownloadQueueSerializer
 {
     public final Lock lock = new ReentrantLock();
     public final AtomicBoolean setup = new AtomicBoolean(false);
     private Context context;
+    private final PlayQueueJournal journal;
 
     public DownloadQueueSerializer(Context context)
     {
         this.context = context;
+        journal = new PlayQueueJournal(new File(context.getCacheDir(), Constants.FILENAME_PLAY_QUEUE_JOURNAL));
     }
 
     public void serializeDownloadQueue(Iterable<DownloadFile> songs, int currentPlayingIndex, int currentPlayingPosition)
@@ -39,16 +47,23 @@ public class DownloadQueueSerializer
 
     public void serializeDownloadQueueNow(Iterable<DownloadFile> songs, int currentPlayingIndex, int currentPlayingPosition)
     {
-        State state = new State();
+        List<MusicDirectory.Entry> queue = new ArrayList<>();
         for (DownloadFile downloadFile : songs)
         {
-            state.songs.add(downloadFile.getSong());
+            queue.add(downloadFile.getSong());
         }
-        state.currentPlayingIndex = currentPlayingIndex;
-        state.currentPlayingPosition = currentPlayingPosition;
 
-        Timber.i("Serialized currentPlayingIndex: %d, currentPlayingPosition: %d", state.currentPlayingIndex, state.currentPlayingPosition);
-        FileUtil.serialize(context, state, Constants.FILENAME_DOWNLOADS_SER);
+        lock.lock();
+        try
+        {
+            journal.write(queue, currentPlayingIndex, currentPlayingPosition);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        Timber.i("Serialized currentPlayingIndex: %d, currentPlayingPosition: %d", currentPlayingIndex, currentPlayingPosition);
     }
 
     public void deserializeDownloadQueue(Consumer<State> afterDeserialized)
@@ -58,12 +73,36 @@ public class DownloadQueueSerializer
 
     public void deserializeDownloadQueueNow(Consumer<State> afterDeserialized)
     {
-        State state = FileUtil.deserialize(context, Constants.FILENAME_DOWNLOADS_SER);
+        State state;
+        lock.lock();
+        try
+        {
+            state = journal.load();
+            if (state == null) state = migrate();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
         if (state == null) return;
         Timber.i("Deserialized currentPlayingIndex: " + state.currentPlayingIndex + ", currentPlayingPosition: " + state.currentPlayingPosition);
         afterDeserialized.accept(state);
     }
 
+    /**
+     * Moves the queue of an older version, which was serialized as a whole, into the journal
+     */
+    private State migrate()
+    {
+        State state = FileUtil.deserialize(context, Constants.FILENAME_DOWNLOADS_SER);
+        if (state == null) return null;
+
+        journal.write(state.songs, state.currentPlayingIndex, state.currentPlayingPosition);
+        Util.delete(new File(context.getCacheDir(), Constants.FILENAME_DOWNLOADS_SER));
+        return state;
+    }
+
     private class SerializeTask extends AsyncTask<Object, Void, Void>
     {
         @Override
@@ -0,0 +1,142 @@
+package org.moire.ultrasonic.service;
+
+import timber.log.Timber;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the download check on a dedicated thread whenever something relevant has changed,
+ * e.g. the queue, the network or the current track.
+ * Triggers arriving while a check is already pending are merged into that check,
+ * and nothing runs at all while no trigger arrives.
+ */
+public class DownloadScheduler
+{
+    private final Runnable check;
+    private final ScheduledExecutorService executorService;
+    private final AtomicBoolean pending = new AtomicBoolean(false);
+    private volatile boolean stopped;
+    private ScheduledFuture<?> delayedTrigger;
+
+    private final Runnable runCheck = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            // Reset before running, so a trigger arriving during the check causes a new one
+            pending.set(false);
+            if (stopped) return;
+
+            try
+            {
+                check.run();
+            }
+            catch (Throwable x)
+            {
+                Timber.e(x, "checkDownloads() failed.");
+            }
+        }
+    };
+
+    private final Runnable trigger = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            trigger();
+        }
+    };
+
+    public DownloadScheduler(Runnable check)
+    {
+        this.check = check;
+        executorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                return new Thread(runnable, "DownloadScheduler");
+            }
+        });
+    }
+
+    /**
+     * Requests a check as soon as possible.
+     */
+    public void trigger()
+    {
+        if (!pending.compareAndSet(false, true))
+        {
+            return;
+        }
+
+        try
+        {
+            executorService.execute(runCheck);
+        }
+        catch (RejectedExecutionException x)
+        {
+            pending.set(false);
+        }
+    }
+
+    /**
+     * Requests a check after the given delay, e.g. to retry a failed download.
+     * Only the earliest of the outstanding delayed requests is kept.
+     */
+    public synchronized void triggerDelayed(long delay, TimeUnit timeUnit)
+    {
+        if (delayedTrigger != null && !delayedTrigger.isDone())
+        {
+            if (delayedTrigger.getDelay(TimeUnit.MILLISECONDS) <= timeUnit.toMillis(delay))
+            {
+                return;
+            }
+
+            delayedTrigger.cancel(false);
+        }
+
+        try
+        {
+            delayedTrigger = executorService.schedule(trigger, delay, timeUnit);
+        }
+        catch (RejectedExecutionException x)
+        {
+            delayedTrigger = null;
+        }
+    }
+
+    /**
+     * Runs a task on the scheduler's thread, in order with the checks
+     */
+    public void execute(Runnable task)
+    {
+        try
+        {
+            executorService.execute(task);
+        }
+        catch (RejectedExecutionException x)
+        {
+            Timber.d("Scheduler is shut down, dropping task");
+        }
+    }
+
+    /**
+     * Stops the checks. Tasks which were already handed to execute() still run, so none of them is lost.
+     */
+    public synchronized void shutdown()
+    {
+        stopped = true;
+        if (delayedTrigger != null)
+        {
+            delayedTrigger.cancel(false);
+        }
+        executorService.shutdown();
+    }
+}
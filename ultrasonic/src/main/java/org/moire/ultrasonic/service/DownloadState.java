@@ -0,0 +1,18 @@
+package org.moire.ultrasonic.service;
+
+/**
+ * The state of the files of a DownloadFile
+ */
+public enum DownloadState
+{
+    /** Nothing has been downloaded yet */
+    NEW,
+    /** Some bytes are in the partial file, see DownloadFile.getPartialBytes() */
+    PARTIAL,
+    /** The song is completely downloaded into the cache */
+    COMPLETE,
+    /** The song is completely downloaded and saved permanently */
+    PINNED,
+    /** The last download attempt has failed */
+    FAILED
+}
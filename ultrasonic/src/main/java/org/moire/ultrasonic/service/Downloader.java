@@ -1,19 +1,27 @@
 package org.moire.ultrasonic.service;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.os.SystemClock;
 import timber.log.Timber;
 
 import org.moire.ultrasonic.domain.MusicDirectory;
-import org.moire.ultrasonic.util.LRUCache;
+import org.moire.ultrasonic.util.Constants;
 import org.moire.ultrasonic.util.ShufflePlayBuffer;
 import org.moire.ultrasonic.util.Util;
 
+import java.io.File;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import kotlin.Lazy;
@@ -25,55 +33,120 @@ import static org.moire.ultrasonic.domain.PlayerState.STARTED;
 /**
  * This class is responsible for maintaining the playlist and downloading
  * its items from the network to the filesystem.
+ * Downloads are checked when something relevant changes, there is no periodic polling.
  */
 public class Downloader
 {
+    private static final long RETRY_DELAY = 5000L;
+    private static final long SHUFFLE_REFILL_DELAY = 5000L;
+
     public final List<DownloadFile> downloadList = new ArrayList<>();
     public final List<DownloadFile> backgroundDownloadList = new ArrayList<>();
-    public DownloadFile currentDownloading;
+    public final List<DownloadFile> activelyDownloading = new ArrayList<>();
 
     private final ShufflePlayBuffer shufflePlayBuffer;
     private final ExternalStorageMonitor externalStorageMonitor;
     private final LocalMediaPlayer localMediaPlayer;
+    private final BandwidthScheduler bandwidthScheduler;
+    private final DownloadMetricsRegistry metricsRegistry;
     private final Context context;
 
     // TODO: This is a circular reference, try to remove
     private Lazy<JukeboxMediaPlayer> jukeboxMediaPlayer = inject(JukeboxMediaPlayer.class);
+    private final Lazy<MediaScanCoordinator> mediaScanCoordinator = inject(MediaScanCoordinator.class);
 
     private final List<DownloadFile> cleanupCandidates = new ArrayList<>();
-    private final LRUCache<MusicDirectory.Entry, DownloadFile> downloadFileCache = new LRUCache<>(100);
-    private ScheduledExecutorService executorService;
+
+    // DownloadFiles of both lists by song id, rebuilt lazily when the revision changes
+    private final Map<String, DownloadFile> playlistIndex = new HashMap<>();
+    private final Map<String, DownloadFile> backgroundIndex = new HashMap<>();
+    private long indexRevision = -1;
+
+    // DownloadFiles of songs which are in neither list, kept as long as someone (e.g. a view) uses them
+    private final Map<String, DownloadFileReference> downloadFileCache = new HashMap<>();
+    private final ReferenceQueue<DownloadFile> downloadFileReferenceQueue = new ReferenceQueue<>();
+
+    // Keeps the DownloadFiles of the same song in sync when the files of one of them change
+    private final Consumer<DownloadFile> downloadFileStateListener = new Consumer<DownloadFile>()
+    {
+        @Override
+        public void accept(final DownloadFile downloadFile)
+        {
+            DownloadState state = downloadFile.getState();
+            if (state == DownloadState.PARTIAL || state == DownloadState.FAILED) return;
+
+            DownloadScheduler scheduler = Downloader.this.scheduler;
+            if (scheduler == null) return;
+
+            scheduler.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    rescanSiblings(downloadFile);
+                }
+            });
+        }
+    };
+    private DownloadScheduler scheduler;
+    private BroadcastReceiver connectivityReceiver;
+    private QueueJournal backgroundJournal;
     private long revision;
 
     public Downloader(Context context, ShufflePlayBuffer shufflePlayBuffer, ExternalStorageMonitor externalStorageMonitor,
-                      LocalMediaPlayer localMediaPlayer)
+                      LocalMediaPlayer localMediaPlayer, BandwidthScheduler bandwidthScheduler,
+                      DownloadMetricsRegistry metricsRegistry)
     {
         this.context = context;
         this.shufflePlayBuffer = shufflePlayBuffer;
         this.externalStorageMonitor = externalStorageMonitor;
         this.localMediaPlayer = localMediaPlayer;
+        this.bandwidthScheduler = bandwidthScheduler;
+        this.metricsRegistry = metricsRegistry;
     }
 
     public void onCreate()
     {
-        Runnable downloadChecker = new Runnable()
+        scheduler = new DownloadScheduler(new Runnable()
         {
             @Override
             public void run()
             {
-                try
-                {
-                    checkDownloads();
-                }
-                catch (Throwable x)
-                {
-                    Timber.e(x,"checkDownloads() failed.");
-                }
+                doCheckDownloads();
+            }
+        });
+
+        connectivityReceiver = new BroadcastReceiver()
+        {
+            @Override
+            public void onReceive(Context context, Intent intent)
+            {
+                checkDownloads();
             }
         };
+        context.registerReceiver(connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+
+        externalStorageMonitor.setStateChangedListener(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                checkDownloads();
+            }
+        });
+
+        final QueueJournal journal = new QueueJournal(new File(context.getCacheDir(), Constants.FILENAME_BACKGROUND_DOWNLOADS_JOURNAL));
+        backgroundJournal = journal;
+        scheduler.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                restoreBackground(journal.load());
+            }
+        });
 
-        executorService = Executors.newSingleThreadScheduledExecutor();
-        executorService.scheduleWithFixedDelay(downloadChecker, 5, 5, TimeUnit.SECONDS);
+        checkDownloads();
         Timber.i("Downloader created");
     }
 
@@ -87,11 +160,46 @@ public class Downloader
 
     public void stop()
     {
-        if (executorService != null) executorService.shutdown();
+        if (scheduler != null)
+        {
+            final QueueJournal journal = backgroundJournal;
+            scheduler.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    journal.close();
+                }
+            });
+            scheduler.shutdown();
+            scheduler = null;
+            backgroundJournal = null;
+        }
+
+        if (connectivityReceiver != null)
+        {
+            context.unregisterReceiver(connectivityReceiver);
+            connectivityReceiver = null;
+        }
+
+        externalStorageMonitor.setStateChangedListener(null);
         Timber.i("Downloader stopped");
     }
 
-    public synchronized void checkDownloads()
+    /**
+     * Requests a check of the download queues. The check runs asynchronously on the scheduler's
+     * thread, so this is cheap to call whenever the queues or the environment have changed.
+     */
+    public void checkDownloads()
+    {
+        DownloadScheduler scheduler = this.scheduler;
+        if (scheduler != null)
+        {
+            scheduler.trigger();
+        }
+    }
+
+    private synchronized void doCheckDownloads()
     {
         if (!Util.isExternalStoragePresent() || !externalStorageMonitor.isExternalStorageAvailable())
         {
@@ -108,108 +216,244 @@ public class Downloader
             return;
         }
 
+        // Remove finished downloads so their slots can be reused
+        cleanupActiveDownloads();
+
         if (downloadList.isEmpty() && backgroundDownloadList.isEmpty())
         {
             return;
         }
 
-        // Need to download current playing?
-        if (localMediaPlayer.currentPlaying != null && localMediaPlayer.currentPlaying != currentDownloading && !localMediaPlayer.currentPlaying.isWorkDone())
+        int parallelDownloads = Util.getParallelDownloads(context);
+        DownloadFile currentPlaying = localMediaPlayer.currentPlaying;
+
+        if (currentPlaying != null)
         {
-            // Cancel current download, if necessary.
-            if (currentDownloading != null)
-            {
-                currentDownloading.cancelDownload();
-            }
+            bandwidthScheduler.setGuaranteedRate(BandwidthScheduler.getGuaranteedRate(currentPlaying.getBitRate()));
+        }
 
-            currentDownloading = localMediaPlayer.currentPlaying;
-            currentDownloading.download();
-            cleanupCandidates.add(currentDownloading);
+        // The current playing file is always downloaded, even if all slots are taken.
+        // The other downloads aren't cancelled for it, they are slowed down or paused if it needs their bandwidth.
+        if (currentPlaying != null && !currentPlaying.isWorkDone() && !activelyDownloading.contains(currentPlaying) && !isWaitingForRetry(currentPlaying))
+        {
+            startDownload(currentPlaying);
+        }
 
-            // Delete obsolete .partial and .complete files.
-            cleanup();
-            return;
+        int minPreloadCount = Util.getPreloadCount(context);
+        int maxPreloadCount = minPreloadCount;
+        long preloadBudget = Long.MAX_VALUE;
+
+        if (Util.isAdaptivePreloadEnabled(context) && !downloadList.isEmpty())
+        {
+            int start = Math.max(0, getCurrentPlayingIndex());
+            long throughput = PreloadPlanner.getThroughput(PreloadPlanner.getRecentTransfers(metricsRegistry.getAll(), System.nanoTime()));
+            int bitRate = downloadList.get(start).getBitRate();
+            minPreloadCount = Math.min(Util.getMinPreloadCount(context), maxPreloadCount);
+            maxPreloadCount = PreloadPlanner.getDepth(throughput, bitRate, minPreloadCount, maxPreloadCount);
+            preloadBudget = PreloadPlanner.getByteBudget(throughput);
+            Timber.d("Preloading %d songs or %d bytes at %d B/s", maxPreloadCount, preloadBudget, throughput);
         }
 
-        // Find a suitable target for download.
-        if (currentDownloading != null &&
-                !currentDownloading.isWorkDone() &&
-                (!currentDownloading.isFailed() || (downloadList.isEmpty() && backgroundDownloadList.isEmpty())))
+        startPlaylistDownloads(parallelDownloads, minPreloadCount, maxPreloadCount, preloadBudget);
+        startBackgroundDownloads(parallelDownloads, Util.getShouldScanMedia(context));
+
+        // The current track may have changed, so the running downloads may be in another class now
+        for (DownloadFile downloadFile : activelyDownloading)
         {
-            cleanup();
-            return;
+            downloadFile.setPriority(getPriority(downloadFile));
         }
 
-        // There is a target to download
-        currentDownloading = null;
+        // Delete obsolete .partial and .complete files.
+        cleanup();
+    }
+
+    /**
+     * Fills the free download slots with the songs of the playlist, in order from the current one,
+     * which are pinned or within the preload depth and byte budget
+     */
+    void startPlaylistDownloads(int parallelDownloads, int minPreloadCount, int maxPreloadCount, long preloadBudget)
+    {
         int n = downloadList.size();
+        if (n == 0)
+        {
+            return;
+        }
 
-        int preloaded = 0;
+        DownloadFile currentPlaying = localMediaPlayer.currentPlaying;
+        int start = currentPlaying == null ? 0 : getCurrentPlayingIndex();
+        if (start == -1) start = 0;
 
-        if (n != 0)
+        int preloaded = 0;
+        long preloadedBytes = 0;
+        int i = start;
+        // Check all DownloadFiles on the playlist
+        do
         {
-            int start = localMediaPlayer.currentPlaying == null ? 0 : getCurrentPlayingIndex();
-            if (start == -1) start = 0;
+            DownloadFile downloadFile = downloadList.get(i);
+            boolean preload = preloaded < maxPreloadCount && (preloaded < minPreloadCount || preloadedBytes < preloadBudget);
+
+            // Beyond the preload window only the pinned songs are downloaded,
+            // so the files of the others aren't looked up on the disk
+            if (!preload && !downloadFile.shouldSave())
+            {
+                i = (i + 1) % n;
+                continue;
+            }
 
-            int i = start;
-            // Check all DownloadFiles on the playlist
-            do
+            if (!downloadFile.isWorkDone())
             {
-                DownloadFile downloadFile = downloadList.get(i);
-                if (!downloadFile.isWorkDone())
+                if (!activelyDownloading.contains(downloadFile) && !isWaitingForRetry(downloadFile))
                 {
-                    if (downloadFile.shouldSave() || preloaded < Util.getPreloadCount(context))
+                    if (activelyDownloading.size() >= parallelDownloads)
                     {
-                        currentDownloading = downloadFile;
-                        currentDownloading.download();
-                        cleanupCandidates.add(currentDownloading);
-                        if (i == (start + 1))
-                        {
-                            // The next file on the playlist is currently downloading
-                            localMediaPlayer.setNextPlayerState(DOWNLOADING);
-                        }
                         break;
                     }
+
+                    startDownload(downloadFile);
+                    if (i == (start + 1) % n)
+                    {
+                        // The next file on the playlist is currently downloading
+                        localMediaPlayer.setNextPlayerState(DOWNLOADING);
+                    }
                 }
-                else if (localMediaPlayer.currentPlaying != downloadFile)
+
+                if (downloadFile != currentPlaying)
                 {
                     preloaded++;
+                    preloadedBytes += getRemainingBytes(downloadFile);
                 }
+            }
+            else if (currentPlaying != downloadFile)
+            {
+                preloaded++;
+            }
 
-                i = (i + 1) % n;
-            } while (i != start);
-        }
+            i = (i + 1) % n;
+        } while (i != start);
+    }
 
-        // If the downloadList contains no work, check the backgroundDownloadList
-        if ((preloaded + 1 == n || preloaded >= Util.getPreloadCount(context) || downloadList.isEmpty()) && !backgroundDownloadList.isEmpty())
+    /**
+     * Hands the remaining download slots to the backgroundDownloadList, and removes its finished downloads
+     */
+    void startBackgroundDownloads(int parallelDownloads, boolean scanMedia)
+    {
+        for (int i = 0; i < backgroundDownloadList.size(); i++)
         {
-            for (int i = 0; i < backgroundDownloadList.size(); i++)
+            DownloadFile downloadFile = backgroundDownloadList.get(i);
+            if (downloadFile.isWorkDone() && (!downloadFile.shouldSave() || downloadFile.isSaved()))
             {
-                DownloadFile downloadFile = backgroundDownloadList.get(i);
-                if (downloadFile.isWorkDone() && (!downloadFile.shouldSave() || downloadFile.isSaved()))
+                if (scanMedia)
                 {
-                    if (Util.getShouldScanMedia(context))
-                    {
-                        Util.scanMedia(context, downloadFile.getCompleteFile());
-                    }
-
-                    // Don't need to keep list like active song list
-                    backgroundDownloadList.remove(i);
-                    revision++;
-                    i--;
+                    mediaScanCoordinator.getValue().scan(downloadFile.getCompleteFile());
                 }
-                else
+
+                // Don't need to keep list like active song list
+                backgroundDownloadList.remove(i);
+                journalRemoval(downloadFile);
+                revision++;
+                i--;
+            }
+            else if (!activelyDownloading.contains(downloadFile) && !isWaitingForRetry(downloadFile))
+            {
+                if (activelyDownloading.size() >= parallelDownloads)
                 {
-                    currentDownloading = downloadFile;
-                    currentDownloading.download();
-                    cleanupCandidates.add(currentDownloading);
                     break;
                 }
+
+                startDownload(downloadFile);
             }
         }
+    }
 
-        // Delete obsolete .partial and .complete files.
-        cleanup();
+    private static long getRemainingBytes(DownloadFile downloadFile)
+    {
+        MusicDirectory.Entry song = downloadFile.getSong();
+        long size = PreloadPlanner.getEstimatedSize(song.getDuration(), song.getSize(), downloadFile.getBitRate());
+        return Math.max(0, size - downloadFile.getPartialBytes());
+    }
+
+    private void startDownload(DownloadFile downloadFile)
+    {
+        downloadFile.setPriority(getPriority(downloadFile));
+        downloadFile.download();
+        activelyDownloading.add(downloadFile);
+        cleanupCandidates.add(downloadFile);
+    }
+
+    /**
+     * Failed downloads are retried after a delay, instead of being restarted in a tight loop
+     */
+    private boolean isWaitingForRetry(DownloadFile downloadFile)
+    {
+        if (!downloadFile.isFailed())
+        {
+            return false;
+        }
+
+        long wait = downloadFile.getFailedTime() + RETRY_DELAY - SystemClock.elapsedRealtime();
+        if (wait <= 0)
+        {
+            return false;
+        }
+
+        if (scheduler != null)
+        {
+            scheduler.triggerDelayed(wait, TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    private void cleanupActiveDownloads()
+    {
+        // A cancelled download keeps its slot until its thread has actually finished,
+        // so the same partial file is never written by two tasks at once.
+        Iterator<DownloadFile> iterator = activelyDownloading.iterator();
+        while (iterator.hasNext())
+        {
+            if (!iterator.next().isDownloading())
+            {
+                iterator.remove();
+            }
+        }
+    }
+
+    private DownloadPriority getPriority(DownloadFile downloadFile)
+    {
+        DownloadFile currentPlaying = localMediaPlayer.currentPlaying;
+        if (downloadFile == currentPlaying)
+        {
+            return DownloadPriority.CURRENT;
+        }
+
+        int index = downloadList.indexOf(downloadFile);
+        if (index == -1)
+        {
+            return DownloadPriority.BACKGROUND;
+        }
+
+        int currentIndex = currentPlaying == null ? -1 : downloadList.indexOf(currentPlaying);
+        return index == (currentIndex + 1) % downloadList.size() ? DownloadPriority.NEXT_UP : DownloadPriority.PRELOAD;
+    }
+
+    public synchronized List<DownloadFile> getActivelyDownloading()
+    {
+        return new ArrayList<>(activelyDownloading);
+    }
+
+    /**
+     * @return the metrics of the latest download attempt of each song which was downloaded recently
+     */
+    public List<DownloadMetrics> getDownloadMetrics()
+    {
+        return metricsRegistry.getAll();
+    }
+
+    public synchronized void cancelActiveDownloads()
+    {
+        for (DownloadFile downloadFile : activelyDownloading)
+        {
+            downloadFile.cancelDownload();
+        }
     }
 
     public synchronized int getCurrentPlayingIndex()
@@ -259,34 +503,48 @@ public class Downloader
     {
         downloadList.clear();
         revision++;
-        if (currentDownloading != null)
+        for (DownloadFile downloadFile : activelyDownloading)
         {
-            currentDownloading.cancelDownload();
-            currentDownloading = null;
+            if (!backgroundDownloadList.contains(downloadFile))
+            {
+                downloadFile.cancelDownload();
+            }
         }
+
+        checkDownloads();
     }
 
-    private void clearBackground()
+    /**
+     * Only empties the list in memory, the journal keeps the downloads for the next start
+     */
+    private synchronized void clearBackground()
     {
-        if (currentDownloading != null && backgroundDownloadList.contains(currentDownloading))
+        for (DownloadFile downloadFile : backgroundDownloadList)
         {
-            currentDownloading.cancelDownload();
-            currentDownloading = null;
+            if (activelyDownloading.contains(downloadFile))
+            {
+                downloadFile.cancelDownload();
+            }
         }
         backgroundDownloadList.clear();
+        revision++;
     }
 
     public synchronized void removeDownloadFile(DownloadFile downloadFile)
     {
-        if (downloadFile == currentDownloading)
+        if (activelyDownloading.contains(downloadFile))
         {
-            currentDownloading.cancelDownload();
-            currentDownloading = null;
+            downloadFile.cancelDownload();
         }
 
         downloadList.remove(downloadFile);
-        backgroundDownloadList.remove(downloadFile);
+        if (backgroundDownloadList.remove(downloadFile))
+        {
+            journalRemoval(downloadFile);
+        }
         revision++;
+
+        checkDownloads();
     }
 
     public synchronized void download(List<MusicDirectory.Entry> songs, boolean save, boolean autoPlay, boolean playNext, boolean newPlaylist)
@@ -313,7 +571,7 @@ public class Downloader
 
             for (MusicDirectory.Entry song : songs)
             {
-                DownloadFile downloadFile = new DownloadFile(context, song, save);
+                DownloadFile downloadFile = createDownloadFile(song, save);
                 downloadList.add(getCurrentPlayingIndex() + offset, downloadFile);
                 offset++;
             }
@@ -322,23 +580,36 @@ public class Downloader
         {
             for (MusicDirectory.Entry song : songs)
             {
-                DownloadFile downloadFile = new DownloadFile(context, song, save);
+                DownloadFile downloadFile = createDownloadFile(song, save);
                 downloadList.add(downloadFile);
             }
         }
         revision++;
+
+        checkDownloads();
     }
 
     public synchronized void downloadBackground(List<MusicDirectory.Entry> songs, boolean save)
     {
+        final List<QueueJournal.Item> items = new ArrayList<>(songs.size());
         for (MusicDirectory.Entry song : songs)
         {
-            DownloadFile downloadFile = new DownloadFile(context, song, save);
+            DownloadFile downloadFile = createDownloadFile(song, save);
             backgroundDownloadList.add(downloadFile);
+            items.add(new QueueJournal.Item(song, save));
         }
 
         revision++;
 
+        writeJournal(new Consumer<QueueJournal>()
+        {
+            @Override
+            public void accept(QueueJournal journal)
+            {
+                journal.add(items);
+            }
+        });
+
         checkDownloads();
     }
 
@@ -351,32 +622,207 @@ public class Downloader
             downloadList.add(0, localMediaPlayer.currentPlaying);
         }
         revision++;
+
+        checkDownloads();
     }
 
+    /**
+     * Moves a song of the playlist to another position, e.g. when it was dragged in the playlist
+     */
+    public synchronized void move(int from, int to)
+    {
+        if (from == to) return;
+        downloadList.add(to, downloadList.remove(from));
+        revision++;
+
+        checkDownloads();
+    }
+
+    public synchronized void clearIncomplete()
+    {
+        Iterator<DownloadFile> iterator = downloadList.iterator();
+
+        while (iterator.hasNext())
+        {
+            DownloadFile downloadFile = iterator.next();
+            if (!downloadFile.isCompleteFileAvailable())
+            {
+                iterator.remove();
+            }
+        }
+
+        revision++;
+    }
+
+    /**
+     * Returns the DownloadFile which represents the state of the song.
+     * This is called for every visible song row on every refresh, so it must not touch the file system.
+     */
     public synchronized DownloadFile getDownloadFileForSong(MusicDirectory.Entry song)
     {
-        for (DownloadFile downloadFile : downloadList)
+        updateIndex();
+
+        String id = song.getId();
+        DownloadFile playlistFile = playlistIndex.get(id);
+        if (playlistFile != null && playlistFile.isDownloading() && !playlistFile.isDownloadCancelled())
+        {
+            return playlistFile;
+        }
+
+        DownloadFile backgroundFile = backgroundIndex.get(id);
+        if (backgroundFile != null) return backgroundFile;
+        if (playlistFile != null) return playlistFile;
+
+        purgeDownloadFileCache();
+        DownloadFileReference reference = downloadFileCache.get(id);
+        DownloadFile downloadFile = reference == null ? null : reference.get();
+        if (downloadFile == null)
         {
-            if (downloadFile.getSong().equals(song) && ((downloadFile.isDownloading() && !downloadFile.isDownloadCancelled() && downloadFile.getPartialFile().exists()) || downloadFile.isWorkDone()))
+            downloadFile = createDownloadFile(song, false);
+            downloadFileCache.put(id, new DownloadFileReference(id, downloadFile, downloadFileReferenceQueue));
+        }
+        return downloadFile;
+    }
+
+    /**
+     * Forgets the DownloadFiles of songs which are in neither list, e.g. after their files were deleted
+     */
+    public synchronized void clearDownloadFileCache()
+    {
+        downloadFileCache.clear();
+    }
+
+    private DownloadFile createDownloadFile(MusicDirectory.Entry song, boolean save)
+    {
+        DownloadFile downloadFile = new DownloadFile(context, song, save);
+        downloadFile.addStateListener(downloadFileStateListener);
+        return downloadFile;
+    }
+
+    private synchronized void rescanSiblings(DownloadFile downloadFile)
+    {
+        updateIndex();
+
+        String id = downloadFile.getSong().getId();
+        DownloadFileReference reference = downloadFileCache.get(id);
+        DownloadFile[] siblings = { playlistIndex.get(id), backgroundIndex.get(id), reference == null ? null : reference.get() };
+
+        for (DownloadFile sibling : siblings)
+        {
+            if (sibling != null && sibling != downloadFile && sibling.getState() != downloadFile.getState())
             {
-                return downloadFile;
+                sibling.rescan();
             }
         }
+    }
+
+    private void updateIndex()
+    {
+        if (indexRevision == revision)
+        {
+            return;
+        }
+
+        playlistIndex.clear();
+        for (DownloadFile downloadFile : downloadList)
+        {
+            playlistIndex.put(downloadFile.getSong().getId(), downloadFile);
+        }
+
+        backgroundIndex.clear();
         for (DownloadFile downloadFile : backgroundDownloadList)
         {
-            if (downloadFile.getSong().equals(song))
+            backgroundIndex.put(downloadFile.getSong().getId(), downloadFile);
+        }
+
+        indexRevision = revision;
+    }
+
+    private void purgeDownloadFileCache()
+    {
+        DownloadFileReference reference;
+        while ((reference = (DownloadFileReference) downloadFileReferenceQueue.poll()) != null)
+        {
+            if (downloadFileCache.get(reference.id) == reference)
             {
-                return downloadFile;
+                downloadFileCache.remove(reference.id);
             }
         }
+    }
 
-        DownloadFile downloadFile = downloadFileCache.get(song);
-        if (downloadFile == null)
+    private static class DownloadFileReference extends WeakReference<DownloadFile>
+    {
+        private final String id;
+
+        DownloadFileReference(String id, DownloadFile downloadFile, ReferenceQueue<DownloadFile> queue)
         {
-            downloadFile = new DownloadFile(context, song, false);
-            downloadFileCache.put(song, downloadFile);
+            super(downloadFile, queue);
+            this.id = id;
         }
-        return downloadFile;
+    }
+
+    /**
+     * Adds the background downloads which were still pending when the process ended.
+     * Their DownloadFiles only look at their own files, so finished ones are removed
+     * by the next check without scanning the whole cache.
+     */
+    private synchronized void restoreBackground(List<QueueJournal.Item> items)
+    {
+        if (items.isEmpty())
+        {
+            return;
+        }
+
+        updateIndex();
+        int restored = 0;
+        for (QueueJournal.Item item : items)
+        {
+            if (backgroundIndex.containsKey(item.song.getId()))
+            {
+                continue;
+            }
+
+            backgroundDownloadList.add(createDownloadFile(item.song, item.save));
+            restored++;
+        }
+
+        revision++;
+        Timber.i("Restored %d background downloads", restored);
+        checkDownloads();
+    }
+
+    private void journalRemoval(DownloadFile downloadFile)
+    {
+        final String id = downloadFile.getSong().getId();
+        writeJournal(new Consumer<QueueJournal>()
+        {
+            @Override
+            public void accept(QueueJournal journal)
+            {
+                journal.remove(id);
+            }
+        });
+    }
+
+    /**
+     * The journal is only written on the scheduler's thread, so the changes are written in order
+     */
+    private void writeJournal(final Consumer<QueueJournal> change)
+    {
+        final QueueJournal journal = backgroundJournal;
+        if (scheduler == null || journal == null)
+        {
+            return;
+        }
+
+        scheduler.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                change.accept(journal);
+            }
+        });
     }
 
     private synchronized void cleanup()
@@ -385,7 +831,7 @@ public class Downloader
         while (iterator.hasNext())
         {
             DownloadFile downloadFile = iterator.next();
-            if (downloadFile != localMediaPlayer.currentPlaying && downloadFile != currentDownloading)
+            if (downloadFile != localMediaPlayer.currentPlaying && !activelyDownloading.contains(downloadFile))
             {
                 if (downloadFile.cleanup())
                 {
@@ -409,7 +855,7 @@ public class Downloader
         {
             for (MusicDirectory.Entry song : shufflePlayBuffer.get(listSize - size))
             {
-                DownloadFile downloadFile = new DownloadFile(context, song, false);
+                DownloadFile downloadFile = createDownloadFile(song, false);
                 downloadList.add(downloadFile);
                 revision++;
             }
@@ -423,7 +869,7 @@ public class Downloader
             int songsToShift = currIndex - 2;
             for (MusicDirectory.Entry song : shufflePlayBuffer.get(songsToShift))
             {
-                downloadList.add(new DownloadFile(context, song, false));
+                downloadList.add(createDownloadFile(song, false));
                 downloadList.get(0).cancelDownload();
                 downloadList.remove(0);
                 revision++;
@@ -435,6 +881,12 @@ public class Downloader
             jukeboxMediaPlayer.getValue().updatePlaylist();
         }
 
+        // The shuffle buffer may still be filling up, look again later
+        if (downloadList.size() < listSize && scheduler != null)
+        {
+            scheduler.triggerDelayed(SHUFFLE_REFILL_DELAY, TimeUnit.MILLISECONDS);
+        }
+
         if (wasEmpty && !downloadList.isEmpty())
         {
             if (jukeboxMediaPlayer.getValue().isEnabled())
@@ -13,7 +13,8 @@ public class ExternalStorageMonitor
 {
     private Context context;
     private BroadcastReceiver ejectEventReceiver;
-    private boolean externalStorageAvailable = true;
+    private volatile boolean externalStorageAvailable = true;
+    private volatile Runnable stateChangedListener;
 
     public ExternalStorageMonitor(Context context)
     {
@@ -38,6 +39,9 @@ public class ExternalStorageMonitor
                 {
                     Timber.i("External media is available.");
                 }
+
+                Runnable listener = stateChangedListener;
+                if (listener != null) listener.run();
             }
         };
 
@@ -52,5 +56,13 @@ public class ExternalStorageMonitor
         context.unregisterReceiver(ejectEventReceiver);
     }
 
+    /**
+     * Sets a listener which is called whenever the external storage is ejected or mounted
+     */
+    public void setStateChangedListener(Runnable listener)
+    {
+        stateChangedListener = listener;
+    }
+
     public boolean isExternalStorageAvailable() { return externalStorageAvailable; }
 }
@@ -61,29 +61,49 @@ public class LocalMediaPlayer
 
     private PlayerState nextPlayerState = IDLE;
     private boolean nextSetup;
-    private CancellableTask nextPlayingTask;
+    private final NextTrackPreparer nextTrackPreparer = new NextTrackPreparer(new Consumer<DownloadFile>()
+    {
+        @Override
+        public void accept(final DownloadFile downloadFile)
+        {
+            // Called by the download or by a state change of the player, the setup runs on the player's thread
+            if (mediaPlayerHandler == null) return;
+            mediaPlayerHandler.post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    synchronized (LocalMediaPlayer.this)
+                    {
+                        if (downloadFile == nextPlaying) setupNext(downloadFile);
+                    }
+                }
+            });
+        }
+    });
     private PowerManager.WakeLock wakeLock;
 
     private MediaPlayer mediaPlayer;
     private MediaPlayer nextMediaPlayer;
     private Looper mediaPlayerLooper;
-    private Handler mediaPlayerHandler;
-    private int cachedPosition;
+    private volatile Handler mediaPlayerHandler;
+    private final PlaybackClock positionClock = new PlaybackClock();
     private StreamProxy proxy;
 
     private AudioManager audioManager;
     private RemoteControlClient remoteControlClient;
 
     private CancellableTask bufferTask;
-    private PositionCache positionCache;
     private int secondaryProgress = -1;
 
     private final AudioFocusHandler audioFocusHandler;
+    private final PlayStartTracer playStartTracer;
     private final Context context;
 
-    public LocalMediaPlayer(AudioFocusHandler audioFocusHandler, Context context)
+    public LocalMediaPlayer(AudioFocusHandler audioFocusHandler, PlayStartTracer playStartTracer, Context context)
     {
         this.audioFocusHandler = audioFocusHandler;
+        this.playStartTracer = playStartTracer;
         this.context = context;
     }
 
@@ -180,10 +200,7 @@ public class LocalMediaPlayer
                 bufferTask.cancel();
             }
 
-            if (nextPlayingTask != null)
-            {
-                nextPlayingTask.cancel();
-            }
+            nextTrackPreparer.setNext(null);
 
             audioManager.unregisterRemoteControlClient(remoteControlClient);
             clearRemoteControl();
@@ -203,6 +220,7 @@ public class LocalMediaPlayer
         Timber.i("%s -> %s (%s)", this.playerState.name(), playerState.name(), currentPlaying);
 
         this.playerState = playerState;
+        nextTrackPreparer.setPlayerState(playerState);
 
         if (playerState == PlayerState.STARTED)
         {
@@ -226,17 +244,7 @@ public class LocalMediaPlayer
             mainHandler.post(myRunnable);
         }
 
-        if (playerState == STARTED && positionCache == null)
-        {
-            positionCache = new PositionCache();
-            Thread thread = new Thread(positionCache);
-            thread.start();
-        }
-        else if (playerState != STARTED && positionCache != null)
-        {
-            positionCache.stop();
-            positionCache = null;
-        }
+        positionClock.setRunning(playerState == STARTED);
     }
 
     public synchronized void setCurrentPlaying(final DownloadFile currentPlaying)
@@ -263,24 +271,22 @@ public class LocalMediaPlayer
         if (nextToPlay == null)
         {
             nextPlaying = null;
+            nextTrackPreparer.setNext(null);
             setNextPlayerState(IDLE);
             return;
         }
 
         nextPlaying = nextToPlay;
-        nextPlayingTask = new CheckCompletionTask(nextPlaying);
-        nextPlayingTask.start();
+        setNextPlayerState(IDLE);
+        // The next player is prepared as soon as the song is downloaded, see NextTrackPreparer
+        nextTrackPreparer.setNext(nextPlaying);
     }
 
     public synchronized void clearNextPlaying()
     {
         nextSetup = false;
         nextPlaying = null;
-        if (nextPlayingTask != null)
-        {
-            nextPlayingTask.cancel();
-            nextPlayingTask = null;
-        }
+        nextTrackPreparer.setNext(null);
     }
 
     public synchronized void setNextPlayerState(PlayerState playerState)
@@ -289,6 +295,19 @@ public class LocalMediaPlayer
         nextPlayerState = playerState;
     }
 
+    synchronized PlayerState getNextPlayerState()
+    {
+        return nextPlayerState;
+    }
+
+    /**
+     * @return true when the thread of the media players is ready, after onCreate()
+     */
+    boolean isPlayerThreadStarted()
+    {
+        return mediaPlayerHandler != null;
+    }
+
     public synchronized void bufferAndPlay()
     {
         if (playerState != PREPARED)
@@ -306,11 +325,7 @@ public class LocalMediaPlayer
 
     public synchronized void play(DownloadFile fileToPlay)
     {
-        if (nextPlayingTask != null)
-        {
-            nextPlayingTask.cancel();
-            nextPlayingTask = null;
-        }
+        nextTrackPreparer.setNext(null);
 
         setCurrentPlaying(fileToPlay);
         bufferAndPlay();
@@ -322,6 +337,7 @@ public class LocalMediaPlayer
         mediaPlayer = nextMediaPlayer;
         nextMediaPlayer = tmp;
         setCurrentPlaying(nextPlaying);
+        positionClock.sync(0);
         setPlayerState(PlayerState.STARTED);
         setupHandlers(currentPlaying, false);
 
@@ -349,6 +365,7 @@ public class LocalMediaPlayer
         try
         {
             mediaPlayer.pause();
+            positionClock.sync(mediaPlayer.getCurrentPosition());
         }
         catch (Exception x)
         {
@@ -490,8 +507,14 @@ public class LocalMediaPlayer
     {
         try
         {
+            // A partial file is fetched from the new position right away, if the download is far behind it
+            if (proxy != null && currentPlaying != null)
+            {
+                currentPlaying.fetchAhead(currentPlaying.estimateOffset(position));
+            }
+
             mediaPlayer.seekTo(position);
-            cachedPosition = position;
+            positionClock.sync(position);
 
             updateRemoteControl();
         }
@@ -510,7 +533,12 @@ public class LocalMediaPlayer
                 return 0;
             }
 
-            return cachedPosition;
+            if (positionClock.isSyncDue())
+            {
+                positionClock.sync(mediaPlayer.getCurrentPosition());
+            }
+
+            return positionClock.getPosition();
         }
         catch (Exception x)
         {
@@ -575,7 +603,7 @@ public class LocalMediaPlayer
                     proxy = new StreamProxy(new Supplier<DownloadFile>() {
                         @Override
                         public DownloadFile get() { return currentPlaying; }
-                    });
+                    }, playStartTracer);
                     proxy.start();
                 }
 
@@ -624,6 +652,7 @@ public class LocalMediaPlayer
                 public void onPrepared(MediaPlayer mp)
                 {
                     Timber.i("Media player prepared");
+                    playStartTracer.mark(downloadFile.getSong().getId(), PlayStartTrace.Stage.PREPARED);
 
                     setPlayerState(PREPARED);
 
@@ -642,12 +671,13 @@ public class LocalMediaPlayer
                             Timber.i("Restarting player from position %d", position);
                             seekTo(position);
                         }
-                        cachedPosition = position;
+                        positionClock.sync(position);
 
                         if (start)
                         {
                             mediaPlayer.start();
                             setPlayerState(STARTED);
+                            playStartTracer.mark(downloadFile.getSong().getId(), PlayStartTrace.Stage.FIRST_AUDIO);
                         }
                         else
                         {
@@ -755,7 +785,7 @@ public class LocalMediaPlayer
             public boolean onError(MediaPlayer mediaPlayer, int what, int extra)
             {
                 Timber.w("Error on playing file (%d, %d): %s", what, extra, downloadFile);
-                int pos = cachedPosition;
+                int pos = positionClock.getPosition();
                 reset();
                 downloadFile.setPlaying(false);
                 doPlay(downloadFile, pos, true);
@@ -776,7 +806,9 @@ public class LocalMediaPlayer
                 // and allow the device to go to sleep.
                 wakeLock.acquire(60000);
 
-                int pos = cachedPosition;
+                // The player may have stopped early on a partial file, so ask it where it ended
+                positionClock.sync(mediaPlayer.getCurrentPosition());
+                int pos = positionClock.getPosition();
                 Timber.i("Ending position %d of %d", pos, duration);
 
                 if (!isPartial || (downloadFile.isWorkDone() && (Math.abs(duration - pos) < 1000)))
@@ -853,9 +885,13 @@ public class LocalMediaPlayer
 
     private class BufferTask extends CancellableTask
     {
+        private static final long STREAMING_START_BYTES = 32 * 1024L;
+
         private final DownloadFile downloadFile;
         private final int position;
+        private final long offset;
         private final long expectedFileSize;
+        private final long expectedStreamedSize;
         private final File partialFile;
 
         public BufferTask(DownloadFile downloadFile, int position)
@@ -878,140 +914,70 @@ public class LocalMediaPlayer
 
             // Find out how large the file should grow before resuming playback.
             Timber.i("Buffering from position %d and bitrate %d", position, bitRate);
-            expectedFileSize = (position * bitRate / 8) + byteCount;
-        }
-
-        @Override
-        public void execute()
-        {
-            setPlayerState(DOWNLOADING);
-
-            while (!bufferComplete() && !ActiveServerProvider.Companion.isOffline(context))
-            {
-                Util.sleepQuietly(1000L);
-                if (isCancelled())
-                {
-                    return;
-                }
-            }
-            doPlay(downloadFile, position, true);
-        }
-
-        private boolean bufferComplete()
-        {
-            boolean completeFileAvailable = downloadFile.isWorkDone();
-            long size = partialFile.length();
-
-            Timber.i("Buffering %s (%d/%d, %s)", partialFile, size, expectedFileSize, completeFileAvailable);
-            return completeFileAvailable || size >= expectedFileSize;
+            offset = downloadFile.estimateOffset(position);
+            expectedFileSize = offset + byteCount;
+            expectedStreamedSize = offset + Math.min(byteCount, STREAMING_START_BYTES);
         }
 
-        @NotNull
-        @Override
-        public String toString()
+        /**
+         * A song which is streamed from memory is fed to the player as it arrives, so it only needs enough
+         * bytes to be recognized. The download may only start streaming while it is buffered.
+         */
+        private boolean isStreamed()
         {
-            return String.format("BufferTask (%s)", downloadFile);
+            return downloadFile.getStreamBuffer() != null;
         }
-    }
 
-    private class CheckCompletionTask extends CancellableTask
-    {
-        private final DownloadFile downloadFile;
-        private final File partialFile;
-
-        public CheckCompletionTask(DownloadFile downloadFile)
+        private long getExpectedFileSize()
         {
-            super();
-            setNextPlayerState(PlayerState.IDLE);
-
-            this.downloadFile = downloadFile;
-
-            partialFile = downloadFile != null ? downloadFile.getPartialFile() : null;
+            return isStreamed() ? expectedStreamedSize : expectedFileSize;
         }
 
         @Override
         public void execute()
         {
-            Thread.currentThread().setName("CheckCompletionTask");
-
-            if (downloadFile == null)
-            {
-                return;
-            }
-
-            // Do an initial sleep so this prepare can't compete with main prepare
-            Util.sleepQuietly(5000L);
+            setPlayerState(DOWNLOADING);
 
-            while (!bufferComplete())
+            while (!bufferComplete() && !ActiveServerProvider.Companion.isOffline(context))
             {
-                Util.sleepQuietly(5000L);
+                // Don't wait for the download to get there if the position is far ahead
+                downloadFile.fetchAhead(offset);
 
-                if (isCancelled())
+                try
+                {
+                    // Wakes up as soon as the download has written enough, or has ended
+                    downloadFile.awaitBytes(offset, getExpectedFileSize(), 1000L);
+                }
+                catch (InterruptedException e)
                 {
                     return;
                 }
-            }
 
-            // Start the setup of the next media player
-            mediaPlayerHandler.post(new Runnable()
-            {
-                @Override
-                public void run()
+                if (isCancelled())
                 {
-                    setupNext(downloadFile);
+                    return;
                 }
-            });
+            }
+            if (isStreamed()) playStartTracer.markStreamed(downloadFile.getSong().getId());
+            playStartTracer.mark(downloadFile.getSong().getId(), PlayStartTrace.Stage.BUFFERED);
+            doPlay(downloadFile, position, true);
         }
 
         private boolean bufferComplete()
         {
             boolean completeFileAvailable = downloadFile.isWorkDone();
-            Timber.i("Buffering next %s (%d)", partialFile, partialFile.length());
-            return completeFileAvailable && (playerState == PlayerState.STARTED || playerState == PlayerState.PAUSED);
+            long size = downloadFile.getDownloadedEnd(offset);
+            long expectedSize = getExpectedFileSize();
+
+            Timber.v("Buffering %s (%d/%d, %s)", partialFile, size, expectedSize, completeFileAvailable);
+            return completeFileAvailable || size >= expectedSize;
         }
 
         @NotNull
         @Override
         public String toString()
         {
-            return String.format("CheckCompletionTask (%s)", downloadFile);
-        }
-
-    }
-
-    private class PositionCache implements Runnable
-    {
-        boolean isRunning = true;
-
-        public void stop()
-        {
-            isRunning = false;
-        }
-
-        @Override
-        public void run()
-        {
-            Thread.currentThread().setName("PositionCache");
-
-            // Stop checking position before the song reaches completion
-            while (isRunning)
-            {
-                try
-                {
-                    if (mediaPlayer != null && playerState == STARTED)
-                    {
-                        cachedPosition = mediaPlayer.getCurrentPosition();
-                    }
-
-                    Util.sleepQuietly(50L);
-                }
-                catch (Exception e)
-                {
-                    Timber.w(e, "Crashed getting current position");
-                    isRunning = false;
-                    positionCache = null;
-                }
-            }
+            return String.format("BufferTask (%s)", downloadFile);
         }
     }
 
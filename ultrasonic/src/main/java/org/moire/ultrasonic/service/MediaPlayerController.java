@@ -63,6 +63,8 @@ public interface MediaPlayerController
 
 	void remove(DownloadFile downloadFile);
 
+	void move(int from, int to);
+
 	void play(int index);
 
 	void seekTo(int position);
@@ -119,7 +121,9 @@ public interface MediaPlayerController
 
 	int getCurrentPlayingNumberOnPlaylist();
 
-	DownloadFile getCurrentDownloading();
+	List<DownloadFile> getActivelyDownloading();
+
+	List<DownloadMetrics> getDownloadMetrics();
 
 	List<DownloadFile> getPlayList();
 
@@ -34,7 +34,6 @@ import org.moire.ultrasonic.featureflags.FeatureStorage;
 import org.moire.ultrasonic.util.ShufflePlayBuffer;
 import org.moire.ultrasonic.util.Util;
 
-import java.util.Iterator;
 import java.util.List;
 
 import kotlin.Lazy;
@@ -61,6 +60,7 @@ public class MediaPlayerControllerImpl implements MediaPlayerController
 	private final Context context;
 	private final Lazy<JukeboxMediaPlayer> jukeboxMediaPlayer = inject(JukeboxMediaPlayer.class);
 	private final Lazy<ActiveServerProvider> activeServerProvider = inject(ActiveServerProvider.class);
+	private final Lazy<PlayStartTracer> playStartTracer = inject(PlayStartTracer.class);
 
 	private final DownloadQueueSerializer downloadQueueSerializer;
 	private final ExternalStorageMonitor externalStorageMonitor;
@@ -149,6 +149,11 @@ public class MediaPlayerControllerImpl implements MediaPlayerController
 	@Override
 	public synchronized void play(final int index)
 	{
+		if (index >= 0 && index < downloader.downloadList.size())
+		{
+			playStartTracer.getValue().begin(downloader.downloadList.get(index).getSong().getId());
+		}
+
 		MediaPlayerService.executeOnStartedMediaPlayerService(context,new Consumer<MediaPlayerService>() {
 			@Override
 			public void accept(MediaPlayerService mediaPlayerService) {
@@ -378,19 +383,23 @@ public class MediaPlayerControllerImpl implements MediaPlayerController
 	public synchronized void clearIncomplete()
 	{
 		reset();
-		Iterator<DownloadFile> iterator = downloader.downloadList.iterator();
+		downloader.clearIncomplete();
 
-		while (iterator.hasNext())
-		{
-			DownloadFile downloadFile = iterator.next();
-			if (!downloadFile.isCompleteFileAvailable())
-			{
-				iterator.remove();
-			}
-		}
+		downloadQueueSerializer.serializeDownloadQueue(downloader.downloadList, downloader.getCurrentPlayingIndex(), getPlayerPosition());
+		jukeboxMediaPlayer.getValue().updatePlaylist();
+	}
+
+	@Override
+	public synchronized void move(int from, int to)
+	{
+		downloader.move(from, to);
 
 		downloadQueueSerializer.serializeDownloadQueue(downloader.downloadList, downloader.getCurrentPlayingIndex(), getPlayerPosition());
 		jukeboxMediaPlayer.getValue().updatePlaylist();
+
+		// The song after the current one may have changed
+		MediaPlayerService mediaPlayerService = MediaPlayerService.getRunningInstance();
+		if (mediaPlayerService != null) mediaPlayerService.setNextPlaying();
 	}
 
 	@Override
@@ -557,11 +566,8 @@ public class MediaPlayerControllerImpl implements MediaPlayerController
 
 			reset();
 
-			// Cancel current download, if necessary.
-			if (downloader.currentDownloading != null)
-			{
-				downloader.currentDownloading.cancelDownload();
-			}
+			// Cancel current downloads, if necessary.
+			downloader.cancelActiveDownloads();
 		}
 		else
 		{
@@ -635,8 +641,13 @@ public class MediaPlayerControllerImpl implements MediaPlayerController
 	}
 
 	@Override
-	public DownloadFile getCurrentDownloading() {
-		return downloader.currentDownloading;
+	public List<DownloadFile> getActivelyDownloading() {
+		return downloader.getActivelyDownloading();
+	}
+
+	@Override
+	public List<DownloadMetrics> getDownloadMetrics() {
+		return downloader.getDownloadMetrics();
 	}
 
 	@Override
@@ -70,6 +70,7 @@ public class MediaPlayerService extends Service
     private final Lazy<Downloader> downloaderLazy = inject(Downloader.class);
     private final Lazy<LocalMediaPlayer> localMediaPlayerLazy = inject(LocalMediaPlayer.class);
     private final Lazy<NowPlayingEventDistributor> nowPlayingEventDistributor = inject(NowPlayingEventDistributor.class);
+    private final Lazy<PlayStartTracer> playStartTracer = inject(PlayStartTracer.class);
     private LocalMediaPlayer localMediaPlayer;
     private Downloader downloader;
     private ShufflePlayBuffer shufflePlayBuffer;
@@ -282,6 +283,9 @@ public class MediaPlayerService extends Service
                 UltrasonicAppWidgetProvider4X3.getInstance().notifyChange(MediaPlayerService.this, song, playerState == PlayerState.STARTED, false);
                 UltrasonicAppWidgetProvider4X4.getInstance().notifyChange(MediaPlayerService.this, song, playerState == PlayerState.STARTED, false);
 
+                // The download priorities depend on the current track
+                downloader.checkDownloads();
+
                 if (currentPlaying != null)
                 {
                     updateNotification(localMediaPlayer.playerState, currentPlaying);
@@ -408,7 +412,9 @@ public class MediaPlayerService extends Service
                 }
                 else
                 {
-                    localMediaPlayer.play(downloader.downloadList.get(index));
+                    DownloadFile downloadFile = downloader.downloadList.get(index);
+                    playStartTracer.getValue().mark(downloadFile.getSong().getId(), PlayStartTrace.Stage.SERVICE);
+                    localMediaPlayer.play(downloadFile);
                 }
             }
 
@@ -0,0 +1,136 @@
+package org.moire.ultrasonic.service;
+
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import timber.log.Timber;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the files which should be added to the media library, and hands them to the
+ * media scanner as one batch, instead of starting a scan for each file.
+ * A file is only scanned again if it has been changed since its last scan.
+ */
+public class MediaScanCoordinator
+{
+    private static final long BATCH_WINDOW = 3000L;
+    private static final int MAX_BATCH_SIZE = 100;
+    private static final int MAX_REMEMBERED_FILES = 2000;
+
+    private final Context context;
+    private final ScheduledExecutorService executorService;
+    private final Set<String> pendingPaths = new LinkedHashSet<>();
+    private ScheduledFuture<?> scheduledScan;
+
+    // The modification time of each file when it was scanned, only used on the executor's thread
+    private final Map<String, Long> scannedFiles = new LinkedHashMap<String, Long>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest)
+        {
+            return size() > MAX_REMEMBERED_FILES;
+        }
+    };
+
+    private final Runnable scan = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            scanPendingFiles();
+        }
+    };
+
+    public MediaScanCoordinator(Context context)
+    {
+        this(context, Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                return new Thread(runnable, "MediaScanCoordinator");
+            }
+        }));
+    }
+
+    MediaScanCoordinator(Context context, ScheduledExecutorService executorService)
+    {
+        this.context = context;
+        this.executorService = executorService;
+    }
+
+    /**
+     * Adds the file to the next batch of the media scanner
+     */
+    public synchronized void scan(File file)
+    {
+        if (!pendingPaths.add(file.getAbsolutePath()))
+        {
+            return;
+        }
+
+        if (pendingPaths.size() >= MAX_BATCH_SIZE)
+        {
+            if (scheduledScan != null) scheduledScan.cancel(false);
+            scheduledScan = null;
+            executorService.execute(scan);
+        }
+        else if (scheduledScan == null)
+        {
+            scheduledScan = executorService.schedule(scan, BATCH_WINDOW, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void scanPendingFiles()
+    {
+        List<String> changed = takeChangedFiles();
+        if (changed.isEmpty()) return;
+
+        MediaScannerConnection.scanFile(context, changed.toArray(new String[0]), null, null);
+    }
+
+    /**
+     * Empties the batch
+     * @return the files of the batch which exist and have been changed since their last scan
+     */
+    List<String> takeChangedFiles()
+    {
+        List<String> paths;
+        synchronized (this)
+        {
+            paths = new ArrayList<>(pendingPaths);
+            pendingPaths.clear();
+            scheduledScan = null;
+        }
+
+        List<String> changed = new ArrayList<>(paths.size());
+        for (String path : paths)
+        {
+            long lastModified = new File(path).lastModified();
+            if (lastModified == 0) continue;
+
+            Long scanned = scannedFiles.get(path);
+            if (scanned != null && scanned == lastModified) continue;
+
+            scannedFiles.put(path, lastModified);
+            changed.add(path);
+        }
+
+        if (!changed.isEmpty())
+        {
+            Timber.i("Scanning %d files, skipped %d", changed.size(), paths.size() - changed.size());
+        }
+        return changed;
+    }
+}
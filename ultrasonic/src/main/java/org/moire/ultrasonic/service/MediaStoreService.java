@@ -19,12 +19,27 @@
 package org.moire.ultrasonic.service;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.provider.BaseColumns;
 import android.provider.MediaStore;
 import timber.log.Timber;
 
@@ -32,94 +47,286 @@ import org.moire.ultrasonic.domain.MusicDirectory;
 import org.moire.ultrasonic.util.FileUtil;
 
 /**
+ * Adds the pinned songs to the MediaStore.
+ * Songs are buffered and written in batches, so pinning a large playlist doesn't cost
+ * several round trips to the media provider for each song. A batch is written when it is full,
+ * or a short time after its first song. Album art is looked up once per album.
+ *
  * @author Sindre Mehus
  */
 public class MediaStoreService
 {
 	private static final Uri ALBUM_ART_URI = Uri.parse("content://media/external/audio/albumart");
+	private static final int MAX_BATCH_SIZE = 50;
+	private static final long FLUSH_DELAY = 2000L;
+	private static final int MAX_REMEMBERED_ALBUMS = 1000;
 
 	private final Context context;
+	private final ScheduledExecutorService executorService;
+	private final Map<String, PendingSong> pendingSongs = new HashMap<>();
+	// Albums which have been given album art, or already had it, only used on the executor's thread
+	private final Set<Integer> albumsWithArt = Collections.newSetFromMap(new LinkedHashMap<Integer, Boolean>()
+	{
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest)
+		{
+			return size() > MAX_REMEMBERED_ALBUMS;
+		}
+	});
+	private ScheduledFuture<?> scheduledFlush;
+
+	private final Runnable flush = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			flush();
+		}
+	};
 
 	public MediaStoreService(Context context)
+	{
+		this(context, Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				return new Thread(runnable, "MediaStoreService");
+			}
+		}));
+	}
+
+	MediaStoreService(Context context, ScheduledExecutorService executorService)
 	{
 		this.context = context;
+		this.executorService = executorService;
 	}
 
-	public void saveInMediaStore(DownloadFile downloadFile)
+	private static class PendingSong
 	{
-		MusicDirectory.Entry song = downloadFile.getSong();
-		File songFile = downloadFile.getCompleteFile();
+		final MusicDirectory.Entry song;
+		final String path;
 
-		// Delete existing row in case the song has been downloaded before.
-		deleteFromMediaStore(downloadFile);
+		PendingSong(MusicDirectory.Entry song, String path)
+		{
+			this.song = song;
+			this.path = path;
+		}
+	}
 
-		ContentResolver contentResolver = context.getContentResolver();
-		ContentValues values = new ContentValues();
-		values.put(MediaStore.MediaColumns.TITLE, song.getTitle());
-		values.put(MediaStore.Audio.AudioColumns.ARTIST, song.getArtist());
-		values.put(MediaStore.Audio.AudioColumns.ALBUM, song.getAlbum());
-		values.put(MediaStore.Audio.AudioColumns.TRACK, song.getTrack());
-		values.put(MediaStore.Audio.AudioColumns.YEAR, song.getYear());
-		values.put(MediaStore.MediaColumns.DATA, songFile.getAbsolutePath());
-		values.put(MediaStore.MediaColumns.MIME_TYPE, song.getContentType());
-		values.put(MediaStore.Audio.AudioColumns.IS_MUSIC, 1);
+	/**
+	 * Adds the song to the next batch. It replaces an existing row of the same file.
+	 */
+	public synchronized void saveInMediaStore(DownloadFile downloadFile)
+	{
+		String path = downloadFile.getCompleteFile().getAbsolutePath();
+		pendingSongs.put(path, new PendingSong(downloadFile.getSong(), path));
+
+		if (pendingSongs.size() >= MAX_BATCH_SIZE)
+		{
+			if (scheduledFlush != null) scheduledFlush.cancel(false);
+			scheduledFlush = null;
+			executorService.execute(flush);
+		}
+		else if (scheduledFlush == null)
+		{
+			scheduledFlush = executorService.schedule(flush, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+		}
+	}
 
-		Uri uri = contentResolver.insert(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, values);
+	/**
+	 * Removes the song from the next batch, and deletes its row on the thread of the batches,
+	 * so it can't be inserted again by a batch which is being written
+	 */
+	public synchronized void deleteFromMediaStore(DownloadFile downloadFile)
+	{
+		final MusicDirectory.Entry song = downloadFile.getSong();
+		final String path = downloadFile.getCompleteFile().getAbsolutePath();
+
+		pendingSongs.remove(path);
 
-		if (uri != null)
+		executorService.execute(new Runnable()
 		{
-			// Look up album, and add cover art if found.
-			Cursor cursor = contentResolver.query(uri, new String[]{MediaStore.Audio.AudioColumns.ALBUM_ID}, null, null, null);
+			@Override
+			public void run()
+			{
+				delete(song, path);
+			}
+		});
+	}
 
-			if (cursor != null && cursor.moveToFirst())
+	private void delete(MusicDirectory.Entry song, String path)
+	{
+		try
+		{
+			int n = context.getContentResolver().delete(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, MediaStore.Audio.AudioColumns.TITLE_KEY + "=? AND " +
+					MediaStore.MediaColumns.DATA + "=?", new String[]{MediaStore.Audio.keyFor(song.getTitle()), path});
+			if (n > 0)
 			{
-				int albumId = cursor.getInt(0);
-				insertAlbumArt(albumId, downloadFile);
-				cursor.close();
+				Timber.i("Deleting media store row for %s", song);
 			}
 		}
+		catch (Exception x)
+		{
+			Timber.w(x, "Failed to delete %s from the media store", song);
+		}
 	}
 
-	public void deleteFromMediaStore(DownloadFile downloadFile)
+	private void flush()
 	{
-		ContentResolver contentResolver = context.getContentResolver();
-		MusicDirectory.Entry song = downloadFile.getSong();
-		File file = downloadFile.getCompleteFile();
+		List<PendingSong> songs;
+		synchronized (this)
+		{
+			songs = new ArrayList<>(pendingSongs.values());
+			pendingSongs.clear();
+			scheduledFlush = null;
+		}
+
+		if (songs.isEmpty()) return;
 
-		int n = contentResolver.delete(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, MediaStore.Audio.AudioColumns.TITLE_KEY + "=? AND " +
-				MediaStore.MediaColumns.DATA + "=?", new String[]{MediaStore.Audio.keyFor(song.getTitle()), file.getAbsolutePath()});
-		if (n > 0)
+		try
 		{
-			Timber.i("Deleting media store row for %s", song);
+			List<Long> songIds = insertSongs(songs);
+			Map<Integer, MusicDirectory.Entry> albums = queryAlbums(songIds, songs);
+			insertAlbumArt(albums);
+			Timber.i("Added %d songs of %d albums to the media store", songs.size(), albums.size());
+		}
+		catch (Exception x)
+		{
+			Timber.w(x, "Failed to add %d songs to the media store", songs.size());
 		}
 	}
 
-	private void insertAlbumArt(int albumId, DownloadFile downloadFile)
+	/**
+	 * Replaces the rows of the songs in one batch.
+	 * @return the ids of the new rows, in the order of the songs
+	 */
+	private List<Long> insertSongs(List<PendingSong> songs) throws Exception
 	{
-		ContentResolver contentResolver = context.getContentResolver();
-		Uri uri = Uri.withAppendedPath(ALBUM_ART_URI, String.valueOf(albumId));
+		ArrayList<ContentProviderOperation> operations = new ArrayList<>(songs.size() * 2);
+		for (PendingSong pending : songs)
+		{
+			MusicDirectory.Entry song = pending.song;
+
+			// Delete existing row in case the song has been downloaded before.
+			operations.add(ContentProviderOperation.newDelete(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI)
+					.withSelection(MediaStore.Audio.AudioColumns.TITLE_KEY + "=? AND " + MediaStore.MediaColumns.DATA + "=?",
+							new String[]{MediaStore.Audio.keyFor(song.getTitle()), pending.path})
+					.build());
 
-		if (uri == null)
+			ContentValues values = new ContentValues();
+			values.put(MediaStore.MediaColumns.TITLE, song.getTitle());
+			values.put(MediaStore.Audio.AudioColumns.ARTIST, song.getArtist());
+			values.put(MediaStore.Audio.AudioColumns.ALBUM, song.getAlbum());
+			values.put(MediaStore.Audio.AudioColumns.TRACK, song.getTrack());
+			values.put(MediaStore.Audio.AudioColumns.YEAR, song.getYear());
+			values.put(MediaStore.MediaColumns.DATA, pending.path);
+			values.put(MediaStore.MediaColumns.MIME_TYPE, song.getContentType());
+			values.put(MediaStore.Audio.AudioColumns.IS_MUSIC, 1);
+			operations.add(ContentProviderOperation.newInsert(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI)
+					.withValues(values)
+					.build());
+		}
+
+		ContentProviderResult[] results = context.getContentResolver().applyBatch(MediaStore.AUTHORITY, operations);
+
+		List<Long> ids = new ArrayList<>(songs.size());
+		for (int i = 1; i < results.length; i += 2)
+		{
+			Uri uri = results[i].uri;
+			ids.add(uri == null ? -1L : Long.parseLong(uri.getLastPathSegment()));
+		}
+		return ids;
+	}
+
+	/**
+	 * Looks up the albums of the new rows with a single query
+	 * @return a song of each album, by album id
+	 */
+	private Map<Integer, MusicDirectory.Entry> queryAlbums(List<Long> songIds, List<PendingSong> songs)
+	{
+		Map<Long, MusicDirectory.Entry> songsById = new HashMap<>();
+		StringBuilder selection = new StringBuilder(BaseColumns._ID).append(" IN (");
+		for (int i = 0; i < songIds.size(); i++)
+		{
+			if (songIds.get(i) == -1) continue;
+			if (!songsById.isEmpty()) selection.append(',');
+			selection.append(songIds.get(i));
+			songsById.put(songIds.get(i), songs.get(i).song);
+		}
+		selection.append(')');
+
+		Map<Integer, MusicDirectory.Entry> albums = new HashMap<>();
+		if (songsById.isEmpty()) return albums;
+
+		Cursor cursor = context.getContentResolver().query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+				new String[]{BaseColumns._ID, MediaStore.Audio.AudioColumns.ALBUM_ID}, selection.toString(), null, null);
+		if (cursor == null) return albums;
+
+		try
+		{
+			while (cursor.moveToNext())
+			{
+				int albumId = cursor.getInt(1);
+				if (!albums.containsKey(albumId))
+				{
+					albums.put(albumId, songsById.get(cursor.getLong(0)));
+				}
+			}
+		}
+		finally
 		{
-			return;
+			cursor.close();
 		}
 
-		Cursor cursor = contentResolver.query(uri, null, null, null, null);
+		return albums;
+	}
+
+	/**
+	 * Adds the album art of the albums which don't have any yet
+	 */
+	private void insertAlbumArt(Map<Integer, MusicDirectory.Entry> albums) throws Exception
+	{
+		ContentResolver contentResolver = context.getContentResolver();
+		ArrayList<ContentProviderOperation> operations = new ArrayList<>();
 
-		if (cursor != null && !cursor.moveToFirst())
+		for (Map.Entry<Integer, MusicDirectory.Entry> album : albums.entrySet())
 		{
+			int albumId = album.getKey();
+			if (albumsWithArt.contains(albumId)) continue;
+
+			Cursor cursor = contentResolver.query(Uri.withAppendedPath(ALBUM_ART_URI, String.valueOf(albumId)), null, null, null, null);
+			if (cursor == null) continue;
+
+			try
+			{
+				if (cursor.moveToFirst())
+				{
+					albumsWithArt.add(albumId);
+					continue;
+				}
+			}
+			finally
+			{
+				cursor.close();
+			}
+
 			// No album art found, add it.
-			File albumArtFile = FileUtil.getAlbumArtFile(context, downloadFile.getSong());
+			File albumArtFile = FileUtil.getAlbumArtFile(context, album.getValue());
 			if (albumArtFile.exists())
 			{
-				ContentValues values = new ContentValues();
-				values.put(MediaStore.Audio.AlbumColumns.ALBUM_ID, albumId);
-				values.put(MediaStore.MediaColumns.DATA, albumArtFile.getPath());
-				contentResolver.insert(ALBUM_ART_URI, values);
-				Timber.i("Added album art: %s", albumArtFile);
+				operations.add(ContentProviderOperation.newInsert(ALBUM_ART_URI)
+						.withValue(MediaStore.Audio.AlbumColumns.ALBUM_ID, albumId)
+						.withValue(MediaStore.MediaColumns.DATA, albumArtFile.getPath())
+						.build());
+				albumsWithArt.add(albumId);
+				Timber.i("Adding album art: %s", albumArtFile);
 			}
+		}
 
-			cursor.close();
+		if (!operations.isEmpty())
+		{
+			contentResolver.applyBatch(MediaStore.AUTHORITY, operations);
 		}
 	}
-}
\ No newline at end of file
+}
@@ -23,6 +23,7 @@ import android.graphics.Bitmap;
 
 import org.moire.ultrasonic.domain.Bookmark;
 import org.moire.ultrasonic.domain.ChatMessage;
+import org.moire.ultrasonic.domain.DownloadResponse;
 import org.moire.ultrasonic.domain.Genre;
 import org.moire.ultrasonic.domain.Indexes;
 import org.moire.ultrasonic.domain.JukeboxStatus;
@@ -37,11 +38,8 @@ import org.moire.ultrasonic.domain.Share;
 import org.moire.ultrasonic.domain.UserInfo;
 import org.moire.ultrasonic.util.CancellableTask;
 
-import java.io.InputStream;
 import java.util.List;
 
-import kotlin.Pair;
-
 /**
  * @author Sindre Mehus
  */
@@ -105,10 +103,12 @@ public interface MusicService
 	Bitmap getCoverArt(Context context, MusicDirectory.Entry entry, int size, boolean saveToFile, boolean highQuality) throws Exception;
 
 	/**
-	 * Return response {@link InputStream} and a {@link Boolean} that indicates if this response is
-	 * partial.
+	 * Return the response of a download request for the bytes from offset,
+	 * either to the end of the file or with the given length (-1 for the end).
+	 * If ifRange is given, the server only honors the range if the file still has this ETag or Last-Modified value.
+	 * The response tells if the server has honored the range, if not, it contains the whole song.
 	 */
-	Pair<InputStream, Boolean> getDownloadInputStream(Context context, MusicDirectory.Entry song, long offset, int maxBitrate, CancellableTask task) throws Exception;
+	DownloadResponse getDownloadInputStream(Context context, MusicDirectory.Entry song, long offset, long length, int maxBitrate, String ifRange, CancellableTask task) throws Exception;
 
 	// TODO: Refactor and remove this call (see RestMusicService implementation)
 	String getVideoUrl(Context context, String id, boolean useFlash) throws Exception;
@@ -0,0 +1,78 @@
+package org.moire.ultrasonic.service;
+
+import timber.log.Timber;
+
+import org.moire.ultrasonic.domain.PlayerState;
+
+/**
+ * Starts the preparation of the next media player as soon as its song has been downloaded
+ * and the current player is playing or paused, whichever happens last.
+ * It listens to the state of the download and is told about the state of the player,
+ * so no thread has to wait for either of them.
+ */
+class NextTrackPreparer
+{
+    private final Consumer<DownloadFile> prepare;
+    private DownloadFile next;
+    private PlayerState playerState = PlayerState.IDLE;
+    private boolean started;
+
+    private final Consumer<DownloadFile> downloadStateListener = new Consumer<DownloadFile>()
+    {
+        @Override
+        public void accept(DownloadFile downloadFile)
+        {
+            onDownloadStateChanged(downloadFile);
+        }
+    };
+
+    /**
+     * @param prepare prepares the player of the next song. It is called at most once for each song,
+     * on the thread of the event which completed the conditions, so it must not block.
+     */
+    NextTrackPreparer(Consumer<DownloadFile> prepare)
+    {
+        this.prepare = prepare;
+    }
+
+    /**
+     * Sets the song which is played after the current one, or null if there isn't one
+     */
+    synchronized void setNext(DownloadFile downloadFile)
+    {
+        if (next == downloadFile) return;
+
+        if (next != null) next.removeStateListener(downloadStateListener);
+        next = downloadFile;
+        started = false;
+
+        if (next != null)
+        {
+            next.addStateListener(downloadStateListener);
+            prepareIfReady();
+        }
+    }
+
+    synchronized void setPlayerState(PlayerState playerState)
+    {
+        this.playerState = playerState;
+        prepareIfReady();
+    }
+
+    private synchronized void onDownloadStateChanged(DownloadFile downloadFile)
+    {
+        if (downloadFile == next) prepareIfReady();
+    }
+
+    private void prepareIfReady()
+    {
+        if (next == null || started || !next.isWorkDone()) return;
+
+        // Don't compete with the preparation of the current player
+        if (playerState != PlayerState.STARTED && playerState != PlayerState.PAUSED) return;
+
+        Timber.i("Preparing the next player for %s", next);
+        started = true;
+        prepare.accept(next);
+    }
+}
@@ -22,13 +22,13 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.media.MediaMetadataRetriever;
 
-import kotlin.Pair;
 import timber.log.Timber;
 
 import org.moire.ultrasonic.data.ActiveServerProvider;
 import org.moire.ultrasonic.domain.Artist;
 import org.moire.ultrasonic.domain.Bookmark;
 import org.moire.ultrasonic.domain.ChatMessage;
+import org.moire.ultrasonic.domain.DownloadResponse;
 import org.moire.ultrasonic.domain.Genre;
 import org.moire.ultrasonic.domain.Indexes;
 import org.moire.ultrasonic.domain.JukeboxStatus;
@@ -51,7 +51,6 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
-import java.io.InputStream;
 import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -893,7 +892,7 @@ public class OfflineMusicService implements MusicService
 	}
 
 	@Override
-	public Pair<InputStream, Boolean> getDownloadInputStream(Context context, MusicDirectory.Entry song, long offset, int maxBitrate, CancellableTask task) {
+	public DownloadResponse getDownloadInputStream(Context context, MusicDirectory.Entry song, long offset, long length, int maxBitrate, String ifRange, CancellableTask task) {
 		Timber.w("OfflineMusicService.getDownloadInputStream was called but it isn't available");
 		return null;
 	}
@@ -0,0 +1,177 @@
+package org.moire.ultrasonic.service;
+
+import timber.log.Timber;
+
+import org.moire.ultrasonic.domain.MusicDirectory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Persists the play queue as a journal of edits. Each write is compared with the journaled queue,
+ * and only the changed part between the unchanged start and end of the queue is appended,
+ * so adding a song or saving the play position doesn't rewrite a long queue.
+ * It is compacted into a single edit. Each song and position counts as a record for the compaction.
+ */
+class PlayQueueJournal extends AppendOnlyJournal
+{
+    private static final byte SPLICE = 'S';
+    private static final byte POSITION = 'P';
+    private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+
+    private final List<MusicDirectory.Entry> songs = new ArrayList<>();
+    private int currentPlayingIndex = -1;
+    private int currentPlayingPosition;
+    private boolean loaded;
+
+    PlayQueueJournal(File file)
+    {
+        super(file);
+    }
+
+    /**
+     * Reads the queue from the file and compacts it
+     * @return the queue, or null if there is no file
+     */
+    State load()
+    {
+        loaded = true;
+        songs.clear();
+        currentPlayingIndex = -1;
+        currentPlayingPosition = 0;
+        if (!replay()) return null;
+
+        compact();
+        Timber.i("Loaded %d songs from %s", songs.size(), file);
+
+        State state = new State();
+        state.songs.addAll(songs);
+        state.currentPlayingIndex = currentPlayingIndex;
+        state.currentPlayingPosition = currentPlayingPosition;
+        return state;
+    }
+
+    /**
+     * Appends the difference between the journaled queue and the given one.
+     * Songs are compared by identity, the queue holds the same instances until it changes.
+     */
+    void write(List<MusicDirectory.Entry> queue, int currentPlayingIndex, int currentPlayingPosition)
+    {
+        // The edits must apply to the queue in the file
+        if (!loaded) load();
+
+        int common = Math.min(songs.size(), queue.size());
+        int prefix = 0;
+        while (prefix < common && songs.get(prefix) == queue.get(prefix)) prefix++;
+
+        int suffix = 0;
+        while (suffix < common - prefix && songs.get(songs.size() - 1 - suffix) == queue.get(queue.size() - 1 - suffix)) suffix++;
+
+        int removed = songs.size() - prefix - suffix;
+        List<MusicDirectory.Entry> added = new ArrayList<>(queue.subList(prefix, queue.size() - suffix));
+        boolean moved = currentPlayingIndex != this.currentPlayingIndex || currentPlayingPosition != this.currentPlayingPosition;
+        if (removed == 0 && added.isEmpty() && !moved) return;
+
+        try
+        {
+            DataOutputStream out = getOutputStream();
+            int records = 0;
+
+            if (removed > 0 || !added.isEmpty())
+            {
+                writeSplice(out, prefix, removed, added);
+                splice(prefix, removed, added);
+                records += added.size() + 1;
+            }
+
+            if (moved)
+            {
+                writePosition(out, currentPlayingIndex, currentPlayingPosition);
+                this.currentPlayingIndex = currentPlayingIndex;
+                this.currentPlayingPosition = currentPlayingPosition;
+                records++;
+            }
+
+            flush(records);
+        }
+        catch (IOException x)
+        {
+            writeFailed(x);
+        }
+    }
+
+    @Override
+    int size()
+    {
+        return songs.size();
+    }
+
+    @Override
+    boolean readRecord(DataInputStream in) throws IOException, ClassNotFoundException
+    {
+        int type = in.read();
+        switch (type)
+        {
+            case -1:
+                return false;
+            case SPLICE:
+                int from = in.readInt();
+                int removed = in.readInt();
+                int count = in.readInt();
+                int length = in.readInt();
+                if (from < 0 || removed < 0 || from + removed > songs.size() || count < 0 || length < 0 || length > MAX_RECORD_LENGTH)
+                {
+                    throw new IOException(String.format("Invalid splice of %d songs at %d", removed, from));
+                }
+
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                splice(from, removed, deserialize(bytes, count));
+                return true;
+            case POSITION:
+                currentPlayingIndex = in.readInt();
+                currentPlayingPosition = in.readInt();
+                return true;
+            default:
+                throw new IOException(String.format("Unknown record type %d", type));
+        }
+    }
+
+    private void splice(int from, int removed, List<MusicDirectory.Entry> added)
+    {
+        songs.subList(from, from + removed).clear();
+        songs.addAll(from, added);
+    }
+
+    /**
+     * Writes the whole queue as a single edit
+     */
+    @Override
+    void writeSnapshot(DataOutputStream out) throws IOException
+    {
+        writeSplice(out, 0, 0, songs);
+        writePosition(out, currentPlayingIndex, currentPlayingPosition);
+    }
+
+    private static void writeSplice(DataOutputStream out, int from, int removed, List<MusicDirectory.Entry> added) throws IOException
+    {
+        byte[] bytes = serialize(added);
+        out.writeByte(SPLICE);
+        out.writeInt(from);
+        out.writeInt(removed);
+        out.writeInt(added.size());
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writePosition(DataOutputStream out, int currentPlayingIndex, int currentPlayingPosition) throws IOException
+    {
+        out.writeByte(POSITION);
+        out.writeInt(currentPlayingIndex);
+        out.writeInt(currentPlayingPosition);
+    }
+}
@@ -0,0 +1,128 @@
+package org.moire.ultrasonic.service;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The stages a song went through from the tap on it until its first audio was heard.
+ * Each stage is recorded once, when it is first reached, as the time since the tap.
+ * The stages are marked by different threads, so all of them can be read while the song is starting.
+ */
+public class PlayStartTrace
+{
+	public enum Stage
+	{
+		// The service has been started and was asked to play the song
+		SERVICE("service"),
+		// The downloader has started the download of the song
+		DOWNLOAD("download"),
+		// The download task is running, after waiting for a free slot
+		DOWNLOAD_RUNNING("running"),
+		// The server has responded to the download request
+		RESPONSE("response"),
+		// The first bytes of the song were written to the file
+		FIRST_BYTE("first byte"),
+		// Enough of the song has been downloaded to start the player
+		BUFFERED("buffered"),
+		// The player has requested the song from the stream proxy
+		PROXY("proxy"),
+		// The player has been prepared
+		PREPARED("prepared"),
+		// The player has been started
+		FIRST_AUDIO("audio");
+
+		private final String label;
+
+		Stage(String label)
+		{
+			this.label = label;
+		}
+
+		public String getLabel()
+		{
+			return label;
+		}
+	}
+
+	private final String songId;
+	private final long startTime;
+	private final AtomicLongArray stageTimes = new AtomicLongArray(Stage.values().length);
+	private volatile boolean streamed;
+
+	PlayStartTrace(String songId, long startTime)
+	{
+		this.songId = songId;
+		this.startTime = startTime;
+
+		for (int i = 0; i < stageTimes.length(); i++)
+		{
+			stageTimes.set(i, -1);
+		}
+	}
+
+	/**
+	 * Records the stage, unless it was reached before
+	 * @param now the System.nanoTime() when the stage was reached
+	 */
+	void mark(Stage stage, long now)
+	{
+		stageTimes.compareAndSet(stage.ordinal(), -1, Math.max(0, now - startTime));
+	}
+
+	public String getSongId()
+	{
+		return songId;
+	}
+
+	void setStreamed()
+	{
+		streamed = true;
+	}
+
+	/**
+	 * @return true if the player was started from the memory buffer of the download, after a short head start
+	 */
+	public boolean isStreamed()
+	{
+		return streamed;
+	}
+
+	/**
+	 * @return the nanoseconds from the tap until the stage was reached, or -1 if it wasn't reached
+	 */
+	public long getStageTime(Stage stage)
+	{
+		return stageTimes.get(stage.ordinal());
+	}
+
+	/**
+	 * @return the milliseconds from the tap until the stage was reached, or -1 if it wasn't reached
+	 */
+	public long getStageMillis(Stage stage)
+	{
+		long time = getStageTime(stage);
+		return time < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(time);
+	}
+
+	public boolean isFinished()
+	{
+		return getStageTime(Stage.FIRST_AUDIO) >= 0;
+	}
+
+	@NotNull
+	@Override
+	public String toString()
+	{
+		StringBuilder builder = new StringBuilder(String.format("PlayStartTrace (%s, %s):", songId, streamed ? "streamed" : "buffered"));
+		for (Stage stage : Stage.values())
+		{
+			long millis = getStageMillis(stage);
+			if (millis >= 0) builder.append(String.format(Locale.ROOT, " %s %d ms,", stage.getLabel(), millis));
+		}
+		builder.setLength(builder.length() - 1);
+		return builder.toString();
+	}
+}
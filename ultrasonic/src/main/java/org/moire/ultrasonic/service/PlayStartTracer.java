@@ -0,0 +1,178 @@
+package org.moire.ultrasonic.service;
+
+import timber.log.Timber;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Traces the start of playback after the user tapped a song, through the service, the download,
+ * the buffering, the stream proxy and the player. Only the latest tap is traced,
+ * the stages of other songs, e.g. preloaded ones, are ignored.
+ * The finished traces are kept in a ring buffer, and summarized as percentiles of the time to each stage,
+ * which is written to the log after each start and can be shown in the settings.
+ */
+public class PlayStartTracer
+{
+	static final int CAPACITY = 50;
+	private static final int[] PERCENTILES = { 50, 90, 99 };
+
+	private final Supplier<Long> nanoTime;
+	private final PlayStartTrace[] finished = new PlayStartTrace[CAPACITY];
+	private int next;
+	private int count;
+	private volatile PlayStartTrace current;
+
+	public PlayStartTracer()
+	{
+		this(new Supplier<Long>()
+		{
+			@Override
+			public Long get()
+			{
+				return System.nanoTime();
+			}
+		});
+	}
+
+	PlayStartTracer(Supplier<Long> nanoTime)
+	{
+		this.nanoTime = nanoTime;
+	}
+
+	/**
+	 * Starts a new trace when the user asks to play the song, abandoning the previous one if it is unfinished
+	 */
+	public void begin(String songId)
+	{
+		current = new PlayStartTrace(songId, nanoTime.get());
+	}
+
+	/**
+	 * Records that the start of the song has reached the stage, if the song is being traced.
+	 * Reaching the first audio finishes the trace.
+	 */
+	public void mark(String songId, PlayStartTrace.Stage stage)
+	{
+		PlayStartTrace trace = current;
+		if (trace == null || !trace.getSongId().equals(songId)) return;
+
+		trace.mark(stage, nanoTime.get());
+		if (stage == PlayStartTrace.Stage.FIRST_AUDIO) finish(trace);
+	}
+
+	/**
+	 * Records that the song is started from the memory buffer of its download, if the song is being traced
+	 */
+	public void markStreamed(String songId)
+	{
+		PlayStartTrace trace = current;
+		if (trace == null || !trace.getSongId().equals(songId)) return;
+
+		trace.setStreamed();
+	}
+
+	private void finish(PlayStartTrace trace)
+	{
+		synchronized (this)
+		{
+			// Another thread may have finished it already
+			if (current != trace) return;
+			current = null;
+
+			finished[next] = trace;
+			next = (next + 1) % CAPACITY;
+			count = Math.min(count + 1, CAPACITY);
+		}
+
+		Timber.i("%s", trace);
+		Timber.i("%s", getSummary());
+	}
+
+	/**
+	 * @return the finished traces, beginning with the oldest one
+	 */
+	public synchronized List<PlayStartTrace> getTraces()
+	{
+		List<PlayStartTrace> traces = new ArrayList<>(count);
+		for (int i = 0; i < count; i++)
+		{
+			traces.add(finished[(next - count + i + CAPACITY) % CAPACITY]);
+		}
+		return traces;
+	}
+
+	/**
+	 * @return the percentiles of the milliseconds from the tap to each stage of the finished traces,
+	 * or null if none has finished yet
+	 */
+	public String getSummary()
+	{
+		List<PlayStartTrace> traces = getTraces();
+		if (traces.isEmpty()) return null;
+
+		StringBuilder builder = new StringBuilder(String.format(Locale.ROOT, "Time to first audio of the last %d starts", traces.size()));
+		for (PlayStartTrace.Stage stage : PlayStartTrace.Stage.values())
+		{
+			appendPercentiles(builder, stage.getLabel(), getStageMillis(traces, stage), traces.size());
+		}
+
+		// Compares the starts from the memory buffer with the buffered ones
+		List<PlayStartTrace> streamed = new ArrayList<>();
+		List<PlayStartTrace> buffered = new ArrayList<>();
+		for (PlayStartTrace trace : traces)
+		{
+			(trace.isStreamed() ? streamed : buffered).add(trace);
+		}
+		if (!streamed.isEmpty() && !buffered.isEmpty())
+		{
+			appendPercentiles(builder, "streamed audio", getStageMillis(streamed, PlayStartTrace.Stage.FIRST_AUDIO), traces.size());
+			appendPercentiles(builder, "buffered audio", getStageMillis(buffered, PlayStartTrace.Stage.FIRST_AUDIO), traces.size());
+		}
+		return builder.toString();
+	}
+
+	private static void appendPercentiles(StringBuilder builder, String label, long[] millis, int starts)
+	{
+		if (millis.length == 0) return;
+
+		builder.append(String.format(Locale.ROOT, "\n%s:", label));
+		for (int percentile : PERCENTILES)
+		{
+			builder.append(String.format(Locale.ROOT, " p%d %d ms", percentile, getPercentile(millis, percentile)));
+		}
+		if (millis.length < starts)
+		{
+			builder.append(String.format(Locale.ROOT, " (%d starts)", millis.length));
+		}
+	}
+
+	/**
+	 * @return the sorted milliseconds of the traces which have reached the stage
+	 */
+	private static long[] getStageMillis(List<PlayStartTrace> traces, PlayStartTrace.Stage stage)
+	{
+		long[] millis = new long[traces.size()];
+		int reached = 0;
+		for (PlayStartTrace trace : traces)
+		{
+			long time = trace.getStageMillis(stage);
+			if (time >= 0) millis[reached++] = time;
+		}
+
+		millis = Arrays.copyOf(millis, reached);
+		Arrays.sort(millis);
+		return millis;
+	}
+
+	/**
+	 * @return the nearest-rank percentile of the sorted values
+	 */
+	static long getPercentile(long[] sorted, int percentile)
+	{
+		int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+		return sorted[Math.max(0, rank - 1)];
+	}
+}
@@ -0,0 +1,73 @@
+package org.moire.ultrasonic.service;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Computes the playback position from the position and time of the last synchronization
+ * with the player, so the position can be read without asking the player every time.
+ * The player is asked again when the position is read after the sync interval has passed.
+ */
+class PlaybackClock
+{
+    static final long SYNC_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private final Supplier<Long> nanoTime;
+    private int anchorPosition;
+    private long anchorTime;
+    private boolean running;
+
+    PlaybackClock()
+    {
+        this(new Supplier<Long>()
+        {
+            @Override
+            public Long get()
+            {
+                return System.nanoTime();
+            }
+        });
+    }
+
+    PlaybackClock(Supplier<Long> nanoTime)
+    {
+        this.nanoTime = nanoTime;
+        anchorTime = nanoTime.get();
+    }
+
+    /**
+     * Sets the position reported by the player, the clock keeps running or standing still
+     */
+    synchronized void sync(int position)
+    {
+        anchorPosition = position;
+        anchorTime = nanoTime.get();
+    }
+
+    /**
+     * Starts or stops the clock at the current position
+     */
+    synchronized void setRunning(boolean running)
+    {
+        if (this.running == running) return;
+
+        sync(getPosition());
+        this.running = running;
+    }
+
+    /**
+     * @return true if the clock is running and hasn't been synchronized for the sync interval
+     */
+    synchronized boolean isSyncDue()
+    {
+        return running && nanoTime.get() - anchorTime >= SYNC_INTERVAL;
+    }
+
+    /**
+     * @return the playback position in milliseconds
+     */
+    synchronized int getPosition()
+    {
+        if (!running) return anchorPosition;
+        return anchorPosition + (int) TimeUnit.NANOSECONDS.toMillis(nanoTime.get() - anchorTime);
+    }
+}
@@ -0,0 +1,137 @@
+package org.moire.ultrasonic.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses how far ahead of the current song the playlist is downloaded, from the throughput
+ * of the recent downloads. A link which downloads songs much faster than they play preloads
+ * many songs, a link which barely keeps up with the current song preloads few of them,
+ * so their downloads don't compete with the current song for the bandwidth.
+ */
+class PreloadPlanner
+{
+    // Downloads which ended longer ago than this don't tell anything about the current link
+    static final long THROUGHPUT_WINDOW = TimeUnit.MINUTES.toNanos(2);
+    // Below this much transfer time the throughput is only noise
+    static final long MIN_TRANSFER_TIME = TimeUnit.SECONDS.toNanos(2);
+    // The preloaded songs must be downloadable within this many seconds
+    static final long BUDGET_HORIZON = 300L;
+
+    /**
+     * The time span in which a download received data, and how much of it
+     */
+    static class Transfer
+    {
+        final long start;
+        final long end;
+        final long bytes;
+
+        Transfer(long start, long end, long bytes)
+        {
+            this.start = start;
+            this.end = end;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * @param now the current System.nanoTime()
+     * @return the transfers of the downloads which are running or ended recently
+     */
+    static List<Transfer> getRecentTransfers(Collection<DownloadMetrics> metrics, long now)
+    {
+        List<Transfer> transfers = new ArrayList<>();
+        for (DownloadMetrics downloadMetrics : metrics)
+        {
+            long start = downloadMetrics.getFirstByteTime();
+            if (start == 0) continue;
+
+            long end = downloadMetrics.getEndTime();
+            if (end == 0) end = now;
+            if (now - end > THROUGHPUT_WINDOW) continue;
+
+            transfers.add(new Transfer(start, end, downloadMetrics.getBytes()));
+        }
+        return transfers;
+    }
+
+    /**
+     * Calculates the throughput of the link while it was busy. Concurrent downloads share the link,
+     * so the bytes of all transfers are divided by the time in which any of them was running,
+     * and the time in which nothing was downloaded doesn't count.
+     * @return the bytes per second, or -1 if there weren't enough transfers to tell
+     */
+    static long getThroughput(List<Transfer> transfers)
+    {
+        List<Transfer> sorted = new ArrayList<>(transfers);
+        Collections.sort(sorted, new Comparator<Transfer>()
+        {
+            @Override
+            public int compare(Transfer first, Transfer second)
+            {
+                return Long.signum(first.start - second.start);
+            }
+        });
+
+        long bytes = 0;
+        long busyTime = 0;
+        long busyEnd = Long.MIN_VALUE;
+        for (Transfer transfer : sorted)
+        {
+            bytes += transfer.bytes;
+            long start = Math.max(transfer.start, busyEnd);
+            if (transfer.end > start)
+            {
+                busyTime += transfer.end - start;
+            }
+            busyEnd = Math.max(busyEnd, transfer.end);
+        }
+
+        if (busyTime < MIN_TRANSFER_TIME) return -1;
+        return (long) (bytes * (double) TimeUnit.SECONDS.toNanos(1) / busyTime);
+    }
+
+    /**
+     * The current song needs the bandwidth of its own bit rate, the rest of the throughput
+     * preloads the following songs while it plays.
+     * @param throughput the bytes per second of the link, or -1 if it is unknown
+     * @param bitRate the bit rate of the songs, in kbps
+     * @return the number of songs to preload, between min and max
+     */
+    static int getDepth(long throughput, int bitRate, int min, int max)
+    {
+        if (throughput < 0 || bitRate <= 0) return min;
+
+        long depth = throughput / (bitRate * 1000L / 8) - 1;
+        return (int) Math.max(min, Math.min(max, depth));
+    }
+
+    /**
+     * @param throughput the bytes per second of the link, or -1 if it is unknown
+     * @return the number of bytes which may be preloaded beyond the minimum number of songs
+     */
+    static long getByteBudget(long throughput)
+    {
+        if (throughput < 0) return 0;
+        return throughput * BUDGET_HORIZON;
+    }
+
+    /**
+     * @param duration the duration of the song in seconds, or null if it is unknown
+     * @param size the size of the original file, or null if it is unknown
+     * @param bitRate the bit rate the song is downloaded with, in kbps
+     * @return the number of bytes the download of the song is expected to have
+     */
+    static long getEstimatedSize(Integer duration, Long size, int bitRate)
+    {
+        if (duration == null || duration <= 0) return size == null ? 0 : size;
+
+        long transcoded = duration * (bitRate * 1000L / 8);
+        return size == null ? transcoded : Math.min(size, transcoded);
+    }
+}
@@ -0,0 +1,160 @@
+package org.moire.ultrasonic.service;
+
+import timber.log.Timber;
+
+import org.moire.ultrasonic.domain.MusicDirectory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persists a queue of songs as a journal of the songs which were added and removed.
+ * It is compacted into one record per song.
+ */
+class QueueJournal extends AppendOnlyJournal
+{
+    private static final byte ADD = 'A';
+    private static final byte REMOVE = 'R';
+    private static final int MAX_RECORD_LENGTH = 1024 * 1024;
+
+    private final Map<String, Item> items = new LinkedHashMap<>();
+
+    QueueJournal(File file)
+    {
+        super(file);
+    }
+
+    /**
+     * A song in the queue, and whether it should be saved permanently
+     */
+    static class Item
+    {
+        final MusicDirectory.Entry song;
+        final boolean save;
+
+        Item(MusicDirectory.Entry song, boolean save)
+        {
+            this.song = song;
+            this.save = save;
+        }
+    }
+
+    /**
+     * Reads the queue from the file and compacts it
+     */
+    List<Item> load()
+    {
+        items.clear();
+        replay();
+        compact();
+        Timber.i("Loaded %d songs from %s", items.size(), file);
+        return new ArrayList<>(items.values());
+    }
+
+    void add(Collection<Item> added)
+    {
+        try
+        {
+            DataOutputStream out = getOutputStream();
+            for (Item item : added)
+            {
+                writeAdd(out, item);
+                put(item);
+            }
+            flush(added.size());
+        }
+        catch (IOException x)
+        {
+            writeFailed(x);
+        }
+    }
+
+    void remove(String id)
+    {
+        if (items.remove(id) == null) return;
+
+        try
+        {
+            DataOutputStream out = getOutputStream();
+            out.writeByte(REMOVE);
+            out.writeUTF(id);
+            flush(1);
+        }
+        catch (IOException x)
+        {
+            writeFailed(x);
+        }
+    }
+
+    void clear()
+    {
+        items.clear();
+        compact();
+    }
+
+    @Override
+    int size()
+    {
+        return items.size();
+    }
+
+    @Override
+    boolean readRecord(DataInputStream in) throws IOException, ClassNotFoundException
+    {
+        int type = in.read();
+        switch (type)
+        {
+            case -1:
+                return false;
+            case ADD:
+                int length = in.readInt();
+                if (length < 0 || length > MAX_RECORD_LENGTH) throw new IOException(String.format("Invalid record length %d", length));
+
+                byte[] song = new byte[length];
+                in.readFully(song);
+                put(new Item(deserialize(song, 1).get(0), in.readBoolean()));
+                return true;
+            case REMOVE:
+                items.remove(in.readUTF());
+                return true;
+            default:
+                throw new IOException(String.format("Unknown record type %d", type));
+        }
+    }
+
+    private void put(Item item)
+    {
+        // A song is only downloaded once, but saved if any of its additions asked for it
+        Item existing = items.get(item.song.getId());
+        items.put(item.song.getId(), existing != null && existing.save ? new Item(item.song, true) : item);
+    }
+
+    /**
+     * Writes one record per song
+     */
+    @Override
+    void writeSnapshot(DataOutputStream out) throws IOException
+    {
+        for (Item item : items.values())
+        {
+            writeAdd(out, item);
+        }
+    }
+
+    private static void writeAdd(DataOutputStream out, Item item) throws IOException
+    {
+        byte[] song = serialize(Collections.singletonList(item.song));
+        out.writeByte(ADD);
+        out.writeInt(song.length);
+        out.write(song);
+        out.writeBoolean(item.save);
+    }
+}
@@ -0,0 +1,172 @@
+package org.moire.ultrasonic.service;
+
+import android.content.Context;
+import timber.log.Timber;
+
+import org.jetbrains.annotations.NotNull;
+import org.moire.ultrasonic.domain.DownloadResponse;
+import org.moire.ultrasonic.domain.MusicDirectory;
+import org.moire.ultrasonic.util.CancellableTask;
+import org.moire.ultrasonic.util.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Downloads a song from a position ahead of the running download, when the player seeks there.
+ * It writes into the partial file at the fetched offsets, and continues through the gaps
+ * behind the ranges which are already there, until the end of the file.
+ * The running download fills the bytes before the position meanwhile.
+ */
+class SeekFetch extends CancellableTask
+{
+	private final Context context;
+	private final MusicService musicService;
+	private final MusicDirectory.Entry song;
+	private final File partialFile;
+	private final int bitRate;
+	private final DownloadJournal journal;
+	private final ByteRanges ranges;
+	private final long start;
+	private final BandwidthScheduler.Ticket ticket;
+	private final Consumer<Integer> progressListener;
+	private final CountDownLatch finished = new CountDownLatch(1);
+	private volatile boolean failed;
+
+	/**
+	 * @param journal the length and version of the file, the fetched ranges must match it
+	 * @param ranges receives the fetched ranges, and tells which ones are already there
+	 * @param progressListener receives the number of bytes of each block after it was written
+	 */
+	SeekFetch(Context context, MusicService musicService, MusicDirectory.Entry song, File partialFile, int bitRate,
+			  DownloadJournal journal, ByteRanges ranges, long start, BandwidthScheduler.Ticket ticket,
+			  Consumer<Integer> progressListener)
+	{
+		this.context = context;
+		this.musicService = musicService;
+		this.song = song;
+		this.partialFile = partialFile;
+		this.bitRate = bitRate;
+		this.journal = journal;
+		this.ranges = ranges;
+		this.start = start;
+		this.ticket = ticket;
+		this.progressListener = progressListener;
+	}
+
+	/**
+	 * Like a segmented download, a fetch ahead is only possible if the server sends the original file,
+	 * because the offsets of a transcoded stream don't match the offsets of the partial file.
+	 */
+	static boolean isSupported(MusicDirectory.Entry song, int bitRate)
+	{
+		if (song.isVideo() || song.getTranscodedSuffix() != null) return false;
+
+		Integer songBitRate = song.getBitRate();
+		return bitRate == 0 || (songBitRate != null && bitRate >= songBitRate);
+	}
+
+	long getStart()
+	{
+		return start;
+	}
+
+	/**
+	 * @return true if the server couldn't send the requested range, fetching ahead is pointless then
+	 */
+	boolean isFailed()
+	{
+		return failed;
+	}
+
+	/**
+	 * Blocks until the fetch has ended
+	 */
+	void await() throws InterruptedException
+	{
+		finished.await();
+	}
+
+	@Override
+	public void execute()
+	{
+		RandomAccessFile file = null;
+
+		try
+		{
+			Timber.i("Fetching %s from %d", song, start);
+			file = new RandomAccessFile(partialFile, "rw");
+			FileChannel channel = file.getChannel();
+			long position = start;
+
+			while (!isCancelled())
+			{
+				position = ranges.getEnd(position);
+				if (position >= journal.totalLength) break;
+
+				fetch(channel, position, Math.min(ranges.getNextStart(position), journal.totalLength) - position);
+			}
+		}
+		catch (Exception x)
+		{
+			if (!isCancelled())
+			{
+				failed = true;
+				Timber.w(x, "Failed to fetch %s from %d", song, start);
+			}
+		}
+		finally
+		{
+			Util.close(file);
+			finished.countDown();
+		}
+	}
+
+	private void fetch(FileChannel channel, final long position, long length) throws Exception
+	{
+		DownloadResponse response = musicService.getDownloadInputStream(context, song, position, length, bitRate, journal.getValidator(), this);
+		InputStream in = response.getStream();
+
+		try
+		{
+			if (!journal.matches(response))
+			{
+				throw new IOException("Server ignored the range request or the file has changed");
+			}
+
+			final long[] count = { 0 };
+			DownloadCopier.copy(in, channel, position, length, this, new Consumer<Integer>()
+			{
+				@Override
+				public void accept(Integer n)
+				{
+					ranges.add(position + count[0], position + count[0] + n);
+					count[0] += n;
+					progressListener.accept(n);
+
+					ticket.acquire(n, SeekFetch.this);
+				}
+			});
+
+			if (count[0] < length && !isCancelled())
+			{
+				throw new IOException(String.format("Fetch of '%s' ended after %d of %d bytes", song, count[0], length));
+			}
+		}
+		finally
+		{
+			Util.close(in);
+		}
+	}
+
+	@NotNull
+	@Override
+	public String toString()
+	{
+		return String.format("SeekFetch (%s)", song);
+	}
+}
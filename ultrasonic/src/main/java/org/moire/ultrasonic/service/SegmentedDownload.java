@@ -0,0 +1,247 @@
+package org.moire.ultrasonic.service;
+
+import android.content.Context;
+import timber.log.Timber;
+
+import org.moire.ultrasonic.domain.DownloadResponse;
+import org.moire.ultrasonic.domain.MusicDirectory;
+import org.moire.ultrasonic.featureflags.Feature;
+import org.moire.ultrasonic.featureflags.FeatureStorage;
+import org.moire.ultrasonic.util.CancellableTask;
+import org.moire.ultrasonic.util.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.koin.java.KoinJavaComponent.get;
+
+/**
+ * Downloads a song over multiple connections at once, each fetching a byte range
+ * into its place in the preallocated partial file.
+ * Only the contiguous bytes from the start of the file are reported as downloaded,
+ * so the partial file can still be played while the download is running.
+ */
+class SegmentedDownload
+{
+	private static final int MAX_SEGMENTS = 4;
+	private static final long MIN_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+	private final Context context;
+	private final MusicService musicService;
+	private final MusicDirectory.Entry song;
+	private final File partialFile;
+	private final long size;
+	private final int bitRate;
+	private final CancellableTask task;
+	private final BandwidthScheduler.Ticket ticket;
+	private final DownloadJournal journal;
+	private final DownloadMetrics metrics;
+	private final Consumer<Long> progressListener;
+
+	private final long[] segmentStarts;
+	private final AtomicLongArray segmentBytes;
+	private final AtomicReferenceArray<InputStream> segmentStreams;
+	private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+	/**
+	 * @param journal receives the length and version of the file
+	 * @param metrics receives the times of the first request
+	 * @param progressListener receives the number of contiguous bytes from the start of the file
+	 */
+	SegmentedDownload(Context context, MusicService musicService, MusicDirectory.Entry song, File partialFile,
+					  int bitRate, CancellableTask task, BandwidthScheduler.Ticket ticket, DownloadJournal journal,
+					  DownloadMetrics metrics, Consumer<Long> progressListener)
+	{
+		this.context = context;
+		this.musicService = musicService;
+		this.song = song;
+		this.partialFile = partialFile;
+		this.size = song.getSize();
+		this.bitRate = bitRate;
+		this.task = task;
+		this.ticket = ticket;
+		this.journal = journal;
+		this.metrics = metrics;
+		this.progressListener = progressListener;
+
+		int segments = (int) Math.min(MAX_SEGMENTS, size / MIN_SEGMENT_SIZE);
+		segmentStarts = new long[segments + 1];
+		for (int i = 0; i < segments; i++)
+		{
+			segmentStarts[i] = size / segments * i;
+		}
+		segmentStarts[segments] = size;
+
+		segmentBytes = new AtomicLongArray(segments);
+		segmentStreams = new AtomicReferenceArray<>(segments);
+	}
+
+	/**
+	 * Segmented download is only possible if the server sends the original file,
+	 * because only then the size of the song is known before the download.
+	 */
+	static boolean isSupported(MusicDirectory.Entry song, int bitRate, long partialBytes)
+	{
+		if (!get(FeatureStorage.class).isFeatureEnabled(Feature.SEGMENTED_DOWNLOAD)) return false;
+		if (partialBytes > 0 || song.isVideo() || song.getTranscodedSuffix() != null) return false;
+		if (song.getSize() == null || song.getSize() < MIN_SEGMENT_SIZE * 2) return false;
+
+		Integer songBitRate = song.getBitRate();
+		return bitRate == 0 || (songBitRate != null && bitRate >= songBitRate);
+	}
+
+	/**
+	 * Downloads the song.
+	 * @return false, if the server doesn't support ranges. Nothing has been written in this case.
+	 */
+	boolean download() throws Exception
+	{
+		int segments = segmentBytes.length();
+
+		// The first range tells if the server supports ranges at all
+		metrics.onRequest();
+		DownloadResponse first = musicService.getDownloadInputStream(context, song, 0, segmentStarts[1], bitRate, null, task);
+		metrics.onResponse();
+		if (!first.isPartial() || (first.getTotalLength() >= 0 && first.getTotalLength() != size))
+		{
+			Timber.i("Server ignored the range request, downloading %s in one piece", song);
+			Util.close(first.getStream());
+			return false;
+		}
+
+		// The other segments must come from the same version of the file
+		journal.update(first);
+		journal.totalLength = size;
+		journal.segmented = true;
+		journal.save(partialFile);
+
+		Timber.i("Downloading %s in %d segments", song, segments);
+		RandomAccessFile file = new RandomAccessFile(partialFile, "rw");
+
+		try
+		{
+			file.setLength(size);
+			final FileChannel channel = file.getChannel();
+			segmentStreams.set(0, first.getStream());
+
+			Thread[] threads = new Thread[segments];
+			for (int i = 1; i < segments; i++)
+			{
+				final int segment = i;
+				threads[i] = new Thread(String.format("SegmentedDownload %d (%s)", i, song.getId()))
+				{
+					@Override
+					public void run()
+					{
+						downloadSegment(segment, channel);
+					}
+				};
+				threads[i].start();
+			}
+
+			downloadSegment(0, channel);
+
+			for (int i = 1; i < segments; i++)
+			{
+				threads[i].join();
+			}
+
+			if (failure.get() != null) throw failure.get();
+			if (task.isCancelled()) throw new IOException(String.format("Download of '%s' was cancelled", song));
+		}
+		finally
+		{
+			// Only keep what can be resumed from, which is a normal partial file again
+			long contiguous = getContiguousBytes();
+			if (contiguous < size)
+			{
+				file.setLength(contiguous);
+			}
+
+			Util.close(file);
+			journal.segmented = false;
+			journal.save(partialFile);
+		}
+
+		return true;
+	}
+
+	private void downloadSegment(final int segment, FileChannel channel)
+	{
+		long start = segmentStarts[segment];
+		long length = segmentStarts[segment + 1] - start;
+
+		try
+		{
+			InputStream in = segmentStreams.get(segment);
+			if (in == null)
+			{
+				DownloadResponse response = musicService.getDownloadInputStream(context, song, start, length, bitRate, journal.getValidator(), task);
+				in = response.getStream();
+				segmentStreams.set(segment, in);
+
+				if (!journal.matches(response))
+				{
+					throw new IOException("Server ignored the range request or the file has changed");
+				}
+			}
+
+			final long[] count = { 0 };
+			DownloadCopier.copy(in, channel, start, length, task, new Consumer<Integer>()
+			{
+				@Override
+				public void accept(Integer n)
+				{
+					count[0] += n;
+					segmentBytes.set(segment, count[0]);
+					if (segment == 0 || segmentBytes.get(segment - 1) == segmentStarts[segment] - segmentStarts[segment - 1])
+					{
+						progressListener.accept(getContiguousBytes());
+					}
+
+					ticket.acquire(n, task);
+				}
+			});
+
+			if (count[0] < length && failure.get() == null && !task.isCancelled())
+			{
+				throw new IOException(String.format("Segment %d of '%s' ended after %d of %d bytes", segment, song, count[0], length));
+			}
+
+			progressListener.accept(getContiguousBytes());
+		}
+		catch (Exception x)
+		{
+			if (failure.compareAndSet(null, x))
+			{
+				// Let the other segments stop right away
+				for (int i = 0; i < segmentStreams.length(); i++)
+				{
+					Util.close(segmentStreams.get(i));
+				}
+			}
+		}
+		finally
+		{
+			Util.close(segmentStreams.get(segment));
+		}
+	}
+
+	private long getContiguousBytes()
+	{
+		long contiguous = 0;
+		for (int i = 0; i < segmentBytes.length(); i++)
+		{
+			long bytes = segmentBytes.get(i);
+			contiguous += bytes;
+			if (bytes < segmentStarts[i + 1] - segmentStarts[i]) break;
+		}
+		return contiguous;
+	}
+}
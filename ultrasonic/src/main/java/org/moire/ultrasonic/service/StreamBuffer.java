@@ -0,0 +1,107 @@
+package org.moire.ultrasonic.service;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the most recently downloaded bytes of a file in memory, so the player can be fed
+ * from the network stream while the same bytes are written to the cache file.
+ * It holds a window of the file which moves forward with the download;
+ * a reader which has fallen behind the window reads the file instead.
+ */
+public class StreamBuffer
+{
+	static final int DEFAULT_CAPACITY = 512 * 1024;
+
+	private final byte[] ring;
+	// The offsets in the file of the oldest byte in memory, and of the byte after the newest one
+	private long start;
+	private long end;
+	private boolean closed;
+
+	public StreamBuffer(int capacity)
+	{
+		ring = new byte[capacity];
+	}
+
+	/**
+	 * Empties the buffer, the next write continues the file at the given offset
+	 */
+	synchronized void reset(long offset)
+	{
+		start = offset;
+		end = offset;
+		closed = false;
+		notifyAll();
+	}
+
+	/**
+	 * Appends the remaining bytes of the data, without changing its position
+	 */
+	synchronized void write(ByteBuffer data)
+	{
+		ByteBuffer source = data.duplicate();
+		while (source.hasRemaining())
+		{
+			int index = (int) (end % ring.length);
+			int count = Math.min(source.remaining(), ring.length - index);
+			source.get(ring, index, count);
+			end += count;
+		}
+
+		start = Math.max(start, end - ring.length);
+		notifyAll();
+	}
+
+	/**
+	 * Ends the stream, the readers continue with the file
+	 */
+	synchronized void close()
+	{
+		closed = true;
+		notifyAll();
+	}
+
+	/**
+	 * @return true if the byte at the position is, or will be, served from memory
+	 */
+	public synchronized boolean isStreaming(long position)
+	{
+		return !closed && position >= start;
+	}
+
+	/**
+	 * Copies the bytes from the position on into the destination, as far as they are in memory
+	 * @return the number of bytes copied, 0 if the position hasn't been downloaded yet,
+	 * or -1 if it isn't served from memory
+	 */
+	public synchronized int read(long position, ByteBuffer destination)
+	{
+		if (!isStreaming(position)) return -1;
+
+		int copied = 0;
+		while (position + copied < end && destination.hasRemaining())
+		{
+			int index = (int) ((position + copied) % ring.length);
+			int count = (int) Math.min(Math.min(destination.remaining(), ring.length - index), end - position - copied);
+			destination.put(ring, index, count);
+			copied += count;
+		}
+		return copied;
+	}
+
+	/**
+	 * Blocks until the byte at the position has been downloaded, the stream has ended,
+	 * the position has fallen out of the window, or the timeout has passed
+	 */
+	public synchronized void await(long position, long timeoutMillis) throws InterruptedException
+	{
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		while (isStreaming(position) && position >= end)
+		{
+			long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (remaining <= 0) return;
+			wait(remaining);
+		}
+	}
+}
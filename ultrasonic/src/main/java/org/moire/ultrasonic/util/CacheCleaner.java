@@ -228,8 +228,8 @@ public class CacheCleaner
 
 		for (DownloadFile downloadFile : downloader.getValue().getDownloads())
 		{
-			filesToNotDelete.add(downloadFile.getPartialFile());
-			filesToNotDelete.add(downloadFile.getCompleteFile());
+			// Only the paths, looking at the files would load the state of the whole queue
+			filesToNotDelete.addAll(downloadFile.getFilePaths());
 		}
 
 		filesToNotDelete.add(FileUtil.getMusicDirectory(context));
@@ -254,6 +254,7 @@ public class CacheCleaner
 
 				deleteFiles(files, filesToNotDelete, getMinimumDelete(files), true);
 				deleteEmptyDirs(dirs, filesToNotDelete);
+				downloader.getValue().clearDownloadFileCache();
 			}
 			catch (RuntimeException x)
 			{
@@ -282,6 +283,7 @@ public class CacheCleaner
 					sortByAscendingModificationTime(files);
 					Set<File> filesToNotDelete = findFilesToNotDelete();
 					deleteFiles(files, filesToNotDelete, bytesToDelete, false);
+					downloader.getValue().clearDownloadFileCache();
 				}
 			}
 			catch (RuntimeException x)
@@ -20,6 +20,8 @@ package org.moire.ultrasonic.util;
 
 import timber.log.Timber;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -32,24 +34,28 @@ public abstract class CancellableTask
 	private final AtomicBoolean running = new AtomicBoolean(false);
 	private final AtomicBoolean cancelled = new AtomicBoolean(false);
 	private final AtomicReference<Thread> thread = new AtomicReference<Thread>();
-	private final AtomicReference<OnCancelListener> cancelListener = new AtomicReference<OnCancelListener>();
+	private final List<OnCancelListener> cancelListeners = new CopyOnWriteArrayList<OnCancelListener>();
 
 	public void cancel()
 	{
 		Timber.i("Cancelling %s", CancellableTask.this);
 		cancelled.set(true);
 
-		OnCancelListener listener = cancelListener.get();
-		if (listener != null)
+		for (OnCancelListener listener : cancelListeners)
 		{
-			try
-			{
-				listener.onCancel();
-			}
-			catch (Throwable x)
-			{
-				Timber.w(x, "Error when invoking OnCancelListener.");
-			}
+			invoke(listener);
+		}
+	}
+
+	private static void invoke(OnCancelListener listener)
+	{
+		try
+		{
+			listener.onCancel();
+		}
+		catch (Throwable x)
+		{
+			Timber.w(x, "Error when invoking OnCancelListener.");
 		}
 	}
 
@@ -58,9 +64,23 @@ public abstract class CancellableTask
 		return cancelled.get();
 	}
 
-	public void setOnCancelListener(OnCancelListener listener)
+	/**
+	 * Adds a listener which is invoked when the task is cancelled,
+	 * or right away if the task is already cancelled
+	 */
+	public void addOnCancelListener(OnCancelListener listener)
+	{
+		cancelListeners.add(listener);
+
+		if (isCancelled())
+		{
+			invoke(listener);
+		}
+	}
+
+	public void removeOnCancelListener(OnCancelListener listener)
 	{
-		cancelListener.set(listener);
+		cancelListeners.remove(listener);
 	}
 
 	public boolean isRunning()
@@ -72,6 +92,8 @@ public abstract class CancellableTask
 
 	public void start()
 	{
+		// Mark the task running before the thread is scheduled, so callers never see a started task as idle
+		running.set(true);
 		thread.set(new Thread()
 		{
 			@Override
@@ -84,6 +84,9 @@ public final class Constants
 	public static final String PREFERENCES_KEY_CACHE_SIZE = "cacheSize";
 	public static final String PREFERENCES_KEY_CACHE_LOCATION = "cacheLocation";
 	public static final String PREFERENCES_KEY_PRELOAD_COUNT = "preloadCount";
+	public static final String PREFERENCES_KEY_PRELOAD_COUNT_MIN = "preloadCountMin";
+	public static final String PREFERENCES_KEY_ADAPTIVE_PRELOAD = "adaptivePreload";
+	public static final String PREFERENCES_KEY_PARALLEL_DOWNLOADS = "parallelDownloads";
 	public static final String PREFERENCES_KEY_HIDE_MEDIA = "hideMedia";
 	public static final String PREFERENCES_KEY_MEDIA_BUTTONS = "mediaButtons";
 	public static final String PREFERENCES_KEY_SCREEN_LIT_ON_DOWNLOAD = "screenLitOnDownload";
@@ -92,6 +95,7 @@ public final class Constants
 	public static final String PREFERENCES_KEY_REPEAT_MODE = "repeatMode";
 	public static final String PREFERENCES_KEY_WIFI_REQUIRED_FOR_DOWNLOAD = "wifiRequiredForDownload";
 	public static final String PREFERENCES_KEY_BUFFER_LENGTH = "bufferLength";
+	public static final String PREFERENCES_KEY_TEE_STREAMING = "teeStreaming";
 	public static final String PREFERENCES_KEY_NETWORK_TIMEOUT = "networkTimeout";
 	public static final String PREFERENCES_KEY_SHOW_NOTIFICATION = "showNotification";
 	public static final String PREFERENCES_KEY_ALWAYS_SHOW_NOTIFICATION = "alwaysShowNotification";
@@ -129,18 +133,22 @@ public final class Constants
 	public static final String PREFERENCES_KEY_IMAGE_LOADER_CONCURRENCY = "imageLoaderConcurrency";
 	public static final String PREFERENCES_KEY_FF_IMAGE_LOADER = "ff_new_image_loader";
 	public static final String PREFERENCES_KEY_USE_FIVE_STAR_RATING = "use_five_star_rating";
+	public static final String PREFERENCES_KEY_FF_SEGMENTED_DOWNLOAD = "ff_segmented_download";
 	public static final String PREFERENCES_KEY_CATEGORY_NOTIFICATIONS = "notificationsCategory";
 	public static final String PREFERENCES_KEY_FIRST_RUN_EXECUTED = "firstRunExecuted";
 	public static final String PREFERENCES_KEY_RESUME_ON_BLUETOOTH_DEVICE = "resumeOnBluetoothDevice";
 	public static final String PREFERENCES_KEY_PAUSE_ON_BLUETOOTH_DEVICE = "pauseOnBluetoothDevice";
 	public static final String PREFERENCES_KEY_SINGLE_BUTTON_PLAY_PAUSE = "singleButtonPlayPause";
 	public static final String PREFERENCES_KEY_DEBUG_LOG_TO_FILE = "debugLogToFile";
+	public static final String PREFERENCES_KEY_DEBUG_PLAY_START_LATENCY = "debugPlayStartLatency";
 
 	public static final int PREFERENCE_VALUE_ALL = 0;
 	public static final int PREFERENCE_VALUE_A2DP = 1;
 	public static final int PREFERENCE_VALUE_DISABLED = 2;
 
 	public static final String FILENAME_DOWNLOADS_SER = "downloadstate.ser";
+	public static final String FILENAME_PLAY_QUEUE_JOURNAL = "playqueue.journal";
+	public static final String FILENAME_BACKGROUND_DOWNLOADS_JOURNAL = "backgrounddownloads.journal";
 
 	public static final String ALBUM_ART_FILE = "folder.jpeg";
 	public static final String STARRED = "starred";
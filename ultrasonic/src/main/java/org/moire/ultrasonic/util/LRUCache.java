@@ -18,100 +18,289 @@
  */
 package org.moire.ultrasonic.util;
 
-import java.lang.ref.SoftReference;
-import java.util.HashMap;
-import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
+ * A cache which evicts the least recently used entries when their total weight exceeds its capacity.
+ * By default each entry weighs one, so the capacity is the number of entries.
+ * <p/>
+ * Reads only look up a concurrent map and don't block. They record the access in a small buffer,
+ * which is replayed into the access order by whichever thread gets the lock next,
+ * so the order is only approximate while the cache is busy. Writes and the eviction take the lock,
+ * and each of them moves a constant number of entries in a linked list.
+ * The values are held strongly, only the capacity decides what is evicted.
+ *
  * @author Sindre Mehus
  */
 public class LRUCache<K, V>
 {
+	private static final int READ_BUFFER_SIZE = 64;
+	private static final int READ_BUFFER_DRAIN_THRESHOLD = 16;
+
+	private final long capacity;
+	private final Weigher<K, V> weigher;
+	private final ConcurrentHashMap<K, Node<K, V>> map = new ConcurrentHashMap<>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Queue<Node<K, V>> readBuffer = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger readBufferSize = new AtomicInteger();
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	// The sentinel of the access order, its next node is the most recently used one. Guarded by the lock
+	private final Node<K, V> head = new Node<>(null, null, 0);
+	private long weight;
 
-	private final int capacity;
-	private final Map<K, TimestampedValue> map;
+	/**
+	 * Calculates the weight of an entry, e.g. the number of bytes of the value
+	 */
+	public abstract static class Weigher<K, V>
+	{
+		public abstract int weigh(K key, V value);
+	}
 
+	/**
+	 * @param capacity the number of entries to keep
+	 */
 	public LRUCache(int capacity)
 	{
-		map = new HashMap<K, TimestampedValue>(capacity);
-		this.capacity = capacity;
+		this(capacity, new Weigher<K, V>()
+		{
+			@Override
+			public int weigh(K key, V value)
+			{
+				return 1;
+			}
+		});
 	}
 
-	public synchronized V get(K key)
+	/**
+	 * @param capacity the total weight of the entries to keep
+	 * @param weigher calculates the weight of each entry when it is put into the cache
+	 */
+	public LRUCache(long capacity, Weigher<K, V> weigher)
 	{
-		TimestampedValue value = map.get(key);
+		this.capacity = capacity;
+		this.weigher = weigher;
+		head.previous = head;
+		head.next = head;
+	}
 
-		V result = null;
-		if (value != null)
+	public V get(K key)
+	{
+		Node<K, V> node = map.get(key);
+		if (node == null)
 		{
-			value.updateTimestamp();
-			result = value.getValue();
+			missCount.incrementAndGet();
+			return null;
 		}
 
-		return result;
+		hitCount.incrementAndGet();
+		recordAccess(node);
+		return node.value;
 	}
 
-	public synchronized void put(K key, V value)
+	public void put(K key, V value)
 	{
-		if (map.size() >= capacity)
+		Node<K, V> node = new Node<>(key, value, weigher.weigh(key, value));
+
+		lock.lock();
+		try
+		{
+			drainReadBuffer();
+
+			Node<K, V> previous = map.put(key, node);
+			if (previous != null) unlink(previous);
+			link(node);
+
+			while (weight > capacity && head.previous != head)
+			{
+				Node<K, V> eldest = head.previous;
+				map.remove(eldest.key, eldest);
+				unlink(eldest);
+				evictionCount.incrementAndGet();
+			}
+		}
+		finally
 		{
-			removeOldest();
+			lock.unlock();
 		}
-		map.put(key, new TimestampedValue(value));
 	}
 
-	public void clear()
+	/**
+	 * @return the value which was removed, or null if there was none
+	 */
+	public V remove(K key)
 	{
-		map.clear();
+		lock.lock();
+		try
+		{
+			drainReadBuffer();
+
+			Node<K, V> node = map.remove(key);
+			if (node == null) return null;
+
+			unlink(node);
+			return node.value;
+		}
+		finally
+		{
+			lock.unlock();
+		}
 	}
 
-	private void removeOldest()
+	public void clear()
 	{
-		K oldestKey = null;
-		long oldestTimestamp = Long.MAX_VALUE;
-
-		for (Map.Entry<K, TimestampedValue> entry : map.entrySet())
+		lock.lock();
+		try
 		{
-			K key = entry.getKey();
-			TimestampedValue value = entry.getValue();
-			if (value.getTimestamp() < oldestTimestamp)
+			drainReadBuffer();
+
+			for (Node<K, V> node : map.values())
 			{
-				oldestTimestamp = value.getTimestamp();
-				oldestKey = key;
+				unlink(node);
 			}
+			map.clear();
+		}
+		finally
+		{
+			lock.unlock();
 		}
+	}
 
-		if (oldestKey != null)
+	public int size()
+	{
+		return map.size();
+	}
+
+	/**
+	 * @return the total weight of the entries in the cache
+	 */
+	public long getWeight()
+	{
+		lock.lock();
+		try
 		{
-			map.remove(oldestKey);
+			return weight;
+		}
+		finally
+		{
+			lock.unlock();
 		}
 	}
 
-	private final class TimestampedValue
+	public long getHitCount()
 	{
+		return hitCount.get();
+	}
 
-		private final SoftReference<V> value;
-		private long timestamp;
+	public long getMissCount()
+	{
+		return missCount.get();
+	}
 
-		public TimestampedValue(V value)
+	public long getEvictionCount()
+	{
+		return evictionCount.get();
+	}
+
+	@NotNull
+	@Override
+	public String toString()
+	{
+		long hits = hitCount.get();
+		long requests = hits + missCount.get();
+		return String.format(Locale.ROOT, "LRUCache (%d entries, weight %d of %d, %d hits, %d misses, %d%% hit rate, %d evictions)",
+				map.size(), getWeight(), capacity, hits, requests - hits, requests == 0 ? 0 : 100 * hits / requests,
+				evictionCount.get());
+	}
+
+	/**
+	 * Queues the access to the node, and replays the queued accesses if the lock is free.
+	 * When the buffer is full the access is dropped, which only makes the order less accurate.
+	 */
+	private void recordAccess(Node<K, V> node)
+	{
+		if (readBufferSize.get() < READ_BUFFER_SIZE)
 		{
-			this.value = new SoftReference<V>(value);
-			updateTimestamp();
+			readBufferSize.incrementAndGet();
+			readBuffer.offer(node);
 		}
 
-		public V getValue()
+		if (readBufferSize.get() >= READ_BUFFER_DRAIN_THRESHOLD && lock.tryLock())
 		{
-			return value.get();
+			try
+			{
+				drainReadBuffer();
+			}
+			finally
+			{
+				lock.unlock();
+			}
 		}
+	}
 
-		public long getTimestamp()
+	private void drainReadBuffer()
+	{
+		Node<K, V> node;
+		while ((node = readBuffer.poll()) != null)
 		{
-			return timestamp;
+			readBufferSize.decrementAndGet();
+
+			// The node may have been removed or replaced after it was read
+			if (node.linked)
+			{
+				unlink(node);
+				link(node);
+			}
 		}
+	}
+
+	private void link(Node<K, V> node)
+	{
+		node.previous = head;
+		node.next = head.next;
+		head.next.previous = node;
+		head.next = node;
+		node.linked = true;
+		weight += node.weight;
+	}
+
+	private void unlink(Node<K, V> node)
+	{
+		if (!node.linked) return;
+
+		node.previous.next = node.next;
+		node.next.previous = node.previous;
+		node.previous = null;
+		node.next = null;
+		node.linked = false;
+		weight -= node.weight;
+	}
+
+	private static final class Node<K, V>
+	{
+		private final K key;
+		private final V value;
+		private final int weight;
+		// Guarded by the lock of the cache
+		private Node<K, V> previous;
+		private Node<K, V> next;
+		private boolean linked;
 
-		public void updateTimestamp()
+		Node(K key, V value, int weight)
 		{
-			timestamp = System.currentTimeMillis();
+			this.key = key;
+			this.value = value;
+			this.weight = weight;
 		}
 	}
-}
\ No newline at end of file
+}
@@ -53,7 +53,14 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * @author Sindre Mehus
  */
 public class LegacyImageLoader implements Runnable, ImageLoader {
-    private final LRUCache<String, Bitmap> cache = new LRUCache<>(150);
+    // The decoded images may take up an eighth of the heap
+    private final LRUCache<String, Bitmap> cache = new LRUCache<>(Runtime.getRuntime().maxMemory() / 8,
+            new LRUCache.Weigher<String, Bitmap>() {
+                @Override
+                public int weigh(String key, Bitmap bitmap) {
+                    return bitmap == null ? 0 : bitmap.getRowBytes() * bitmap.getHeight();
+                }
+            });
     private final BlockingQueue<Task> queue;
     private int imageSizeDefault;
     private final int imageSizeLarge;
@@ -110,6 +117,7 @@ public class LegacyImageLoader implements Runnable, ImageLoader {
     @Override
     public synchronized void stopImageLoader() {
         clear();
+        Timber.i("Image cache: %s", cache);
 
         for (Thread thread : threads) {
             thread.interrupt();
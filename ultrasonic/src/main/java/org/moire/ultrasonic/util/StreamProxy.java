@@ -1,47 +1,116 @@
 package org.moire.ultrasonic.util;
 
+import android.os.Debug;
 import timber.log.Timber;
 
 import org.moire.ultrasonic.domain.MusicDirectory;
 import org.moire.ultrasonic.service.DownloadFile;
+import org.moire.ultrasonic.service.PlayStartTrace;
+import org.moire.ultrasonic.service.PlayStartTracer;
+import org.moire.ultrasonic.service.StreamBuffer;
 import org.moire.ultrasonic.service.Supplier;
 
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
 import java.net.UnknownHostException;
-import java.util.StringTokenizer;
-
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serves the file of the current song to the MediaPlayer over HTTP while it is being downloaded.
+ * The connections are handled by a small pool of workers and are kept alive between requests.
+ * When all workers are busy, a new connection waits in a queue, and the connection which has been
+ * idle for the longest time is closed to make room for it.
+ * Range requests are answered with the requested part of the file when its length is known,
+ * so the MediaPlayer can seek in a partial file without reading it from the start.
+ */
 public class StreamProxy implements Runnable
 {
+	private static final int MAX_CONNECTIONS = 4;
+	private static final int MAX_QUEUED_CONNECTIONS = 8;
+	private static final int KEEP_ALIVE_TIMEOUT = 30000;
+	private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+	static final long[] UNSATISFIABLE = new long[0];
+
 	private Thread thread;
-	private boolean isRunning;
-	private ServerSocket socket;
+	private volatile boolean isRunning;
+	private ServerSocketChannel socket;
 	private int port;
-	private Supplier<DownloadFile> currentPlaying;
+	private final Supplier<DownloadFile> currentPlaying;
+	private final PlayStartTracer playStartTracer;
+	private final Supplier<Long> threadCpuTime;
+	private final AtomicLong bytesStreamed = new AtomicLong();
+	private final AtomicLong cpuNanosStreaming = new AtomicLong();
+	private final Set<Socket> clients = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+	// The connections which wait for their next request, the longest waiting first
+	private final Set<Socket> idleClients = Collections.synchronizedSet(new LinkedHashSet<Socket>());
+	private final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_CONNECTIONS, MAX_CONNECTIONS, KEEP_ALIVE_TIMEOUT, TimeUnit.MILLISECONDS,
+			new LinkedBlockingQueue<Runnable>(MAX_QUEUED_CONNECTIONS), new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			return new Thread(runnable, "StreamProxy");
+		}
+	});
 
-	public StreamProxy(Supplier<DownloadFile> currentPlaying)
+	public StreamProxy(Supplier<DownloadFile> currentPlaying, PlayStartTracer playStartTracer)
 	{
+		this(currentPlaying, playStartTracer, new Supplier<Long>()
+		{
+			@Override
+			public Long get()
+			{
+				return Debug.threadCpuTimeNanos();
+			}
+		});
+	}
+
+	StreamProxy(Supplier<DownloadFile> currentPlaying, PlayStartTracer playStartTracer, Supplier<Long> threadCpuTime)
+	{
+		this.currentPlaying = currentPlaying;
+		this.playStartTracer = playStartTracer;
+		this.threadCpuTime = threadCpuTime;
+		executor.allowCoreThreadTimeOut(true);
 
 		// Create listening socket
 		try
 		{
-			socket = new ServerSocket(0, 0, InetAddress.getByAddress(new byte[]{127, 0, 0, 1}));
-			socket.setSoTimeout(5000);
-			port = socket.getLocalPort();
-			this.currentPlaying = currentPlaying;
+			// The sockets of a channel can receive the file through FileChannel.transferTo()
+			socket = ServerSocketChannel.open();
+			socket.socket().bind(new InetSocketAddress(InetAddress.getByAddress(new byte[]{127, 0, 0, 1}), 0));
+			port = socket.socket().getLocalPort();
 		}
 		catch (UnknownHostException e)
 		{ // impossible
@@ -59,7 +128,8 @@ public class StreamProxy implements Runnable
 
 	public void start()
 	{
-		thread = new Thread(this);
+		isRunning = true;
+		thread = new Thread(this, "StreamProxy");
 		thread.start();
 	}
 
@@ -67,212 +137,499 @@ public class StreamProxy implements Runnable
 	{
 		isRunning = false;
 		thread.interrupt();
+		try
+		{
+			if (socket != null) socket.close();
+		}
+		catch (IOException e)
+		{
+			// Ignored
+		}
+
+		for (Socket client : clients)
+		{
+			close(client);
+		}
+		for (Runnable queued : executor.shutdownNow())
+		{
+			close(((ConnectionTask) queued).client);
+		}
 	}
 
 	@Override
 	public void run()
 	{
-		isRunning = true;
 		while (isRunning)
 		{
 			try
 			{
-				Socket client = socket.accept();
-				if (client == null)
-				{
-					continue;
-				}
+				Socket client = socket.accept().socket();
 				Timber.i("Client connected");
 
-				StreamToMediaPlayerTask task = new StreamToMediaPlayerTask(client);
-				if (task.processRequest())
+				if (executor.getActiveCount() >= MAX_CONNECTIONS)
 				{
-					new Thread(task).start();
+					closeOldestIdleClient();
 				}
 
+				try
+				{
+					executor.execute(new ConnectionTask(client));
+				}
+				catch (RejectedExecutionException e)
+				{
+					Timber.w("Too many connections, refusing client");
+					close(client);
+				}
 			}
-			catch (SocketTimeoutException e)
+			catch (IOException e)
 			{
-				// Do nothing
+				// Closing the channel in stop() ends the accept() with an exception
+				if (isRunning) Timber.e(e, "Error connecting to client");
 			}
-			catch (IOException e)
+		}
+		Timber.i("Proxy interrupted. Shutting down, %d us of CPU per MB streamed.", getCpuMicrosPerMegabyte());
+	}
+
+	/**
+	 * Closes the connection which has waited for its next request for the longest time,
+	 * so its worker can take the next connection of the queue
+	 */
+	private void closeOldestIdleClient()
+	{
+		Socket oldest;
+		synchronized (idleClients)
+		{
+			Iterator<Socket> iterator = idleClients.iterator();
+			if (!iterator.hasNext()) return;
+
+			oldest = iterator.next();
+			iterator.remove();
+		}
+
+		Timber.i("All workers are busy, closing an idle connection");
+		close(oldest);
+	}
+
+	/**
+	 * Parses the value of a Range header. Only the first range of the header is served.
+	 * @param range the value of the header, or null
+	 * @param length the length of the file, or -1 if it isn't known
+	 * @return the first and last byte of the range, null if the whole file should be sent,
+	 * or UNSATISFIABLE if the range is outside of the file
+	 */
+	static long[] parseRange(String range, long length)
+	{
+		if (range == null || length < 0) return null;
+
+		Matcher matcher = RANGE.matcher(range.trim());
+		if (!matcher.lookingAt()) return null;
+
+		String first = matcher.group(1);
+		String last = matcher.group(2);
+
+		try
+		{
+			if (first.isEmpty())
 			{
-				Timber.e(e, "Error connecting to client");
+				// A suffix range, the last bytes of the file
+				if (last.isEmpty()) return null;
+				long suffix = Long.parseLong(last);
+				if (suffix == 0) return UNSATISFIABLE;
+				return new long[]{Math.max(0, length - suffix), length - 1};
 			}
+
+			long start = Long.parseLong(first);
+			long end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+			if (start >= length) return UNSATISFIABLE;
+			if (end < start) return null;
+			return new long[]{start, end};
+		}
+		catch (NumberFormatException e)
+		{
+			return null;
 		}
-		Timber.i("Proxy interrupted. Shutting down.");
 	}
 
-    private class StreamToMediaPlayerTask implements Runnable {
-        String localPath;
-        Socket client;
-        int cbSkip;
-
-        StreamToMediaPlayerTask(Socket client) {
-            this.client = client;
-        }
-
-        private String readRequest() {
-            InputStream is;
-            String firstLine;
-            try {
-                is = client.getInputStream();
-                BufferedReader reader = new BufferedReader(new InputStreamReader(is), 8192);
-                firstLine = reader.readLine();
-            } catch (IOException e) {
-                Timber.e(e, "Error parsing request");
-                return null;
-            }
-
-            if (firstLine == null) {
-                Timber.i("Proxy client closed connection without a request.");
-                return null;
-            }
-
-            StringTokenizer st = new StringTokenizer(firstLine);
-            st.nextToken(); // method
-            String uri = st.nextToken();
-            String realUri = uri.substring(1);
-            Timber.i(realUri);
-
-            return realUri;
-        }
-
-        boolean processRequest() {
-            final String uri = readRequest();
-            if (uri == null || uri.isEmpty()) {
-                return false;
-            }
-
-            // Read HTTP headers
-            Timber.i("Processing request: %s", uri);
-
-            try {
-                localPath = URLDecoder.decode(uri, Constants.UTF_8);
-            } catch (UnsupportedEncodingException e) {
-                Timber.e(e, "Unsupported encoding");
-                return false;
-            }
-
-            Timber.i("Processing request for file %s", localPath);
-            File file = new File(localPath);
-            if (!file.exists()) {
-                Timber.e("File %s does not exist", localPath);
-                return false;
-            }
-
-            return true;
-        }
+	private static class Request
+	{
+		String method;
+		String path;
+		boolean keepAlive;
+		final Map<String, String> headers = new HashMap<>();
+	}
+
+	/**
+	 * Answers the requests of one connection until the client closes it or it becomes idle
+	 */
+	private class ConnectionTask implements Runnable
+	{
+		private final Socket client;
+
+		ConnectionTask(Socket client)
+		{
+			this.client = client;
+		}
 
 		@Override
 		public void run()
 		{
-			Timber.i("Streaming song in background");
-			DownloadFile downloadFile = currentPlaying == null? null : currentPlaying.get();
-			MusicDirectory.Entry song = downloadFile.getSong();
-			long fileSize = downloadFile.getBitRate() * ((song.getDuration() != null) ? song.getDuration() : 0) * 1000 / 8;
-			Timber.i("Streaming fileSize: %d", fileSize);
-
-			// Create HTTP header
-			String headers = "HTTP/1.0 200 OK\r\n";
-			headers += "Content-Type: application/octet-stream\r\n";
-			headers += "Connection: close\r\n";
-			headers += "\r\n";
-
-			long cbToSend = fileSize - cbSkip;
-			OutputStream output = null;
-			byte[] buff = new byte[64 * 1024];
+			clients.add(client);
 
 			try
 			{
-				output = new BufferedOutputStream(client.getOutputStream(), 32 * 1024);
-				output.write(headers.getBytes());
+				client.setSoTimeout(KEEP_ALIVE_TIMEOUT);
+				BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(), "ISO-8859-1"), 8192);
+				OutputStream output = new BufferedOutputStream(client.getOutputStream(), 32 * 1024);
 
-				if (!downloadFile.isWorkDone())
+				boolean keepAlive = true;
+				while (keepAlive && isRunning)
 				{
-					// Loop as long as there's stuff to send
-					while (isRunning && !client.isClosed())
+					Request request;
+					idleClients.add(client);
+					try
 					{
-						// See if there's more to send
-						File file = downloadFile.isCompleteFileAvailable() ? downloadFile.getCompleteFile() : downloadFile.getPartialFile();
-						int cbSentThisBatch = 0;
+						request = readRequest(reader);
+					}
+					finally
+					{
+						idleClients.remove(client);
+					}
+					if (request == null) break;
 
-						if (file.exists())
-						{
-							FileInputStream input = new FileInputStream(file);
+					keepAlive = processRequest(request, output);
+				}
+			}
+			catch (SocketTimeoutException e)
+			{
+				Timber.d("Closing idle proxy connection");
+			}
+			catch (SocketException e)
+			{
+				Timber.d("Proxy client has closed the connection");
+			}
+			catch (Exception e)
+			{
+				Timber.e(e, "Exception thrown from streaming task");
+			}
+			finally
+			{
+				clients.remove(client);
+				close(client);
+			}
+		}
 
-							try
+		private Request readRequest(BufferedReader reader) throws IOException
+		{
+			String firstLine = reader.readLine();
+			if (firstLine == null || firstLine.isEmpty())
+			{
+				Timber.d("Proxy client closed connection without a request.");
+				return null;
+			}
+
+			String[] parts = firstLine.split(" ");
+			if (parts.length < 2) return null;
+
+			Request request = new Request();
+			request.method = parts[0];
+			request.path = parts[1].startsWith("/") ? parts[1].substring(1) : parts[1];
+			boolean http11 = parts.length > 2 && "HTTP/1.1".equals(parts[2]);
+
+			String line;
+			while ((line = reader.readLine()) != null && !line.isEmpty())
+			{
+				int colon = line.indexOf(':');
+				if (colon <= 0) continue;
+				request.headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+			}
+
+			String connection = request.headers.get("connection");
+			request.keepAlive = http11 ? !"close".equalsIgnoreCase(connection) : "keep-alive".equalsIgnoreCase(connection);
+			return request;
+		}
+
+		/**
+		 * @return true if the connection can be used for another request
+		 */
+		private boolean processRequest(Request request, OutputStream output) throws IOException
+		{
+			Timber.i("Processing request: %s %s", request.method, request.path);
+
+			boolean head = "HEAD".equals(request.method);
+			if (!head && !"GET".equals(request.method))
+			{
+				sendStatus(output, "405 Method Not Allowed", request.keepAlive);
+				return request.keepAlive;
+			}
+
+			DownloadFile downloadFile = currentPlaying == null ? null : currentPlaying.get();
+			if (downloadFile == null || !isFileOf(downloadFile, request.path))
+			{
+				Timber.e("File %s is not being played", request.path);
+				sendStatus(output, "404 Not Found", request.keepAlive);
+				return request.keepAlive;
+			}
+
+			long length = downloadFile.getTotalLength();
+			long[] range = parseRange(request.headers.get("range"), length);
+			if (range == UNSATISFIABLE)
+			{
+				String headers = "HTTP/1.1 416 Range Not Satisfiable\r\n" +
+						String.format(Locale.ROOT, "Content-Range: bytes */%d\r\n", length) +
+						"Content-Length: 0\r\n" +
+						(request.keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n") +
+						"\r\n";
+				output.write(headers.getBytes(Constants.UTF_8));
+				output.flush();
+				return request.keepAlive;
+			}
+
+			// Without a length the end of the body can only be signalled by closing the connection
+			boolean keepAlive = request.keepAlive && length >= 0;
+			long start = range == null ? 0 : range[0];
+			long end = range == null ? length : range[1] + 1;
+
+			StringBuilder headers = new StringBuilder();
+			headers.append(range == null ? "HTTP/1.1 200 OK\r\n" : "HTTP/1.1 206 Partial Content\r\n");
+			headers.append("Content-Type: ").append(getContentType(downloadFile.getSong())).append("\r\n");
+
+			if (length >= 0)
+			{
+				headers.append("Accept-Ranges: bytes\r\n");
+				headers.append("Content-Length: ").append(end - start).append("\r\n");
+				if (range != null)
+				{
+					headers.append(String.format(Locale.ROOT, "Content-Range: bytes %d-%d/%d\r\n", range[0], range[1], length));
+				}
+			}
+			else
+			{
+				headers.append("Accept-Ranges: none\r\n");
+			}
+
+			headers.append(keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n");
+			headers.append("\r\n");
+			output.write(headers.toString().getBytes(Constants.UTF_8));
+
+			if (!head)
+			{
+				Timber.i("Streaming bytes %d-%d of %d", start, end, length);
+				playStartTracer.mark(downloadFile.getSong().getId(), PlayStartTrace.Stage.PROXY);
+				// The body bypasses the stream, so the headers must be written before it
+				output.flush();
+				if (!sendBody(downloadFile, start, end < 0 ? Long.MAX_VALUE : end)) return false;
+			}
+
+			output.flush();
+			return keepAlive;
+		}
+
+		/**
+		 * Sends the bytes of the file between start and end, waiting for the download where they are missing.
+		 * The file is read through one channel for the whole response, and its bytes are handed
+		 * to the socket by the kernel, without copying them through the heap.
+		 * While the download is streamed, the bytes which are still in its memory buffer are sent from there.
+		 * @return true if all of the bytes were sent
+		 */
+		private boolean sendBody(DownloadFile downloadFile, long start, long end) throws IOException
+		{
+			WritableByteChannel target = client.getChannel();
+			FileChannel channel = null;
+			ByteBuffer memory = null;
+			long position = start;
+			long cpuStart = threadCpuTime.get();
+
+			try
+			{
+				// Loop as long as there's stuff to send
+				while (isRunning && !client.isClosed() && position < end)
+				{
+					// While the download is streamed, the bytes come from memory as soon as they have arrived
+					StreamBuffer streamBuffer = downloadFile.getStreamBuffer();
+					if (streamBuffer != null && streamBuffer.isStreaming(position))
+					{
+						if (memory == null) memory = ByteBuffer.allocate(64 * 1024);
+						memory.clear();
+						memory.limit((int) Math.min(memory.capacity(), end - position));
+
+						if (streamBuffer.read(position, memory) > 0)
+						{
+							memory.flip();
+							while (memory.hasRemaining())
 							{
-								long skip = input.skip(cbSkip);
-								int cbToSendThisBatch = input.available();
-
-								while (cbToSendThisBatch > 0)
-								{
-									int cbToRead = Math.min(cbToSendThisBatch, buff.length);
-									int cbRead = input.read(buff, 0, cbToRead);
-
-									if (cbRead == -1)
-									{
-										break;
-									}
-
-									cbToSendThisBatch -= cbRead;
-									cbToSend -= cbRead;
-									output.write(buff, 0, cbRead);
-									output.flush();
-									cbSkip += cbRead;
-									cbSentThisBatch += cbRead;
-								}
+								position += target.write(memory);
 							}
-							finally
+						}
+						else
+						{
+							try
 							{
-								input.close();
+								streamBuffer.await(position, 1000L);
 							}
-
-							// Done regardless of whether or not it thinks it is
-							if (downloadFile.isWorkDone() && cbSkip >= file.length())
+							catch (InterruptedException e)
 							{
-								break;
+								Thread.currentThread().interrupt();
+								return false;
 							}
 						}
+						continue;
+					}
 
-						// If we did nothing this batch, block for a second
-						if (cbSentThisBatch == 0)
+					boolean workDone = downloadFile.isWorkDone();
+					boolean completeFileAvailable = downloadFile.isCompleteFileAvailable();
+
+					// The channel stays valid when the partial file is renamed. It only needs to be reopened
+					// if the file has been replaced, when the download had to start over.
+					if (channel == null || (!completeFileAvailable && !workDone && downloadFile.getPartialBytes() > channel.size()))
+					{
+						close(channel);
+						channel = openChannel(downloadFile, completeFileAvailable);
+					}
+
+					long available = 0;
+					if (channel != null)
+					{
+						available = channel.size();
+
+						// The partial file may be preallocated or have gaps, only the downloaded bytes are valid
+						if (!completeFileAvailable && !workDone)
 						{
-							Timber.d("Blocking until more data appears (%d)", cbToSend);
-							Util.sleepQuietly(1000L);
+							available = Math.min(available, downloadFile.getDownloadedEnd(position));
 						}
 					}
-				}
-				else
-				{
-					Timber.w("Requesting data for completely downloaded file");
+
+					long count = Math.min(available, end) - position;
+					if (count > 0)
+					{
+						long sent = channel.transferTo(position, count, target);
+						position += sent;
+						if (sent > 0) continue;
+					}
+					else if (channel != null && (workDone || completeFileAvailable))
+					{
+						// Done regardless of whether or not it thinks it is
+						break;
+					}
+
+					// Nothing could be sent. If the player has seeked far ahead of the download,
+					// the bytes are fetched from there, otherwise wait until the download has written more.
+					downloadFile.fetchAhead(position);
+					Timber.d("Blocking until more data appears (%d)", position);
+					try
+					{
+						downloadFile.awaitBytes(position, position + 1, 1000L);
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						return false;
+					}
 				}
 			}
-			catch (SocketException socketException)
-			{
-				Timber.e("SocketException() thrown, proxy client has probably closed. This can exit harmlessly");
-			}
-			catch (Exception e)
+			finally
 			{
-				Timber.e("Exception thrown from streaming task:");
-				Timber.e("%s : %s", e.getClass().getName(), e.getLocalizedMessage());
+				close(channel);
+				reportCpuUsage(position - start, threadCpuTime.get() - cpuStart);
 			}
 
-			// Cleanup
+			return end == Long.MAX_VALUE || position >= end;
+		}
+
+		private FileChannel openChannel(DownloadFile downloadFile, boolean completeFileAvailable)
+		{
+			File file = completeFileAvailable ? downloadFile.getCompleteFile() : downloadFile.getPartialFile();
 			try
 			{
-				if (output != null)
-				{
-					output.close();
-				}
-				client.close();
+				return new FileInputStream(file).getChannel();
 			}
-			catch (IOException e)
+			catch (FileNotFoundException e)
 			{
-				Timber.e("IOException while cleaning up streaming task:");
-				Timber.e("%s : %s", e.getClass().getName(), e.getLocalizedMessage());
+				// The download hasn't created it yet, or has just renamed it
+				return null;
 			}
 		}
+
+		private void sendStatus(OutputStream output, String status, boolean keepAlive) throws IOException
+		{
+			String headers = "HTTP/1.1 " + status + "\r\n" +
+					"Content-Length: 0\r\n" +
+					(keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n") +
+					"\r\n";
+			output.write(headers.getBytes(Constants.UTF_8));
+			output.flush();
+		}
+	}
+
+	// Socket is only Closeable since API 19
+	private static void close(Socket client)
+	{
+		try
+		{
+			client.close();
+		}
+		catch (IOException e)
+		{
+			// Ignored
+		}
+	}
+
+	private static void close(FileChannel channel)
+	{
+		try
+		{
+			if (channel != null) channel.close();
+		}
+		catch (IOException e)
+		{
+			// Ignored
+		}
+	}
+
+	private void reportCpuUsage(long bytes, long cpuNanos)
+	{
+		// The CPU time can't be measured on every device
+		if (bytes <= 0 || cpuNanos < 0) return;
+
+		long totalBytes = bytesStreamed.addAndGet(bytes);
+		long totalCpuNanos = cpuNanosStreaming.addAndGet(cpuNanos);
+		Timber.i("Streamed %s using %d us of CPU per MB, %d us per MB in total",
+				Util.formatBytes(bytes), getCpuMicrosPerMegabyte(bytes, cpuNanos), getCpuMicrosPerMegabyte(totalBytes, totalCpuNanos));
+	}
+
+	/**
+	 * @return the CPU time the proxy has used for each megabyte it has streamed, in microseconds
+	 */
+	public long getCpuMicrosPerMegabyte()
+	{
+		return getCpuMicrosPerMegabyte(bytesStreamed.get(), cpuNanosStreaming.get());
+	}
+
+	private static long getCpuMicrosPerMegabyte(long bytes, long cpuNanos)
+	{
+		if (bytes <= 0) return 0;
+		return (long) (cpuNanos / 1000.0 * 1024 * 1024 / bytes);
+	}
+
+	private static boolean isFileOf(DownloadFile downloadFile, String path)
+	{
+		String localPath;
+		try
+		{
+			localPath = URLDecoder.decode(path, Constants.UTF_8);
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			Timber.e(e, "Unsupported encoding");
+			return false;
+		}
+
+		return localPath.equals(downloadFile.getPartialFile().getPath()) ||
+				localPath.equals(downloadFile.getCompleteFile().getPath());
+	}
+
+	private static String getContentType(MusicDirectory.Entry song)
+	{
+		String contentType = song.getTranscodedContentType() != null ? song.getTranscodedContentType() : song.getContentType();
+		return contentType == null ? "application/octet-stream" : contentType;
 	}
-}
\ No newline at end of file
+}
@@ -28,9 +28,9 @@ import java.util.concurrent.TimeUnit;
 public class TimeLimitedCache<T>
 {
 
-	private SoftReference<T> value;
+	private volatile SoftReference<T> value;
 	private final long ttlMillis;
-	private long expires;
+	private volatile long expires;
 
 	public TimeLimitedCache(long ttl, TimeUnit timeUnit)
 	{
@@ -39,7 +39,17 @@ public class TimeLimitedCache<T>
 
 	public T get()
 	{
-		return System.currentTimeMillis() < expires ? value.get() : null;
+		SoftReference<T> value = this.value;
+		return System.currentTimeMillis() < expires && value != null ? value.get() : null;
+	}
+
+	/**
+	 * @return the value even if it has expired, or null if it was cleared or collected
+	 */
+	public T getStale()
+	{
+		SoftReference<T> value = this.value;
+		return value == null ? null : value.get();
 	}
 
 	public void set(T value)
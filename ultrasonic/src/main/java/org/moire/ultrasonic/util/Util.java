@@ -35,7 +35,6 @@ import android.graphics.drawable.Drawable;
 import android.media.AudioManager;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
-import android.net.Uri;
 import android.net.wifi.WifiManager;
 import android.os.Build;
 import android.os.Environment;
@@ -194,6 +193,26 @@ public class Util
 		return preloadCount == -1 ? Integer.MAX_VALUE : preloadCount;
 	}
 
+	public static int getMinPreloadCount(Context context)
+	{
+		SharedPreferences preferences = getPreferences(context);
+		int preloadCount = Integer.parseInt(preferences.getString(Constants.PREFERENCES_KEY_PRELOAD_COUNT_MIN, "1"));
+		return preloadCount == -1 ? Integer.MAX_VALUE : preloadCount;
+	}
+
+	public static boolean isAdaptivePreloadEnabled(Context context)
+	{
+		SharedPreferences preferences = getPreferences(context);
+		return preferences.getBoolean(Constants.PREFERENCES_KEY_ADAPTIVE_PRELOAD, false);
+	}
+
+	public static int getParallelDownloads(Context context)
+	{
+		SharedPreferences preferences = getPreferences(context);
+		int parallelDownloads = Integer.parseInt(preferences.getString(Constants.PREFERENCES_KEY_PARALLEL_DOWNLOADS, "3"));
+		return Math.max(1, parallelDownloads);
+	}
+
 	public static int getCacheSizeMB(Context context)
 	{
 		SharedPreferences preferences = getPreferences(context);
@@ -1104,6 +1123,12 @@ public class Util
 		return Integer.parseInt(preferences.getString(Constants.PREFERENCES_KEY_BUFFER_LENGTH, "5"));
 	}
 
+	public static boolean isTeeStreamingEnabled(Context context)
+	{
+		SharedPreferences preferences = getPreferences(context);
+		return preferences.getBoolean(Constants.PREFERENCES_KEY_TEE_STREAMING, false);
+	}
+
 	public static int getIncrementTime(Context context)
 	{
 		SharedPreferences preferences = getPreferences(context);
@@ -1400,13 +1425,6 @@ public class Util
 		return preferences.getBoolean(Constants.PREFERENCES_KEY_SCAN_MEDIA, false);
 	}
 
-	public static void scanMedia(Context context, File file)
-	{
-		Uri uri = Uri.fromFile(file);
-		Intent scanFileIntent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, uri);
-		context.sendBroadcast(scanFileIntent);
-	}
-
 	public static int getImageLoaderConcurrency(Context context)
 	{
 		SharedPreferences preferences = getPreferences(context);
@@ -4,6 +4,7 @@ import org.koin.android.ext.koin.androidContext
 import org.koin.dsl.module
 import org.moire.ultrasonic.data.ActiveServerProvider
 import org.moire.ultrasonic.subsonic.ImageLoaderProvider
+import org.moire.ultrasonic.util.CacheRefreshedEventDistributor
 import org.moire.ultrasonic.util.NowPlayingEventDistributor
 import org.moire.ultrasonic.util.PermissionUtil
 import org.moire.ultrasonic.util.ThemeChangedEventDistributor
@@ -17,4 +18,5 @@ val applicationModule = module {
     single { PermissionUtil(androidContext()) }
     single { NowPlayingEventDistributor() }
     single { ThemeChangedEventDistributor() }
+    single { CacheRefreshedEventDistributor() }
 }
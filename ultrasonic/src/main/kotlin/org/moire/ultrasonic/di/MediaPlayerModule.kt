@@ -3,6 +3,8 @@ package org.moire.ultrasonic.di
 import org.koin.android.ext.koin.androidContext
 import org.koin.dsl.module
 import org.moire.ultrasonic.service.AudioFocusHandler
+import org.moire.ultrasonic.service.BandwidthScheduler
+import org.moire.ultrasonic.service.DownloadMetricsRegistry
 import org.moire.ultrasonic.service.DownloadQueueSerializer
 import org.moire.ultrasonic.service.Downloader
 import org.moire.ultrasonic.service.ExternalStorageMonitor
@@ -11,6 +13,9 @@ import org.moire.ultrasonic.service.LocalMediaPlayer
 import org.moire.ultrasonic.service.MediaPlayerController
 import org.moire.ultrasonic.service.MediaPlayerControllerImpl
 import org.moire.ultrasonic.service.MediaPlayerLifecycleSupport
+import org.moire.ultrasonic.service.MediaScanCoordinator
+import org.moire.ultrasonic.service.MediaStoreService
+import org.moire.ultrasonic.service.PlayStartTracer
 import org.moire.ultrasonic.util.ShufflePlayBuffer
 
 /**
@@ -26,8 +31,13 @@ val mediaPlayerModule = module {
     single { DownloadQueueSerializer(androidContext()) }
     single { ExternalStorageMonitor(androidContext()) }
     single { ShufflePlayBuffer(androidContext()) }
-    single { Downloader(androidContext(), get(), get(), get()) }
-    single { LocalMediaPlayer(get(), androidContext()) }
+    single { BandwidthScheduler() }
+    single { DownloadMetricsRegistry() }
+    single { PlayStartTracer() }
+    single { MediaStoreService(androidContext()) }
+    single { MediaScanCoordinator(androidContext()) }
+    single { Downloader(androidContext(), get(), get(), get(), get(), get()) }
+    single { LocalMediaPlayer(get(), get(), androidContext()) }
     single { AudioFocusHandler(get()) }
 
     // TODO Ideally this can be cleaned up when all circular references are removed.
@@ -11,6 +11,7 @@ import org.moire.ultrasonic.BuildConfig
 import org.moire.ultrasonic.api.subsonic.SubsonicAPIClient
 import org.moire.ultrasonic.api.subsonic.SubsonicAPIVersions
 import org.moire.ultrasonic.api.subsonic.SubsonicClientConfiguration
+import org.moire.ultrasonic.cache.LruFileStorage
 import org.moire.ultrasonic.cache.PermanentFileStorage
 import org.moire.ultrasonic.data.ActiveServerProvider
 import org.moire.ultrasonic.fragment.ArtistListModel
@@ -32,6 +33,7 @@ import org.moire.ultrasonic.util.Constants
  */
 internal const val ONLINE_MUSIC_SERVICE = "OnlineMusicService"
 internal const val OFFLINE_MUSIC_SERVICE = "OfflineMusicService"
+internal const val LRU_FILE_STORAGE_MAX_BYTES = 20L * 1024 * 1024
 
 val musicServiceModule = module {
 
@@ -50,6 +52,11 @@ val musicServiceModule = module {
         return@single PermanentFileStorage(get(), serverId, BuildConfig.DEBUG)
     }
 
+    single {
+        val serverId = get<String>(named("ServerID"))
+        return@single LruFileStorage(get(), serverId, LRU_FILE_STORAGE_MAX_BYTES, BuildConfig.DEBUG)
+    }
+
     single {
         return@single SubsonicClientConfiguration(
             baseUrl = get<ActiveServerProvider>().getActiveServer().url,
@@ -72,7 +79,7 @@ val musicServiceModule = module {
     single { ApiCallResponseChecker(get(), get()) }
 
     single<MusicService>(named(ONLINE_MUSIC_SERVICE)) {
-        CachedMusicService(RESTMusicService(get(), get(), get(), get()))
+        CachedMusicService(RESTMusicService(get(), get(), get(), get()), get())
     }
 
     single<MusicService>(named(OFFLINE_MUSIC_SERVICE)) {
@@ -81,7 +88,7 @@ val musicServiceModule = module {
 
     single { SubsonicImageLoader(androidContext(), get()) }
 
-    viewModel { ArtistListModel(get(), androidContext()) }
+    viewModel { ArtistListModel(get(), get(), androidContext()) }
 
     single { DownloadHandler(get(), get()) }
     single { NetworkAndStorageChecker(androidContext()) }
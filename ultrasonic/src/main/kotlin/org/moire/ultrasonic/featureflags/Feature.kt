@@ -14,5 +14,9 @@ enum class Feature(
     /**
      * Enables five star rating system.
      */
-    FIVE_STAR_RATING(false)
+    FIVE_STAR_RATING(false),
+    /**
+     * Enables downloading large un-transcoded songs over multiple connections.
+     */
+    SEGMENTED_DOWNLOAD(false)
 }
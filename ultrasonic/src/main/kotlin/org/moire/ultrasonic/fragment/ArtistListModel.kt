@@ -31,9 +31,12 @@ import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import org.moire.ultrasonic.data.ActiveServerProvider
 import org.moire.ultrasonic.domain.Artist
+import org.moire.ultrasonic.domain.Indexes
 import org.moire.ultrasonic.domain.MusicFolder
 import org.moire.ultrasonic.service.CommunicationErrorHandler
 import org.moire.ultrasonic.service.MusicServiceFactory
+import org.moire.ultrasonic.util.CacheRefreshedEventDistributor
+import org.moire.ultrasonic.util.CacheRefreshedEventListener
 import org.moire.ultrasonic.util.Util
 
 /**
@@ -41,11 +44,34 @@ import org.moire.ultrasonic.util.Util
  */
 class ArtistListModel(
     private val activeServerProvider: ActiveServerProvider,
+    private val cacheRefreshedEventDistributor: CacheRefreshedEventDistributor,
     private val context: Context
 ) : ViewModel() {
     private val musicFolders: MutableLiveData<List<MusicFolder>> = MutableLiveData()
     private val artists: MutableLiveData<List<Artist>> = MutableLiveData()
 
+    // Replaces the list when the cache has refreshed the expired one it returned
+    private val cacheRefreshedEventListener = object : CacheRefreshedEventListener {
+        override fun onIndexesRefreshed(musicFolderId: String?, indexes: Indexes) {
+            // The indexes of another music folder, which was selected before
+            if (musicFolderId != activeServerProvider.getActiveServer().musicFolderId) return
+            if (!Util.getShouldUseId3Tags(context)) postArtists(indexes)
+        }
+
+        override fun onArtistsRefreshed(indexes: Indexes) {
+            if (Util.getShouldUseId3Tags(context)) postArtists(indexes)
+        }
+    }
+
+    init {
+        cacheRefreshedEventDistributor.subscribe(cacheRefreshedEventListener)
+    }
+
+    override fun onCleared() {
+        cacheRefreshedEventDistributor.unsubscribe(cacheRefreshedEventListener)
+        super.onCleared()
+    }
+
     /**
      * Retrieves the available Artists in a LiveData
      */
@@ -95,15 +121,19 @@ class ArtistListModel(
                     musicService.getArtists(refresh, context)
                 else musicService.getIndexes(musicFolderId, refresh, context)
 
-                val retrievedArtists: MutableList<Artist> =
-                    ArrayList(result.shortcuts.size + result.artists.size)
-                retrievedArtists.addAll(result.shortcuts)
-                retrievedArtists.addAll(result.artists)
-                artists.postValue(retrievedArtists)
+                postArtists(result)
             } catch (exception: Exception) {
                 Handler(Looper.getMainLooper()).post {
                     CommunicationErrorHandler.handleError(exception, swipe.context)
                 }
             }
         }
+
+    private fun postArtists(indexes: Indexes) {
+        val retrievedArtists: MutableList<Artist> =
+            ArrayList(indexes.shortcuts.size + indexes.artists.size)
+        retrievedArtists.addAll(indexes.shortcuts)
+        retrievedArtists.addAll(indexes.artists)
+        artists.postValue(retrievedArtists)
+    }
 }
@@ -27,6 +27,7 @@ import org.koin.android.ext.android.inject
 import org.moire.ultrasonic.R
 import org.moire.ultrasonic.data.ActiveServerProvider.Companion.isOffline
 import org.moire.ultrasonic.domain.MusicDirectory
+import org.moire.ultrasonic.domain.SearchResult
 import org.moire.ultrasonic.fragment.FragmentTitle.Companion.getTitle
 import org.moire.ultrasonic.fragment.FragmentTitle.Companion.setTitle
 import org.moire.ultrasonic.service.MediaPlayerController
@@ -38,6 +39,8 @@ import org.moire.ultrasonic.subsonic.NetworkAndStorageChecker
 import org.moire.ultrasonic.subsonic.ShareHandler
 import org.moire.ultrasonic.subsonic.VideoPlayer
 import org.moire.ultrasonic.util.AlbumHeader
+import org.moire.ultrasonic.util.CacheRefreshedEventDistributor
+import org.moire.ultrasonic.util.CacheRefreshedEventListener
 import org.moire.ultrasonic.util.CancellationToken
 import org.moire.ultrasonic.util.Constants
 import org.moire.ultrasonic.util.EntryByDiscAndTrackComparator
@@ -81,8 +84,47 @@ class SelectAlbumFragment : Fragment() {
     private val networkAndStorageChecker: NetworkAndStorageChecker by inject()
     private val imageLoaderProvider: ImageLoaderProvider by inject()
     private val shareHandler: ShareHandler by inject()
+    private val cacheRefreshedEventDistributor: CacheRefreshedEventDistributor by inject()
     private var cancellationToken: CancellationToken? = null
 
+    // Shows the directory again when the cache has replaced its expired version in the background
+    private val cacheRefreshedEventListener = object : CacheRefreshedEventListener {
+        override fun onMusicDirectoryRefreshed(id: String, directory: MusicDirectory) {
+            onDirectoryRefreshed(id)
+        }
+
+        override fun onArtistRefreshed(id: String, directory: MusicDirectory) {
+            onDirectoryRefreshed(id)
+        }
+
+        override fun onAlbumRefreshed(id: String, directory: MusicDirectory) {
+            onDirectoryRefreshed(id)
+        }
+
+        override fun onPlaylistRefreshed(id: String, directory: MusicDirectory) {
+            if (id == arguments?.getString(Constants.INTENT_EXTRA_NAME_PLAYLIST_ID)) reload()
+        }
+
+        override fun onStarredRefreshed(result: SearchResult) {
+            if ((arguments?.getInt(Constants.INTENT_EXTRA_NAME_STARRED, 0) ?: 0) != 0) reload()
+        }
+
+        override fun onAlbumListRefreshed(
+            type: String,
+            size: Int,
+            offset: Int,
+            directory: MusicDirectory
+        ) {
+            val arguments = arguments ?: return
+            if (type == arguments.getString(Constants.INTENT_EXTRA_NAME_ALBUM_LIST_TYPE) &&
+                size == arguments.getInt(Constants.INTENT_EXTRA_NAME_ALBUM_LIST_SIZE, 0) &&
+                offset == arguments.getInt(Constants.INTENT_EXTRA_NAME_ALBUM_LIST_OFFSET, 0)
+            ) {
+                reload()
+            }
+        }
+    }
+
     override fun onCreate(savedInstanceState: Bundle?) {
         Util.applyTheme(this.context)
         super.onCreate(savedInstanceState)
@@ -238,6 +280,17 @@ class SelectAlbumFragment : Fragment() {
         setHasOptionsMenu(true)
         enableButtons()
         updateDisplay(false)
+        cacheRefreshedEventDistributor.subscribe(cacheRefreshedEventListener)
+    }
+
+    private fun onDirectoryRefreshed(id: String) {
+        if (id == arguments?.getString(Constants.INTENT_EXTRA_NAME_ID)) reload()
+    }
+
+    private fun reload() {
+        activity?.runOnUiThread {
+            if (view != null) updateDisplay(false)
+        }
     }
 
     private fun updateDisplay(refresh: Boolean) {
@@ -408,6 +461,7 @@ class SelectAlbumFragment : Fragment() {
     }
 
     override fun onDestroyView() {
+        cacheRefreshedEventDistributor.unsubscribe(cacheRefreshedEventListener)
         cancellationToken!!.cancel()
         super.onDestroyView()
     }
@@ -25,6 +25,7 @@ import java.io.BufferedWriter
 import java.io.File
 import java.io.FileOutputStream
 import java.io.FileWriter
+import java.io.FilterInputStream
 import java.io.IOException
 import java.io.InputStream
 import java.io.OutputStream
@@ -43,6 +44,7 @@ import org.moire.ultrasonic.data.ActiveServerProvider.Companion.isOffline
 import org.moire.ultrasonic.data.ActiveServerProvider.Companion.isServerScalingEnabled
 import org.moire.ultrasonic.domain.Bookmark
 import org.moire.ultrasonic.domain.ChatMessage
+import org.moire.ultrasonic.domain.DownloadResponse
 import org.moire.ultrasonic.domain.Genre
 import org.moire.ultrasonic.domain.Indexes
 import org.moire.ultrasonic.domain.JukeboxStatus
@@ -610,20 +612,60 @@ open class RESTMusicService(
         context: Context,
         song: MusicDirectory.Entry,
         offset: Long,
+        length: Long,
         maxBitrate: Int,
+        ifRange: String?,
         task: CancellableTask
-    ): Pair<InputStream, Boolean> {
+    ): DownloadResponse {
         val songOffset = if (offset < 0) 0 else offset
+        val songLength = if (length < 0) null else length
 
-        val response = subsonicAPIClient.stream(song.id!!, maxBitrate, songOffset)
-        checkStreamResponseError(response)
+        // Cancelling the call aborts a blocked read of the stream immediately.
+        // The task may outlive the request, so the listener goes away with the stream
+        var cancelListener: CancellableTask.OnCancelListener? = null
+        try {
+            val response = subsonicAPIClient.stream(
+                song.id!!, maxBitrate, songOffset, songLength, ifRange
+            ) { call ->
+                val listener = CancellableTask.OnCancelListener { call.cancel() }
+                cancelListener = listener
+                task.addOnCancelListener(listener)
+            }
+            checkStreamResponseError(response)
 
-        if (response.stream == null) {
-            throw IOException("Null stream response")
+            if (response.stream == null) {
+                throw IOException("Null stream response")
+            }
+
+            val partial = response.responseHttpCode == 206
+            return DownloadResponse(
+                CancelListenerStream(response.stream!!, task, cancelListener),
+                partial,
+                response.totalLength,
+                response.eTag,
+                response.lastModified
+            )
+        } catch (exception: Exception) {
+            task.removeOnCancelListener(cancelListener)
+            throw exception
         }
+    }
 
-        val partial = response.responseHttpCode == 206
-        return Pair(response.stream!!, partial)
+    /**
+     * Removes the listener which cancels the call of the stream from the task when it is closed
+     */
+    private class CancelListenerStream(
+        stream: InputStream,
+        private val task: CancellableTask,
+        private val cancelListener: CancellableTask.OnCancelListener?
+    ) : FilterInputStream(stream) {
+        override fun close() {
+            try {
+                super.close()
+            } finally {
+                task.removeOnCancelListener(cancelListener)
+            }
+        }
     }
 
     @Throws(Exception::class)
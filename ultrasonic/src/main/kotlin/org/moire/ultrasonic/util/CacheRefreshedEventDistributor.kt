@@ -0,0 +1,63 @@
+package org.moire.ultrasonic.util
+
+import java.util.concurrent.CopyOnWriteArrayList
+import org.moire.ultrasonic.domain.Indexes
+import org.moire.ultrasonic.domain.MusicDirectory
+import org.moire.ultrasonic.domain.Playlist
+import org.moire.ultrasonic.domain.SearchResult
+
+/**
+ * This class distributes the values refreshed by the cache of the music service to its subscribers.
+ * It is a primitive implementation of a pub-sub event bus, which can be raised from any thread
+ */
+class CacheRefreshedEventDistributor {
+    val eventListenerList: MutableList<CacheRefreshedEventListener> = CopyOnWriteArrayList()
+
+    fun subscribe(listener: CacheRefreshedEventListener) {
+        eventListenerList.add(listener)
+    }
+
+    fun unsubscribe(listener: CacheRefreshedEventListener) {
+        eventListenerList.remove(listener)
+    }
+
+    fun raiseMusicDirectoryRefreshedEvent(id: String, directory: MusicDirectory) {
+        eventListenerList.forEach { listener -> listener.onMusicDirectoryRefreshed(id, directory) }
+    }
+
+    fun raiseArtistRefreshedEvent(id: String, directory: MusicDirectory) {
+        eventListenerList.forEach { listener -> listener.onArtistRefreshed(id, directory) }
+    }
+
+    fun raiseAlbumRefreshedEvent(id: String, directory: MusicDirectory) {
+        eventListenerList.forEach { listener -> listener.onAlbumRefreshed(id, directory) }
+    }
+
+    fun raiseIndexesRefreshedEvent(musicFolderId: String?, indexes: Indexes) {
+        eventListenerList.forEach { listener ->
+            listener.onIndexesRefreshed(musicFolderId, indexes)
+        }
+    }
+
+    fun raiseArtistsRefreshedEvent(indexes: Indexes) {
+        eventListenerList.forEach { listener -> listener.onArtistsRefreshed(indexes) }
+    }
+
+    fun raisePlaylistsRefreshedEvent(playlists: List<Playlist>) {
+        eventListenerList.forEach { listener -> listener.onPlaylistsRefreshed(playlists) }
+    }
+
+    fun raisePlaylistRefreshedEvent(id: String, directory: MusicDirectory) {
+        eventListenerList.forEach { listener -> listener.onPlaylistRefreshed(id, directory) }
+    }
+
+    fun raiseStarredRefreshedEvent(result: SearchResult) {
+        eventListenerList.forEach { listener -> listener.onStarredRefreshed(result) }
+    }
+
+    fun raiseAlbumListRefreshedEvent(type: String, size: Int, offset: Int, directory: MusicDirectory) {
+        eventListenerList.forEach { listener ->
+            listener.onAlbumListRefreshed(type, size, offset, directory)
+        }
+    }
+}
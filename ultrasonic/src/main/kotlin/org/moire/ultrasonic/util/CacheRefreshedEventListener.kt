@@ -0,0 +1,23 @@
+package org.moire.ultrasonic.util
+
+import org.moire.ultrasonic.domain.Indexes
+import org.moire.ultrasonic.domain.MusicDirectory
+import org.moire.ultrasonic.domain.Playlist
+import org.moire.ultrasonic.domain.SearchResult
+
+/**
+ * Callback interface for subscribers to the values which the cache of the music service
+ * has refreshed in the background, after it returned their stale versions.
+ * The callbacks are called on a background thread, and only when the value has changed.
+ */
+interface CacheRefreshedEventListener {
+    fun onMusicDirectoryRefreshed(id: String, directory: MusicDirectory) {}
+    fun onArtistRefreshed(id: String, directory: MusicDirectory) {}
+    fun onAlbumRefreshed(id: String, directory: MusicDirectory) {}
+    fun onIndexesRefreshed(musicFolderId: String?, indexes: Indexes) {}
+    fun onArtistsRefreshed(indexes: Indexes) {}
+    fun onPlaylistsRefreshed(playlists: List<Playlist>) {}
+    fun onPlaylistRefreshed(id: String, directory: MusicDirectory) {}
+    fun onStarredRefreshed(result: SearchResult) {}
+    fun onAlbumListRefreshed(type: String, size: Int, offset: Int, directory: MusicDirectory) {}
+}
@@ -225,8 +225,6 @@ class SongView(context: Context) : UpdateView(context), Checkable {
 
         downloadFile = mediaPlayerControllerLazy.value.getDownloadFileForSong(entry)
 
-        val partialFile = downloadFile!!.partialFile
-
         if (downloadFile!!.isWorkDone) {
             val newLeftImageType =
                 if (downloadFile!!.isSaved) ImageType.Pin else ImageType.Downloaded
@@ -246,10 +244,10 @@ class SongView(context: Context) : UpdateView(context), Checkable {
         if (
             downloadFile!!.isDownloading &&
             !downloadFile!!.isDownloadCancelled &&
-            partialFile.exists()
+            downloadFile!!.partialBytes > 0
         ) {
             viewHolder?.status?.text = Util.formatLocalizedBytes(
-                partialFile.length(), this.context
+                downloadFile!!.partialBytes, this.context
             )
 
             rightImageType = ImageType.Downloading
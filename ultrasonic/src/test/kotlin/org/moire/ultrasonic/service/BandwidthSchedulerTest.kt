@@ -0,0 +1,193 @@
+@file:Suppress("IllegalIdentifier")
+
+package org.moire.ultrasonic.service
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import org.amshove.kluent.`should be equal to`
+import org.amshove.kluent.`should be less than`
+import org.amshove.kluent.`should equal`
+import org.junit.Test
+import org.moire.ultrasonic.util.CancellableTask
+
+/**
+ * Unit test for [BandwidthScheduler].
+ */
+class BandwidthSchedulerTest {
+    private val scheduler = BandwidthScheduler()
+    private val task = object : CancellableTask() {
+        override fun execute() {}
+    }
+
+    @Test
+    fun `Should not limit anything without a current download`() {
+        val background = scheduler.register(DownloadPriority.BACKGROUND)
+        background.acquire(1024 * 1024, task)
+
+        scheduler.adjustRates(1000)
+
+        scheduler.getRate(DownloadPriority.BACKGROUND) `should equal` BandwidthScheduler.UNLIMITED
+    }
+
+    @Test
+    fun `Should halve the lowest class while the current download is too slow`() {
+        scheduler.setGuaranteedRate(64 * 1024L)
+        val current = scheduler.register(DownloadPriority.CURRENT)
+        val preload = scheduler.register(DownloadPriority.PRELOAD)
+        val background = scheduler.register(DownloadPriority.BACKGROUND)
+        current.acquire(1024, task)
+        preload.acquire(1024 * 1024, task)
+        background.acquire(1024 * 1024, task)
+
+        scheduler.adjustRates(1000)
+
+        scheduler.getRate(DownloadPriority.BACKGROUND) `should equal` 512 * 1024L
+        scheduler.getRate(DownloadPriority.PRELOAD) `should equal` BandwidthScheduler.UNLIMITED
+        scheduler.getRate(DownloadPriority.CURRENT) `should equal` BandwidthScheduler.UNLIMITED
+    }
+
+    @Test
+    fun `Should pause the lowest class at the minimum rate before limiting the next one`() {
+        val current = scheduler.register(DownloadPriority.CURRENT)
+        scheduler.register(DownloadPriority.NEXT_UP)
+        scheduler.register(DownloadPriority.BACKGROUND)
+        current.acquire(1, task)
+
+        scheduler.adjustRates(1000)
+        scheduler.getRate(DownloadPriority.BACKGROUND) `should equal` BandwidthScheduler.MIN_RATE
+        scheduler.getRate(DownloadPriority.NEXT_UP) `should equal` BandwidthScheduler.UNLIMITED
+
+        scheduler.adjustRates(1000)
+        scheduler.getRate(DownloadPriority.BACKGROUND) `should equal` BandwidthScheduler.PAUSED
+        scheduler.getRate(DownloadPriority.NEXT_UP) `should equal` BandwidthScheduler.UNLIMITED
+
+        scheduler.adjustRates(1000)
+        scheduler.getRate(DownloadPriority.NEXT_UP) `should equal` BandwidthScheduler.MIN_RATE
+        scheduler.getRate(DownloadPriority.CURRENT) `should equal` BandwidthScheduler.UNLIMITED
+    }
+
+    @Test
+    fun `Should never pause the next track`() {
+        val current = scheduler.register(DownloadPriority.CURRENT)
+        scheduler.register(DownloadPriority.NEXT_UP)
+        current.acquire(1, task)
+
+        repeat(5) { scheduler.adjustRates(1000) }
+
+        scheduler.getRate(DownloadPriority.NEXT_UP) `should equal` BandwidthScheduler.MIN_RATE
+    }
+
+    @Test
+    fun `Should resume a paused download when the current download is fast enough`() {
+        scheduler.setGuaranteedRate(64 * 1024L)
+        val current = scheduler.register(DownloadPriority.CURRENT)
+        val background = scheduler.register(DownloadPriority.BACKGROUND)
+        scheduler.adjustRates(1000)
+        scheduler.adjustRates(1000)
+        scheduler.getRate(DownloadPriority.BACKGROUND) `should equal` BandwidthScheduler.PAUSED
+        val done = CountDownLatch(1)
+
+        Thread {
+            background.acquire(1024, task)
+            done.countDown()
+        }.start()
+
+        done.await(100, TimeUnit.MILLISECONDS) `should be equal to` false
+        current.acquire(1024 * 1024, task)
+        scheduler.adjustRates(1000)
+
+        scheduler.getRate(DownloadPriority.BACKGROUND) `should equal` BandwidthScheduler.MIN_RATE
+        done.await(1, TimeUnit.SECONDS) `should be equal to` true
+    }
+
+    @Test
+    fun `Should release the most important class first when the current download is fast enough`() {
+        scheduler.setGuaranteedRate(64 * 1024L)
+        val current = scheduler.register(DownloadPriority.CURRENT)
+        scheduler.register(DownloadPriority.PRELOAD)
+        scheduler.register(DownloadPriority.BACKGROUND)
+        repeat(3) { scheduler.adjustRates(1000) }
+
+        current.acquire(1024 * 1024, task)
+        scheduler.adjustRates(1000)
+
+        scheduler.getRate(DownloadPriority.PRELOAD) `should equal` 2 * BandwidthScheduler.MIN_RATE
+        scheduler.getRate(DownloadPriority.BACKGROUND) `should equal` BandwidthScheduler.PAUSED
+    }
+
+    @Test
+    fun `Should release all classes when the current download has finished`() {
+        val current = scheduler.register(DownloadPriority.CURRENT)
+        scheduler.register(DownloadPriority.BACKGROUND)
+        scheduler.adjustRates(1000)
+        scheduler.getRate(DownloadPriority.BACKGROUND) `should equal` BandwidthScheduler.MIN_RATE
+
+        current.close()
+
+        scheduler.getRate(DownloadPriority.BACKGROUND) `should equal` BandwidthScheduler.UNLIMITED
+    }
+
+    @Test
+    fun `Should release all classes when the current download changes its priority`() {
+        val current = scheduler.register(DownloadPriority.CURRENT)
+        scheduler.register(DownloadPriority.BACKGROUND)
+        scheduler.adjustRates(1000)
+
+        current.setPriority(DownloadPriority.PRELOAD)
+
+        scheduler.getRate(DownloadPriority.BACKGROUND) `should equal` BandwidthScheduler.UNLIMITED
+    }
+
+    @Test
+    fun `Should speed up a limited download instead of cancelling it`() {
+        val current = scheduler.register(DownloadPriority.CURRENT)
+        val background = scheduler.register(DownloadPriority.BACKGROUND)
+        scheduler.adjustRates(1000)
+        val done = CountDownLatch(1)
+
+        Thread {
+            background.acquire(BLOCK_SIZE, task)
+            background.acquire(BLOCK_SIZE, task)
+            done.countDown()
+        }.start()
+
+        done.await(100, TimeUnit.MILLISECONDS) `should be equal to` false
+        current.close()
+        done.await(1, TimeUnit.SECONDS) `should be equal to` true
+        task.isCancelled `should be equal to` false
+    }
+
+    @Test
+    fun `Should wake up a waiting download when it is cancelled`() {
+        scheduler.register(DownloadPriority.CURRENT)
+        val background = scheduler.register(DownloadPriority.BACKGROUND)
+        scheduler.adjustRates(1000)
+        val done = CountDownLatch(1)
+
+        Thread {
+            background.acquire(BLOCK_SIZE, task)
+            background.acquire(BLOCK_SIZE, task)
+            done.countDown()
+        }.start()
+
+        Thread.sleep(50)
+        val start = System.nanoTime()
+        task.cancel()
+        background.wakeUp()
+
+        done.await(1, TimeUnit.SECONDS) `should be equal to` true
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) `should be less than` 100L
+    }
+
+    @Test
+    fun `Should compute the guaranteed rate from the bit rate`() {
+        // 320 kbps are 40000 B/s
+        BandwidthScheduler.getGuaranteedRate(320) `should equal` 80000L
+        BandwidthScheduler.getGuaranteedRate(64) `should equal` 32 * 1024L
+    }
+
+    companion object {
+        // Takes four seconds at the minimum rate, so the second block has to wait
+        private const val BLOCK_SIZE = 64 * 1024
+    }
+}
@@ -0,0 +1,61 @@
+@file:Suppress("IllegalIdentifier")
+
+package org.moire.ultrasonic.service
+
+import org.amshove.kluent.`should be equal to`
+import org.junit.Test
+
+/**
+ * Unit test for [ByteRanges].
+ */
+class ByteRangesTest {
+    private val ranges = ByteRanges()
+
+    @Test
+    fun `Should start with the contiguous bytes`() {
+        ranges.reset(100)
+
+        ranges.getEnd(0) `should be equal to` 100L
+        ranges.getEnd(99) `should be equal to` 100L
+        ranges.getEnd(100) `should be equal to` 100L
+        ranges.getNextStart(0) `should be equal to` Long.MAX_VALUE
+    }
+
+    @Test
+    fun `Should keep a gap between ranges`() {
+        ranges.reset(100)
+        ranges.add(1000, 2000)
+
+        ranges.getEnd(0) `should be equal to` 100L
+        ranges.getEnd(500) `should be equal to` 500L
+        ranges.getEnd(1500) `should be equal to` 2000L
+        ranges.getNextStart(100) `should be equal to` 1000L
+        ranges.getNextStart(1000) `should be equal to` Long.MAX_VALUE
+    }
+
+    @Test
+    fun `Should merge adjacent and overlapping ranges`() {
+        ranges.reset(100)
+        ranges.add(1000, 2000)
+        ranges.add(3000, 4000)
+
+        ranges.add(100, 1000)
+        ranges.getEnd(0) `should be equal to` 2000L
+
+        ranges.add(1500, 3500)
+        ranges.getEnd(0) `should be equal to` 4000L
+        ranges.getNextStart(0) `should be equal to` Long.MAX_VALUE
+    }
+
+    @Test
+    fun `Should merge a range which covers several others`() {
+        ranges.add(200, 300)
+        ranges.add(400, 500)
+        ranges.add(100, 600)
+
+        ranges.getEnd(100) `should be equal to` 600L
+        ranges.getEnd(50) `should be equal to` 50L
+        ranges.getNextStart(0) `should be equal to` 100L
+        ranges.getNextStart(100) `should be equal to` Long.MAX_VALUE
+    }
+}
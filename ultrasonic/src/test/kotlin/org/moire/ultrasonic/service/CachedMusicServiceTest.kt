@@ -0,0 +1,136 @@
+@file:Suppress("IllegalIdentifier")
+
+package org.moire.ultrasonic.service
+
+import android.content.Context
+import com.nhaarman.mockito_kotlin.any
+import com.nhaarman.mockito_kotlin.doReturn
+import com.nhaarman.mockito_kotlin.eq
+import com.nhaarman.mockito_kotlin.mock
+import com.nhaarman.mockito_kotlin.never
+import com.nhaarman.mockito_kotlin.times
+import com.nhaarman.mockito_kotlin.verify
+import com.nhaarman.mockito_kotlin.whenever
+import java.util.concurrent.Executor
+import org.amshove.kluent.`should be equal to`
+import org.amshove.kluent.`should be`
+import org.amshove.kluent.`should equal`
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.moire.ultrasonic.cache.Directories
+import org.moire.ultrasonic.cache.LruFileStorage
+import org.moire.ultrasonic.cache.serializers.getMusicDirectorySerializer
+import org.moire.ultrasonic.domain.MusicDirectory
+import org.moire.ultrasonic.util.CacheRefreshedEventDistributor
+import org.moire.ultrasonic.util.CacheRefreshedEventListener
+
+/**
+ * Unit test for the background refreshes of [CachedMusicService].
+ */
+class CachedMusicServiceTest {
+    @get:Rule val temporaryFolder = TemporaryFolder()
+
+    private val context = mock<Context>()
+    private val musicService = mock<MusicService>()
+    private val distributor = CacheRefreshedEventDistributor()
+    private val refreshedPlaylists = mutableListOf<MusicDirectory>()
+    private val queuedRefreshes = mutableListOf<Runnable>()
+    private var restUrl = "http://server1/rest"
+    private lateinit var storage: LruFileStorage
+    private lateinit var cachedMusicService: CachedMusicService
+
+    @Before
+    fun setUp() {
+        val directories = mock<Directories> {
+            on { getInternalCacheDir() } doReturn temporaryFolder.root
+        }
+        storage = LruFileStorage(directories, "", Long.MAX_VALUE)
+        distributor.subscribe(object : CacheRefreshedEventListener {
+            override fun onPlaylistRefreshed(id: String, directory: MusicDirectory) {
+                refreshedPlaylists.add(directory)
+            }
+        })
+
+        cachedMusicService = CachedMusicService(
+            musicService, storage, Executor { queuedRefreshes.add(it) },
+            object : Supplier<String>() {
+                override fun get() = restUrl
+            },
+            lazyOf(distributor)
+        )
+    }
+
+    @Test
+    fun `Should return the stored value at once and publish the refreshed one`() {
+        storage.store("playlist-1", playlist("Old"), getMusicDirectorySerializer())
+        val fresh = playlist("New")
+        whenever(musicService.getPlaylist("1", "Playlist", context)).thenReturn(fresh)
+
+        cachedMusicService.getPlaylist("1", "Playlist", context).name `should equal` "Old"
+        runRefreshes()
+
+        refreshedPlaylists `should equal` listOf(fresh)
+        storage.load("playlist-1", getMusicDirectorySerializer())?.name `should equal` "New"
+    }
+
+    @Test
+    fun `Should return the published value without requesting it again`() {
+        storage.store("playlist-1", playlist("Old"), getMusicDirectorySerializer())
+        val fresh = playlist("New")
+        whenever(musicService.getPlaylist("1", "Playlist", context)).thenReturn(fresh)
+
+        cachedMusicService.getPlaylist("1", "Playlist", context)
+        runRefreshes()
+
+        cachedMusicService.getPlaylist("1", "Playlist", context) `should be` fresh
+        verify(musicService, times(1)).getPlaylist("1", "Playlist", context)
+    }
+
+    @Test
+    fun `Should not publish a refreshed value which is the same as the stale one`() {
+        storage.store("playlist-1", playlist("Same"), getMusicDirectorySerializer())
+        whenever(musicService.getPlaylist("1", "Playlist", context)).thenReturn(playlist("Same"))
+
+        cachedMusicService.getPlaylist("1", "Playlist", context)
+        runRefreshes()
+
+        refreshedPlaylists `should equal` emptyList()
+    }
+
+    @Test
+    fun `Should drop a refreshed value when the server has changed meanwhile`() {
+        storage.store("playlist-1", playlist("Old"), getMusicDirectorySerializer())
+        whenever(musicService.getPlaylist("1", "Playlist", context)).thenReturn(playlist("New"))
+
+        cachedMusicService.getPlaylist("1", "Playlist", context)
+        restUrl = "http://server2/rest"
+        cachedMusicService.ping(context)
+        runRefreshes()
+
+        refreshedPlaylists `should equal` emptyList()
+        storage.load("playlist-1", getMusicDirectorySerializer())?.name `should equal` "Old"
+    }
+
+    @Test
+    fun `Should refresh a stale value only once while its refresh is pending`() {
+        storage.store("directory-1", playlist("Old"), getMusicDirectorySerializer())
+
+        cachedMusicService.getMusicDirectory("1", "Directory", false, context)
+        cachedMusicService.getMusicDirectory("1", "Directory", false, context)
+
+        queuedRefreshes.size `should be equal to` 1
+        verify(musicService, never()).getMusicDirectory(any(), any(), any(), eq(context))
+    }
+
+    private fun runRefreshes() {
+        queuedRefreshes.toList().forEach { it.run() }
+        queuedRefreshes.clear()
+    }
+
+    private fun playlist(name: String) = MusicDirectory().apply {
+        this.name = name
+        addChild(MusicDirectory.Entry(id = "song1", title = "Song"))
+    }
+}
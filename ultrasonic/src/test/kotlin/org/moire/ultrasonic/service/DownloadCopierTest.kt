@@ -0,0 +1,132 @@
+@file:Suppress("IllegalIdentifier")
+
+package org.moire.ultrasonic.service
+
+import java.io.ByteArrayInputStream
+import java.io.FileOutputStream
+import java.io.RandomAccessFile
+import java.lang.management.ManagementFactory
+import java.util.Random
+import org.amshove.kluent.`should be equal to`
+import org.amshove.kluent.`should equal`
+import org.junit.Ignore
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.moire.ultrasonic.util.CancellableTask
+
+/**
+ * Unit test for [DownloadCopier].
+ */
+class DownloadCopierTest {
+    @get:Rule val temporaryFolder = TemporaryFolder()
+
+    private val task = object : CancellableTask() {
+        override fun execute() {}
+    }
+    private val blocks = mutableListOf<Int>()
+    private val blockListener = object : Consumer<Int>() {
+        override fun accept(n: Int) {
+            blocks.add(n)
+        }
+    }
+
+    @Test
+    fun `Should append the whole stream to the file`() {
+        val file = temporaryFolder.newFile()
+        file.writeBytes(byteArrayOf(1, 2, 3))
+        val data = randomBytes(200 * 1024)
+
+        val count = FileOutputStream(file, true).use {
+            DownloadCopier.copy(ByteArrayInputStream(data), it.channel, task, blockListener)
+        }
+
+        count `should be equal to` data.size.toLong()
+        blocks.sum() `should be equal to` data.size
+        file.readBytes() `should equal` byteArrayOf(1, 2, 3) + data
+    }
+
+    @Test
+    fun `Should write at most the length at the position`() {
+        val file = temporaryFolder.newFile()
+        val data = randomBytes(100 * 1024)
+
+        val count = RandomAccessFile(file, "rw").use {
+            it.setLength(200 * 1024)
+            DownloadCopier.copy(
+                ByteArrayInputStream(data), it.channel, 50 * 1024L, 80 * 1024L, task, blockListener
+            )
+        }
+
+        count `should be equal to` 80 * 1024L
+        file.readBytes().copyOfRange(50 * 1024, 130 * 1024) `should equal` data.copyOf(80 * 1024)
+    }
+
+    @Test
+    fun `Should stop when the task is cancelled`() {
+        val file = temporaryFolder.newFile()
+        val cancelling = object : Consumer<Int>() {
+            override fun accept(n: Int) {
+                task.cancel()
+            }
+        }
+
+        val count = FileOutputStream(file).use {
+            DownloadCopier.copy(ByteArrayInputStream(randomBytes(1024 * 1024)), it.channel, task, cancelling)
+        }
+
+        count `should be equal to` DownloadCopier.BUFFER_SIZE.toLong()
+    }
+
+    @Test
+    fun `Should reuse the buffers`() {
+        val buffer = DownloadCopier.obtainBuffer()
+        DownloadCopier.recycleBuffer(buffer)
+
+        val reused = List(8) { DownloadCopier.obtainBuffer() }.any { it === buffer }
+
+        reused `should be equal to` true
+    }
+
+    @Test
+    @Ignore("Benchmark, run it manually")
+    fun `Benchmark the pooled copy against the stream copy`() {
+        val data = randomBytes(64 * 1024 * 1024)
+        val file = temporaryFolder.newFile()
+
+        repeat(5) {
+            benchmark("Stream copy", data.size) {
+                FileOutputStream(file).use { out ->
+                    val input = ByteArrayInputStream(data)
+                    val buffer = ByteArray(16 * 1024)
+                    var n = input.read(buffer)
+                    while (n != -1) {
+                        out.write(buffer, 0, n)
+                        n = input.read(buffer)
+                    }
+                }
+            }
+
+            benchmark("Pooled copy", data.size) {
+                FileOutputStream(file).use {
+                    DownloadCopier.copy(ByteArrayInputStream(data), it.channel, task, blockListener)
+                }
+            }
+        }
+    }
+
+    private fun benchmark(name: String, size: Int, copy: () -> Unit) {
+        val threadMXBean = ManagementFactory.getThreadMXBean()
+        val start = System.nanoTime()
+        val startCpu = threadMXBean.currentThreadCpuTime
+
+        copy()
+
+        val megabytes = size / (1024.0 * 1024.0)
+        val seconds = (System.nanoTime() - start) / 1e9
+        val cpuMillis = (threadMXBean.currentThreadCpuTime - startCpu) / 1e6
+        println("%s: %.0f MB/s, %.2f ms CPU per MB".format(name, megabytes / seconds, cpuMillis / megabytes))
+    }
+
+    private fun randomBytes(size: Int) = ByteArray(size).also { Random(1).nextBytes(it) }
+}
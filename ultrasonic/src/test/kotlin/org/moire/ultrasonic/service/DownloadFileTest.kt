@@ -0,0 +1,239 @@
+@file:Suppress("IllegalIdentifier")
+
+package org.moire.ultrasonic.service
+
+import java.io.File
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.TimeUnit
+import org.amshove.kluent.`should be equal to`
+import org.amshove.kluent.`should be greater or equal to`
+import org.amshove.kluent.`should be less than`
+import org.amshove.kluent.`should equal`
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.moire.ultrasonic.domain.MusicDirectory
+
+/**
+ * Unit test for the states of [DownloadFile].
+ */
+class DownloadFileTest {
+    @get:Rule val temporaryFolder = TemporaryFolder()
+
+    private val song = MusicDirectory.Entry(id = "1", title = "Song")
+    private lateinit var saveFile: File
+    private lateinit var partialFile: File
+    private lateinit var completeFile: File
+
+    @Before
+    fun setUp() {
+        saveFile = File(temporaryFolder.root, "01-song.mp3")
+        partialFile = File(temporaryFolder.root, "01-song.partial.mp3")
+        completeFile = File(temporaryFolder.root, "01-song.complete.mp3")
+    }
+
+    @Test
+    fun `Should be NEW without files`() {
+        val downloadFile = downloadFile()
+
+        downloadFile.state `should equal` DownloadState.NEW
+        downloadFile.partialBytes `should be equal to` 0L
+        downloadFile.isWorkDone `should be equal to` false
+    }
+
+    @Test
+    fun `Should be PARTIAL with the bytes of the partial file`() {
+        partialFile.writeBytes(ByteArray(100))
+
+        val downloadFile = downloadFile()
+
+        downloadFile.state `should equal` DownloadState.PARTIAL
+        downloadFile.partialBytes `should be equal to` 100L
+        downloadFile.isWorkDone `should be equal to` false
+    }
+
+    @Test
+    fun `Should be NEW when an interrupted segmented download has left a partial file`() {
+        partialFile.writeBytes(ByteArray(100))
+        DownloadJournal(128, "mp3").apply { segmented = true }.save(partialFile)
+
+        val downloadFile = downloadFile()
+
+        downloadFile.state `should equal` DownloadState.NEW
+        downloadFile.partialBytes `should be equal to` 0L
+    }
+
+    @Test
+    fun `Should be COMPLETE with a complete file`() {
+        completeFile.writeBytes(ByteArray(100))
+
+        val downloadFile = downloadFile()
+
+        downloadFile.state `should equal` DownloadState.COMPLETE
+        downloadFile.completeFile `should equal` completeFile
+        downloadFile.isCompleteFileAvailable `should be equal to` true
+        downloadFile.isWorkDone `should be equal to` true
+        downloadFile(save = true).isWorkDone `should be equal to` false
+    }
+
+    @Test
+    fun `Should be PINNED with a saved file`() {
+        saveFile.writeBytes(ByteArray(100))
+        completeFile.writeBytes(ByteArray(100))
+
+        val downloadFile = downloadFile(save = true)
+
+        downloadFile.state `should equal` DownloadState.PINNED
+        downloadFile.completeFile `should equal` saveFile
+        downloadFile.isSaved `should be equal to` true
+        downloadFile.isWorkDone `should be equal to` true
+    }
+
+    @Test
+    fun `Should become COMPLETE when it is unpinned`() {
+        saveFile.writeBytes(ByteArray(100))
+        val downloadFile = downloadFile(save = true)
+        val states = listenToStates(downloadFile)
+
+        downloadFile.unpin()
+
+        downloadFile.state `should equal` DownloadState.COMPLETE
+        states `should equal` listOf(DownloadState.COMPLETE)
+        saveFile.exists() `should be equal to` false
+        completeFile.exists() `should be equal to` true
+    }
+
+    @Test
+    fun `Should take the state of files changed by someone else when it is rescanned`() {
+        val downloadFile = downloadFile()
+        val states = listenToStates(downloadFile)
+        downloadFile.state `should equal` DownloadState.NEW
+
+        completeFile.writeBytes(ByteArray(100))
+        downloadFile.rescan()
+
+        downloadFile.state `should equal` DownloadState.COMPLETE
+        states `should equal` listOf(DownloadState.COMPLETE)
+    }
+
+    @Test
+    fun `Should not notify the listeners when the state hasn't changed`() {
+        partialFile.writeBytes(ByteArray(100))
+        val downloadFile = downloadFile()
+        val states = listenToStates(downloadFile)
+
+        partialFile.appendBytes(ByteArray(100))
+        downloadFile.rescan()
+
+        downloadFile.partialBytes `should be equal to` 200L
+        states `should equal` emptyList()
+    }
+
+    @Test
+    fun `Should delete the partial file of a complete download on cleanup`() {
+        partialFile.writeBytes(ByteArray(100))
+        completeFile.writeBytes(ByteArray(100))
+        val downloadFile = downloadFile()
+
+        downloadFile.cleanup() `should be equal to` true
+
+        partialFile.exists() `should be equal to` false
+        downloadFile.partialBytes `should be equal to` 0L
+        downloadFile.state `should equal` DownloadState.COMPLETE
+    }
+
+    @Test
+    fun `Should name the paths of all files of the song`() {
+        downloadFile().filePaths `should equal` listOf(
+            saveFile, completeFile, partialFile, File("${partialFile.path}.journal")
+        )
+    }
+
+    @Test
+    fun `Should not wait for bytes which have been downloaded`() {
+        partialFile.writeBytes(ByteArray(100))
+        val downloadFile = downloadFile()
+
+        val millis = measureMillis {
+            downloadFile.awaitBytes(0, 100, 5000) `should be equal to` true
+        }
+
+        millis `should be less than` 1000L
+    }
+
+    @Test
+    fun `Should give up waiting for bytes after the timeout`() {
+        partialFile.writeBytes(ByteArray(100))
+        val downloadFile = downloadFile()
+
+        val millis = measureMillis {
+            downloadFile.awaitBytes(0, 200, 200) `should be equal to` false
+        }
+
+        millis `should be greater or equal to` 200L
+    }
+
+    @Test
+    fun `Should wake up when the awaited bytes have been written`() {
+        partialFile.writeBytes(ByteArray(100))
+        val downloadFile = downloadFile()
+        later { downloadFile.updatePartialBytes(200) }
+
+        val millis = measureMillis {
+            downloadFile.awaitBytes(0, 200, 5000) `should be equal to` true
+        }
+
+        millis `should be less than` 1000L
+    }
+
+    @Test
+    fun `Should keep waiting while only some of the awaited bytes have been written`() {
+        partialFile.writeBytes(ByteArray(100))
+        val downloadFile = downloadFile()
+        later { downloadFile.updatePartialBytes(150) }
+
+        downloadFile.awaitBytes(0, 200, 500) `should be equal to` false
+    }
+
+    @Test
+    fun `Should wake up when the state changes while waiting for bytes`() {
+        val downloadFile = downloadFile()
+        later {
+            completeFile.writeBytes(ByteArray(100))
+            downloadFile.rescan()
+        }
+
+        val millis = measureMillis {
+            downloadFile.awaitBytes(0, 1000, 5000) `should be equal to` true
+        }
+
+        millis `should be less than` 1000L
+        downloadFile.state `should equal` DownloadState.COMPLETE
+    }
+
+    private fun later(action: () -> Unit) {
+        Thread {
+            Thread.sleep(100)
+            action()
+        }.start()
+    }
+
+    private fun measureMillis(action: () -> Unit): Long {
+        val start = System.nanoTime()
+        action()
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+    }
+
+    private fun downloadFile(save: Boolean = false) = DownloadFile(song, save, saveFile, 128)
+
+    private fun listenToStates(downloadFile: DownloadFile): List<DownloadState> {
+        val states = CopyOnWriteArrayList<DownloadState>()
+        downloadFile.addStateListener(object : Consumer<DownloadFile>() {
+            override fun accept(t: DownloadFile) {
+                states.add(t.state)
+            }
+        })
+        return states
+    }
+}
@@ -0,0 +1,116 @@
+@file:Suppress("IllegalIdentifier")
+
+package org.moire.ultrasonic.service
+
+import java.io.ByteArrayInputStream
+import java.io.File
+import org.amshove.kluent.`should be equal to`
+import org.amshove.kluent.`should be`
+import org.amshove.kluent.`should equal`
+import org.amshove.kluent.`should not be`
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.moire.ultrasonic.domain.DownloadResponse
+
+/**
+ * Unit test for [DownloadJournal].
+ */
+class DownloadJournalTest {
+    @get:Rule val temporaryFolder = TemporaryFolder()
+
+    private lateinit var partialFile: File
+
+    @Before
+    fun setUp() {
+        partialFile = File(temporaryFolder.root, "01-Song.partial.flac")
+    }
+
+    @Test
+    fun `Should load saved journal`() {
+        val journal = DownloadJournal(320, "mp3")
+        journal.totalLength = 5000L
+        journal.eTag = "\"some-etag\""
+        journal.lastModified = "Wed, 21 Oct 2015 07:28:00 GMT"
+
+        journal.save(partialFile)
+        val loaded = DownloadJournal.load(partialFile)
+
+        loaded `should not be` null
+        with(loaded!!) {
+            bitRate `should be equal to` 320
+            suffix `should equal` "mp3"
+            totalLength `should be equal to` 5000L
+            eTag `should equal` "\"some-etag\""
+            lastModified `should equal` "Wed, 21 Oct 2015 07:28:00 GMT"
+            segmented `should be equal to` false
+        }
+    }
+
+    @Test
+    fun `Should not load missing journal`() {
+        DownloadJournal.load(partialFile) `should be` null
+    }
+
+    @Test
+    fun `Should delete journal`() {
+        DownloadJournal(0, "flac").save(partialFile)
+
+        DownloadJournal.delete(partialFile)
+
+        DownloadJournal.getFile(partialFile).exists() `should be equal to` false
+    }
+
+    @Test
+    fun `Should only match the same format`() {
+        val journal = DownloadJournal(0, "flac")
+
+        journal.matches("flac") `should be equal to` true
+        journal.matches("mp3") `should be equal to` false
+    }
+
+    @Test
+    fun `Should not match interrupted segmented download`() {
+        val journal = DownloadJournal(0, "flac")
+        journal.segmented = true
+
+        journal.matches("flac") `should be equal to` false
+    }
+
+    @Test
+    fun `Should match partial response of the same file`() {
+        val journal = DownloadJournal(0, "flac")
+        journal.totalLength = 5000L
+        journal.eTag = "a"
+
+        journal.matches(response(true, 5000L, "a")) `should be equal to` true
+        journal.matches(response(true, -1L, null)) `should be equal to` true
+    }
+
+    @Test
+    fun `Should not match response of another file`() {
+        val journal = DownloadJournal(0, "flac")
+        journal.totalLength = 5000L
+        journal.eTag = "a"
+
+        journal.matches(response(false, 5000L, "a")) `should be equal to` false
+        journal.matches(response(true, 6000L, "a")) `should be equal to` false
+        journal.matches(response(true, 5000L, "b")) `should be equal to` false
+    }
+
+    @Test
+    fun `Should prefer etag as validator`() {
+        val journal = DownloadJournal(0, "flac")
+        journal.lastModified = "Wed, 21 Oct 2015 07:28:00 GMT"
+
+        journal.validator `should equal` "Wed, 21 Oct 2015 07:28:00 GMT"
+
+        journal.eTag = "a"
+
+        journal.validator `should equal` "a"
+    }
+
+    private fun response(partial: Boolean, totalLength: Long, eTag: String?) =
+        DownloadResponse(ByteArrayInputStream(ByteArray(0)), partial, totalLength, eTag)
+}
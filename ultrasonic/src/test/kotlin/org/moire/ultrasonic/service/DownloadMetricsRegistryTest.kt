@@ -0,0 +1,90 @@
+@file:Suppress("IllegalIdentifier")
+
+package org.moire.ultrasonic.service
+
+import org.amshove.kluent.`should be equal to`
+import org.amshove.kluent.`should be greater or equal to`
+import org.amshove.kluent.`should be greater than`
+import org.amshove.kluent.`should be`
+import org.amshove.kluent.`should not be`
+import org.junit.Test
+
+/**
+ * Unit test for [DownloadMetricsRegistry] and [DownloadMetrics].
+ */
+class DownloadMetricsRegistryTest {
+    private val registry = DownloadMetricsRegistry()
+
+    @Test
+    fun `Should return the latest attempt of a song`() {
+        registry.start("1", 0)
+        val latest = registry.start("1", 0)
+
+        registry.get("1") `should be` latest
+        registry.get("2") `should be` null
+    }
+
+    @Test
+    fun `Should count the retries after unsuccessful attempts`() {
+        registry.finish(registry.start("1", 0), false)
+        registry.finish(registry.start("1", 100), false)
+        val third = registry.start("1", 200)
+
+        third.retries `should be equal to` 2
+        third.resumeOffset `should be equal to` 200L
+    }
+
+    @Test
+    fun `Should reset the retries after a successful attempt`() {
+        registry.finish(registry.start("1", 0), false)
+        registry.finish(registry.start("1", 0), true)
+
+        registry.start("1", 0).retries `should be equal to` 0
+    }
+
+    @Test
+    fun `Should measure the phases of a download`() {
+        val metrics = registry.start("1", 1000)
+        metrics.timeToFirstByte `should be equal to` -1L
+
+        metrics.onRequest()
+        Thread.sleep(20)
+        metrics.onResponse()
+        Thread.sleep(20)
+        metrics.onProgress(1000 + 64 * 1024)
+        Thread.sleep(20)
+        metrics.onProgress(1000 + 128 * 1024)
+        registry.finish(metrics, true)
+
+        metrics.isFinished `should be equal to` true
+        metrics.isSuccessful `should be equal to` true
+        metrics.bytes `should be equal to` 128 * 1024L
+        metrics.responseTime `should be greater or equal to` 20L
+        metrics.timeToFirstByte `should be greater or equal to` 40L
+        metrics.wallTime `should be greater or equal to` metrics.timeToFirstByte
+        metrics.bytesPerSecond `should be greater than` 0L
+    }
+
+    @Test
+    fun `Should not count the bytes it was resumed from`() {
+        val metrics = registry.start("1", 1000)
+
+        metrics.onProgress(1000)
+
+        metrics.bytes `should be equal to` 0L
+        metrics.bytesPerSecond `should be equal to` 0L
+    }
+
+    @Test
+    fun `Should forget the oldest finished downloads`() {
+        val running = registry.start("running", 0)
+        repeat(DownloadMetricsRegistry.MAX_FINISHED + 10) {
+            registry.finish(registry.start(it.toString(), 0), true)
+        }
+
+        registry.size() `should be equal to` DownloadMetricsRegistry.MAX_FINISHED
+        registry.get("running") `should be` running
+        registry.get("0") `should be` null
+        registry.get((DownloadMetricsRegistry.MAX_FINISHED + 9).toString()) `should not be` null
+    }
+}
@@ -0,0 +1,99 @@
+@file:Suppress("IllegalIdentifier")
+
+package org.moire.ultrasonic.service
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import org.amshove.kluent.`should be equal to`
+import org.amshove.kluent.`should be greater or equal to`
+import org.amshove.kluent.`should be less than`
+import org.junit.After
+import org.junit.Test
+
+/**
+ * Unit test for [DownloadScheduler].
+ */
+class DownloadSchedulerTest {
+    private val checks = AtomicInteger()
+    private var latch = CountDownLatch(1)
+    private val scheduler = DownloadScheduler(
+        Runnable {
+            checks.incrementAndGet()
+            latch.countDown()
+        }
+    )
+
+    @After
+    fun tearDown() {
+        scheduler.shutdown()
+    }
+
+    @Test
+    fun `Should run the check within milliseconds of a trigger`() {
+        val start = System.nanoTime()
+
+        scheduler.trigger()
+
+        latch.await(1, TimeUnit.SECONDS) `should be equal to` true
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) `should be less than` 100L
+    }
+
+    @Test
+    fun `Should not run the check without a trigger`() {
+        latch.await(200, TimeUnit.MILLISECONDS) `should be equal to` false
+        checks.get() `should be equal to` 0
+    }
+
+    @Test
+    fun `Should coalesce triggers arriving while a check is pending`() {
+        val blocker = CountDownLatch(1)
+        val blocking = DownloadScheduler(
+            Runnable {
+                blocker.await()
+                checks.incrementAndGet()
+            }
+        )
+
+        blocking.trigger()
+        Thread.sleep(50)
+        repeat(10) { blocking.trigger() }
+        blocker.countDown()
+        Thread.sleep(200)
+        blocking.shutdown()
+
+        checks.get() `should be equal to` 2
+    }
+
+    @Test
+    fun `Should run a delayed trigger after the delay`() {
+        val start = System.nanoTime()
+
+        scheduler.triggerDelayed(100, TimeUnit.MILLISECONDS)
+
+        latch.await(1, TimeUnit.SECONDS) `should be equal to` true
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) `should be greater or equal to` 100L
+    }
+
+    @Test
+    fun `Should keep only the earliest delayed trigger`() {
+        latch = CountDownLatch(2)
+
+        scheduler.triggerDelayed(500, TimeUnit.MILLISECONDS)
+        scheduler.triggerDelayed(50, TimeUnit.MILLISECONDS)
+        scheduler.triggerDelayed(300, TimeUnit.MILLISECONDS)
+
+        latch.await(1, TimeUnit.SECONDS) `should be equal to` false
+        checks.get() `should be equal to` 1
+    }
+
+    @Test
+    fun `Should not run the check after shutdown`() {
+        scheduler.shutdown()
+
+        scheduler.trigger()
+
+        latch.await(200, TimeUnit.MILLISECONDS) `should be equal to` false
+        checks.get() `should be equal to` 0
+    }
+}
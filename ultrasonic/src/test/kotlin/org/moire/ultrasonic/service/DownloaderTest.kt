@@ -0,0 +1,191 @@
+@file:Suppress("IllegalIdentifier")
+
+package org.moire.ultrasonic.service
+
+import android.content.Context
+import com.nhaarman.mockito_kotlin.doReturn
+import com.nhaarman.mockito_kotlin.mock
+import com.nhaarman.mockito_kotlin.never
+import com.nhaarman.mockito_kotlin.verify
+import com.nhaarman.mockito_kotlin.whenever
+import java.lang.ref.WeakReference
+import org.amshove.kluent.`should be`
+import org.amshove.kluent.`should be equal to`
+import org.amshove.kluent.`should equal`
+import org.amshove.kluent.`should not be`
+import org.junit.Test
+import org.moire.ultrasonic.domain.MusicDirectory
+import org.moire.ultrasonic.util.ShufflePlayBuffer
+
+/**
+ * Unit test for [Downloader].
+ */
+class DownloaderTest {
+    private val downloader = Downloader(
+        mock<Context>(), mock<ShufflePlayBuffer>(), mock<ExternalStorageMonitor>(),
+        mock<LocalMediaPlayer>(), mock<BandwidthScheduler>(), mock<DownloadMetricsRegistry>()
+    )
+
+    @Test
+    fun `Should fill the free slots with the playlist in order`() {
+        val files = downloadFiles(5)
+        downloader.downloadList.addAll(files)
+
+        downloader.startPlaylistDownloads(3, 5, 5, Long.MAX_VALUE)
+
+        downloader.activelyDownloading `should equal` files.subList(0, 3)
+        verify(files[0]).download()
+        verify(files[3], never()).download()
+    }
+
+    @Test
+    fun `Should only preload up to the preload count`() {
+        val files = downloadFiles(5)
+        downloader.downloadList.addAll(files)
+
+        downloader.startPlaylistDownloads(3, 2, 2, Long.MAX_VALUE)
+
+        downloader.activelyDownloading `should equal` files.subList(0, 2)
+    }
+
+    @Test
+    fun `Should not look at the files of the songs beyond the preload window`() {
+        val files = downloadFiles(5)
+        downloader.downloadList.addAll(files)
+
+        downloader.startPlaylistDownloads(3, 2, 2, Long.MAX_VALUE)
+
+        verify(files[1]).isWorkDone
+        verify(files[2], never()).isWorkDone
+        verify(files[4], never()).isWorkDone
+    }
+
+    @Test
+    fun `Should download pinned songs beyond the preload window`() {
+        val files = downloadFiles(4)
+        whenever(files[3].shouldSave()).thenReturn(true)
+        downloader.downloadList.addAll(files)
+
+        downloader.startPlaylistDownloads(3, 2, 2, Long.MAX_VALUE)
+
+        downloader.activelyDownloading `should equal` listOf(files[0], files[1], files[3])
+        verify(files[2], never()).isWorkDone
+    }
+
+    @Test
+    fun `Should not start a download which is running already`() {
+        val files = downloadFiles(2)
+        downloader.downloadList.addAll(files)
+        downloader.activelyDownloading.add(files[0])
+
+        downloader.startPlaylistDownloads(3, 5, 5, Long.MAX_VALUE)
+
+        downloader.activelyDownloading `should equal` files
+        verify(files[0], never()).download()
+    }
+
+    @Test
+    fun `Should hand the remaining slots to the background downloads`() {
+        val playlist = downloadFiles(1)
+        val background = downloadFiles(3, "background")
+        downloader.downloadList.addAll(playlist)
+        downloader.backgroundDownloadList.addAll(background)
+
+        downloader.startPlaylistDownloads(3, 5, 5, Long.MAX_VALUE)
+        downloader.startBackgroundDownloads(3, false)
+
+        downloader.activelyDownloading `should equal` playlist + background.subList(0, 2)
+        verify(background[2], never()).download()
+    }
+
+    @Test
+    fun `Should remove finished background downloads`() {
+        val background = downloadFiles(2, "background")
+        val done = downloadFile("done", workDone = true)
+        downloader.backgroundDownloadList.add(done)
+        downloader.backgroundDownloadList.addAll(background)
+
+        downloader.startBackgroundDownloads(3, false)
+
+        downloader.backgroundDownloadList `should equal` background
+        downloader.activelyDownloading.size `should be equal to` 2
+        verify(done, never()).download()
+    }
+
+    @Test
+    fun `Should find the DownloadFile of a song on the playlist`() {
+        val songs = songs(3)
+        downloader.download(songs, false, false, false, false)
+
+        downloader.getDownloadFileForSong(songs[1]) `should be` downloader.downloadList[1]
+    }
+
+    @Test
+    fun `Should prefer the background download of a song which isn't downloading on the playlist`() {
+        val songs = songs(1)
+        downloader.download(songs, false, false, false, false)
+        downloader.downloadBackground(songs, true)
+
+        downloader.getDownloadFileForSong(songs[0]) `should be` downloader.backgroundDownloadList[0]
+    }
+
+    @Test
+    fun `Should update the index when the playlist changes`() {
+        val songs = songs(2)
+        downloader.download(songs, false, false, false, false)
+        val removed = downloader.downloadList[0]
+        downloader.getDownloadFileForSong(songs[0]) `should be` removed
+
+        downloader.removeDownloadFile(removed)
+
+        downloader.getDownloadFileForSong(songs[0]) `should not be` removed
+        downloader.getDownloadFileForSong(songs[1]) `should be` downloader.downloadList[0]
+    }
+
+    @Test
+    fun `Should move a song of the playlist and change the revision`() {
+        val files = downloadFiles(3)
+        downloader.downloadList.addAll(files)
+        val revision = downloader.downloadListUpdateRevision
+
+        downloader.move(0, 2)
+
+        downloader.downloadList `should equal` listOf(files[1], files[2], files[0])
+        downloader.downloadListUpdateRevision `should be equal to` revision + 1
+    }
+
+    @Test
+    fun `Should return the same DownloadFile for a song on neither list while it is used`() {
+        val song = songs(1)[0]
+
+        val downloadFile = downloader.getDownloadFileForSong(song)
+
+        downloader.getDownloadFileForSong(song) `should be` downloadFile
+        downloader.clearDownloadFileCache()
+        downloader.getDownloadFileForSong(song) `should not be` downloadFile
+    }
+
+    @Test
+    fun `Should not keep the DownloadFile of a song on neither list which is no longer used`() {
+        val reference = WeakReference(downloader.getDownloadFileForSong(songs(1)[0]))
+
+        repeat(50) {
+            if (reference.get() != null) {
+                System.gc()
+                Thread.sleep(10)
+            }
+        }
+
+        reference.get() `should be` null
+    }
+
+    private fun songs(count: Int) = (0 until count).map { MusicDirectory.Entry(id = "song$it") }
+
+    private fun downloadFiles(count: Int, prefix: String = "song") =
+        (0 until count).map { downloadFile("$prefix$it") }
+
+    private fun downloadFile(id: String, workDone: Boolean = false) = mock<DownloadFile> {
+        on { song } doReturn MusicDirectory.Entry(id = id)
+        on { isWorkDone } doReturn workDone
+    }
+}
@@ -0,0 +1,108 @@
+@file:Suppress("IllegalIdentifier")
+
+package org.moire.ultrasonic.service
+
+import android.app.Application
+import android.os.Looper
+import com.nhaarman.mockito_kotlin.any
+import com.nhaarman.mockito_kotlin.doAnswer
+import com.nhaarman.mockito_kotlin.mock
+import com.nhaarman.mockito_kotlin.whenever
+import java.io.File
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.TimeUnit
+import org.amshove.kluent.`should be less than`
+import org.amshove.kluent.`should equal`
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.moire.ultrasonic.domain.PlayerState
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.Shadows.shadowOf
+import org.robolectric.annotation.Config
+import org.robolectric.shadows.ShadowMediaPlayer
+import org.robolectric.shadows.util.DataSource
+
+/**
+ * Unit test for the preparation of the next player of [LocalMediaPlayer],
+ * which uses the fake MediaPlayer of Robolectric.
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(application = Application::class, sdk = [28])
+class LocalMediaPlayerTest {
+    private val nextFile = File("/music/next.mp3")
+    private val listeners = CopyOnWriteArrayList<Consumer<DownloadFile>>()
+    @Volatile private var done = false
+    private val next = mock<DownloadFile>()
+
+    private lateinit var localMediaPlayer: LocalMediaPlayer
+
+    @Before
+    fun setUp() {
+        ShadowMediaPlayer.addMediaInfo(
+            DataSource.toDataSource(nextFile.path), ShadowMediaPlayer.MediaInfo(1000, 0)
+        )
+
+        doAnswer { done }.whenever(next).isWorkDone
+        doAnswer { done }.whenever(next).isCompleteFileAvailable
+        whenever(next.completeFile).thenReturn(nextFile)
+        doAnswer {
+            listeners.add(it.getArgument(0))
+            null
+        }.whenever(next).addStateListener(any())
+        doAnswer {
+            listeners.remove(it.getArgument<Consumer<DownloadFile>>(0))
+            null
+        }.whenever(next).removeStateListener(any())
+
+        localMediaPlayer = LocalMediaPlayer(
+            mock<AudioFocusHandler>(), PlayStartTracer(),
+            RuntimeEnvironment.application
+        )
+        localMediaPlayer.onCreate()
+        waitFor { localMediaPlayer.isPlayerThreadStarted }
+    }
+
+    @After
+    fun tearDown() {
+        localMediaPlayer.onDestroy()
+        ShadowMediaPlayer.resetStaticState()
+    }
+
+    @Test
+    fun `Should prepare the next player right after its download has completed`() {
+        localMediaPlayer.setPlayerState(PlayerState.STARTED)
+        localMediaPlayer.setNextPlaying(next)
+        localMediaPlayer.nextPlayerState `should equal` PlayerState.IDLE
+
+        val completed = System.nanoTime()
+        done = true
+        listeners.forEach { it.accept(next) }
+
+        waitFor { localMediaPlayer.nextPlayerState == PlayerState.PREPARED }
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - completed) `should be less than` 1000L
+    }
+
+    @Test
+    fun `Should not prepare the next player before its download has completed`() {
+        localMediaPlayer.setPlayerState(PlayerState.STARTED)
+        localMediaPlayer.setNextPlaying(next)
+
+        Thread.sleep(200)
+        shadowOf(Looper.getMainLooper()).idle()
+
+        localMediaPlayer.nextPlayerState `should equal` PlayerState.IDLE
+    }
+
+    private fun waitFor(condition: () -> Boolean) {
+        val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5)
+        while (!condition() && System.nanoTime() < deadline) {
+            // The fake player may post its callbacks to the main looper, which the test runs
+            shadowOf(Looper.getMainLooper()).idle()
+            Thread.sleep(5)
+        }
+        condition() `should equal` true
+    }
+}
@@ -0,0 +1,86 @@
+@file:Suppress("IllegalIdentifier")
+
+package org.moire.ultrasonic.service
+
+import android.content.Context
+import com.nhaarman.mockito_kotlin.any
+import com.nhaarman.mockito_kotlin.eq
+import com.nhaarman.mockito_kotlin.mock
+import com.nhaarman.mockito_kotlin.never
+import com.nhaarman.mockito_kotlin.times
+import com.nhaarman.mockito_kotlin.verify
+import com.nhaarman.mockito_kotlin.whenever
+import java.io.File
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import org.amshove.kluent.`should equal`
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+/**
+ * Unit test for [MediaScanCoordinator].
+ */
+class MediaScanCoordinatorTest {
+    @get:Rule val temporaryFolder = TemporaryFolder()
+
+    private val executorService = mock<ScheduledExecutorService>()
+    private val coordinator = MediaScanCoordinator(mock<Context>(), executorService)
+    private lateinit var file: File
+
+    @Before
+    fun setUp() {
+        whenever(executorService.schedule(any<Runnable>(), any(), any()))
+            .thenReturn(mock<ScheduledFuture<Any>>())
+        file = temporaryFolder.newFile("song.mp3")
+    }
+
+    @Test
+    fun `Should add a file to the batch only once`() {
+        coordinator.scan(file)
+        coordinator.scan(File(file.path))
+
+        verify(executorService, times(1))
+            .schedule(any<Runnable>(), eq(3000L), eq(TimeUnit.MILLISECONDS))
+        coordinator.takeChangedFiles() `should equal` listOf(file.absolutePath)
+    }
+
+    @Test
+    fun `Should scan a full batch right away`() {
+        repeat(100) { coordinator.scan(temporaryFolder.newFile("song$it.mp3")) }
+
+        verify(executorService).execute(any())
+        coordinator.takeChangedFiles().size `should equal` 100
+    }
+
+    @Test
+    fun `Should skip a file which hasn't changed since its last scan`() {
+        coordinator.scan(file)
+        coordinator.takeChangedFiles() `should equal` listOf(file.absolutePath)
+
+        coordinator.scan(file)
+
+        coordinator.takeChangedFiles() `should equal` emptyList()
+    }
+
+    @Test
+    fun `Should scan a file again when it has changed`() {
+        coordinator.scan(file)
+        coordinator.takeChangedFiles()
+
+        file.setLastModified(file.lastModified() + 10000)
+        coordinator.scan(file)
+
+        coordinator.takeChangedFiles() `should equal` listOf(file.absolutePath)
+    }
+
+    @Test
+    fun `Should skip a file which doesn't exist`() {
+        coordinator.scan(File(temporaryFolder.root, "missing.mp3"))
+
+        coordinator.takeChangedFiles() `should equal` emptyList()
+        verify(executorService, never()).execute(any())
+    }
+}
@@ -0,0 +1,198 @@
+@file:Suppress("IllegalIdentifier")
+
+package org.moire.ultrasonic.service
+
+import android.app.Application
+import android.content.ContentProviderOperation
+import android.content.ContentProviderResult
+import android.content.ContentResolver
+import android.content.Context
+import android.database.MatrixCursor
+import android.net.Uri
+import android.provider.MediaStore
+import com.nhaarman.mockito_kotlin.any
+import com.nhaarman.mockito_kotlin.anyOrNull
+import com.nhaarman.mockito_kotlin.doAnswer
+import com.nhaarman.mockito_kotlin.doReturn
+import com.nhaarman.mockito_kotlin.eq
+import com.nhaarman.mockito_kotlin.inOrder
+import com.nhaarman.mockito_kotlin.mock
+import com.nhaarman.mockito_kotlin.never
+import com.nhaarman.mockito_kotlin.times
+import com.nhaarman.mockito_kotlin.verify
+import com.nhaarman.mockito_kotlin.whenever
+import java.io.File
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import org.amshove.kluent.`should be equal to`
+import org.amshove.kluent.`should equal`
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.moire.ultrasonic.domain.MusicDirectory
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+/**
+ * Unit test for the batches of [MediaStoreService].
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(application = Application::class, sdk = [28])
+class MediaStoreServiceTest {
+    private val executorService = mock<ScheduledExecutorService>()
+    private val scheduledFlush = mock<ScheduledFuture<Any>>()
+    private val contentResolver = mock<ContentResolver>()
+    private val tasks = mutableListOf<Runnable>()
+    private var scheduledTask: Runnable? = null
+
+    private val albumIds = mapOf("Album A" to 1, "Album B" to 2)
+    private val albumOfSong = mutableMapOf<Long, Int>()
+    private val insertedPaths = mutableListOf<String>()
+    private val albumArtQueries = mutableListOf<Uri>()
+    private var whileWriting: () -> Unit = {}
+
+    private lateinit var mediaStoreService: MediaStoreService
+
+    @Before
+    fun setUp() {
+        doAnswer {
+            scheduledTask = it.getArgument(0)
+            tasks.add(it.getArgument(0))
+            scheduledFlush
+        }.whenever(executorService).schedule(any<Runnable>(), any(), any())
+        doAnswer {
+            tasks.remove(scheduledTask)
+        }.whenever(scheduledFlush).cancel(any())
+        doAnswer {
+            tasks.add(it.getArgument(0))
+            null
+        }.whenever(executorService).execute(any())
+
+        doAnswer {
+            insertSongs(it.getArgument(1))
+        }.whenever(contentResolver).applyBatch(any(), any())
+        doAnswer {
+            query(it.getArgument(0), it.getArgument(2))
+        }.whenever(contentResolver).query(any(), anyOrNull(), anyOrNull(), anyOrNull(), anyOrNull())
+
+        val context = mock<Context> {
+            on { getContentResolver() } doReturn contentResolver
+        }
+        mediaStoreService = MediaStoreService(context, executorService)
+    }
+
+    @Test
+    fun `Should write a batch a short time after its first song`() {
+        mediaStoreService.saveInMediaStore(song("1", "Album A"))
+        mediaStoreService.saveInMediaStore(song("2", "Album A"))
+
+        verify(executorService, times(1))
+            .schedule(any<Runnable>(), eq(2000L), eq(TimeUnit.MILLISECONDS))
+        verify(executorService, never()).execute(any())
+
+        runTasks()
+
+        insertedPaths.sorted() `should equal` listOf("/music/1.mp3", "/music/2.mp3")
+        verify(contentResolver, times(1)).applyBatch(any(), any())
+    }
+
+    @Test
+    fun `Should write a full batch right away`() {
+        mediaStoreService.saveInMediaStore(song("0", "Album A"))
+        (1 until 50).forEach { mediaStoreService.saveInMediaStore(song("$it", "Album A")) }
+
+        verify(scheduledFlush).cancel(false)
+        verify(executorService, times(1)).execute(any())
+
+        runTasks()
+
+        insertedPaths.size `should be equal to` 50
+        verify(contentResolver, times(1)).applyBatch(any(), any())
+    }
+
+    @Test
+    fun `Should not add a song which has been deleted before its batch is written`() {
+        mediaStoreService.saveInMediaStore(song("1", "Album A"))
+        mediaStoreService.deleteFromMediaStore(song("1", "Album A"))
+
+        runTasks()
+
+        insertedPaths `should equal` emptyList()
+        verify(contentResolver, never()).applyBatch(any(), any())
+        verify(contentResolver).delete(any(), any(), eq(arrayOf(MediaStore.Audio.keyFor("1"), "/music/1.mp3")))
+    }
+
+    @Test
+    fun `Should delete a song after the batch which is adding it`() {
+        mediaStoreService.saveInMediaStore(song("0", "Album A"))
+        whileWriting = { mediaStoreService.deleteFromMediaStore(song("0", "Album A")) }
+
+        runTasks()
+
+        insertedPaths `should equal` listOf("/music/0.mp3")
+        val order = inOrder(contentResolver)
+        order.verify(contentResolver).applyBatch(any(), any())
+        order.verify(contentResolver).delete(any(), any(), eq(arrayOf(MediaStore.Audio.keyFor("0"), "/music/0.mp3")))
+    }
+
+    @Test
+    fun `Should look up the album art once per album`() {
+        mediaStoreService.saveInMediaStore(song("1", "Album A"))
+        mediaStoreService.saveInMediaStore(song("2", "Album A"))
+        mediaStoreService.saveInMediaStore(song("3", "Album B"))
+        runTasks()
+
+        albumArtQueries.map { it.lastPathSegment }.sorted() `should equal` listOf("1", "2")
+
+        mediaStoreService.saveInMediaStore(song("4", "Album A"))
+        runTasks()
+
+        albumArtQueries.size `should be equal to` 2
+    }
+
+    private fun song(title: String, album: String) = mock<DownloadFile> {
+        on { completeFile } doReturn File("/music/$title.mp3")
+        on { song } doReturn MusicDirectory.Entry(id = title, title = title, album = album)
+    }
+
+    private fun runTasks() {
+        while (tasks.isNotEmpty()) tasks.removeAt(0).run()
+    }
+
+    /**
+     * Answers a batch of songs, which deletes the old row and inserts the new one of each song
+     */
+    private fun insertSongs(
+        operations: ArrayList<ContentProviderOperation>
+    ): Array<ContentProviderResult> {
+        whileWriting()
+        return Array(operations.size) { i ->
+            if (i % 2 == 0) return@Array ContentProviderResult(0)
+
+            val values = operations[i].resolveValueBackReferences(arrayOf(), 0)
+            val id = (albumOfSong.size + 1).toLong()
+            albumOfSong[id] = albumIds.getValue(values.getAsString(MediaStore.Audio.AudioColumns.ALBUM))
+            insertedPaths.add(values.getAsString(MediaStore.MediaColumns.DATA))
+            ContentProviderResult(Uri.withAppendedPath(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, "$id"))
+        }
+    }
+
+    /**
+     * Answers the query of the albums of the new rows, or finds album art for any album
+     */
+    private fun query(uri: Uri, selection: String?): MatrixCursor {
+        if (uri != MediaStore.Audio.Media.EXTERNAL_CONTENT_URI) {
+            albumArtQueries.add(uri)
+            return MatrixCursor(arrayOf(MediaStore.MediaColumns.DATA)).apply {
+                addRow(arrayOf("/artwork/${uri.lastPathSegment}.jpeg"))
+            }
+        }
+
+        val cursor = MatrixCursor(arrayOf("_id", MediaStore.Audio.AudioColumns.ALBUM_ID))
+        selection!!.substringAfter('(').substringBefore(')').split(',').forEach {
+            cursor.addRow(arrayOf(it.toLong(), albumOfSong.getValue(it.toLong())))
+        }
+        return cursor
+    }
+}
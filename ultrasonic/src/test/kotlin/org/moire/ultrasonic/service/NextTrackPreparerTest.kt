@@ -0,0 +1,113 @@
+@file:Suppress("IllegalIdentifier")
+
+package org.moire.ultrasonic.service
+
+import com.nhaarman.mockito_kotlin.any
+import com.nhaarman.mockito_kotlin.doAnswer
+import com.nhaarman.mockito_kotlin.mock
+import com.nhaarman.mockito_kotlin.whenever
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import org.amshove.kluent.`should be equal to`
+import org.amshove.kluent.`should be less than`
+import org.junit.Test
+import org.moire.ultrasonic.domain.PlayerState
+
+/**
+ * Unit test for [NextTrackPreparer].
+ */
+class NextTrackPreparerTest {
+    private val prepared = CopyOnWriteArrayList<DownloadFile>()
+    private val preparationStarted = CountDownLatch(1)
+
+    private val preparer = NextTrackPreparer(object : Consumer<DownloadFile>() {
+        override fun accept(t: DownloadFile) {
+            prepared.add(t)
+            preparationStarted.countDown()
+        }
+    })
+
+    private class Download {
+        val listeners = CopyOnWriteArrayList<Consumer<DownloadFile>>()
+        @Volatile var done = false
+
+        val file = mock<DownloadFile>()
+
+        init {
+            doAnswer { done }.whenever(file).isWorkDone
+            doAnswer {
+                listeners.add(it.getArgument(0))
+                null
+            }.whenever(file).addStateListener(any())
+            doAnswer {
+                listeners.remove(it.getArgument<Consumer<DownloadFile>>(0))
+                null
+            }.whenever(file).removeStateListener(any())
+        }
+
+        fun complete() {
+            done = true
+            listeners.forEach { it.accept(file) }
+        }
+    }
+
+    @Test
+    fun `Should start preparing the next player right after its download has completed`() {
+        val next = Download()
+        preparer.setPlayerState(PlayerState.STARTED)
+        preparer.setNext(next.file)
+        prepared.size `should be equal to` 0
+
+        val completed = System.nanoTime()
+        Thread { next.complete() }.start()
+
+        preparationStarted.await(5, TimeUnit.SECONDS) `should be equal to` true
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - completed) `should be less than` 500L
+        prepared `should be equal to` listOf(next.file)
+    }
+
+    @Test
+    fun `Should wait for the current player before preparing the next one`() {
+        val next = Download()
+        next.done = true
+        preparer.setPlayerState(PlayerState.PREPARING)
+        preparer.setNext(next.file)
+        prepared.size `should be equal to` 0
+
+        preparer.setPlayerState(PlayerState.STARTED)
+
+        preparationStarted.await(5, TimeUnit.SECONDS) `should be equal to` true
+        prepared `should be equal to` listOf(next.file)
+    }
+
+    @Test
+    fun `Should prepare each next song only once`() {
+        val next = Download()
+        preparer.setPlayerState(PlayerState.STARTED)
+        preparer.setNext(next.file)
+
+        next.complete()
+        preparer.setPlayerState(PlayerState.PAUSED)
+        preparer.setPlayerState(PlayerState.STARTED)
+        next.complete()
+
+        prepared `should be equal to` listOf(next.file)
+    }
+
+    @Test
+    fun `Should not prepare a song which is no longer next`() {
+        val first = Download()
+        val second = Download()
+        preparer.setPlayerState(PlayerState.STARTED)
+        preparer.setNext(first.file)
+        preparer.setNext(second.file)
+
+        first.complete()
+        prepared.size `should be equal to` 0
+        first.listeners.size `should be equal to` 0
+
+        second.complete()
+        prepared `should be equal to` listOf(second.file)
+    }
+}
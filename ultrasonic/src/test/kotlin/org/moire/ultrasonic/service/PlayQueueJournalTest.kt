@@ -0,0 +1,103 @@
+@file:Suppress("IllegalIdentifier")
+
+package org.moire.ultrasonic.service
+
+import java.io.File
+import java.io.RandomAccessFile
+import org.amshove.kluent.`should be`
+import org.amshove.kluent.`should be equal to`
+import org.amshove.kluent.`should be less than`
+import org.amshove.kluent.`should equal`
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.moire.ultrasonic.domain.MusicDirectory
+
+/**
+ * Unit test for [PlayQueueJournal].
+ */
+class PlayQueueJournalTest {
+    @get:Rule val temporaryFolder = TemporaryFolder()
+
+    private lateinit var file: File
+    private lateinit var journal: PlayQueueJournal
+
+    @Before
+    fun setUp() {
+        file = File(temporaryFolder.root, "playqueue.journal")
+        journal = PlayQueueJournal(file)
+    }
+
+    @Test
+    fun `Should load nothing without a file`() {
+        journal.load() `should be` null
+    }
+
+    @Test
+    fun `Should restore the queue and the position`() {
+        val queue = songs(3)
+        journal.write(queue, 1, 1000)
+        journal.write(listOf(queue[0], queue[2]), 1, 2000)
+        journal.close()
+
+        val state = PlayQueueJournal(file).load()!!
+
+        state.songs.map { it.id } `should equal` listOf("0", "2")
+        state.songs[1].title `should equal` "Song 2"
+        state.currentPlayingIndex `should be equal to` 1
+        state.currentPlayingPosition `should be equal to` 2000
+    }
+
+    @Test
+    fun `Should only append the songs which were added`() {
+        val queue = songs(200).toMutableList()
+        journal.write(queue, 0, 0)
+        val queueLength = file.length()
+
+        queue.add(100, song("new"))
+        journal.write(queue, 0, 0)
+        journal.close()
+
+        (file.length() - queueLength) `should be less than` queueLength / 10
+        val state = PlayQueueJournal(file).load()!!
+        state.songs.size `should be equal to` 201
+        state.songs[100].id `should equal` "new"
+        state.songs[101].id `should equal` "100"
+    }
+
+    @Test
+    fun `Should ignore an incomplete last record`() {
+        val queue = songs(3)
+        journal.write(queue.subList(0, 2), 0, 0)
+        journal.write(queue, 0, 0)
+        journal.close()
+        RandomAccessFile(file, "rw").use { it.setLength(it.length() - 5) }
+
+        val state = PlayQueueJournal(file).load()!!
+
+        state.songs.map { it.id } `should equal` listOf("0", "1")
+    }
+
+    @Test
+    fun `Should compact the file when it grows much longer than the queue`() {
+        val queue = songs(1)
+        journal.write(queue, 0, 0)
+        val singleSongLength = file.length()
+
+        repeat(100) {
+            journal.write(queue + song("x$it"), 0, it)
+            journal.write(queue, 0, it)
+        }
+        journal.close()
+
+        file.length() `should be less than` singleSongLength * 10
+        val state = PlayQueueJournal(file).load()!!
+        state.songs.map { it.id } `should equal` listOf("0")
+        state.currentPlayingPosition `should be equal to` 99
+    }
+
+    private fun songs(count: Int) = (0 until count).map { song(it.toString()) }
+
+    private fun song(id: String) = MusicDirectory.Entry(id = id, title = "Song $id")
+}
@@ -0,0 +1,113 @@
+@file:Suppress("IllegalIdentifier")
+
+package org.moire.ultrasonic.service
+
+import java.util.concurrent.TimeUnit
+import org.amshove.kluent.`should be`
+import org.amshove.kluent.`should be equal to`
+import org.amshove.kluent.`should contain`
+import org.amshove.kluent.`should equal`
+import org.junit.Test
+import org.moire.ultrasonic.service.PlayStartTrace.Stage
+
+/**
+ * Unit test for [PlayStartTracer].
+ */
+class PlayStartTracerTest {
+    private var now = 0L
+    private val tracer = PlayStartTracer(object : Supplier<Long>() {
+        override fun get() = now
+    })
+
+    @Test
+    fun `Should record the time from the tap to each stage`() {
+        tracer.begin("1")
+        advance(10)
+        tracer.mark("1", Stage.SERVICE)
+        advance(100)
+        tracer.mark("1", Stage.PREPARED)
+        advance(5)
+        tracer.mark("1", Stage.FIRST_AUDIO)
+
+        val trace = tracer.traces.single()
+        trace.getStageMillis(Stage.SERVICE) `should be equal to` 10L
+        trace.getStageMillis(Stage.PREPARED) `should be equal to` 110L
+        trace.getStageMillis(Stage.FIRST_AUDIO) `should be equal to` 115L
+        trace.getStageMillis(Stage.RESPONSE) `should be equal to` -1L
+    }
+
+    @Test
+    fun `Should only record the first time a stage is reached`() {
+        tracer.begin("1")
+        advance(10)
+        tracer.mark("1", Stage.FIRST_BYTE)
+        advance(10)
+        tracer.mark("1", Stage.FIRST_BYTE)
+        tracer.mark("1", Stage.FIRST_AUDIO)
+
+        tracer.traces.single().getStageMillis(Stage.FIRST_BYTE) `should be equal to` 10L
+    }
+
+    @Test
+    fun `Should ignore the stages of other songs`() {
+        tracer.begin("1")
+        advance(10)
+        tracer.mark("2", Stage.DOWNLOAD)
+        tracer.mark("2", Stage.FIRST_AUDIO)
+
+        tracer.traces.size `should be equal to` 0
+        tracer.summary `should be` null
+
+        tracer.mark("1", Stage.FIRST_AUDIO)
+        tracer.traces.single().getStageMillis(Stage.DOWNLOAD) `should be equal to` -1L
+    }
+
+    @Test
+    fun `Should keep the latest traces`() {
+        repeat(PlayStartTracer.CAPACITY + 10) {
+            tracer.begin(it.toString())
+            tracer.mark(it.toString(), Stage.FIRST_AUDIO)
+        }
+
+        val traces = tracer.traces
+        traces.size `should be equal to` PlayStartTracer.CAPACITY
+        traces.first().songId `should equal` "10"
+        traces.last().songId `should equal` (PlayStartTracer.CAPACITY + 9).toString()
+    }
+
+    @Test
+    fun `Should summarize the percentiles of each stage`() {
+        for (millis in 1L..PlayStartTracer.CAPACITY) {
+            tracer.begin("1")
+            advance(millis)
+            tracer.mark("1", Stage.FIRST_AUDIO)
+        }
+
+        tracer.summary!! `should contain` "audio: p50 25 ms p90 45 ms p99 50 ms"
+    }
+
+    @Test
+    fun `Should compare the streamed starts with the buffered ones`() {
+        for (millis in 1L..10L) {
+            tracer.begin("1")
+            if (millis <= 4) tracer.markStreamed("1")
+            advance(millis * 100)
+            tracer.mark("1", Stage.FIRST_AUDIO)
+        }
+
+        tracer.traces.count { it.isStreamed } `should be equal to` 4
+        tracer.summary!! `should contain` "streamed audio: p50 200 ms p90 400 ms p99 400 ms (4 starts)"
+        tracer.summary!! `should contain` "buffered audio: p50 700 ms p90 1000 ms p99 1000 ms (6 starts)"
+    }
+
+    @Test
+    fun `Should compute the nearest rank percentile`() {
+        PlayStartTracer.getPercentile(longArrayOf(7), 50) `should be equal to` 7L
+        PlayStartTracer.getPercentile(longArrayOf(1, 2, 3, 4), 50) `should be equal to` 2L
+        PlayStartTracer.getPercentile(longArrayOf(1, 2, 3, 4), 99) `should be equal to` 4L
+    }
+
+    private fun advance(millis: Long) {
+        now += TimeUnit.MILLISECONDS.toNanos(millis)
+    }
+}
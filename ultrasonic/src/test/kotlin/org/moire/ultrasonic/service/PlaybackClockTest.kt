@@ -0,0 +1,64 @@
+@file:Suppress("IllegalIdentifier")
+
+package org.moire.ultrasonic.service
+
+import java.util.concurrent.TimeUnit
+import org.amshove.kluent.`should be equal to`
+import org.junit.Test
+
+/**
+ * Unit test for [PlaybackClock].
+ */
+class PlaybackClockTest {
+    private var now = 0L
+    private val clock = PlaybackClock(object : Supplier<Long>() {
+        override fun get(): Long = now
+    })
+
+    private fun advance(millis: Long) {
+        now += TimeUnit.MILLISECONDS.toNanos(millis)
+    }
+
+    @Test
+    fun `Should advance the position while running`() {
+        clock.sync(5000)
+        clock.setRunning(true)
+        advance(250)
+
+        clock.getPosition() `should be equal to` 5250
+    }
+
+    @Test
+    fun `Should keep the position while stopped`() {
+        clock.setRunning(true)
+        advance(300)
+        clock.setRunning(false)
+        advance(10_000)
+
+        clock.getPosition() `should be equal to` 300
+        clock.isSyncDue() `should be equal to` false
+    }
+
+    @Test
+    fun `Should continue from the synchronized position`() {
+        clock.setRunning(true)
+        advance(1000)
+        clock.sync(900)
+        advance(100)
+
+        clock.getPosition() `should be equal to` 1000
+    }
+
+    @Test
+    fun `Should ask for a sync once per interval`() {
+        clock.setRunning(true)
+        advance(999)
+        clock.isSyncDue() `should be equal to` false
+
+        advance(1)
+        clock.isSyncDue() `should be equal to` true
+
+        clock.sync(1000)
+        clock.isSyncDue() `should be equal to` false
+    }
+}
@@ -0,0 +1,75 @@
+@file:Suppress("IllegalIdentifier")
+
+package org.moire.ultrasonic.service
+
+import java.util.concurrent.TimeUnit
+import org.amshove.kluent.`should be equal to`
+import org.junit.Test
+
+/**
+ * Unit test for [PreloadPlanner].
+ */
+class PreloadPlannerTest {
+    private fun transfer(startSeconds: Long, endSeconds: Long, bytes: Long) =
+        PreloadPlanner.Transfer(
+            TimeUnit.SECONDS.toNanos(startSeconds),
+            TimeUnit.SECONDS.toNanos(endSeconds),
+            bytes
+        )
+
+    @Test
+    fun `Should not know the throughput of short transfers`() {
+        PreloadPlanner.getThroughput(listOf(transfer(0, 1, 1000))) `should be equal to` -1L
+        PreloadPlanner.getThroughput(emptyList()) `should be equal to` -1L
+    }
+
+    @Test
+    fun `Should divide concurrent transfers by the time the link was busy`() {
+        val transfers = listOf(
+            transfer(0, 10, 1000),
+            transfer(5, 10, 1000),
+            transfer(2, 4, 1000)
+        )
+
+        PreloadPlanner.getThroughput(transfers) `should be equal to` 300L
+    }
+
+    @Test
+    fun `Should not count the time between transfers`() {
+        val transfers = listOf(
+            transfer(100, 104, 4000),
+            transfer(0, 4, 4000)
+        )
+
+        PreloadPlanner.getThroughput(transfers) `should be equal to` 1000L
+    }
+
+    @Test
+    fun `Should preload more songs on a faster link`() {
+        // 128 kbps are 16000 B/s
+        PreloadPlanner.getDepth(16000 * 2L, 128, 1, 10) `should be equal to` 1
+        PreloadPlanner.getDepth(16000 * 4L, 128, 1, 10) `should be equal to` 3
+        PreloadPlanner.getDepth(16000 * 4L, 256, 1, 10) `should be equal to` 1
+    }
+
+    @Test
+    fun `Should keep the depth within its bounds`() {
+        PreloadPlanner.getDepth(16000 * 100L, 128, 1, 5) `should be equal to` 5
+        PreloadPlanner.getDepth(16000L, 128, 2, 5) `should be equal to` 2
+        PreloadPlanner.getDepth(-1, 128, 2, 5) `should be equal to` 2
+    }
+
+    @Test
+    fun `Should only preload the minimum until the throughput is known`() {
+        PreloadPlanner.getByteBudget(-1) `should be equal to` 0L
+        PreloadPlanner.getByteBudget(1000) `should be equal to` 1000 * PreloadPlanner.BUDGET_HORIZON
+    }
+
+    @Test
+    fun `Should estimate the size of transcoded songs`() {
+        PreloadPlanner.getEstimatedSize(60, 10_000_000L, 128) `should be equal to` 60 * 16000L
+        PreloadPlanner.getEstimatedSize(60, 100_000L, 128) `should be equal to` 100_000L
+        PreloadPlanner.getEstimatedSize(null, 100_000L, 128) `should be equal to` 100_000L
+        PreloadPlanner.getEstimatedSize(null, null, 128) `should be equal to` 0L
+    }
+}
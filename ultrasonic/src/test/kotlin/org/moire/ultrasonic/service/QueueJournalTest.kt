@@ -0,0 +1,99 @@
+@file:Suppress("IllegalIdentifier")
+
+package org.moire.ultrasonic.service
+
+import java.io.File
+import java.io.RandomAccessFile
+import org.amshove.kluent.`should be equal to`
+import org.amshove.kluent.`should be less than`
+import org.amshove.kluent.`should equal`
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.moire.ultrasonic.domain.MusicDirectory
+
+/**
+ * Unit test for [QueueJournal].
+ */
+class QueueJournalTest {
+    @get:Rule val temporaryFolder = TemporaryFolder()
+
+    private lateinit var file: File
+    private lateinit var journal: QueueJournal
+
+    @Before
+    fun setUp() {
+        file = File(temporaryFolder.root, "queue.journal")
+        journal = QueueJournal(file)
+    }
+
+    @Test
+    fun `Should load nothing without a file`() {
+        journal.load().size `should be equal to` 0
+    }
+
+    @Test
+    fun `Should restore the added songs in order`() {
+        journal.add(listOf(item("1", true), item("2", false), item("3", false)))
+        journal.remove("2")
+        journal.close()
+
+        val items = QueueJournal(file).load()
+
+        items.map { it.song.id } `should equal` listOf("1", "3")
+        items[0].save `should be equal to` true
+        items[0].song.title `should equal` "Song 1"
+    }
+
+    @Test
+    fun `Should keep a song saved if any addition asked for it`() {
+        journal.add(listOf(item("1", true)))
+        journal.add(listOf(item("1", false)))
+        journal.close()
+
+        val items = QueueJournal(file).load()
+
+        items.size `should be equal to` 1
+        items[0].save `should be equal to` true
+    }
+
+    @Test
+    fun `Should ignore an incomplete last record`() {
+        journal.add(listOf(item("1", false), item("2", false)))
+        journal.close()
+        RandomAccessFile(file, "rw").use { it.setLength(it.length() - 10) }
+
+        val items = QueueJournal(file).load()
+
+        items.map { it.song.id } `should equal` listOf("1")
+    }
+
+    @Test
+    fun `Should compact the file when it grows much longer than the queue`() {
+        journal.add(listOf(item("1", false)))
+        val singleSongLength = file.length()
+
+        repeat(100) {
+            journal.add(listOf(item("x$it", false)))
+            journal.remove("x$it")
+        }
+        journal.close()
+
+        file.length() `should be less than` singleSongLength * 10
+        QueueJournal(file).load().map { it.song.id } `should equal` listOf("1")
+    }
+
+    @Test
+    fun `Should write an empty file when cleared`() {
+        journal.add(listOf(item("1", false)))
+        journal.clear()
+
+        journal.size() `should be equal to` 0
+        QueueJournal(file).load().size `should be equal to` 0
+    }
+
+    private fun item(id: String, save: Boolean) = QueueJournal.Item(
+        MusicDirectory.Entry(id = id, title = "Song $id"), save
+    )
+}
@@ -0,0 +1,73 @@
+@file:Suppress("IllegalIdentifier")
+
+package org.moire.ultrasonic.service
+
+import java.nio.ByteBuffer
+import org.amshove.kluent.`should be equal to`
+import org.amshove.kluent.`should be less than`
+import org.amshove.kluent.`should equal`
+import org.junit.Test
+
+/**
+ * Unit test for [StreamBuffer].
+ */
+class StreamBufferTest {
+    private val buffer = StreamBuffer(16)
+
+    private fun write(vararg bytes: Int) {
+        buffer.write(ByteBuffer.wrap(ByteArray(bytes.size) { bytes[it].toByte() }))
+    }
+
+    private fun read(position: Long, length: Int): List<Int>? {
+        val destination = ByteBuffer.allocate(length)
+        if (buffer.read(position, destination) == -1) return null
+        destination.flip()
+        return List(destination.remaining()) { destination.get().toInt() }
+    }
+
+    @Test
+    fun `Should read the bytes at their offsets in the file`() {
+        buffer.reset(100)
+        write(1, 2, 3, 4)
+
+        read(100, 10) `should equal` listOf(1, 2, 3, 4)
+        read(102, 1) `should equal` listOf(3)
+        read(104, 10) `should equal` emptyList()
+    }
+
+    @Test
+    fun `Should keep the newest bytes when the ring wraps around`() {
+        buffer.reset(0)
+        write(*IntArray(12) { it })
+        write(*IntArray(12) { it + 12 })
+
+        read(7, 1) `should equal` null
+        read(8, 16) `should equal` (8 until 24).toList()
+        read(20, 16) `should equal` listOf(20, 21, 22, 23)
+    }
+
+    @Test
+    fun `Should not serve anything after it was closed`() {
+        buffer.reset(0)
+        write(1, 2)
+        buffer.close()
+
+        buffer.isStreaming(0) `should be equal to` false
+        read(0, 2) `should equal` null
+    }
+
+    @Test
+    fun `Should wake a waiting reader when the bytes arrive`() {
+        buffer.reset(0)
+        Thread {
+            Thread.sleep(50)
+            write(1)
+        }.start()
+
+        val start = System.currentTimeMillis()
+        buffer.await(0, 5000)
+
+        System.currentTimeMillis() - start `should be less than` 4000L
+        read(0, 1) `should equal` listOf(1)
+    }
+}
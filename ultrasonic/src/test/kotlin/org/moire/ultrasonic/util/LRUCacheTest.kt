@@ -0,0 +1,110 @@
+@file:Suppress("IllegalIdentifier")
+
+package org.moire.ultrasonic.util
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import org.amshove.kluent.`should be`
+import org.amshove.kluent.`should be equal to`
+import org.amshove.kluent.`should equal`
+import org.junit.Test
+
+/**
+ * Unit test for [LRUCache].
+ */
+class LRUCacheTest {
+    @Test
+    fun `Should evict the least recently used entry`() {
+        val cache = LRUCache<String, String>(2)
+        cache.put("1", "one")
+        cache.put("2", "two")
+        cache.get("1")
+        repeat(20) { cache.get("1") }
+
+        cache.put("3", "three")
+
+        cache.get("1") `should equal` "one"
+        cache.get("2") `should be` null
+        cache.get("3") `should equal` "three"
+        cache.size() `should be equal to` 2
+        cache.evictionCount `should be equal to` 1L
+    }
+
+    @Test
+    fun `Should evict by weight`() {
+        val cache = LRUCache<String, String>(10, object : LRUCache.Weigher<String, String>() {
+            override fun weigh(key: String, value: String) = value.length
+        })
+        cache.put("1", "aaaa")
+        cache.put("2", "bbbb")
+        cache.weight `should be equal to` 8L
+
+        cache.put("3", "cccc")
+
+        cache.get("1") `should be` null
+        cache.size() `should be equal to` 2
+        cache.weight `should be equal to` 8L
+    }
+
+    @Test
+    fun `Should replace the value of a key`() {
+        val cache = LRUCache<String, String>(2)
+        cache.put("1", "one")
+        cache.put("1", "uno")
+
+        cache.get("1") `should equal` "uno"
+        cache.size() `should be equal to` 1
+        cache.weight `should be equal to` 1L
+    }
+
+    @Test
+    fun `Should remove and clear entries`() {
+        val cache = LRUCache<String, String>(3)
+        cache.put("1", "one")
+        cache.put("2", "two")
+
+        cache.remove("1") `should equal` "one"
+        cache.remove("1") `should be` null
+        cache.clear()
+
+        cache.size() `should be equal to` 0
+        cache.weight `should be equal to` 0L
+        cache.get("2") `should be` null
+    }
+
+    @Test
+    fun `Should count hits and misses`() {
+        val cache = LRUCache<String, String>(2)
+        cache.put("1", "one")
+
+        cache.get("1")
+        cache.get("1")
+        cache.get("2")
+
+        cache.hitCount `should be equal to` 2L
+        cache.missCount `should be equal to` 1L
+    }
+
+    @Test
+    fun `Should stay within its capacity under concurrent use`() {
+        val cache = LRUCache<Int, Int>(50)
+        val executor = Executors.newFixedThreadPool(4)
+        val done = CountDownLatch(4)
+
+        repeat(4) { thread ->
+            executor.execute {
+                for (i in 0 until 10000) {
+                    val key = (i * 7 + thread) % 200
+                    if (cache.get(key) == null) cache.put(key, i)
+                }
+                done.countDown()
+            }
+        }
+
+        done.await(10, TimeUnit.SECONDS) `should be equal to` true
+        executor.shutdown()
+        (cache.size() <= 50) `should be equal to` true
+        cache.weight `should be equal to` cache.size().toLong()
+    }
+}
@@ -0,0 +1,225 @@
+@file:Suppress("IllegalIdentifier")
+
+package org.moire.ultrasonic.util
+
+import com.nhaarman.mockito_kotlin.any
+import com.nhaarman.mockito_kotlin.doAnswer
+import com.nhaarman.mockito_kotlin.doReturn
+import com.nhaarman.mockito_kotlin.mock
+import com.nhaarman.mockito_kotlin.whenever
+import java.io.DataInputStream
+import java.io.File
+import java.io.InputStream
+import java.net.Socket
+import java.net.URLEncoder
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.random.Random
+import org.amshove.kluent.`should be equal to`
+import org.amshove.kluent.`should be`
+import org.amshove.kluent.`should equal`
+import org.junit.After
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.moire.ultrasonic.domain.MusicDirectory
+import org.moire.ultrasonic.service.DownloadFile
+import org.moire.ultrasonic.service.PlayStartTracer
+import org.moire.ultrasonic.service.Supplier
+
+/**
+ * Unit test for [StreamProxy].
+ */
+class StreamProxyTest {
+    @get:Rule val temporaryFolder = TemporaryFolder()
+
+    private var proxy: StreamProxy? = null
+    private val sockets = mutableListOf<Socket>()
+
+    @After
+    fun tearDown() {
+        sockets.forEach { it.close() }
+        proxy?.stop()
+    }
+
+    @Test
+    fun `Should parse a range with both ends`() {
+        StreamProxy.parseRange("bytes=100-199", 1000)!!.toList() `should equal` listOf(100L, 199L)
+    }
+
+    @Test
+    fun `Should parse an open range until the end of the file`() {
+        StreamProxy.parseRange("bytes=0-", 1000)!!.toList() `should equal` listOf(0L, 999L)
+        StreamProxy.parseRange("bytes=900-2000", 1000)!!.toList() `should equal` listOf(900L, 999L)
+    }
+
+    @Test
+    fun `Should parse a suffix range`() {
+        StreamProxy.parseRange("bytes=-100", 1000)!!.toList() `should equal` listOf(900L, 999L)
+        StreamProxy.parseRange("bytes=-2000", 1000)!!.toList() `should equal` listOf(0L, 999L)
+    }
+
+    @Test
+    fun `Should only serve the first of multiple ranges`() {
+        StreamProxy.parseRange("bytes=0-9, 20-29", 1000)!!.toList() `should equal` listOf(0L, 9L)
+    }
+
+    @Test
+    fun `Should not satisfy a range beyond the end of the file`() {
+        StreamProxy.parseRange("bytes=1000-", 1000) `should be` StreamProxy.UNSATISFIABLE
+        StreamProxy.parseRange("bytes=-0", 1000) `should be` StreamProxy.UNSATISFIABLE
+    }
+
+    @Test
+    fun `Should send the whole file for missing or unusable ranges`() {
+        StreamProxy.parseRange(null, 1000) `should be` null
+        StreamProxy.parseRange("bytes=100-", -1) `should be` null
+        StreamProxy.parseRange("items=0-1", 1000) `should be` null
+        StreamProxy.parseRange("bytes=200-100", 1000) `should be` null
+    }
+
+    @Test
+    fun `Should keep a connection alive between requests`() {
+        startProxy()
+        val client = connect()
+
+        request(client) `should equal` "HTTP/1.1 404 Not Found"
+        request(client) `should equal` "HTTP/1.1 404 Not Found"
+    }
+
+    @Test
+    fun `Should close the oldest idle connection instead of refusing a new one`() {
+        startProxy()
+        val idle = (0 until 4).map { connect() }
+        idle.forEach { request(it) }
+        Thread.sleep(100)
+
+        val client = connect()
+
+        request(client) `should equal` "HTTP/1.1 404 Not Found"
+        idle[0].getInputStream().read() `should be equal to` -1
+        request(idle[1]) `should equal` "HTTP/1.1 404 Not Found"
+    }
+
+    @Test
+    fun `Should send a complete file`() {
+        val bytes = Random.nextBytes(100 * 1024)
+        val completeFile = temporaryFolder.newFile("song.complete.mp3").apply { writeBytes(bytes) }
+        val downloadFile = downloadFile(completeFile, completeFile, bytes.size.toLong())
+        whenever(downloadFile.isCompleteFileAvailable).thenReturn(true)
+        startProxy(downloadFile)
+        val client = connect()
+
+        val headers = get(client, completeFile)
+
+        headers[0] `should equal` "HTTP/1.1 200 OK"
+        readBody(client, bytes.size) `should equal` bytes.toList()
+    }
+
+    @Test
+    fun `Should send the requested range of a complete file`() {
+        val bytes = Random.nextBytes(100 * 1024)
+        val completeFile = temporaryFolder.newFile("song.complete.mp3").apply { writeBytes(bytes) }
+        val downloadFile = downloadFile(completeFile, completeFile, bytes.size.toLong())
+        whenever(downloadFile.isCompleteFileAvailable).thenReturn(true)
+        startProxy(downloadFile)
+        val client = connect()
+
+        val headers = get(client, completeFile, "bytes=1000-1999")
+
+        headers[0] `should equal` "HTTP/1.1 206 Partial Content"
+        headers.contains("Content-Range: bytes 1000-1999/${bytes.size}") `should be equal to` true
+        readBody(client, 1000) `should equal` bytes.copyOfRange(1000, 2000).toList()
+    }
+
+    @Test
+    fun `Should reopen the partial file when the download has replaced it`() {
+        val bytes = Random.nextBytes(2000)
+        val partialFile = File(temporaryFolder.root, "song.partial.mp3")
+        partialFile.writeBytes(Random.nextBytes(1000))
+        val partialBytes = AtomicLong(1000)
+        val downloadFile = downloadFile(partialFile, File(temporaryFolder.root, "song.mp3"), 2000)
+        doAnswer { partialBytes.get() }.whenever(downloadFile).partialBytes
+        doAnswer { partialBytes.get() }.whenever(downloadFile).getDownloadedEnd(any())
+        startProxy(downloadFile)
+        val client = connect()
+
+        get(client, partialFile)
+        readBody(client, 1000)
+
+        // The download has started over, and is already further than before
+        partialFile.delete()
+        partialFile.writeBytes(bytes)
+        partialBytes.set(2000)
+
+        readBody(client, 1000) `should equal` bytes.copyOfRange(1000, 2000).toList()
+    }
+
+    private fun downloadFile(partialFile: File, completeFile: File, length: Long) = mock<DownloadFile> {
+        on { song } doReturn MusicDirectory.Entry(id = "1", contentType = "audio/mpeg")
+        on { this.partialFile } doReturn partialFile
+        on { this.completeFile } doReturn completeFile
+        on { totalLength } doReturn length
+        on { awaitBytes(any(), any(), any()) } doAnswer {
+            Thread.sleep(10)
+            false
+        }
+    }
+
+    private fun startProxy(downloadFile: DownloadFile? = null) {
+        val currentPlaying = object : Supplier<DownloadFile>() {
+            override fun get() = downloadFile
+        }
+        val threadCpuTime = object : Supplier<Long>() {
+            override fun get() = 0L
+        }
+        proxy = StreamProxy(currentPlaying, PlayStartTracer(), threadCpuTime).apply { start() }
+    }
+
+    /**
+     * Sends a request for the file
+     * @return the header lines of the response
+     */
+    private fun get(socket: Socket, file: File, range: String? = null): List<String> {
+        val path = URLEncoder.encode(file.path, "UTF-8")
+        val request = "GET /$path HTTP/1.1\r\n" + (range?.let { "Range: $it\r\n" } ?: "") + "\r\n"
+        socket.getOutputStream().write(request.toByteArray())
+
+        val headers = mutableListOf<String>()
+        var header = readLine(socket.getInputStream())
+        while (header.isNotEmpty()) {
+            headers.add(header)
+            header = readLine(socket.getInputStream())
+        }
+        return headers
+    }
+
+    // Reads the headers byte by byte, so no bytes of the body are buffered
+    private fun readLine(input: InputStream): String {
+        val line = StringBuilder()
+        var c = input.read()
+        while (c != -1 && c != '\n'.toInt()) {
+            if (c != '\r'.toInt()) line.append(c.toChar())
+            c = input.read()
+        }
+        return line.toString()
+    }
+
+    private fun readBody(socket: Socket, count: Int): List<Byte> {
+        val body = ByteArray(count)
+        DataInputStream(socket.getInputStream()).readFully(body)
+        return body.toList()
+    }
+
+    private fun connect(): Socket {
+        val socket = Socket("127.0.0.1", proxy!!.port)
+        socket.soTimeout = 2000
+        sockets.add(socket)
+        return socket
+    }
+
+    /**
+     * Sends a request for a file which isn't being played
+     * @return the status line of the response
+     */
+    private fun request(socket: Socket) = get(socket, File("song.mp3")).first()
+}